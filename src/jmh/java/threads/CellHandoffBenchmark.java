@@ -0,0 +1,96 @@
+package threads;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Control;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the reader to writer handoff through the old ArrayBlockingQueue with CellRingBuffer.
+ * One thread puts cells in the queue (the reader), and one thread takes them out (the writer).
+ *
+ * Run with:
+ *      mvn -P benchmark test-compile exec:java
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CellHandoffBenchmark {
+    @Param({"ArrayBlockingQueue", "SPIN", "YIELD", "PARK"})
+    public String queueType;
+
+    private BlockingQueue<byte[]> queue;
+    // The same cell is handed over again and again, so only the queue is measured
+    private final byte[] cell = new byte[512];
+
+    @Setup(Level.Iteration)
+    public void createQueue() {
+        if(queueType.equals("ArrayBlockingQueue")) {
+            queue = new ArrayBlockingQueue<>(1024);
+        } else {
+            queue = new CellRingBuffer(1024, false, WaitStrategy.valueOf(queueType));
+        }
+    }
+
+    /**
+     * The threads do not block in put() or take(), as the other thread may already have stopped
+     * when the iteration ends. Instead they retry until the cell is handed over, or the iteration is over.
+     */
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public void reader(Control control) {
+        while (!queue.offer(cell) && !control.stopMeasurement) {
+            Thread.onSpinWait();
+        }
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public byte[] writer(Control control) {
+        byte[] taken;
+        while ((taken = queue.poll()) == null && !control.stopMeasurement) {
+            Thread.onSpinWait();
+        }
+        return taken;
+    }
+
+    /**
+     * The same handoff, but both threads wait the way the node threads do (put() and take()),
+     * so the cost of parking and waking is measured too
+     */
+    @Benchmark
+    @Group("blocking")
+    @GroupThreads(1)
+    public void blockingReader(Control control) throws InterruptedException {
+        while (!queue.offer(cell, 1, TimeUnit.MILLISECONDS) && !control.stopMeasurement) {
+            // Retried until the iteration ends
+        }
+    }
+
+    @Benchmark
+    @Group("blocking")
+    @GroupThreads(1)
+    public byte[] blockingWriter(Control control) throws InterruptedException {
+        byte[] taken;
+        while ((taken = queue.poll(1, TimeUnit.MILLISECONDS)) == null && !control.stopMeasurement) {
+            // Retried until the iteration ends
+        }
+        return taken;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(CellHandoffBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,31 @@
+package Interface;
+
+import threads.Link;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Callback used by the event loops (TransportMode.EVENT_LOOP) to hand over every complete cell read from a link.
+ *
+ * The handler runs on the event loop thread, and must therefore never block.
+ * The handler owns the cell it is given: it must either send it on with Link.send(),
+ * which passes the ownership on, or give it back to CellBufferPool.direct().
+ * Link.send(cell, from) should be used to send the cell on, so the link it came from stops reading
+ * while the link it goes to is full.
+ */
+public interface ICellHandler {
+
+    /**
+     * @param link is the link the cell was read from
+     * @param cell is a direct buffer holding exactly one cell (position 0, limit 512)
+     */
+    void handleCell(Link link, ByteBuffer cell);
+
+    /**
+     * Called once when the link is closed, either by the other side or because of an error
+     *
+     * @param link is the link that was closed
+     */
+    default void linkClosed(Link link) {
+    }
+}
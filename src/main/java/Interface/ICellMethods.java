@@ -1,28 +1,26 @@
 package Interface;
 
+import cells.CellView;
 import cells.ControlCell;
 import cells.RelayCell;
 import circuit.Circuit;
 import nodes.DirectoryNode;
 import nodes.Node;
 import proxy.ProxyKeyStore;
-import security.Cryptography;
-import security.KeyGeneration;
-import security.KeyInformation;
+import security.CircuitKeyContext;
+import security.CircuitKeyTable;
+import security.OnionEncoder;
 
-import javax.crypto.SecretKey;
 import java.io.DataOutputStream;
-import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidAlgorithmParameterException;
-import java.security.Key;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
 
-import static Interface.ISupportMethods.generateRandomBytes;
 
 /**
  * Interface created in order to distribute the use of methods related to creating the
@@ -38,26 +36,40 @@ import static Interface.ISupportMethods.generateRandomBytes;
  */
 public interface ICellMethods {
 
+    /**
+     * The proxy sends a relay sendme cell for every this many data cells of a stream it has received,
+     * which lets the end node send as many more
+     */
+    int SENDME_INCREMENT = 50;
+
     /**
      * Relay command #1
      *
      * Opens a stream and does this by sending a cell all the way to the exit node
      * The exit node will respond with "relay connected" - cell
      * The guardNode will receive this cell first, before it passes the cell on
+     *
+     * @param streamId is the id of the stream to open, which can not be read from the cell once it is encrypted
+     * @param destination is where the end node connects the stream to, as "host:port"
      */
-    static RelayCell relayBegin(byte[] circuitId, ArrayList<Node> circuit) {
-        byte[] streamId = generateRandomBytes();
-
-        // Empty array as there is no payload
-        byte[] payloadLength = new byte[2];
+    static RelayCell relayBegin(byte[] circuitId, byte[] streamId, String destination, ArrayList<Node> circuit) {
+        byte[] payload = destination.getBytes(StandardCharsets.UTF_8);
+        if(payload.length > CellView.RELAY_DATA_SIZE) {
+            throw new IllegalArgumentException("The destination can not be more than " + CellView.RELAY_DATA_SIZE +
+                    " bytes long");
+        }
 
         // Creating the cell to be relayed
         RelayCell cell = new RelayCell((byte) 1, streamId,
-                payloadLength, circuitId);
+                new byte[] {(byte) (payload.length >>> 8), (byte) payload.length}, circuitId);
+        cell.setPayload(payload);
 
-        // Encrypt once for each element in the circuit
-        Cryptography cryptography = new Cryptography();
-        cryptography.encryptSpecifiedNumberOfTimes(cell, circuit, circuit.size(), true);
+        // Sealed for the end node, and encrypted once for each element in the circuit, all the layers in one pass
+        try {
+            OnionEncoder.forCircuit(ProxyKeyStore.forCircuit(circuitId), circuit.size()).seal(cell, circuit.size());
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            e.printStackTrace();
+        }
 
         return cell;
     }
@@ -66,37 +78,102 @@ public interface ICellMethods {
     /**
      * Relay command #2
      *
-     * Extend to another node selected by the client
-     * Involves a handshake (key agreement) between client-side proxy server and newNode,
-     * which will be placed in between the exit node and the proxy
+     * Extend the circuit by one node. The cell carries u of the ClientProxy's half of the handshake with the new node,
+     * and is sealed for the last of the hops that are already built, so only that node recognizes it.
+     * That node sends the handshake on as a create cell to the next node it is connected to (see extendInPlace()),
+     * and answers with a relay extended cell once the created cell comes back.
      *
      * @param circuitId is the circuit the node should be added to
-     * @param newNode is either a GuardNode or an IntermediaryNode (exitNode is already chosen) --> todo type check
+     * @param hops is the number of hops already built, which is also the position the new node gets
+     * @param local is the address of the ClientProxy
+     * @return the encrypted cell, or null if the handshake could not be started
      */
-    static void relayExtend(byte[] circuitId, InetAddress newNode, boolean lastNode) {
+    static RelayCell relayExtend(byte[] circuitId, int hops, InetAddress local) {
         try {
-            Circuit circuit = DirectoryNode.getCircuitWithId(circuitId);
+            // The ClientProxy's half of the handshake waits in the keystore, like for a create cell
+            CircuitKeyContext keys = new CircuitKeyContext(circuitId, local);
+            byte[] u = new byte[CircuitKeyContext.U_SIZE];
+            keys.writeLocalU(u, 0);
 
-            assert circuit != null;
-            int nodesInCircuit = circuit.getLength();
+            // The cell belongs to the circuit, not to a stream, so the stream id is 0
+            RelayCell cell = new RelayCell((byte) 2, new byte[2], new byte[] {0, (byte) u.length}, circuitId);
+            cell.setPayload(u);
 
+            ProxyKeyStore store = ProxyKeyStore.forCircuit(circuitId);
+            store.addPendingHandshake(keys);
 
-        } catch (Exception e) {
+            // Sealed for the last hop that is built, and encrypted for all of them in one pass
+            OnionEncoder.forCircuit(store, hops).seal(cell, hops);
+            return cell;
+        } catch (InvalidAlgorithmParameterException | NoSuchAlgorithmException | InvalidKeySpecException
+                | IllegalStateException e) {
             e.printStackTrace();
         }
+        return null;
+    }
+
+    /**
+     * Relay command #2 (node side)
+     *
+     * Used by the node that a relay extend cell was meant for, once it has opened (recognized) the cell. The relay extend cell is
+     * turned into the create cell for the next node where it lies (same circuit id, command 1, u of the ClientProxy,
+     * rest of the payload cleared). The caller sends the cell on to the next node.
+     *
+     * @param view is pointed at the decrypted relay extend cell
+     */
+    static void extendInPlace(CellView view) {
+        byte[] u = new byte[CircuitKeyContext.U_SIZE];
+        view.getRelayPayload(u, 0, u.length);
+        view.setCommand((byte) 1)
+                .setControlPayload(u, 0, u.length)
+                .zeroFrom(CellView.CONTROL_PAYLOAD_OFFSET + u.length);
+    }
+
+    /**
+     * Relay command #3 (node side)
+     *
+     * Used by the node that sent a create cell on for a relay extend cell, when the created cell comes back from
+     * the next node. The created cell is turned into the relay extended cell where it lies, carrying the next node's u.
+     * The caller seals the cell with its backward layer, so the ClientProxy knows which hop extended the circuit.
+     *
+     * @param view is pointed at the created cell received from the next node
+     */
+    static void extendedInPlace(CellView view) {
+        byte[] u = new byte[CircuitKeyContext.U_SIZE];
+        view.getControlPayload(u, 0, u.length);
+        view.zeroFrom(CellView.CONTROL_PAYLOAD_OFFSET)
+                .setCommand((byte) 0)
+                .setPayloadLength(u.length)
+                .setRelayCommand((byte) 3)
+                .setRelayPayload(u, 0, u.length);
     }
 
     /**
      * Relay command #3
      *
-     * From extended node to the proxy to acknowledge that the circuit was extended
-     * @param circuitId the circuit id
-     * @param node the node that was just added to the connection
+     * From the extending node to the proxy, to acknowledge that the circuit was extended.
+     * The ClientProxy finishes the oldest handshake that waits on the circuit with the new node's u.
+     *
+     * @param cell is the decrypted relay extended cell
+     * @return the position of the new node in the circuit, or -1 if no relay extend cell was waiting for the cell
      */
-    static void relayExtended(byte[] circuitId, Node node) throws Exception {
-        // get circuit using the get circuitMethod
-        DirectoryNode.getCircuitWithId(circuitId).addNode(node);
+    static int relayExtended(byte[] cell) {
+        try {
+            int circuitId = ISupportMethods.byteToInt(ISupportMethods.getCircuitId(cell));
+            ProxyKeyStore store = ProxyKeyStore.forCircuit(circuitId);
+            CircuitKeyContext keys = store.takePendingHandshake();
+            if(keys == null) {
+                System.out.println("No relay extend cell is waiting for a relay extended cell on circuit " + circuitId);
+                return -1;
+            }
 
+            // u of the new node is in the relay payload
+            keys.complete(CircuitKeyContext.toPublicKey(cell, CellView.RELAY_PAYLOAD_OFFSET));
+            return store.addHop(keys);
+        } catch (InvalidKeySpecException | NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        }
+        return -1;
     }
 
     /**
@@ -106,22 +183,22 @@ public interface ICellMethods {
      * packaging it into relay data cells and sending those cells along the circuit to the end node
      * This type of Relay-cell is always encrypted all the way (circuit.size() times)
      * As this is the
-     * @param data is the data to be transferred to the end node
+     * @param data is the data to be transferred to the end node, at most RELAY_DATA_SIZE bytes
      */
     static RelayCell relayData(byte[] data, byte[] streamId, byte[] circuitId, ArrayList<Node> nodes) throws Exception {
 
-        // Create a relay cell is encrypted
-        byte[] payloadLength = ISupportMethods.intToByteArray(data.length);
-
-        if(payloadLength.length != 2) {
-            throw new Exception("Payload length cannot be " + payloadLength.length + " bytes long. The limit is 2 bytes.");
+        // The payload length is 2 bytes, but the data must also leave room for the recognized and digest fields
+        if(data.length > CellView.RELAY_DATA_SIZE) {
+            throw new Exception("Payload cannot be " + data.length + " bytes long. The limit is " +
+                    CellView.RELAY_DATA_SIZE + " bytes.");
         }
         else {
+            byte[] payloadLength = {(byte) (data.length >>> 8), (byte) data.length};
             RelayCell cell = new RelayCell((byte) 4,streamId,payloadLength, circuitId);
+            cell.setPayload(data);
 
-            // The cell is encrypted
-            Cryptography cryptography = new Cryptography();
-            cryptography.encryptSpecifiedNumberOfTimes(cell,nodes,nodes.size(), true);
+            // The cell is sealed for the end node and encrypted, all the layers in one pass
+            OnionEncoder.forCircuit(ProxyKeyStore.forCircuit(circuitId), nodes.size()).seal(cell, nodes.size());
 
             // Return the cell
             return cell;
@@ -129,6 +206,49 @@ public interface ICellMethods {
     }
 
 
+    /**
+     * Relay command #6
+     *
+     * Sent by the proxy to close one stream of the circuit. The end node closes the stream's connection to the
+     * destination, while the other streams of the circuit go on.
+     *
+     * @param streamId is the stream to close
+     */
+    static RelayCell streamClosed(byte[] circuitId, byte[] streamId, ArrayList<Node> nodes) {
+        RelayCell cell = new RelayCell((byte) 6, streamId, new byte[2], circuitId);
+
+        // Sealed for the end node, and encrypted all the way to it, all the layers in one pass
+        try {
+            OnionEncoder.forCircuit(ProxyKeyStore.forCircuit(circuitId), nodes.size()).seal(cell, nodes.size());
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            e.printStackTrace();
+        }
+        return cell;
+    }
+
+
+    /**
+     * Relay command #7
+     *
+     * Sent by the proxy once it has received SENDME_INCREMENT more data cells of the stream.
+     * The end node only sends a window of data cells ahead of these acknowledgements, so a stream the proxy
+     * reads slowly does not fill the circuit.
+     *
+     * @param streamId is the stream that was read from
+     */
+    static RelayCell relaySendme(byte[] circuitId, byte[] streamId, ArrayList<Node> nodes) {
+        RelayCell cell = new RelayCell((byte) 7, streamId, new byte[2], circuitId);
+
+        // Sealed for the end node, and encrypted all the way to it, all the layers in one pass
+        try {
+            OnionEncoder.forCircuit(ProxyKeyStore.forCircuit(circuitId), nodes.size()).seal(cell, nodes.size());
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            e.printStackTrace();
+        }
+        return cell;
+    }
+
+
     /**
      * Control command #1
      *
@@ -146,43 +266,34 @@ public interface ICellMethods {
      *
      */
     static ControlCell create(byte[] circuitId, Socket socket) {
-        try{
-            // The ClientProxy creates its private and public keys
-            KeyGeneration generator = new KeyGeneration();
-
-            // Creating the key pairs
-            generator.generateKeyPair(circuitId, socket.getLocalAddress());
-
-            // The keyPair is available through the getCurrentKey() function
-            KeyInformation information = generator.getCurrentKey();
-
-            // Retrieving the public-key from the KeyInformation object
-            Key publicKey = information.getLocalPublicKey();
-
-            // Retrieve u as well, it is needed for the receiving node to transform the payload bytes to PublicKey
-            BigInteger bigIntegerU = information.getU();
+        return create(circuitId, socket.getLocalAddress());
+    }
 
-            // Convert bigIntegerU to byte array
-            byte[] u = bigIntegerU.toByteArray();
+    /**
+     * Control command #1
+     *
+     * @param circuitId is the id of the circuit the node is added to
+     * @param local is the address of the ClientProxy
+     */
+    static ControlCell create(byte[] circuitId, InetAddress local) {
+        try{
+            // The ClientProxy takes a key pair of its own for this hop, so handshakes of other circuits
+            // (or of other hops in the same circuit) never touch it
+            CircuitKeyContext keys = new CircuitKeyContext(circuitId, local);
 
             // The clientProxy creates a control cell containing the public key
             ControlCell newCell = new ControlCell((byte)1, circuitId);
 
-            // u + publicKey = 4 bytes + 16 bytes = 20 bytes
-            byte[] payload = new byte[20];
-
-            // Convert publicKey to byteArray
-            byte[] publicKeyByteArray = publicKey.getEncoded();
-
-            // Add u to the payload
-            System.arraycopy(u, 0, payload, 0, 3);
-
-            // Add the pk to the payload
-            System.arraycopy(publicKeyByteArray, 4, payload, 4, 16);
+            // u is the public key, as 32 bytes, and the receiving node turns it back into a PublicKey
+            byte[] payload = new byte[CircuitKeyContext.U_SIZE];
+            keys.writeLocalU(payload, 0);
 
             // Adding the payload to the new cell
             newCell.setPayload(payload);
 
+            // The handshake is finished when the created cell comes back
+            ProxyKeyStore.forCircuit(circuitId).addPendingHandshake(keys);
+
             return newCell;
         } catch (InvalidAlgorithmParameterException | NoSuchAlgorithmException
                 | InvalidKeySpecException e) {
@@ -199,27 +310,70 @@ public interface ICellMethods {
      * Response sent from the node added to the path using create method (control command #1)
      * The response is a created-cell containing g^y along with the negotiated key K = g^xy
      *
-     * @param node is the node the proxy is handshaking with at the time
      * @param cell is the cell we just received (control cell)
+     * @return the position of the node in the circuit, or -1 if no create cell was waiting for the cell
      */
-    static void created(byte[] cell, InetAddress node) {
+    static int created(byte[] cell) {
         try{
-            byte[] uAsBytes = new byte[4];
-            // Get u from the payload (resides in the first 4 bytes)
-            System.arraycopy(cell, 3, uAsBytes, 0, 4);
+            // The oldest handshake started on this circuit is the one the node answered
+            int circuitId = ISupportMethods.byteToInt(ISupportMethods.getCircuitId(cell));
+            ProxyKeyStore store = ProxyKeyStore.forCircuit(circuitId);
+            CircuitKeyContext keys = store.takePendingHandshake();
+            if(keys == null) {
+                System.out.println("No create cell is waiting for a created cell on circuit " + circuitId);
+                return -1;
+            }
 
-            // Convert the bytes to a public key
-            PublicKey publicKey = ISupportMethods.convertToPublicKey(uAsBytes);
+            // Get u from the payload and convert it to the node's public key
+            PublicKey publicKey = CircuitKeyContext.toPublicKey(cell, CellView.CONTROL_PAYLOAD_OFFSET);
 
-            // Create the symmetric key
-            KeyGeneration keyGeneration = new KeyGeneration();
-            SecretKey symmetricKey = keyGeneration.generateSecretKey(publicKey,true);
+            // Create the symmetric key with the private key of this hop
+            keys.complete(publicKey);
 
-            // Add the symmetric key and the IP to the store
-            ProxyKeyStore.addKey(node,symmetricKey);
+            // The node is the next hop of the circuit
+            return store.addHop(keys);
         } catch (InvalidKeySpecException | NoSuchAlgorithmException e) {
             e.printStackTrace();
         }
+        return -1;
+    }
+
+    /**
+     * Control command #2 (node side)
+     *
+     * Used by a node that received a create cell. The node takes a key pair of its own, creates the symmetric key
+     * from u in the create cell, and stores the keys in the CircuitKeyTable under the link and circuit id.
+     * The create cell is turned into the created reply where it lies (same circuit id, command 2, the node's u,
+     * rest of the payload cleared). The caller sends the cell back.
+     *
+     * @param view is pointed at the received create cell
+     * @param link is the connection the create cell arrived on
+     * @return the keys of the circuit at this node
+     * @throws IllegalStateException if the circuit already has keys on this link
+     */
+    static CircuitKeyContext createdInPlace(CellView view, Object link) throws NoSuchAlgorithmException,
+            InvalidKeySpecException, InvalidAlgorithmParameterException {
+        // The cell is a create cell, meaning this cell must respond with a created cell
+        byte[] u = new byte[CircuitKeyContext.U_SIZE];
+
+        // Reading in u as bytes, and converting it to the public key of the ClientProxy
+        view.getControlPayload(u, 0, u.length);
+        PublicKey pk = CircuitKeyContext.toPublicKey(u, 0);
+
+        // The node's half of the handshake, for this circuit only
+        int circuitId = view.getCircuitId();
+        CircuitKeyContext keys = new CircuitKeyContext(circuitId, null);
+        keys.complete(pk);
+        if(!CircuitKeyTable.shared().add(link, circuitId, keys)) {
+            throw new IllegalStateException("Circuit " + circuitId + " has already been created on " + link);
+        }
+
+        // The create cell is turned into a created cell in place, keeping the circuit id, and carrying the node's u
+        keys.writeLocalU(u, 0);
+        view.setCommand((byte) 2)
+                .setControlPayload(u, 0, u.length)
+                .zeroFrom(CellView.CONTROL_PAYLOAD_OFFSET + u.length);
+        return keys;
     }
 
     /**
@@ -228,14 +382,16 @@ public interface ICellMethods {
      */
     static void destroy(ArrayList<Node> circuit, byte[] circuitId, DataOutputStream outboundMessage) {
         try {
+            // The ciphers of the circuit are looked up once, and used for all the destroy cells
+            OnionEncoder onion = OnionEncoder.forCircuit(ProxyKeyStore.forCircuit(circuitId), circuit.size());
+
             // For all nodes in circuit, starting at the end node
             for (int i = circuit.size(); i > 0; i--) {
                 // Create a destroy() control cell
                 ControlCell cell = new ControlCell((byte) 3, circuitId);
 
-                // Encrypt the amount of times needed --> i
-                Cryptography cryptography = new Cryptography();
-                cryptography.encryptSpecifiedNumberOfTimes(cell, circuit, i, true);
+                // Sealed for node i, so that node knows the cell is its own, and encrypted the amount of times needed --> i
+                onion.seal(cell, i);
 
                 // Send the node to the node guard node and let it handle the rest
                 outboundMessage.write(cell.getTotalMessage());
@@ -245,6 +401,8 @@ public interface ICellMethods {
             // After all nodes are destroyed (closed), the circuit is removed from the directory node
             Circuit circuitToRemove = DirectoryNode.getCircuitWithId(circuitId);
             DirectoryNode.removeCircuit(circuitToRemove);
+            // The keys of the circuit are no longer needed
+            ProxyKeyStore.remove(ISupportMethods.byteToInt(circuitId));
         } catch (Exception e) {
             e.printStackTrace();
         }
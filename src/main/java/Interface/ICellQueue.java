@@ -0,0 +1,44 @@
+package Interface;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Where a node puts the cells it creates for the previous hop, ex: the relay cells of the EndNode.
+ * With TransportMode.STREAM and DIRECT this is the queue of a writer thread (see of()), with EVENT_LOOP the cells
+ * are handed to the link towards the previous node.
+ */
+public interface ICellQueue {
+
+    /**
+     * Takes the cell only if there is room for it right away
+     *
+     * @param cell is a whole 512 byte cell, which belongs to the queue if it is taken
+     * @return false if the cell was not taken, and still belongs to the caller
+     */
+    boolean offer(byte[] cell);
+
+    /**
+     * Takes the cell, waiting for room if the queue is full
+     *
+     * @param cell is a whole 512 byte cell, which belongs to the queue from now on
+     */
+    void put(byte[] cell) throws InterruptedException;
+
+    /**
+     * @param queue is the queue of the writer thread to the previous hop
+     * @return the queue as an ICellQueue
+     */
+    static ICellQueue of(BlockingQueue<byte[]> queue) {
+        return new ICellQueue() {
+            @Override
+            public boolean offer(byte[] cell) {
+                return queue.offer(cell);
+            }
+
+            @Override
+            public void put(byte[] cell) throws InterruptedException {
+                queue.put(cell);
+            }
+        };
+    }
+}
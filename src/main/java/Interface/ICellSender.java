@@ -0,0 +1,17 @@
+package Interface;
+
+/**
+ * Where the ClientProxy hands over a cell it created, to be sent towards the guard node.
+ * Ex: the queue of the WriterThread that owns the socket to the guard node.
+ *
+ * The sender is called by the thread that reads cells from the guard node, so it should only queue the cell,
+ * and leave the writing to the writer.
+ */
+@FunctionalInterface
+public interface ICellSender {
+
+    /**
+     * @param cell is a whole 512 byte cell, which belongs to the sender from now on
+     */
+    void send(byte[] cell) throws Exception;
+}
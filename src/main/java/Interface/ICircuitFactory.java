@@ -0,0 +1,23 @@
+package Interface;
+
+import circuit.Circuit;
+
+/**
+ * Builds and tears down whole circuits for a CircuitPool.
+ * Building blocks while the nodes are connected and handshaked with, so the pool calls it on a thread of its own.
+ */
+public interface ICircuitFactory {
+
+    /**
+     * @return a circuit the ClientProxy shares a key with every node of, ready for streams
+     */
+    Circuit buildCircuit() throws Exception;
+
+    /**
+     * Tears the circuit down, once the pool will no longer hand it out
+     *
+     * @param circuit is a circuit built by buildCircuit()
+     */
+    default void retireCircuit(Circuit circuit) {
+    }
+}
@@ -0,0 +1,18 @@
+package Interface;
+
+import cells.CellView;
+
+/**
+ * The work done on one cell by a worker of the CryptoEngine: adding or removing a layer,
+ * and then handing the cell on, ex: to the queue of a WriterThread.
+ *
+ * The task owns the cell it is given: it must either hand it on, or give it back to CellBufferPool.heap().
+ */
+public interface ICryptoTask {
+
+    /**
+     * @param cell is the 512 byte cell
+     * @param view is a view owned by the worker thread, that the task may point at the cell
+     */
+    void process(byte[] cell, CellView view) throws Exception;
+}
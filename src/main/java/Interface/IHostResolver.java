@@ -0,0 +1,28 @@
+package Interface;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Turns the host name of a stream's destination into addresses, for the ResolverCache of the end node.
+ * The system resolver is used by default. Tests give a resolver of their own, so no real lookups are made.
+ *
+ * The resolver blocks, so the cache calls it on a thread of its own.
+ */
+@FunctionalInterface
+public interface IHostResolver {
+
+    /**
+     * @param host is a host name or an address literal
+     * @return the addresses of the host, the first is the one connected to
+     * @throws UnknownHostException if the host has no addresses
+     */
+    InetAddress[] resolve(String host) throws UnknownHostException;
+
+    /**
+     * @return the resolver of the JVM, InetAddress.getAllByName()
+     */
+    static IHostResolver system() {
+        return InetAddress::getAllByName;
+    }
+}
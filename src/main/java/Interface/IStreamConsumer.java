@@ -0,0 +1,26 @@
+package Interface;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Gets the data of a ProxyStream as soon as each relay data cell is decrypted, instead of reading it from the stream.
+ * Nothing is buffered for a stream that has a consumer, so the memory used does not grow with the size of the response.
+ *
+ * The methods are called by the thread that reads cells from the guard node, which serves every stream of the
+ * circuit, so they should return quickly (ex: write the data to a socket, or hand it to another thread).
+ */
+@FunctionalInterface
+public interface IStreamConsumer {
+
+    /**
+     * @param data is the payload of one relay data cell, trimmed to its payload length. The buffer is a read-only
+     *             view of the cell, and is only valid until the method returns.
+     */
+    void onData(ByteBuffer data) throws Exception;
+
+    /**
+     * Called once when the stream has ended, or could not be connected
+     */
+    default void onEnd() {
+    }
+}
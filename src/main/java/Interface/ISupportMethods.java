@@ -71,8 +71,8 @@ public interface ISupportMethods {
     /*********************************** Public key from bytes to key **********************************************/
 
     static PublicKey convertToPublicKey(byte[] u) throws NoSuchAlgorithmException, InvalidKeySpecException {
-        // Convert u back to BigInteger
-        BigInteger curvePos = new BigInteger(u);
+        // Convert u back to BigInteger. u is unsigned, as the top bit of a 32 byte u may be set
+        BigInteger curvePos = new BigInteger(1, u);
         // Convert the bytes to a PublicKey object
         NamedParameterSpec paramSpec = new NamedParameterSpec("X25519");
         KeyFactory kf = KeyFactory.getInstance("XDH");
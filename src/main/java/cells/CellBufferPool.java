@@ -0,0 +1,184 @@
+package cells;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * A pool of recyclable cell buffers, so that a relay in steady state does not allocate per cell.
+ *
+ * Every thread has a small cache of its own. When a thread releases more buffers than its cache can hold
+ * (ex: a writer thread that releases what a reader thread acquired), the rest go to a bounded, shared overflow
+ * that all threads acquire from when their own cache is empty.
+ *
+ * Ownership of a buffer follows the cell: the reader acquires it, the queue carries it, and whoever
+ * is the last to touch the cell (usually the writer thread) releases it. A buffer must not be used after release.
+ *
+ * With the system property onion.cellpool.leakDetection=true, the pool remembers where every buffer was acquired.
+ * reportLeaks() then prints buffers that were never released, and releasing a buffer twice is reported.
+ *
+ * @param <T> the type of buffer that is pooled
+ */
+public final class CellBufferPool<T> {
+    private static final int THREAD_CACHE_SIZE = 64;
+    private static final int SHARED_CAPACITY = 4096;
+    private static final boolean LEAK_DETECTION = Boolean.getBoolean("onion.cellpool.leakDetection");
+
+    private static final CellBufferPool<byte[]> HEAP = new CellBufferPool<>("heap",
+            () -> new byte[CellView.CELL_SIZE],
+            buffer -> buffer.length == CellView.CELL_SIZE,
+            buffer -> { },
+            LEAK_DETECTION);
+
+    private static final CellBufferPool<ByteBuffer> DIRECT = new CellBufferPool<>("direct",
+            () -> ByteBuffer.allocateDirect(CellView.CELL_SIZE),
+            buffer -> buffer.isDirect() && buffer.capacity() == CellView.CELL_SIZE,
+            ByteBuffer::clear,
+            LEAK_DETECTION);
+
+    static {
+        // Buffers still acquired when the program stops are reported in debug mode
+        if(LEAK_DETECTION) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                HEAP.reportLeaks();
+                DIRECT.reportLeaks();
+            }));
+        }
+    }
+
+    private final String name;
+    private final Supplier<T> factory;
+    private final Predicate<T> fits;
+    private final Consumer<T> reset;
+    private final ThreadLocal<ArrayDeque<T>> threadCache = ThreadLocal.withInitial(() -> new ArrayDeque<>(THREAD_CACHE_SIZE));
+    private final BlockingQueue<T> shared = new ArrayBlockingQueue<>(SHARED_CAPACITY);
+    private final AtomicLong allocated = new AtomicLong();
+
+    // Only used when leak detection is turned on
+    private final boolean leakDetection;
+    private final Map<T, Throwable> outstanding;
+    private final Set<T> idle;
+
+    /**
+     * @param name is used when leaks are reported
+     * @param factory creates a new buffer when the pool is empty
+     * @param fits decides if a released buffer can be put back in the pool
+     * @param reset prepares a released buffer for its next user
+     * @param leakDetection true if the pool should track acquired buffers
+     */
+    CellBufferPool(String name, Supplier<T> factory, Predicate<T> fits, Consumer<T> reset, boolean leakDetection) {
+        this.name = name;
+        this.factory = factory;
+        this.fits = fits;
+        this.reset = reset;
+        this.leakDetection = leakDetection;
+        // Buffers such as ByteBuffer override equals(), so identity must be used
+        this.outstanding = leakDetection ? Collections.synchronizedMap(new IdentityHashMap<>()) : null;
+        this.idle = leakDetection ? Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>())) : null;
+    }
+
+    /**
+     * @return the pool of 512 byte heap arrays used by the reader and writer threads
+     */
+    public static CellBufferPool<byte[]> heap() {
+        return HEAP;
+    }
+
+    /**
+     * @return the pool of 512 byte direct (off-heap) buffers used when nodes run with TransportMode.DIRECT
+     */
+    public static CellBufferPool<ByteBuffer> direct() {
+        return DIRECT;
+    }
+
+    /**
+     * Takes a buffer from the calling thread's cache, then from the shared overflow,
+     * and only allocates a new buffer if both are empty
+     *
+     * @return a buffer the caller now owns
+     */
+    public T acquire() {
+        T buffer = threadCache.get().pollFirst();
+        if(buffer == null) {
+            buffer = shared.poll();
+        }
+        if(buffer == null) {
+            buffer = factory.get();
+            allocated.incrementAndGet();
+        }
+        if(leakDetection) {
+            idle.remove(buffer);
+            outstanding.put(buffer, new Throwable("Cell buffer acquired by " + Thread.currentThread().getName()));
+        }
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool. Buffers that do not fit the pool are left to the garbage collector,
+     * which means any 512 byte cell can be released, even if it was not acquired from the pool.
+     *
+     * @param buffer is the buffer the caller no longer uses
+     */
+    public void release(T buffer) {
+        if(buffer == null || !fits.test(buffer)) {
+            return;
+        }
+        if(leakDetection) {
+            if(idle.contains(buffer)) {
+                new IllegalStateException("Cell buffer released twice to the " + name + " pool").printStackTrace();
+                return;
+            }
+            outstanding.remove(buffer);
+            idle.add(buffer);
+        }
+        reset.accept(buffer);
+
+        ArrayDeque<T> cache = threadCache.get();
+        if(cache.size() < THREAD_CACHE_SIZE) {
+            cache.addFirst(buffer);
+        }
+        // If the overflow is full as well, the buffer is dropped
+        else if(!shared.offer(buffer) && leakDetection) {
+            idle.remove(buffer);
+        }
+    }
+
+    /**
+     * Prints where every buffer that has not been released yet was acquired.
+     * Only works when leak detection is turned on.
+     *
+     * @return the number of buffers that are acquired, but not released
+     */
+    public int reportLeaks() {
+        if(!leakDetection) {
+            return 0;
+        }
+        synchronized (outstanding) {
+            for (Throwable acquiredAt : outstanding.values()) {
+                System.out.println("Cell buffer in the " + name + " pool was never released:");
+                acquiredAt.printStackTrace(System.out);
+            }
+            return outstanding.size();
+        }
+    }
+
+    /**
+     * @return how many buffers the pool has had to allocate since it was created
+     */
+    public long getAllocatedCount() {
+        return allocated.get();
+    }
+
+    public boolean isLeakDetectionEnabled() {
+        return leakDetection;
+    }
+}
@@ -0,0 +1,84 @@
+package cells;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits a stream of bytes from a socket into whole 512 byte cells.
+ *
+ * TCP does not keep the boundaries of what was written, so one read can return half a cell,
+ * or several cells and a part of the next one. The framer reads as much as the socket has (up to
+ * READ_AHEAD_CELLS cells) into a buffer of its own, and hands out one whole cell at a time.
+ * A burst of cells is therefore read with one system call, and the cells after the first are
+ * handed out without reading from the socket again.
+ *
+ * readCell() blocks until a whole cell is available, so an idle connection uses no CPU.
+ * Not thread safe: each reader thread has a framer of its own.
+ */
+public class CellFramer {
+    public static final int READ_AHEAD_CELLS = 16;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[READ_AHEAD_CELLS * CellView.CELL_SIZE];
+    private int start = 0; // first byte not handed out yet
+    private int end = 0; // first byte not filled yet
+
+    /**
+     * @param in is the stream of the socket cells are read from
+     */
+    public CellFramer(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Copies the next whole cell into the given array, reading from the socket only if no whole cell is buffered
+     *
+     * @param cell is an array of at least 512 bytes
+     * @return false if the other side closed the connection between two cells
+     * @throws EOFException if the connection was closed in the middle of a cell
+     * @throws IOException if the socket could not be read
+     */
+    public boolean readCell(byte[] cell) throws IOException {
+        if(cell.length < CellView.CELL_SIZE) {
+            throw new IllegalArgumentException("A cell needs 512 bytes, the array only has " + cell.length);
+        }
+        while (end - start < CellView.CELL_SIZE) {
+            if(!fill()) {
+                if(end == start) {
+                    return false;
+                }
+                throw new EOFException("The connection was closed after " + (end - start) + " bytes of a cell");
+            }
+        }
+        System.arraycopy(buffer, start, cell, 0, CellView.CELL_SIZE);
+        start += CellView.CELL_SIZE;
+        return true;
+    }
+
+    /**
+     * @return how many whole cells can be read without reading from the socket
+     */
+    public int bufferedCells() {
+        return (end - start) / CellView.CELL_SIZE;
+    }
+
+    /**
+     * Moves a partly read cell to the front of the buffer, and reads as much as the socket gives
+     *
+     * @return false on end of stream
+     */
+    private boolean fill() throws IOException {
+        if(start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        int read = in.read(buffer, end, buffer.length - end);
+        if(read < 0) {
+            return false;
+        }
+        end += read;
+        return true;
+    }
+}
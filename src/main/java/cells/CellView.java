@@ -0,0 +1,319 @@
+package cells;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A flyweight view over a single 512 byte cell.
+ * The view holds no cell data of its own, it only points at a cell that lives in either
+ * a byte array or a ByteBuffer (heap or direct). One view can be re-pointed at a new cell
+ * as many times as needed, so a thread that handles cells only needs one view.
+ *
+ * All getters and setters are absolute, meaning the position and limit of the
+ * underlying buffer are never touched.
+ *
+ * Layout of a cell (offsets are relative to the start of the cell):
+ *          0-1     circuit id
+ *          2       command (0 = relay cell, 1-3 = control cell)
+ *          3-4     stream id (relay cells)
+ *          5-6     payload length (relay cells)
+ *          7       relay command (relay cells)
+ *          8-511   relay payload (504 bytes)
+ *          3-511   control payload (509 bytes)
+ *
+ * Every cell that carries layers uses the last 6 bytes of the cell to let the hop it is meant for (forward), or the
+ * client (backward), recognize which hop it belongs to (see HopCipher.seal()):
+ *          506-507 recognized (always 0 once every layer is removed)
+ *          508-511 digest of the cell, running over all cells of the hop in that direction
+ * The data of such a cell fits in the first RELAY_DATA_SIZE (498) bytes of the payload.
+ */
+public final class CellView {
+    public static final int CELL_SIZE = 512;
+
+    // Header offsets
+    public static final int CIRCUIT_ID_OFFSET = 0;
+    public static final int COMMAND_OFFSET = 2;
+    public static final int STREAM_ID_OFFSET = 3;
+    public static final int PAYLOAD_LENGTH_OFFSET = 5;
+    public static final int RELAY_COMMAND_OFFSET = 7;
+
+    // Payload offsets and sizes
+    public static final int RELAY_PAYLOAD_OFFSET = 8;
+    public static final int RELAY_PAYLOAD_SIZE = CELL_SIZE - RELAY_PAYLOAD_OFFSET;
+    public static final int CONTROL_PAYLOAD_OFFSET = 3;
+    public static final int CONTROL_PAYLOAD_SIZE = CELL_SIZE - CONTROL_PAYLOAD_OFFSET;
+
+    // Recognizing the hop a cell comes from, at the end of the relay payload
+    public static final int DIGEST_SIZE = 4;
+    public static final int DIGEST_OFFSET = CELL_SIZE - DIGEST_SIZE;
+    public static final int RECOGNIZED_SIZE = 2;
+    public static final int RECOGNIZED_OFFSET = DIGEST_OFFSET - RECOGNIZED_SIZE;
+    public static final int RELAY_DATA_SIZE = RECOGNIZED_OFFSET - RELAY_PAYLOAD_OFFSET;
+
+    // Only one of these is set at a time, depending on what the view was wrapped around
+    private byte[] array;
+    private ByteBuffer buffer;
+    private int offset;
+
+    public CellView() {
+    }
+
+    /**
+     * Points the view at a cell held in a byte array
+     *
+     * @param cell is the array holding the cell
+     * @param offset is the index of the first byte of the cell
+     * @return this view, so that calls can be chained
+     */
+    public CellView wrap(byte[] cell, int offset) {
+        if(offset < 0 || cell.length - offset < CELL_SIZE) {
+            throw new IllegalArgumentException("There is no room for a " + CELL_SIZE + " byte cell at offset " + offset);
+        }
+        this.array = cell;
+        this.buffer = null;
+        this.offset = offset;
+        return this;
+    }
+
+    /**
+     * Points the view at a cell that starts at the beginning of the array
+     *
+     * @param cell is the array holding the cell
+     * @return this view
+     */
+    public CellView wrap(byte[] cell) {
+        return wrap(cell, 0);
+    }
+
+    /**
+     * Points the view at a cell held in a ByteBuffer. The buffer can be direct.
+     *
+     * @param cellBuffer is the buffer holding the cell
+     * @param offset is the absolute index of the first byte of the cell
+     * @return this view
+     */
+    public CellView wrap(ByteBuffer cellBuffer, int offset) {
+        if(offset < 0 || cellBuffer.capacity() - offset < CELL_SIZE) {
+            throw new IllegalArgumentException("There is no room for a " + CELL_SIZE + " byte cell at offset " + offset);
+        }
+        this.array = null;
+        this.buffer = cellBuffer;
+        this.offset = offset;
+        return this;
+    }
+
+    /**
+     * Drops the reference to the cell, so that the view does not keep a buffer alive
+     */
+    public void clear() {
+        array = null;
+        buffer = null;
+        offset = 0;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    // GETTERS
+
+    /**
+     * @return the circuit id as an unsigned 16 bit integer
+     */
+    public int getCircuitId() {
+        return getUnsignedShort(CIRCUIT_ID_OFFSET);
+    }
+
+    public byte getCommand() {
+        return get(COMMAND_OFFSET);
+    }
+
+    /**
+     * @return true if the command byte marks this as a relay cell
+     */
+    public boolean isRelayCell() {
+        return getCommand() == 0;
+    }
+
+    /**
+     * @return the stream id as an unsigned 16 bit integer
+     */
+    public int getStreamId() {
+        return getUnsignedShort(STREAM_ID_OFFSET);
+    }
+
+    /**
+     * @return the payload length as an unsigned 16 bit integer
+     */
+    public int getPayloadLength() {
+        return getUnsignedShort(PAYLOAD_LENGTH_OFFSET);
+    }
+
+    /**
+     * Unlike RelayCell.getRelayCommand() this method does not validate the command,
+     * as the byte may still be encrypted when the view is used for routing.
+     */
+    public byte getRelayCommand() {
+        return get(RELAY_COMMAND_OFFSET);
+    }
+
+    // SETTERS
+
+    public CellView setCircuitId(int circuitId) {
+        putUnsignedShort(CIRCUIT_ID_OFFSET, circuitId);
+        return this;
+    }
+
+    public CellView setCommand(byte command) {
+        put(COMMAND_OFFSET, command);
+        return this;
+    }
+
+    public CellView setStreamId(int streamId) {
+        putUnsignedShort(STREAM_ID_OFFSET, streamId);
+        return this;
+    }
+
+    public CellView setPayloadLength(int payloadLength) {
+        putUnsignedShort(PAYLOAD_LENGTH_OFFSET, payloadLength);
+        return this;
+    }
+
+    public CellView setRelayCommand(byte relayCommand) {
+        put(RELAY_COMMAND_OFFSET, relayCommand);
+        return this;
+    }
+
+    // PAYLOAD
+
+    /**
+     * Copies the payload of a relay cell into an array the caller owns
+     *
+     * @param destination is the array to copy into
+     * @param destinationOffset is where in the destination the payload starts
+     * @param length is how many bytes to copy (at most RELAY_PAYLOAD_SIZE)
+     */
+    public void getRelayPayload(byte[] destination, int destinationOffset, int length) {
+        checkPayloadLength(length, RELAY_PAYLOAD_SIZE);
+        if(array != null) {
+            System.arraycopy(array, offset + RELAY_PAYLOAD_OFFSET, destination, destinationOffset, length);
+        }
+        else {
+            buffer.get(offset + RELAY_PAYLOAD_OFFSET, destination, destinationOffset, length);
+        }
+    }
+
+    /**
+     * Copies bytes into the payload of a relay cell
+     *
+     * @param source is the array holding the bytes
+     * @param sourceOffset is where in the source to start reading
+     * @param length is how many bytes to copy (at most RELAY_PAYLOAD_SIZE)
+     */
+    public CellView setRelayPayload(byte[] source, int sourceOffset, int length) {
+        checkPayloadLength(length, RELAY_PAYLOAD_SIZE);
+        if(array != null) {
+            System.arraycopy(source, sourceOffset, array, offset + RELAY_PAYLOAD_OFFSET, length);
+        }
+        else {
+            buffer.put(offset + RELAY_PAYLOAD_OFFSET, source, sourceOffset, length);
+        }
+        return this;
+    }
+
+    /**
+     * Copies the payload of a control cell into an array the caller owns
+     *
+     * @param destination is the array to copy into
+     * @param destinationOffset is where in the destination the payload starts
+     * @param length is how many bytes to copy (at most CONTROL_PAYLOAD_SIZE)
+     */
+    public void getControlPayload(byte[] destination, int destinationOffset, int length) {
+        checkPayloadLength(length, CONTROL_PAYLOAD_SIZE);
+        if(array != null) {
+            System.arraycopy(array, offset + CONTROL_PAYLOAD_OFFSET, destination, destinationOffset, length);
+        }
+        else {
+            buffer.get(offset + CONTROL_PAYLOAD_OFFSET, destination, destinationOffset, length);
+        }
+    }
+
+    /**
+     * Copies bytes into the payload of a control cell
+     *
+     * @param source is the array holding the bytes
+     * @param sourceOffset is where in the source to start reading
+     * @param length is how many bytes to copy (at most CONTROL_PAYLOAD_SIZE)
+     */
+    public CellView setControlPayload(byte[] source, int sourceOffset, int length) {
+        checkPayloadLength(length, CONTROL_PAYLOAD_SIZE);
+        if(array != null) {
+            System.arraycopy(source, sourceOffset, array, offset + CONTROL_PAYLOAD_OFFSET, length);
+        }
+        else {
+            buffer.put(offset + CONTROL_PAYLOAD_OFFSET, source, sourceOffset, length);
+        }
+        return this;
+    }
+
+    /**
+     * Sets every byte from the given index (relative to the cell) to the end of the cell to 0
+     *
+     * @param from is the first byte to clear
+     */
+    public CellView zeroFrom(int from) {
+        for (int i = from; i < CELL_SIZE; i++) {
+            put(i, (byte) 0);
+        }
+        return this;
+    }
+
+    /**
+     * @param from is the first byte to check (relative to the cell)
+     * @return true if every byte from the index to the end of the cell is 0
+     */
+    public boolean isZeroFrom(int from) {
+        for (int i = from; i < CELL_SIZE; i++) {
+            if(get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Support methods
+
+    private byte get(int index) {
+        if(array != null) {
+            return array[offset + index];
+        }
+        return buffer.get(offset + index);
+    }
+
+    private void put(int index, byte value) {
+        if(array != null) {
+            array[offset + index] = value;
+        }
+        else {
+            buffer.put(offset + index, value);
+        }
+    }
+
+    private int getUnsignedShort(int index) {
+        // both bytes are converted to unsigned int
+        return (Byte.toUnsignedInt(get(index)) << 8) | Byte.toUnsignedInt(get(index + 1));
+    }
+
+    private void putUnsignedShort(int index, int value) {
+        if(value < 0 || value > 0xFFFF) {
+            throw new IllegalArgumentException("The value " + value + " does not fit in 2 bytes");
+        }
+        put(index, (byte) (value >>> 8));
+        put(index + 1, (byte) value);
+    }
+
+    private static void checkPayloadLength(int length, int max) {
+        if(length < 0 || length > max) {
+            throw new IllegalArgumentException("Payload can not be more than " + max + " bytes long");
+        }
+    }
+}
@@ -39,16 +39,16 @@ public class RelayCell extends Cell{
 
     /**
      * Writes the payload to the totalMessage
-     * The payload offset is 8 (position = 8)
+     * The payload offset is 8 (position = 8), right after the relay command
      *
      * @param payload is the body of the cell (data). Ex: GET request
      */
     @Override
     public void setPayload(byte[] payload) {
         // Payload can be maximum 504 bytes
-        if(payload.length <= 504) {
+        if(payload.length <= CellView.RELAY_PAYLOAD_SIZE) {
             super.setPayload(payload);
-            byteBuffer.position(7);
+            byteBuffer.position(CellView.RELAY_PAYLOAD_OFFSET);
 
             // Put the payload there
             byteBuffer.put(payload);
@@ -97,10 +97,11 @@ public class RelayCell extends Cell{
      *                     0x4 = relayData
      *                     0x5 = relayConnected
      *                     0x6 = streamClosing
+     *                     0x7 = relaySendme
      */
     public void setRelayCommand(byte relayCommand) {
-        if(relayCommand > 6) {
-            throw new IllegalArgumentException("The relay command must be a byte representing an integer value 1-5");
+        if(relayCommand > 7) {
+            throw new IllegalArgumentException("The relay command must be a byte representing an integer value 1-7");
         }
         else{
             // The value may be inserted into the message
@@ -144,17 +145,8 @@ public class RelayCell extends Cell{
      * @return int with the size of the payload in bytes
      */
     public int getPayloadLength() {
-        byte[] payloadLength = new byte[2];
-        byteBuffer.position(5);
-
-        byteBuffer.get(payloadLength,0,2);
-
-        // putting the two bytes together
-        byte mostSignificant = payloadLength[0];
-        byte leastSignificant = payloadLength[1];
-
-        // both bytes are converted to unsigned int
-        return (Byte.toUnsignedInt(mostSignificant) << 8) | Byte.toUnsignedInt(leastSignificant);
+        // Both bytes are read at once and converted to unsigned int, without a temporary array
+        return Short.toUnsignedInt(byteBuffer.getShort(CellView.PAYLOAD_LENGTH_OFFSET));
     }
 
     /**
@@ -163,9 +155,9 @@ public class RelayCell extends Cell{
      * @return the payload in bytes
      */
     public byte[] getPayload() {
-        byte[] payload = new byte[504];
-        byteBuffer.position(7);
-        byteBuffer.get(payload,0,504);
+        byte[] payload = new byte[CellView.RELAY_PAYLOAD_SIZE];
+        byteBuffer.position(CellView.RELAY_PAYLOAD_OFFSET);
+        byteBuffer.get(payload,0,CellView.RELAY_PAYLOAD_SIZE);
         return payload;
     }
 
@@ -3,16 +3,25 @@ package circuit;
 import mainServer.Server;
 import nodes.DirectoryNode;
 import nodes.Node;
+import proxy.ProxyStream;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Random;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Circuit {
     ArrayList<Node> nodes = new ArrayList<Node>();
     byte[] circuitId = new byte[2];// circuitId.size = 2 bytes --> int is big enough to hold 2^16
     boolean relayingMessage = false;
+    // Signalled when the handshakes with all nodes are done, and when the stream is connected
+    private final Readiness readiness = new Readiness();
+    // Used by the CircuitPool to retire the circuit after a while, or after a number of bytes
+    private final long createdNanos = System.nanoTime();
+    private final AtomicLong bytesRelayed = new AtomicLong();
+    // The streams multiplexed over the circuit, the reader thread routes their relay cells by stream id
+    private final StreamTable<ProxyStream> streams = new StreamTable<>();
 
 
     /**
@@ -26,15 +35,16 @@ public class Circuit {
 
             for (int i = 0; i < routers.size(); i++) {
                 Node currentNode = routers.get(i);
+                // Nodes that multiplex circuits over shared links route cells by this id
+                currentNode.setCircuitId(circuitId);
 
                 // If first node, set the server as the previous node
                 if (i == 0) {
                     currentNode.setPreviousNode(Server.getSocketAddress());
                     currentNode.setNextNode(routers.get(i+1).getServerSocket().getLocalSocketAddress());
 
-                    // Also, set the queue!
-                    currentNode.setQueuePrevNode(Server.getBlockingQueue());
-                    currentNode.setQueueNextNode(new ArrayBlockingQueue<>(1024));
+                    // Adding the node to the circuit, it is the guard node
+                    addNode(currentNode);
                 }
 
                 // If last node, there is no need to set next node
@@ -43,9 +53,6 @@ public class Circuit {
 
                     // Adding the node to the circuit
                     addNode(currentNode);
-
-                    // Set the queue to the previous node
-                    currentNode.setQueuePrevNode(routers.get(i-1).getQueueNextNode());
                     // Nodes should open up their connection to their
                     //currentNode.
                 }
@@ -57,10 +64,6 @@ public class Circuit {
 
                     // Adding the node to the circuit
                     addNode(currentNode);
-
-                    // Set the queue!
-                    currentNode.setQueuePrevNode(routers.get(i-1).getQueueNextNode());
-                    currentNode.setQueueNextNode(new ArrayBlockingQueue<>(1024));
                 }
             }
             // Add the circuit to the lists of all circuits
@@ -144,6 +147,43 @@ public class Circuit {
         throw new Exception("The circuit is empty!");
     }
 
+    /**
+     * @return the readiness of the circuit's handshake and stream
+     */
+    public Readiness getReadiness() {
+        return readiness;
+    }
+
+    /**
+     * @return the streams open over the circuit
+     */
+    public StreamTable<ProxyStream> getStreams() {
+        return streams;
+    }
+
+    /**
+     * @return how long ago the circuit was created, in milliseconds
+     */
+    public long getAgeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - createdNanos);
+    }
+
+    /**
+     * Counts the payload bytes sent or received through the circuit
+     *
+     * @param bytes is the number of payload bytes in a relay data cell
+     */
+    public void addBytesRelayed(long bytes) {
+        bytesRelayed.addAndGet(bytes);
+    }
+
+    /**
+     * @return the number of payload bytes sent and received through the circuit
+     */
+    public long getBytesRelayed() {
+        return bytesRelayed.get();
+    }
+
     public void setRelayingMessage(boolean relayingMessage) {
         this.relayingMessage = relayingMessage;
     }
@@ -0,0 +1,224 @@
+package circuit;
+
+import Interface.ICellMethods;
+import Interface.ICellSender;
+import Interface.ISupportMethods;
+import cells.Cell;
+import proxy.ProxyKeyStore;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Builds the circuits of the ClientProxy one hop at a time (telescoping), the way Tor does:
+ *      - hop 0: a create cell is sent to the guard node, which answers with a created cell
+ *      - hop i: a relay extend cell is sent through the i hops that are built. The last of them sends the handshake
+ *        on to the next node as a create cell, and answers with a relay extended cell carrying the new node's u
+ *
+ * No thread waits for a build. Each build is a small state machine that sends the cell for the next hop when the
+ * answer for the previous hop is handed to onCreated() or onExtended() by the thread reading the guard node's socket.
+ * Any number of circuits can therefore be built at the same time, and the caller learns the result through
+ * the returned CompletableFuture.
+ *
+ * A hop that does not answer within the hop timeout fails the build with a TimeoutException, and the keys of the
+ * circuit are forgotten. The timeouts are run by the timer thread behind CompletableFuture.delayedExecutor(), which
+ * all builds share. The hop timeout of the shared builder is set with onion.circuit.hopTimeoutMillis.
+ */
+public class CircuitBuilder {
+    private static CircuitBuilder shared;
+
+    private final long hopTimeoutMillis;
+    // Runs a task once the hop timeout has passed, on the timer thread itself, as the task only checks the state
+    private final Executor afterHopTimeout;
+    // The circuits being built, by circuit id
+    private final Map<Integer, Build> builds = new ConcurrentHashMap<>();
+
+    /**
+     * @param hopTimeoutMillis is how long each hop may take to answer, in milliseconds
+     */
+    public CircuitBuilder(long hopTimeoutMillis) {
+        if(hopTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("The hop timeout must be positive, not " + hopTimeoutMillis);
+        }
+        this.hopTimeoutMillis = hopTimeoutMillis;
+        this.afterHopTimeout = CompletableFuture.delayedExecutor(hopTimeoutMillis, TimeUnit.MILLISECONDS, Runnable::run);
+    }
+
+    /**
+     * @return the builder used by the ClientProxy in this process, created the first time it is asked for
+     */
+    public static synchronized CircuitBuilder shared() {
+        if(shared == null) {
+            shared = new CircuitBuilder(Long.getLong("onion.circuit.hopTimeoutMillis", 10_000));
+        }
+        return shared;
+    }
+
+    /**
+     * Starts building the circuit by sending the create cell for the guard node, and returns right away
+     *
+     * @param circuit holds the nodes in the order they are added, the guard node first
+     * @param sender sends the cells of the build towards the guard node
+     * @param local is the address of the ClientProxy
+     * @return completed with the circuit once the ClientProxy shares a key with every node,
+     *         or exceptionally if a hop fails or does not answer in time
+     */
+    public CompletableFuture<Circuit> build(Circuit circuit, ICellSender sender, InetAddress local) {
+        Build build = new Build(circuit, sender, local);
+        if(build.hops == 0) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("The circuit has no nodes"));
+        }
+        if(builds.putIfAbsent(build.circuitId, build) != null) {
+            return CompletableFuture.failedFuture(
+                    new IllegalStateException("Circuit " + build.circuitId + " is already being built"));
+        }
+        synchronized (build) {
+            sendNextHop(build);
+        }
+        return build.future;
+    }
+
+    /**
+     * Hands a created cell (the answer of the guard node) to the build of its circuit
+     *
+     * @param cell is the created cell, as received
+     * @return false if no circuit is being built with the cell's circuit id, so the cell was not used
+     */
+    public boolean onCreated(byte[] cell) {
+        Build build = builds.get(ISupportMethods.byteToInt(ISupportMethods.getCircuitId(cell)));
+        if(build == null) {
+            return false;
+        }
+        synchronized (build) {
+            if(build.waitingFor != 0) {
+                fail(build, new IllegalStateException("Circuit " + build.circuitId +
+                        " received a created cell while waiting for hop " + build.waitingFor));
+            } else {
+                hopAdded(build, ICellMethods.created(cell));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hands a relay extended cell to the build of its circuit
+     *
+     * @param cell is the relay extended cell, with every layer removed
+     * @param from is the hop that sealed the cell, as found by Cryptography.peel()
+     * @return false if no circuit is being built with the cell's circuit id, so the cell was not used
+     */
+    public boolean onExtended(byte[] cell, int from) {
+        Build build = builds.get(ISupportMethods.byteToInt(ISupportMethods.getCircuitId(cell)));
+        if(build == null) {
+            return false;
+        }
+        synchronized (build) {
+            // Only the last hop that is built can extend the circuit
+            if(from != build.waitingFor - 1) {
+                fail(build, new IllegalStateException("Circuit " + build.circuitId + " was extended by hop " + from +
+                        " while waiting for hop " + build.waitingFor));
+            } else {
+                hopAdded(build, ICellMethods.relayExtended(cell));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of circuits being built right now
+     */
+    public int activeBuilds() {
+        return builds.size();
+    }
+
+    /**
+     * Moves the build on after a hop answered. Called holding the build's lock.
+     *
+     * @param hop is the position the ClientProxy gave the node that answered, or -1 if the handshake failed
+     */
+    private void hopAdded(Build build, int hop) {
+        if(hop != build.waitingFor) {
+            fail(build, new IllegalStateException("The handshake of hop " + build.waitingFor + " of circuit " +
+                    build.circuitId + " failed"));
+            return;
+        }
+        build.waitingFor++;
+        if(build.waitingFor == build.hops) {
+            builds.remove(build.circuitId, build);
+            build.future.complete(build.circuit);
+        } else {
+            sendNextHop(build);
+        }
+    }
+
+    /**
+     * Sends the cell that adds the hop the build is waiting for, and starts the hop's timeout.
+     * Called holding the build's lock.
+     */
+    private void sendNextHop(Build build) {
+        int hop = build.waitingFor;
+        Cell cell = hop == 0 ? ICellMethods.create(build.circuit.getId(), build.local)
+                : ICellMethods.relayExtend(build.circuit.getId(), hop, build.local);
+        if(cell == null) {
+            fail(build, new IllegalStateException("The handshake of hop " + hop + " of circuit " + build.circuitId +
+                    " could not be started"));
+            return;
+        }
+        try {
+            build.sender.send(cell.getTotalMessage());
+        } catch (Exception e) {
+            fail(build, e);
+            return;
+        }
+        CompletableFuture.runAsync(() -> timeout(build, hop), afterHopTimeout);
+    }
+
+    /**
+     * Fails the build if it is still waiting for the hop when the hop timeout has passed
+     */
+    private void timeout(Build build, int hop) {
+        synchronized (build) {
+            if(build.waitingFor == hop && !build.future.isDone()) {
+                fail(build, new TimeoutException("Hop " + hop + " of circuit " + build.circuitId +
+                        " did not answer within " + hopTimeoutMillis + " ms"));
+            }
+        }
+    }
+
+    /**
+     * Ends the build, and forgets the keys of the hops that were built. Called holding the build's lock.
+     */
+    private void fail(Build build, Throwable cause) {
+        if(builds.remove(build.circuitId, build)) {
+            ProxyKeyStore.remove(build.circuitId);
+        }
+        build.future.completeExceptionally(cause);
+    }
+
+    /**
+     * The state of one circuit being built. The fields are only changed while holding the build's lock.
+     */
+    private static final class Build {
+        final Circuit circuit;
+        final int circuitId;
+        final int hops;
+        final ICellSender sender;
+        final InetAddress local;
+        final CompletableFuture<Circuit> future = new CompletableFuture<>();
+        // The position of the node the build waits for an answer from. Every node before it is a hop already.
+        int waitingFor = 0;
+
+        Build(Circuit circuit, ICellSender sender, InetAddress local) {
+            this.circuit = circuit;
+            this.circuitId = ISupportMethods.byteToInt(circuit.getId());
+            this.hops = circuit.getNodes().size();
+            this.sender = sender;
+            this.local = local;
+        }
+    }
+}
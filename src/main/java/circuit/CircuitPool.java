@@ -0,0 +1,288 @@
+package circuit;
+
+import Interface.ICircuitFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a number of built circuits warm, so a new stream gets a circuit right away instead of waiting for
+ * the nodes to be connected and handshaked with.
+ *
+ * The circuits are built by an ICircuitFactory on the pool's own background thread. Every time a circuit is
+ * handed out (or retired), a new one is built to take its place. If no circuit is warm when one is asked for,
+ * the caller gets the next one that is built.
+ *
+ * A circuit is worn out once it is older than the maximum age, or has relayed more than the maximum number of bytes.
+ * Worn out circuits are never handed out: the pool retires them when it finds them, and checks the warm circuits
+ * for their age in the background.
+ *
+ * A build that fails is tried again in the background, after a delay that doubles with every failure in a row
+ * (up to MAX_RETRY_MILLIS), so the pool fills up again once the nodes can be reached, without waiting for a caller.
+ *
+ * The pool made by withSystemProperties() is set with onion.pool.size, onion.pool.maxAgeMillis,
+ * onion.pool.maxBytes (0 means no limit) and onion.pool.retryMillis.
+ */
+public class CircuitPool {
+    private static final long MAX_RETRY_MILLIS = 60_000;
+
+    private final ICircuitFactory factory;
+    private final int size;
+    private final long maxAgeMillis;
+    private final long maxBytes;
+    private final long retryMillis;
+    // Builds the circuits one at a time, and retires the ones that are too old
+    private final ScheduledExecutorService background;
+
+    // The fields below are only used while holding the pool's lock
+    private final Deque<Circuit> warm = new ArrayDeque<>();
+    // The callers that asked for a circuit while none was warm, oldest first
+    private final Deque<CompletableFuture<Circuit>> waiting = new ArrayDeque<>();
+    private int building = 0;
+    // Builds that failed in a row, for the delay before the next try
+    private int failures = 0;
+    private boolean closed = false;
+
+    /**
+     * @param factory builds and tears down the circuits
+     * @param size is how many circuits are kept warm
+     * @param maxAgeMillis is how long a circuit is used at most, in milliseconds, or 0 for no limit
+     * @param maxBytes is how many payload bytes a circuit relays at most, or 0 for no limit
+     */
+    public CircuitPool(ICircuitFactory factory, int size, long maxAgeMillis, long maxBytes) {
+        this(factory, size, maxAgeMillis, maxBytes, 1_000);
+    }
+
+    /**
+     * @param factory builds and tears down the circuits
+     * @param size is how many circuits are kept warm
+     * @param maxAgeMillis is how long a circuit is used at most, in milliseconds, or 0 for no limit
+     * @param maxBytes is how many payload bytes a circuit relays at most, or 0 for no limit
+     * @param retryMillis is how long to wait before building again after the first failed build, in milliseconds
+     */
+    public CircuitPool(ICircuitFactory factory, int size, long maxAgeMillis, long maxBytes, long retryMillis) {
+        if(size < 1 || maxAgeMillis < 0 || maxBytes < 0 || retryMillis < 1) {
+            throw new IllegalArgumentException("The pool needs size >= 1, limits >= 0 and retryMillis >= 1, not size = " +
+                    size + ", maxAgeMillis = " + maxAgeMillis + ", maxBytes = " + maxBytes +
+                    " and retryMillis = " + retryMillis);
+        }
+        this.factory = factory;
+        this.size = size;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxBytes = maxBytes;
+        this.retryMillis = retryMillis;
+        this.background = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "circuit-pool");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param factory builds and tears down the circuits
+     * @return a pool with the size and limits set by the system properties, 2 circuits of at most 10 minutes by default,
+     *         and a failed build tried again after 1 second
+     */
+    public static CircuitPool withSystemProperties(ICircuitFactory factory) {
+        return new CircuitPool(factory, Integer.getInteger("onion.pool.size", 2),
+                Long.getLong("onion.pool.maxAgeMillis", TimeUnit.MINUTES.toMillis(10)),
+                Long.getLong("onion.pool.maxBytes", 0),
+                Long.getLong("onion.pool.retryMillis", 1_000));
+    }
+
+    /**
+     * Starts building the warm circuits in the background
+     */
+    public void start() {
+        refill();
+        if(maxAgeMillis > 0) {
+            // Checked twice per age, so a warm circuit is never kept much longer than the maximum age
+            long period = Math.max(1, maxAgeMillis / 2);
+            background.scheduleWithFixedDelay(this::retireWornOut, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Hands out a warm circuit, and builds another one to take its place
+     *
+     * @return completed right away if a circuit was warm, if not once the next circuit is built
+     */
+    public CompletableFuture<Circuit> take() {
+        CompletableFuture<Circuit> taken = new CompletableFuture<>();
+        Deque<Circuit> wornOut = new ArrayDeque<>();
+        synchronized (this) {
+            if(closed) {
+                return CompletableFuture.failedFuture(new IllegalStateException("The circuit pool is closed"));
+            }
+            Circuit circuit;
+            while ((circuit = warm.pollFirst()) != null) {
+                if(!isWornOut(circuit)) {
+                    taken.complete(circuit);
+                    break;
+                }
+                wornOut.add(circuit);
+            }
+            if(!taken.isDone()) {
+                waiting.addLast(taken);
+            }
+        }
+        // Tearing a circuit down may take a while, so it is done outside the lock
+        wornOut.forEach(this::retire);
+        refill();
+        return taken;
+    }
+
+    /**
+     * Gives a circuit that is no longer used back, so it can be handed out again.
+     * A worn out circuit is retired instead, and so is a circuit the pool has no room for.
+     *
+     * @param circuit is a circuit handed out by take()
+     */
+    public void giveBack(Circuit circuit) {
+        synchronized (this) {
+            if(!closed && !isWornOut(circuit) && warm.size() < size) {
+                warm.addFirst(circuit);
+                return;
+            }
+        }
+        retire(circuit);
+        refill();
+    }
+
+    /**
+     * @return true if the circuit is older than the maximum age, or has relayed more than the maximum number of bytes
+     */
+    public boolean isWornOut(Circuit circuit) {
+        return (maxAgeMillis > 0 && circuit.getAgeMillis() >= maxAgeMillis)
+                || (maxBytes > 0 && circuit.getBytesRelayed() >= maxBytes);
+    }
+
+    /**
+     * @return the number of circuits that are built and not handed out
+     */
+    public synchronized int warmCircuits() {
+        return warm.size();
+    }
+
+    /**
+     * Stops building, retires the warm circuits, and fails the callers still waiting for one.
+     * Circuits that were handed out are left to their users.
+     */
+    public void close() {
+        Deque<Circuit> toRetire;
+        Deque<CompletableFuture<Circuit>> toFail;
+        synchronized (this) {
+            closed = true;
+            toRetire = new ArrayDeque<>(warm);
+            toFail = new ArrayDeque<>(waiting);
+            warm.clear();
+            waiting.clear();
+        }
+        background.shutdownNow();
+        toRetire.forEach(this::retire);
+        toFail.forEach(taker -> taker.completeExceptionally(new IllegalStateException("The circuit pool is closed")));
+    }
+
+    /**
+     * Starts a build for every circuit missing from the pool, counting the callers waiting for one
+     */
+    private void refill() {
+        synchronized (this) {
+            int missing = size + waiting.size() - warm.size() - building;
+            if(closed || missing <= 0) {
+                return;
+            }
+            building += missing;
+            try {
+                for (int i = 0; i < missing; i++) {
+                    background.execute(this::buildOne);
+                }
+            } catch (RejectedExecutionException e) {
+                // Only happens once the pool is closed
+            }
+        }
+    }
+
+    /**
+     * Runs on the background thread. The circuit goes to the oldest waiting caller, or else becomes warm.
+     */
+    private void buildOne() {
+        Circuit circuit = null;
+        Exception failure = null;
+        try {
+            circuit = factory.buildCircuit();
+        } catch (Exception e) {
+            e.printStackTrace();
+            failure = e;
+        }
+
+        CompletableFuture<Circuit> taker;
+        long retryDelay = 0;
+        synchronized (this) {
+            building--;
+            if(circuit != null) {
+                failures = 0;
+            } else if(!closed) {
+                failures++;
+                retryDelay = Math.min(MAX_RETRY_MILLIS, retryMillis << Math.min(failures - 1, 16));
+            }
+            // A caller that cancelled, or timed out on, its future no longer wants the circuit
+            waiting.removeIf(CompletableFuture::isDone);
+            taker = waiting.pollFirst();
+            if(circuit != null && taker == null && !closed && warm.size() < size) {
+                warm.addLast(circuit);
+                return;
+            }
+        }
+        if(retryDelay > 0) {
+            // The missing circuit is built again later, whether or not someone was waiting for it
+            try {
+                background.schedule(this::refill, retryDelay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // The pool was closed in the meantime
+            }
+        }
+        if(taker == null) {
+            // The pool was closed while the circuit was built, the pool is full, or the build failed with no one waiting
+            if(circuit != null) {
+                retire(circuit);
+            }
+        } else if(circuit != null) {
+            if(!taker.complete(circuit)) {
+                // The caller gave up on its future after it was picked, so nobody would ever use or retire the circuit
+                retire(circuit);
+                refill();
+            }
+        } else {
+            // A waiting caller learns why, instead of waiting for a build that may fail again
+            taker.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * Runs on the background thread. Warm circuits that have become too old are retired and replaced.
+     */
+    private void retireWornOut() {
+        Deque<Circuit> wornOut = new ArrayDeque<>();
+        synchronized (this) {
+            warm.removeIf(circuit -> isWornOut(circuit) && wornOut.add(circuit));
+        }
+        if(!wornOut.isEmpty()) {
+            wornOut.forEach(this::retire);
+            refill();
+        }
+    }
+
+    private void retire(Circuit circuit) {
+        try {
+            factory.retireCircuit(circuit);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package circuit;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The readiness events of one node or one circuit. Each event is a CompletableFuture that is completed once,
+ * by the thread that makes the event happen, and can be waited for (with a timeout) or chained on by any other.
+ * An event that can never happen (ex: the connection failed) is failed with the cause, which wakes the waiters too.
+ *
+ * The timeout used by the ClientProxy when it waits for an event is set with onion.ready.timeoutMillis.
+ */
+public class Readiness {
+    private static final long TIMEOUT_MILLIS = Long.getLong("onion.ready.timeoutMillis", 10_000);
+
+    // Filled once in the constructor, and only read afterwards
+    private final Map<ReadinessEvent, CompletableFuture<Void>> events = new EnumMap<>(ReadinessEvent.class);
+
+    public Readiness() {
+        for (ReadinessEvent event : ReadinessEvent.values()) {
+            events.put(event, new CompletableFuture<>());
+        }
+    }
+
+    /**
+     * @return how long the ClientProxy waits for an event, in milliseconds
+     */
+    public static long timeoutMillis() {
+        return TIMEOUT_MILLIS;
+    }
+
+    /**
+     * Marks the event as happened, and wakes everyone waiting for it. Signalling it again does nothing.
+     */
+    public void signal(ReadinessEvent event) {
+        events.get(event).complete(null);
+    }
+
+    /**
+     * Marks the event as one that will not happen
+     *
+     * @param cause is thrown to everyone waiting for the event
+     */
+    public void fail(ReadinessEvent event, Throwable cause) {
+        events.get(event).completeExceptionally(cause);
+    }
+
+    /**
+     * @return true if the event has been signalled
+     */
+    public boolean isReady(ReadinessEvent event) {
+        CompletableFuture<Void> future = events.get(event);
+        return future.isDone() && !future.isCompletedExceptionally();
+    }
+
+    /**
+     * @return the future of the event, to chain work on it without waiting
+     */
+    public CompletableFuture<Void> when(ReadinessEvent event) {
+        return events.get(event);
+    }
+
+    /**
+     * Waits until the event has happened
+     *
+     * @param timeoutMillis is how long to wait at most, in milliseconds
+     * @throws TimeoutException if the event did not happen in time
+     * @throws Exception the cause the event was failed with
+     */
+    public void await(ReadinessEvent event, long timeoutMillis) throws Exception {
+        try {
+            events.get(event).get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new TimeoutException(event + " did not happen within " + timeoutMillis + " ms");
+        } catch (ExecutionException e) {
+            // The cause tells why the event will never happen
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+}
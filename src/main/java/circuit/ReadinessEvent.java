@@ -0,0 +1,28 @@
+package circuit;
+
+/**
+ * The points a node or a circuit passes on the way to carrying data. Each is signalled through a Readiness
+ * by whoever makes it happen, so the ones that depend on it wait for exactly that long, instead of a fixed sleep.
+ */
+public enum ReadinessEvent {
+    /**
+     * The node's server socket is bound, so the previous node (or the ClientProxy) can connect to it
+     */
+    SERVER_SOCKET_BOUND,
+
+    /**
+     * The node has accepted the previous node's connection, is connected to the next node,
+     * and has started the threads (or channels) that move its cells
+     */
+    LINK_CONNECTED,
+
+    /**
+     * The ClientProxy shares a key with every node in the circuit
+     */
+    HANDSHAKE_COMPLETE,
+
+    /**
+     * The end node answered relay begin with relay connected, so relay data cells can be sent
+     */
+    STREAM_CONNECTED
+}
@@ -0,0 +1,94 @@
+package circuit;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * The streams that are multiplexed over one circuit, by the 2 byte stream id of their relay cells.
+ * The ClientProxy keeps one table per circuit, and so does the end node, so the relay cells of many streams
+ * (ex: parallel HTTP fetches) can share one built circuit.
+ *
+ * A circuit only carries a few streams at a time, so the table is a concurrent map instead of an array with
+ * one slot per id (like the CircuitTable of a link). Stream id 0 is never used, as it marks the relay cells
+ * that belong to the circuit itself (relay extend and relay extended).
+ *
+ * @param <S> is what the side keeps for each stream
+ */
+public class StreamTable<S> {
+    private static final int MAX_STREAM_ID = 0xFFFF;
+
+    private final Map<Integer, S> streams = new ConcurrentHashMap<>();
+
+    /**
+     * @param streamId is the stream id read from a relay cell
+     * @return the stream, or null if the stream is not open
+     */
+    public S get(int streamId) {
+        return streams.get(streamId);
+    }
+
+    /**
+     * Adds a stream opened by the other side
+     *
+     * @return false if the stream id is 0 or already used, and the stream was not added
+     */
+    public boolean add(int streamId, S stream) {
+        return streamId > 0 && streamId <= MAX_STREAM_ID && streams.putIfAbsent(streamId, stream) == null;
+    }
+
+    /**
+     * Adds a stream opened by this side under a random id that is not in use
+     *
+     * @param newStream creates the stream, given the id it gets
+     * @return the stream that was added
+     * @throws IllegalStateException if every stream id is in use
+     */
+    public S open(IntFunction<S> newStream) {
+        if(streams.size() >= MAX_STREAM_ID) {
+            throw new IllegalStateException("Every stream id of the circuit is in use");
+        }
+        // Random ids do not tell an observer how many streams the circuit has carried
+        while (true) {
+            int streamId = ThreadLocalRandom.current().nextInt(1, MAX_STREAM_ID + 1);
+            if(!streams.containsKey(streamId)) {
+                S stream = newStream.apply(streamId);
+                if(streams.putIfAbsent(streamId, stream) == null) {
+                    return stream;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the stream that was removed, or null if it was not open
+     */
+    public S remove(int streamId) {
+        return streams.remove(streamId);
+    }
+
+    /**
+     * Removes the stream only if the id still names it, ex: when a stream ends while the other side closes it
+     *
+     * @return true if the stream was removed
+     */
+    public boolean remove(int streamId, S stream) {
+        return streams.remove(streamId, stream);
+    }
+
+    /**
+     * Runs the action for every open stream, ex: to close them when the circuit is torn down
+     */
+    public void forEach(Consumer<S> action) {
+        streams.values().forEach(action);
+    }
+
+    /**
+     * @return how many streams are open
+     */
+    public int size() {
+        return streams.size();
+    }
+}
@@ -1,15 +1,15 @@
 package client;
 
 import circuit.Circuit;
+import circuit.CircuitPool;
 import mainServer.Server;
-import nodes.DirectoryNode;
 import nodes.Node;
 import proxy.ClientProxy;
+import proxy.ProxyStream;
 
 
 import java.util.ArrayList;
 import java.util.Scanner;
-import java.util.concurrent.TimeUnit;
 
 public class Client {
     static private ArrayList<Node> chosenRouters;
@@ -29,48 +29,43 @@ public class Client {
 
             // Instantiate the proxy
             Server server = new Server(8888);
+            server.setCircuitLength(amount);
 
-            // The Directory node grants the user that number of nodes
-            ArrayList<Node> nodes = DirectoryNode.setNodeSelection(amount);
+            // The pool selects the nodes, connects them and handshakes with them in the background,
+            // and keeps circuits warm for the next streams
+            CircuitPool pool = CircuitPool.withSystemProperties(server);
+            pool.start();
+
+            // The circuit is handed out as soon as it is built (the last node is the endNode)
+            circuit = pool.take().get();
 
             // The nodes are displayed to the user w/ address and port
             System.out.println("\nYour node selection consists of these nodes: ");
-            for(Node node : nodes) {
+            for(Node node : circuit.getNodes()) {
                 System.out.println(node.getIpAddress());
             }
-            // sleep in order for the nodes to initialize their server sockets
-            TimeUnit.SECONDS.sleep(2);
-            // The circuit is created (the last element is the endNode)
-            circuit = new Circuit(nodes);
-
-            System.out.println("\nCreated circuit");
-
-            // Connect the nodes and their sockets
-            server.connectCircuit(circuit);
 
             System.out.println("\nConnected circuit");
 
-            TimeUnit.SECONDS.sleep(6);
-
-
-            // Handshake with the nodes
-            server.fullCircuitHandshake(circuit);
-
-            TimeUnit.SECONDS.sleep(3);
-
-
-            // Make the server ready to relay data
-            byte[] streamID = server.initiateRelay(circuit);
-
             // The server can now relay data, meaning that the client
             // must specify what web page they want to fetch
             System.out.println("All nodes connected, you may enter the page you wish to visit\n" +
                     "An example is 'vg.no'"
             );
-            String request = input.nextLine();
+            String page = input.next();
+
+            // Open a stream to the page, returns once the end node has connected to it.
+            // More streams could be opened over the same circuit, ex: for the images of the page
+            ProxyStream stream = server.openStream(circuit, page + ":80");
 
             // The users request must now be forwarded throughout the circuit
-            server.sendRequest(circuit,request, streamID);
+            server.sendRequest(circuit, stream, "GET / HTTP/1.1\r\nHost: " + page +
+                    "\r\nConnection: close\r\n\r\n");
+
+            // The page is printed as it arrives, until the end node closes the stream
+            stream.getInputStream().transferTo(System.out);
+            System.out.flush();
+            pool.giveBack(circuit);
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -0,0 +1,68 @@
+package mainServer;
+
+import threads.WriterThread;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The main server's connection to the guard node of one circuit: the socket, and the writer thread that owns the
+ * socket along with its queue. Every circuit has a connection of its own, so several circuits can be built and used
+ * at the same time (ex: the warm circuits of a CircuitPool).
+ */
+class GuardConnection {
+    // Capacity: 1024 * 512 bytes = 524288 bytes = 0.5 MB
+    private static final int QUEUE_CAPACITY = 1024;
+
+    private final Socket socket;
+    private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final WriterThread writer;
+
+    /**
+     * @param socket is connected to the guard node
+     */
+    GuardConnection(Socket socket) {
+        this.socket = socket;
+        this.writer = new WriterThread(socket, queue);
+    }
+
+    /**
+     * Starts the writer thread, which sends the cells put in the queue
+     */
+    void start() {
+        writer.start();
+    }
+
+    Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * @return the queue of the writer thread, cells put here are sent to the guard node
+     */
+    BlockingQueue<byte[]> getQueue() {
+        return queue;
+    }
+
+    /**
+     * @return the writer thread that owns the socket
+     */
+    WriterThread getWriter() {
+        return writer;
+    }
+
+    /**
+     * Closes the socket, which stops the reader thread and tells the guard node the circuit is gone.
+     * The writer waits in take() while the queue is empty, and would never notice, so it is interrupted.
+     */
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        writer.getRunningThread().interrupt();
+    }
+}
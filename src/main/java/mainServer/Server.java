@@ -1,32 +1,45 @@
 package mainServer;
 
 
+import Interface.ICellMethods;
+import Interface.ICircuitFactory;
+import Interface.IStreamConsumer;
+import Interface.ISupportMethods;
+import cells.CellView;
 import circuit.Circuit;
+import circuit.CircuitBuilder;
+import circuit.Readiness;
+import circuit.ReadinessEvent;
+import nodes.DirectoryNode;
 import nodes.Node;
+import proxy.ProxyKeyStore;
+import proxy.ProxyStream;
 import threads.ServerReaderThread;
-import threads.WriterThread;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
 
-public class Server {
+public class Server implements ICircuitFactory {
 
     ServerSocket server;
-    Socket socket;
     DataOutputStream outboundMessage;
     InetSocketAddress address;
     static InetSocketAddress ipAddress = new InetSocketAddress("localhost", 8888);
-    // Capacity: 1024 * 512 bytes = 524288 bytes = 0.5 MB
-    static BlockingQueue<byte[]> blockingQueue;
+    // The connection to the guard node of each circuit, by circuit id
+    private final Map<Integer, GuardConnection> connections = new ConcurrentHashMap<>();
+    // How many nodes the circuits built by buildCircuit() have
+    private int circuitLength = 3;
 
     public Server(int portNumber) {
         try{
             server = new ServerSocket(portNumber);
-            blockingQueue = new ArrayBlockingQueue<byte[]>(1024);
         }catch(Exception e){
             System.out.println(e);
         }
@@ -42,15 +55,19 @@ public class Server {
      * The end node connects to the previous intermediate node
      * (and to the remote server upon stream start) --> end node has 2 sockets
      *
+     * Returns once every node has signalled that its links are connected
+     *
      * @param circuit are the nodes in the circuit
+     * @throws TimeoutException if a node is not connected within Readiness.timeoutMillis()
      */
-    public void connectCircuit(Circuit circuit) {
-        try {
-            ArrayList<Node> circuitNodes = circuit.getNodes();
-            // Get the guard node
-
-            SocketAddress guardNode = circuitNodes.get(0).getServerSocket().getLocalSocketAddress();
+    public void connectCircuit(Circuit circuit) throws Exception {
+        ArrayList<Node> circuitNodes = circuit.getNodes();
+        // Get the guard node, which must be listening before the server can connect to it
+        Node guard = circuitNodes.get(0);
+        guard.getReadiness().await(ReadinessEvent.SERVER_SOCKET_BOUND, Readiness.timeoutMillis());
+        SocketAddress guardNode = guard.getServerSocket().getLocalSocketAddress();
 
+        try {
             for (int i = 0; i < circuitNodes.size(); i++) {
                 // The server must connect to the first node
                 // Each node must open up their circuit to the previous node
@@ -60,21 +77,26 @@ public class Server {
             }
 
             // For the first node (guard node), this server must connect to it!
-            socket = new Socket();
+            Socket socket = new Socket();
             System.out.println("trying to connect to guard node" + guardNode);
             socket.connect(guardNode);
-            // Hand the socket over to the writer thread
-
-            WriterThread writerThread = new WriterThread(socket, blockingQueue);
-            writerThread.start();
+            GuardConnection connection = new GuardConnection(socket);
+            connections.put(ISupportMethods.byteToInt(circuit.getId()), connection);
+            // Hand the socket over to the writer thread, which the connection stops when it is closed
+            connection.start();
             System.out.println("created writer thread");
 
-            ServerReaderThread readerThread = new ServerReaderThread(socket,circuitNodes, blockingQueue);
+            ServerReaderThread readerThread = new ServerReaderThread(socket, circuit);
             readerThread.start();
             System.out.println("created reader thread");
         } catch (IOException e) {
             e.printStackTrace();
         }
+
+        // Each node connects to the next one once the previous one has connected to it, so the last node is ready last
+        for (Node node : circuitNodes) {
+            node.getReadiness().await(ReadinessEvent.LINK_CONNECTED, Readiness.timeoutMillis());
+        }
     }
 
     /**
@@ -87,34 +109,187 @@ public class Server {
     }
 
     /**
-     * Method that uses the begin relay method through worker threads
+     * Opens a new stream over the circuit: the relay begin cell is put in the queue of the writer thread,
+     * and the method returns once the end node has connected to the destination and answered with relay connected.
+     * Any number of streams can be open over one circuit, the end node tells them apart by their stream id.
+     *
+     * @param destination is where the end node connects the stream to, as "host:port"
+     * @return the stream, which the data from the destination is read from
+     * @throws TimeoutException if the stream is not connected within Readiness.timeoutMillis()
+     */
+    public ProxyStream openStream(Circuit circuit, String destination) throws Exception {
+        return openStream(circuit, destination, null);
+    }
+
+    /**
+     * Opens a new stream over the circuit, like openStream(circuit, destination), with the data from the
+     * destination handed to the consumer as each cell arrives, instead of being buffered in the stream
+     *
+     * @param consumer gets the data of the stream on the reader thread, or null to read it from the stream
      */
-    public byte[] initiateRelay(Circuit circuit) {
-        WriterThread writerThread = new WriterThread(socket, blockingQueue, 2,circuit);
-        writerThread.start();
-        return writerThread.getStreamId();
+    public ProxyStream openStream(Circuit circuit, String destination, IStreamConsumer consumer) throws Exception {
+        GuardConnection connection = connection(circuit);
+        ProxyStream stream = circuit.getStreams().open(ProxyStream::new);
+        // Set before relay begin is sent, so the first data cell already goes to the consumer
+        stream.setConsumer(consumer);
+        // The end node sends more of the stream's data as the data received is used up
+        stream.setAcknowledge(() -> acknowledge(circuit, stream));
+        try {
+            synchronized (connection) {
+                connection.getQueue().put(ICellMethods.relayBegin(circuit.getId(), stream.getStreamIdBytes(),
+                        destination, circuit.getNodes()).getTotalMessage());
+            }
+            stream.getReadiness().await(ReadinessEvent.STREAM_CONNECTED, Readiness.timeoutMillis());
+        } catch (Exception e) {
+            // The end node could not connect, or did not answer in time
+            circuit.getStreams().remove(stream.getStreamId());
+            stream.ended();
+            throw e;
+        }
+        return stream;
     }
 
-    public void sendRequest(Circuit circuit, String request, byte[] streamId) {
-        WriterThread writerThread = new WriterThread(socket, blockingQueue, 2,
-                circuit, request, streamId);
-        writerThread.start();
+    /**
+     * Sends the request to the destination of the stream, split into as many relay data cells as it takes
+     *
+     * @param stream is a stream opened with openStream()
+     * @param request is the data sent to the destination, ex: an HTTP request
+     */
+    public void sendRequest(Circuit circuit, ProxyStream stream, String request) throws Exception {
+        GuardConnection connection = connection(circuit);
+        byte[] data = request.getBytes(StandardCharsets.UTF_8);
+        for (int offset = 0; offset < data.length; offset += CellView.RELAY_DATA_SIZE) {
+            byte[] chunk = Arrays.copyOfRange(data, offset, Math.min(data.length, offset + CellView.RELAY_DATA_SIZE));
+            // Encrypting advances the circuit's ciphers, so the cells must be queued in the order they were encrypted,
+            // also when other streams of the circuit send at the same time
+            synchronized (connection) {
+                connection.getQueue().put(ICellMethods.relayData(chunk, stream.getStreamIdBytes(), circuit.getId(),
+                        circuit.getNodes()).getTotalMessage());
+            }
+            circuit.addBytesRelayed(chunk.length);
+        }
+    }
+
+    /**
+     * Closes the stream on this side, and tells the end node to close its connection to the destination.
+     * The other streams of the circuit are not affected.
+     */
+    public void closeStream(Circuit circuit, ProxyStream stream) throws Exception {
+        if(circuit.getStreams().remove(stream.getStreamId()) == null) {
+            // The end node closed it first
+            return;
+        }
+        stream.ended();
+        GuardConnection connection = connection(circuit);
+        synchronized (connection) {
+            connection.getQueue().put(ICellMethods.streamClosed(circuit.getId(), stream.getStreamIdBytes(),
+                    circuit.getNodes()).getTotalMessage());
+        }
+    }
+
+
+    /**
+     * Sends a relay sendme cell for the stream, so the end node may send ICellMethods.SENDME_INCREMENT more data cells.
+     * Called by the stream on the thread that used its data.
+     */
+    private void acknowledge(Circuit circuit, ProxyStream stream) {
+        try {
+            GuardConnection connection = connection(circuit);
+            synchronized (connection) {
+                connection.getQueue().put(ICellMethods.relaySendme(circuit.getId(), stream.getStreamIdBytes(),
+                        circuit.getNodes()).getTotalMessage());
+            }
+        } catch (IllegalStateException | InterruptedException e) {
+            e.printStackTrace();
+        }
     }
 
 
     /**
-     * Method uses the create() -and created() control-cell methods to handshake (generate symmetric keys)
-     * with the ClientProxy (server)
+     * Handshakes (generates symmetric keys) with every node in the circuit through the CircuitBuilder:
+     * a create cell for the guard node, then a relay extend cell for each of the following nodes.
+     * The cells are put in the queue of the writer thread that owns the socket to the guard node,
+     * and the answers are handed to the builder by the reader thread.
+     *
+     * Returns once the ClientProxy shares a key with every node in the circuit
+     *
+     * @throws TimeoutException if the handshakes are not done within Readiness.timeoutMillis()
      */
     public void fullCircuitHandshake(Circuit circuit) throws Exception {
-        circuit.getNodes().get(0).fullCircuitHandshake(circuit);
+        Readiness readiness = circuit.getReadiness();
+        GuardConnection connection = connection(circuit);
+        CircuitBuilder.shared().build(circuit, connection.getQueue()::put, connection.getSocket().getLocalAddress())
+                .whenComplete((built, failure) -> {
+                    if(failure == null) {
+                        readiness.signal(ReadinessEvent.HANDSHAKE_COMPLETE);
+                    } else {
+                        readiness.fail(ReadinessEvent.HANDSHAKE_COMPLETE, failure);
+                    }
+                });
+        readiness.await(ReadinessEvent.HANDSHAKE_COMPLETE, Readiness.timeoutMillis());
     }
 
-    public static InetSocketAddress getSocketAddress() {
-        return ipAddress;
+    /**
+     * Builds a whole circuit: new nodes are selected, connected and handshaked with.
+     * Used by the CircuitPool to keep circuits warm, on the pool's thread.
+     *
+     * @return the circuit, ready for streams
+     */
+    @Override
+    public Circuit buildCircuit() throws Exception {
+        Circuit circuit = new Circuit(DirectoryNode.setNodeSelection(circuitLength));
+        try {
+            connectCircuit(circuit);
+            fullCircuitHandshake(circuit);
+        } catch (Exception e) {
+            // The nodes of a circuit that could not be built are torn down too, or they would never be
+            retireCircuit(circuit);
+            throw e;
+        }
+        return circuit;
     }
 
-    public static BlockingQueue<byte[]> getBlockingQueue() {
-        return blockingQueue;
+    /**
+     * Tears the circuit down: the connection to the guard node is closed, then every node of the circuit is closed,
+     * which closes its server socket and its sockets to the previous and next node, and stops its reader and writer
+     * threads. The keys of the circuit are removed, and the circuit and its nodes are removed from the directory.
+     */
+    @Override
+    public void retireCircuit(Circuit circuit) {
+        int circuitId = ISupportMethods.byteToInt(circuit.getId());
+        GuardConnection connection = connections.remove(circuitId);
+        if(connection != null) {
+            connection.close();
+        }
+        for (Node node : circuit.getNodes()) {
+            node.close();
+        }
+        ProxyKeyStore.remove(circuitId);
+        DirectoryNode.removeCircuit(circuit);
+        DirectoryNode.removeNodes(circuit.getNodes());
+    }
+
+    /**
+     * @param circuitLength is how many nodes the circuits built by buildCircuit() have
+     */
+    public void setCircuitLength(int circuitLength) {
+        this.circuitLength = circuitLength;
+    }
+
+    /**
+     * @return the connection to the guard node of the circuit
+     * @throws IllegalStateException if connectCircuit() has not been called for the circuit
+     */
+    private GuardConnection connection(Circuit circuit) {
+        GuardConnection connection = connections.get(ISupportMethods.byteToInt(circuit.getId()));
+        if(connection == null) {
+            throw new IllegalStateException("Circuit " + ISupportMethods.byteToInt(circuit.getId()) +
+                    " is not connected");
+        }
+        return connection;
+    }
+
+    public static InetSocketAddress getSocketAddress() {
+        return ipAddress;
     }
 }
@@ -1,5 +1,6 @@
 package nodes;
 
+import Interface.ISupportMethods;
 import circuit.Circuit;
 
 import java.net.InetAddress;
@@ -8,10 +9,12 @@ import java.net.SocketAddress;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class DirectoryNode {
-    static List<Node> allNodes = new ArrayList<>();
-    static ArrayList<Circuit> circuits = new ArrayList<>();
+    // Circuits are built in the background by the CircuitPool while the reader threads look them up
+    static List<Node> allNodes = new CopyOnWriteArrayList<>();
+    static List<Circuit> circuits = new CopyOnWriteArrayList<>();
 
 
     /**
@@ -28,9 +31,8 @@ public class DirectoryNode {
         try {
             // All nodes except the last ones
             for (int i = 0; i < nodeCount; i++) {
-
-                Node node = new Node(new InetSocketAddress(InetAddress.getLocalHost(),
-                        2000 + i), 2000 + i);
+                // Port 0 lets the system pick a free port, so the nodes of several circuits never collide
+                Node node = new Node(new InetSocketAddress(InetAddress.getLocalHost(), 0), 0);
                 allNodes.add(node);
                 nodes.add(node);
             }
@@ -51,6 +53,15 @@ public class DirectoryNode {
         circuits.remove(circuit);
     }
 
+    /**
+     * Remove the nodes of a retired circuit from the directory, so nodes built for rotated circuits do not pile up
+     *
+     * @param nodes are the nodes to remove
+     */
+    public static void removeNodes(List<Node> nodes) {
+        allNodes.removeAll(nodes);
+    }
+
     public static boolean nodeIdExists(int id) {
         for (Node node : allNodes) {
             return node.getId() == (id);
@@ -83,6 +94,20 @@ public class DirectoryNode {
         throw new Exception("There was no circuit with the specified id");
     }
 
+    /**
+     * Same as getCircuitWithId(byte[]), but takes the id as read from a CellView
+     *
+     * @param circuitId is the circuit id as an unsigned 16 bit integer
+     * @return the circuit with that id
+     */
+    public static Circuit getCircuitWithId(int circuitId) throws Exception {
+        for (Circuit circuit : circuits) {
+            if(ISupportMethods.byteToInt(circuit.getId()) == circuitId) {
+                return circuit;
+            }
+        }
+        throw new Exception("There was no circuit with the specified id");
+    }
 
     public static void addCircuit(Circuit circuit) {
         circuits.add(circuit);
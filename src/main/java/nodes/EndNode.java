@@ -1,154 +1,347 @@
 package nodes;
 
-import cells.RelayCell;
+import Interface.ICellMethods;
+import Interface.ICellQueue;
+import cells.CellBufferPool;
+import cells.CellView;
+import circuit.StreamTable;
+import security.CircuitKeyContext;
 import security.Cryptography;
-import security.KeyInformation;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import java.io.*;
-import java.net.*;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
-import static Interface.ISupportMethods.*;
+/**
+ * The exit of one circuit, owned by the reader thread of the circuit's last node (or by its NodeCellHandler, with
+ * TransportMode.EVENT_LOOP).
+ * The relay begin, relay data, stream closed and relay sendme cells of the circuit are handed here once the
+ * last layer is removed.
+ *
+ * Every stream of the circuit has its own connection to its destination (an ExitStream), driven by the ExitEngine,
+ * so many streams can share the circuit, and a slow destination does not hold the others back. What a destination
+ * sends is packed into relay data cells as it arrives. Each stream may only have a window of data cells that the
+ * proxy has not acknowledged with relay sendme, so a proxy that reads slowly slows its destination down,
+ * instead of filling the circuit. The window is set with onion.exit.streamWindow.
+ *
+ * The cells going back are sealed with the end node's backward cipher and put in the queue of the writer thread
+ * (or the link) to the previous node. Both happen under one lock, as the cipher's counter must advance in the same order
+ * as the cells are sent. Most cells are sent by the ExitEngine, whose one thread serves every circuit, so it never
+ * waits for room in the queue: a sealed cell that does not fit is held in the end node's backlog, in order, and
+ * the streams of the circuit stop reading from their destinations until the engine has moved the backlog into
+ * the queue. A slow circuit then slows down its own destinations only.
+ */
+public class EndNode {
+    private static final int STREAM_WINDOW = Integer.getInteger("onion.exit.streamWindow", 500);
 
-public class EndNode extends Node{
-    Proxy endNodeProxy;
-    Cryptography cryptography = new Cryptography();
-    DataInputStream inputStream;
-    DataOutputStream outputStream;
-    int id;
+    private final ICellQueue toPrevious;
+    private final int streamWindow;
+    private final StreamTable<ExitStream> streams = new StreamTable<>();
+    // Connections to destinations kept after their stream was closed, only used on the engine thread
+    private final ExitConnectionPool connections;
+    // Set once the first stream is opened, unless given to the constructor
+    private volatile ExitEngine engine;
+    private final CellBufferPool<byte[]> pool = CellBufferPool.heap();
+    // The data of a relay data cell is copied here before it is written. Only used by the node's reader thread.
+    private final byte[] received = new byte[CellView.RELAY_DATA_SIZE];
 
+    // Only used while holding sendLock
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private final Cryptography cryptography = new Cryptography();
+    private final CellView sendView = new CellView();
+    // Sealed cells that did not fit in the queue to the previous node, in the order they were sealed
+    private final Deque<byte[]> backlog = new ArrayDeque<>();
+    // True while the backlog has cells, read by the engine to pause the streams
+    private volatile boolean backedUp = false;
+
+    // Known once the first relay cell of the circuit arrives
+    private volatile CircuitKeyContext keys;
+    private volatile int circuitId;
+
+    /**
+     * @param toPrevious is the queue of the writer thread to the previous node
+     */
+    public EndNode(BlockingQueue<byte[]> toPrevious) {
+        this(ICellQueue.of(toPrevious));
+    }
+
+    /**
+     * @param toPrevious is where the cells for the previous node are put, ex: the link to it
+     */
+    public EndNode(ICellQueue toPrevious) {
+        this(toPrevious, STREAM_WINDOW, ExitConnectionPool.withSystemProperties(), null);
+    }
+
+    /**
+     * @param toPrevious is the queue of the writer thread to the previous node
+     * @param streamWindow is how many data cells a stream may send before the proxy acknowledges them,
+     *                     at least ICellMethods.SENDME_INCREMENT
+     * @param connections keeps the connections to destinations that can be reused by later streams
+     */
+    public EndNode(BlockingQueue<byte[]> toPrevious, int streamWindow, ExitConnectionPool connections) {
+        this(toPrevious, streamWindow, connections, null);
+    }
 
     /**
-     * @param ipAddress the Ip-address the end node will run on
-     * @param portNumber the port number the node will run on
+     * @param toPrevious is the queue of the writer thread to the previous node
+     * @param streamWindow is how many data cells a stream may send before the proxy acknowledges them,
+     *                     at least ICellMethods.SENDME_INCREMENT
+     * @param connections keeps the connections to destinations that can be reused by later streams
+     * @param engine drives the streams, or null for the shared engine
      */
-    public EndNode(InetAddress ipAddress, int portNumber) {
+    public EndNode(BlockingQueue<byte[]> toPrevious, int streamWindow, ExitConnectionPool connections,
+                   ExitEngine engine) {
+        this(ICellQueue.of(toPrevious), streamWindow, connections, engine);
+    }
 
-        SocketAddress addr = new InetSocketAddress(ipAddress, portNumber);
-        endNodeProxy = new Proxy(Proxy.Type.SOCKS, addr);
-        setRandomId();
+    /**
+     * @param toPrevious is where the cells for the previous node are put
+     * @param streamWindow is how many data cells a stream may send before the proxy acknowledges them,
+     *                     at least ICellMethods.SENDME_INCREMENT
+     * @param connections keeps the connections to destinations that can be reused by later streams
+     * @param engine drives the streams, or null for the shared engine
+     */
+    public EndNode(ICellQueue toPrevious, int streamWindow, ExitConnectionPool connections, ExitEngine engine) {
+        if(streamWindow < ICellMethods.SENDME_INCREMENT) {
+            throw new IllegalArgumentException("The stream window must be at least " + ICellMethods.SENDME_INCREMENT +
+                    " cells, not " + streamWindow);
+        }
+        this.toPrevious = toPrevious;
+        this.streamWindow = streamWindow;
+        this.connections = connections;
+        this.engine = engine;
     }
 
     /**
-     * We run this method when we get a relayData cell
-     * This socket will be opened with the requested URL
-     * When the whole web-page has been downloaded, the endNode closes this socket
-     * The end node then sends a streamClosed cell
-     * @param streamId is given to the method upon relayData cell received.
-     *                 This is because this method is only initialized when such cells
-     *                 are opened. The streamIds are needed at the end of the method in order
-     *                 to send a streamClosed-cell using them
+     * Handles a relay begin (1), relay data (4), stream closed (6) or relay sendme (7) cell that has been fully
+     * decrypted. The cell is only read, so it can be given back to the pool once the method returns.
      *
-     * @param destinationURL
-     * @param destinationPort
-     * @return
-     * @throws Exception
-     */
-    public URLConnection createConnection(String destinationURL, int destinationPort,
-                                          byte[] streamId, byte[] circuitId) throws Exception {
-        if(endNodeProxy != null) {
-            try {
-                // Having the proxy as a parameter means the socket will connect to its destination through the proxy
-                Socket socket = new Socket(endNodeProxy);
-                InetSocketAddress dest = new InetSocketAddress(destinationURL, destinationPort);
-                socket.connect(dest);
-
-                // Now, we set up a new output and input stream
-                inputStream = new DataInputStream(socket.getInputStream());
-                outputStream = new DataOutputStream(socket.getOutputStream()); // todo will this send the information back?
-                byte[] payload;
-
-                // The total number of bytes read into the buffer, or -1 if there
-                // is no more data because the end of the stream has been reached.
-                int read = 0;
-                while (read != -1) {
-                    // Initialize a new chunk of memory for payload
-                    payload = new byte[512];
-
-                    // Read 504 bytes and put it into the payload
-                    read = inputStream.read(payload, 0, payload.length);
-
-                    // Create a data relay cell
-                    RelayCell relayCell = new RelayCell((byte) 4,
-                            streamId, intToByteArray(payload.length),circuitId);
-
-                    // Encrypt the cell
-                    cryptography.encrypt(relayCell, KeyInformation.getSecretKeyUsingNodeId(id));
-
-                    // Send the relay cell created back
-                    outputStream.write(relayCell.getTotalMessage());
-                    outputStream.flush();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+     * @param view is on the cell
+     * @param keys are the keys of the circuit at this node
+     */
+    public void handleRelayCell(CellView view, CircuitKeyContext keys) {
+        this.keys = keys;
+        this.circuitId = view.getCircuitId();
+        int streamId = view.getStreamId();
+        int length = Math.min(view.getPayloadLength(), CellView.RELAY_DATA_SIZE);
+        byte relayCommand = view.getRelayCommand();
 
-            // At this point, the whole website is sent to the client, and the stream should end
-            RelayCell relayCell = streamClosed(streamId,circuitId);
+        // relayBegin, the payload is the destination of the stream
+        if(relayCommand == 1) {
+            byte[] destination = new byte[length];
+            view.getRelayPayload(destination, 0, length);
+            begin(streamId, new String(destination, StandardCharsets.UTF_8));
+            return;
+        }
 
-            // Encrypt the cell
-            Cryptography cryptography = new Cryptography();
-            cryptography.encrypt(relayCell, KeyInformation.getSecretKeyUsingNodeId(id));
+        ExitStream stream = streams.get(streamId);
+        if(stream == null) {
+            System.out.println("Dropping a relay cell with relayCommand: " + relayCommand + " for stream " +
+                    streamId + ", which is not open");
+        }
+        // relayData, written to the destination of the stream
+        else if(relayCommand == 4) {
+            view.getRelayPayload(received, 0, length);
+            stream.write(received, length);
+        }
+        // streamClosed, the proxy does not want any more data
+        else if(relayCommand == 6) {
+            streams.remove(streamId, stream);
+            stream.close();
+        }
+        // relaySendme, the proxy has received more of the stream's data
+        else if(relayCommand == 7) {
+            stream.acknowledged(ICellMethods.SENDME_INCREMENT);
+        }
+    }
 
-            // Send the relay cell marking the stream end
-            outputStream.write(relayCell.getTotalMessage());
-            outputStream.flush();
+    /**
+     * Closes every stream and every idle connection, ex: when the circuit is torn down
+     */
+    public void closeAll() {
+        streams.forEach(stream -> {
+            streams.remove(stream.getStreamId(), stream);
+            stream.close();
+        });
+        // The cells held back will never be sent
+        sendLock.lock();
+        try {
+            backlog.forEach(pool::release);
+            backlog.clear();
+            backedUp = false;
+        } finally {
+            sendLock.unlock();
+        }
+        ExitEngine current = engine;
+        if(current != null) {
+            // Queued after the streams are closed, so the connections they give back are closed too
+            current.closeIdle(connections);
         }
-        throw new Exception("The end node has not been initialized!");
     }
 
     /**
-     * Relay command #5
-     *
-     * When the end node receives a relayBegin cell, the end node must
-     * generate a relayConnected cell to signal that it is ready
-     *
+     * @return how many streams are open through the end node
+     */
+    public int openStreams() {
+        return streams.size();
+    }
+
+    /**
+     * Registers the stream, and has the engine connect it
+     */
+    private void begin(int streamId, String destination) {
+        ExitEngine engine = this.engine;
+        try {
+            if(engine == null) {
+                engine = ExitEngine.shared();
+                this.engine = engine;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            send(streamId, (byte) 6, null, 0);
+            return;
+        }
+        ExitStream stream = new ExitStream(streamId, destination, this, engine, streamWindow);
+        if(!streams.add(streamId, stream)) {
+            System.out.println("Dropping a relay begin cell for stream " + streamId + ", which is already open");
+            return;
+        }
+        stream.open();
+    }
+
+    /**
+     * @return true while sealed cells are held back, because the queue to the previous node was full
+     */
+    boolean isBackedUp() {
+        return backedUp;
+    }
+
+    /**
+     * Called by the engine while the end node is backed up. Moves the held cells into the queue, in order,
+     * as far as there is room.
      *
+     * @return true if every held cell is in the queue, so the streams can read again
      */
-    private void relayConnected(byte[] cell) {
-        // Get a hold of all the variables needed to create the cell
-        byte[] streamId = getStreamID(cell);
-        byte[] circuitId = getCircuitId(cell);
-        byte[] payloadLength = getPayloadLength(cell);
+    boolean flushBacklog() {
+        sendLock.lock();
+        try {
+            byte[] cell;
+            while ((cell = backlog.peekFirst()) != null && toPrevious.offer(cell)) {
+                backlog.pollFirst();
+            }
+            backedUp = !backlog.isEmpty();
+            return !backedUp;
+        } finally {
+            sendLock.unlock();
+        }
+    }
 
-        try{
-            // Create the cell
-            RelayCell relayCell = new RelayCell((byte) 5, streamId,
-                    payloadLength, circuitId );
+    /**
+     * Runs the action for every open stream, ex: for the engine to resume them
+     */
+    void forEachStream(Consumer<ExitStream> action) {
+        streams.forEach(action);
+    }
 
-            // Encrypt the cell
-            Cryptography cryptography = new Cryptography();
-            cryptography.encrypt(relayCell, KeyInformation.getSecretKeyUsingNodeId(id));
+    /**
+     * @return the idle connections of the end node, only used on the engine thread
+     */
+    ExitConnectionPool getConnections() {
+        return connections;
+    }
 
-            // Send the cell back to the client proxy
-            outputStream.write(relayCell.getTotalMessage());
-            outputStream.flush();
+    /**
+     * Called by the engine once the stream is connected to its destination
+     */
+    void onConnected(ExitStream stream) {
+        send(stream.getStreamId(), (byte) 5, null, 0);
+    }
 
-        } catch (NoSuchPaddingException | IllegalBlockSizeException | NoSuchAlgorithmException
-                | BadPaddingException | IOException | InvalidKeyException e) {
-            e.printStackTrace();
+    /**
+     * Called by the engine with data from the destination
+     *
+     * @param cell is a pooled cell with the data in its relay payload, owned by the end node from now on
+     * @param length is the number of bytes of data
+     */
+    void sendData(ExitStream stream, byte[] cell, int length) {
+        sendCell(stream.getStreamId(), (byte) 4, cell, length);
+    }
+
+    /**
+     * Called by the engine once the connection to the destination is closed, or could not be made.
+     * The proxy is told with a stream closed cell, unless it closed the stream itself.
+     *
+     * @param cause is why the stream ended, or null if it ended normally
+     */
+    void onEnded(ExitStream stream, Throwable cause) {
+        if(cause != null && !stream.isClosed()) {
+            System.out.println("Stream " + stream.getStreamId() + " to " + stream.getDestination() + " failed: " + cause);
+        }
+        if(streams.remove(stream.getStreamId(), stream)) {
+            send(stream.getStreamId(), (byte) 6, null, 0);
         }
     }
 
     /**
-     * Relay method #6
+     * Builds a relay cell in a pooled cell, seals it, and puts it in the queue to the previous node
      *
-     * This cell is sent when a stream is fully read from the specified webpage
-     * The cell is interpreted as a relay stream closed cell in the client proxy.
-     * Then, the clientProxy must serve up the whole downloaded page for the client
-     * to see.
+     * @param data is the payload, or null if length is 0
+     * @param length is the number of bytes of data, at most RELAY_DATA_SIZE
      */
-    public RelayCell streamClosed(byte[] streamID, byte[] circuitId) {
-        // Creating a relay cell which is to be sent to the previous node
-        RelayCell cell = new RelayCell((byte) 6,streamID,intToByteArray(0),circuitId);
+    private void send(int streamId, byte relayCommand, byte[] data, int length) {
+        byte[] cell = pool.acquire();
+        if(length > 0) {
+            System.arraycopy(data, 0, cell, CellView.RELAY_PAYLOAD_OFFSET, length);
+        }
+        sendCell(streamId, relayCommand, cell, length);
+    }
 
-        // Add an empty payload
-        cell.setPayload(new byte[504]);
+    /**
+     * Writes the header of the cell, seals it, and puts it in the queue to the previous node
+     *
+     * @param cell is a pooled cell with the payload already in place, owned by this method
+     * @param length is the payload length
+     */
+    private void sendCell(int streamId, byte relayCommand, byte[] cell, int length) {
+        sendLock.lock();
+        try {
+            sendView.wrap(cell)
+                    .setCircuitId(circuitId)
+                    .setCommand((byte) 0)
+                    .setStreamId(streamId)
+                    .setPayloadLength(length)
+                    .setRelayCommand(relayCommand)
+                    .zeroFrom(CellView.RELAY_PAYLOAD_OFFSET + length);
+            sendView.clear();
 
-        return cell;
+            // Seal the cell, so the client knows it came from the end node, and encrypt it
+            cryptography.seal(cell, keys == null ? null : keys.getBackwardCipher());
+            ExitEngine current = engine;
+            if(backlog.isEmpty() && toPrevious.offer(cell)) {
+                cell = null;
+            } else if(current == null) {
+                // No stream was ever opened, so this is the node's reader thread, which may wait for room
+                toPrevious.put(cell);
+                cell = null;
+            } else {
+                // Sent after the cells sealed before it, once the writer has made room
+                backlog.addLast(cell);
+                cell = null;
+                if(!backedUp) {
+                    backedUp = true;
+                    current.backedUp(this);
+                }
+            }
+        } catch (InterruptedException | IllegalStateException e) {
+            e.printStackTrace();
+        } finally {
+            sendLock.unlock();
+            // The writer owns the cell once it is in the queue
+            pool.release(cell);
+        }
     }
 }
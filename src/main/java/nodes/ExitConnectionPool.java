@@ -0,0 +1,218 @@
+package nodes;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * The idle connections to destinations of one end node, by "host:port". When the proxy closes a stream while the
+ * destination keeps the connection open (ex: HTTP keep-alive), the connection is kept here, and the next relay begin
+ * to the same destination takes it instead of resolving the name and connecting again.
+ *
+ * Each end node has its own pool, so a connection is only reused by streams of the same circuit,
+ * and the requests of different users never share a connection to a destination.
+ *
+ * An idle connection stays registered with the ExitEngine's selector. If the destination closes it, or sends
+ * anything while it is idle, it is closed. The pool is only used on the engine thread, so it needs no locking.
+ *
+ * The limits of the pool made by withSystemProperties() are set with onion.exit.pool.maxIdle (idle connections
+ * per end node), onion.exit.pool.maxPerHost (idle connections per destination) and onion.exit.pool.idleTimeoutMillis.
+ */
+public class ExitConnectionPool {
+    private final int maxIdle;
+    private final int maxPerHost;
+    private final long idleTimeoutNanos;
+    // Tells the time in nanoseconds, System.nanoTime() unless a test moves it by hand
+    private final LongSupplier ticker;
+    // The idle connections of each destination, the most recently used first
+    private final Map<String, Deque<Idle>> byDestination = new HashMap<>();
+    // Every idle connection, the oldest first, to evict by age or when the pool is full
+    private final Deque<Idle> byAge = new ArrayDeque<>();
+
+    /**
+     * An idle connection, which is the attachment of its selection key while it is in the pool
+     */
+    static final class Idle {
+        final ExitConnectionPool pool;
+        final String destination;
+        final SocketChannel channel;
+        final SelectionKey key;
+        final long idleSince;
+
+        Idle(ExitConnectionPool pool, String destination, SocketChannel channel, SelectionKey key, long idleSince) {
+            this.pool = pool;
+            this.destination = destination;
+            this.channel = channel;
+            this.key = key;
+            this.idleSince = idleSince;
+        }
+    }
+
+    /**
+     * @param maxIdle is how many idle connections are kept at most, 0 turns the pool off
+     * @param maxPerHost is how many idle connections to one destination are kept at most
+     * @param idleTimeoutMillis is how long a connection is kept idle at most, in milliseconds
+     */
+    public ExitConnectionPool(int maxIdle, int maxPerHost, long idleTimeoutMillis) {
+        this(maxIdle, maxPerHost, idleTimeoutMillis, System::nanoTime);
+    }
+
+    /**
+     * Same as above, with the clock the idle connections expire by
+     *
+     * @param ticker tells the time in nanoseconds, like System.nanoTime()
+     */
+    public ExitConnectionPool(int maxIdle, int maxPerHost, long idleTimeoutMillis, LongSupplier ticker) {
+        if(maxIdle < 0 || maxPerHost < 1 || idleTimeoutMillis < 1) {
+            throw new IllegalArgumentException("The pool needs maxIdle >= 0, maxPerHost >= 1 and idleTimeoutMillis >= 1," +
+                    " not " + maxIdle + ", " + maxPerHost + " and " + idleTimeoutMillis);
+        }
+        this.maxIdle = maxIdle;
+        this.maxPerHost = maxPerHost;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.ticker = ticker;
+    }
+
+    /**
+     * @return a pool with the limits set by the system properties, 16 connections, 4 per destination,
+     *         idle for at most 30 seconds by default
+     */
+    public static ExitConnectionPool withSystemProperties() {
+        return new ExitConnectionPool(Integer.getInteger("onion.exit.pool.maxIdle", 16),
+                Integer.getInteger("onion.exit.pool.maxPerHost", 4),
+                Long.getLong("onion.exit.pool.idleTimeoutMillis", 30_000));
+    }
+
+    /**
+     * @param destination is "host:port" from a relay begin cell
+     * @return the name the connections to the destination are kept under, the host is not case sensitive
+     */
+    static String keyOf(String destination) {
+        return destination.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Takes the most recently used idle connection to the destination
+     *
+     * @return the connection, still registered with its selection key, or null if there is none
+     */
+    Idle take(String destination) {
+        evictExpired();
+        Deque<Idle> idle = byDestination.get(keyOf(destination));
+        if(idle == null) {
+            return null;
+        }
+        Idle taken = idle.pollFirst();
+        if(idle.isEmpty()) {
+            byDestination.remove(keyOf(destination));
+        }
+        if(taken != null) {
+            byAge.remove(taken);
+        }
+        return taken;
+    }
+
+    /**
+     * Keeps a connection that a stream no longer uses. The oldest idle connection is closed if the pool is full.
+     *
+     * @param key is the selection key of the channel, which gets the idle connection as its attachment
+     * @return false if the destination already has maxPerHost idle connections (or the pool is off),
+     *         and the connection was not kept
+     */
+    boolean offer(String destination, SocketChannel channel, SelectionKey key) {
+        if(maxIdle == 0) {
+            return false;
+        }
+        Deque<Idle> idle = byDestination.computeIfAbsent(keyOf(destination), name -> new ArrayDeque<>());
+        if(idle.size() >= maxPerHost) {
+            return false;
+        }
+        Idle added = new Idle(this, keyOf(destination), channel, key, ticker.getAsLong());
+        key.attach(added);
+        // Reading shows if the destination closes the connection while it is idle
+        key.interestOps(SelectionKey.OP_READ);
+        idle.addFirst(added);
+        byAge.addLast(added);
+
+        while (byAge.size() > maxIdle) {
+            close(byAge.peekFirst());
+        }
+        return true;
+    }
+
+    /**
+     * Closes an idle connection and removes it from the pool, ex: when the destination has closed it
+     */
+    void close(Idle idle) {
+        byAge.remove(idle);
+        Deque<Idle> sameDestination = byDestination.get(idle.destination);
+        if(sameDestination != null) {
+            sameDestination.remove(idle);
+            if(sameDestination.isEmpty()) {
+                byDestination.remove(idle.destination);
+            }
+        }
+        idle.key.cancel();
+        try {
+            idle.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Closes the connections that have been idle for longer than the idle timeout
+     */
+    void evictExpired() {
+        long now = ticker.getAsLong();
+        Idle oldest;
+        while ((oldest = byAge.peekFirst()) != null && now - oldest.idleSince >= idleTimeoutNanos) {
+            close(oldest);
+        }
+    }
+
+    /**
+     * @return how long until the oldest idle connection expires, in milliseconds, or 0 if the pool is empty
+     */
+    long millisUntilNextExpiry() {
+        Idle oldest = byAge.peekFirst();
+        if(oldest == null) {
+            return 0;
+        }
+        long left = idleTimeoutNanos - (ticker.getAsLong() - oldest.idleSince);
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(left));
+    }
+
+    /**
+     * Closes every idle connection, ex: when the circuit of the end node is torn down
+     */
+    void closeAll() {
+        Iterator<Idle> iterator = new ArrayDeque<>(byAge).iterator();
+        while (iterator.hasNext()) {
+            close(iterator.next());
+        }
+    }
+
+    /**
+     * @return how many idle connections are kept
+     */
+    int size() {
+        return byAge.size();
+    }
+
+    /**
+     * @return how many idle connections to the destination are kept
+     */
+    int size(String destination) {
+        Deque<Idle> idle = byDestination.get(keyOf(destination));
+        return idle == null ? 0 : idle.size();
+    }
+}
@@ -0,0 +1,476 @@
+package nodes;
+
+import Interface.IHostResolver;
+import cells.CellBufferPool;
+import cells.CellView;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves the data of the exit streams of every end node in the process, on one thread with one Selector.
+ * The destinations are connected to without blocking, so thousands of streams can be open at once,
+ * and a slow destination never holds the others back.
+ *
+ * What a destination sends is read straight into a pooled cell, one read per cell, and handed to the end node
+ * as soon as it arrives. A stream is only read from while it has room in its window: once the proxy has not
+ * acknowledged a window of data cells, the stream stops reading, and TCP slows the destination down.
+ * The engine never waits for room in the queue to a previous node. When an end node's queue is full, the streams
+ * of that circuit stop reading, and the engine checks every BACKLOG_POLL_MILLIS for the writer to make room.
+ *
+ * When the proxy closes a stream while the destination keeps the connection open, the connection is kept in the
+ * end node's ExitConnectionPool, and a later stream to the same destination takes it without resolving or connecting.
+ *
+ * The host names of the destinations are resolved through a ResolverCache, so a stream to a name in use
+ * is connected to right away. A name that is not cached is looked up on the cache's own threads, as that blocks.
+ *
+ * Everything about a stream's channel happens on the engine thread. Other threads talk to the engine
+ * through execute(), like with the EventLoop of the links. The connect timeout is set with
+ * onion.exit.connectTimeoutMillis.
+ */
+public class ExitEngine extends Thread {
+    private static final int CONNECT_TIMEOUT_MILLIS = Integer.getInteger("onion.exit.connectTimeoutMillis", 10_000);
+    // At most this many cells are read from one stream per wakeup, so a fast destination does not starve the others
+    private static final int READS_PER_WAKEUP = 16;
+    // How often the backlog of an end node whose queue was full is moved on, while there is one
+    private static final long BACKLOG_POLL_MILLIS = 2;
+    private static ExitEngine shared;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final CellBufferPool<byte[]> pool = CellBufferPool.heap();
+    private final ResolverCache names;
+    // Runs a task on the engine thread once the connect timeout has passed
+    private final Executor afterConnectTimeout;
+    private volatile boolean running = true;
+    // The pools that have idle connections, to close the ones that expire. Only used on the engine thread
+    private final Set<ExitConnectionPool> pools = Collections.newSetFromMap(new IdentityHashMap<>());
+    // The end nodes holding cells that did not fit in their queue. Only used on the engine thread
+    private final Set<EndNode> backedUp = Collections.newSetFromMap(new IdentityHashMap<>());
+    // Reads the byte that shows if a connection given back to a pool still has data on it
+    private final ByteBuffer probe = ByteBuffer.allocate(1);
+
+    /**
+     * @param name is the name of the thread
+     * @throws IOException if the selector could not be opened
+     */
+    public ExitEngine(String name) throws IOException {
+        this(name, ResolverCache.withSystemProperties(IHostResolver.system()));
+    }
+
+    /**
+     * @param name is the name of the thread
+     * @param names resolves the host names of the destinations
+     * @throws IOException if the selector could not be opened
+     */
+    public ExitEngine(String name, ResolverCache names) throws IOException {
+        super(name);
+        setDaemon(true);
+        selector = Selector.open();
+        this.names = names;
+        afterConnectTimeout = CompletableFuture.delayedExecutor(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS,
+                this::execute);
+    }
+
+    /**
+     * @return the engine used by every end node in this process, started the first time it is asked for
+     */
+    public static synchronized ExitEngine shared() throws IOException {
+        if(shared == null) {
+            shared = new ExitEngine("exit-engine");
+            shared.start();
+        }
+        return shared;
+    }
+
+    /**
+     * Runs the task on the engine thread. If called from another thread, the engine is woken up.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if(Thread.currentThread() != this) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Takes an idle connection to the destination of the stream from the end node's pool, or else resolves the
+     * destination and connects to it. The end node is told through onConnected() once the stream is connected,
+     * or through onEnded() if it could not be.
+     */
+    void open(ExitStream stream) {
+        execute(() -> {
+            if(stream.finished) {
+                return;
+            }
+            ExitConnectionPool.Idle idle = stream.getOwner().getConnections().take(stream.getDestination());
+            if(idle != null) {
+                // No name to resolve and no connect round trip
+                stream.channel = idle.channel;
+                stream.key = idle.key;
+                stream.key.attach(stream);
+                onConnected(stream);
+            } else {
+                resolveAndConnect(stream);
+            }
+        });
+    }
+
+    /**
+     * Closes the idle connections of a pool, ex: when the end node's circuit is torn down
+     */
+    void closeIdle(ExitConnectionPool connections) {
+        execute(() -> {
+            connections.closeAll();
+            pools.remove(connections);
+        });
+    }
+
+    private void resolveAndConnect(ExitStream stream) {
+        InetSocketAddress destination;
+        try {
+            destination = ExitStream.toAddress(stream.getDestination());
+        } catch (IOException e) {
+            finish(stream, e);
+            return;
+        }
+        // Completes right away if the name is cached
+        names.resolve(destination.getHostString()).whenComplete((address, failure) -> execute(() -> {
+            if(failure != null) {
+                finish(stream, failure instanceof CompletionException ? failure.getCause() : failure);
+            } else {
+                connect(stream, new InetSocketAddress(address, destination.getPort()));
+            }
+        }));
+    }
+
+    /**
+     * Queues data to be written to the destination. Data written before the stream is connected is sent once it is.
+     *
+     * @param data is owned by the engine from now on
+     */
+    void write(ExitStream stream, ByteBuffer data) {
+        execute(() -> {
+            if(!stream.finished) {
+                stream.pending.add(data);
+                if(stream.connected) {
+                    flush(stream);
+                }
+            }
+        });
+    }
+
+    /**
+     * Gives the stream room for more data cells, once the proxy has acknowledged the ones it has received
+     *
+     * @param cells is how many more cells may be sent
+     */
+    void extendWindow(ExitStream stream, int cells) {
+        execute(() -> {
+            stream.window += cells;
+            if(stream.connected && !stream.finished) {
+                updateInterest(stream);
+            }
+        });
+    }
+
+    /**
+     * Closes the connection to the destination
+     */
+    void close(ExitStream stream) {
+        execute(() -> finish(stream, null));
+    }
+
+    /**
+     * Called by an end node whose queue to the previous node was full. Its streams stop reading until
+     * the held cells have been moved into the queue.
+     */
+    void backedUp(EndNode owner) {
+        execute(() -> backedUp.add(owner));
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                if(tasks.isEmpty()) {
+                    // Wakes up when the next idle connection expires, if there is one,
+                    // and soon if a backlog waits for room in its queue
+                    long timeout = evictExpired();
+                    if(!backedUp.isEmpty()) {
+                        timeout = timeout == 0 ? BACKLOG_POLL_MILLIS : Math.min(timeout, BACKLOG_POLL_MILLIS);
+                    }
+                    selector.select(timeout);
+                } else {
+                    selector.selectNow();
+                }
+                runTasks();
+                flushBacklogs();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(key.attachment() instanceof ExitConnectionPool.Idle) {
+                        // An idle connection is not expected to be read from, it was closed or sent something
+                        ExitConnectionPool.Idle idle = (ExitConnectionPool.Idle) key.attachment();
+                        idle.pool.close(idle);
+                        continue;
+                    }
+                    ExitStream stream = (ExitStream) key.attachment();
+
+                    if(key.isValid() && key.isConnectable()) {
+                        onConnectable(stream);
+                    }
+                    if(key.isValid() && key.isReadable()) {
+                        onReadable(stream);
+                    }
+                    if(key.isValid() && key.isWritable()) {
+                        flush(stream);
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                running = false;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stops the engine. Streams still open are not closed.
+     */
+    public void shutdown() {
+        running = false;
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * A connection can be kept if the proxy closed the stream, everything the proxy sent was written,
+     * and the destination has neither closed it nor sent anything that was not read
+     */
+    private boolean isReusable(ExitStream stream) {
+        if(!stream.isClosed() || !stream.connected || stream.reachedEnd || !stream.pending.isEmpty()
+                || stream.key == null || !stream.key.isValid()) {
+            return false;
+        }
+        try {
+            probe.clear();
+            return stream.channel.read(probe) == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Closes the idle connections that have expired
+     *
+     * @return how long until the next one expires, in milliseconds, or 0 if no connection is idle
+     */
+    private long evictExpired() {
+        long next = 0;
+        Iterator<ExitConnectionPool> iterator = pools.iterator();
+        while (iterator.hasNext()) {
+            ExitConnectionPool connections = iterator.next();
+            connections.evictExpired();
+            if(connections.size() == 0) {
+                iterator.remove();
+                continue;
+            }
+            long left = connections.millisUntilNextExpiry();
+            next = next == 0 ? left : Math.min(next, left);
+        }
+        return next;
+    }
+
+    /**
+     * Moves the held cells of the backed up end nodes into their queues, and resumes the streams of the ones
+     * that have no cells left
+     */
+    private void flushBacklogs() {
+        Iterator<EndNode> iterator = backedUp.iterator();
+        while (iterator.hasNext()) {
+            EndNode owner = iterator.next();
+            if(owner.flushBacklog()) {
+                iterator.remove();
+                owner.forEachStream(this::updateInterest);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void connect(ExitStream stream, InetSocketAddress address) {
+        if(stream.finished || stream.isClosed()) {
+            finish(stream, null);
+            return;
+        }
+        try {
+            SocketChannel channel = SocketChannel.open();
+            stream.channel = channel;
+            channel.configureBlocking(false);
+            stream.key = channel.register(selector, 0, stream);
+            if(channel.connect(address)) {
+                onConnected(stream);
+            } else {
+                stream.key.interestOps(SelectionKey.OP_CONNECT);
+                afterConnectTimeout.execute(() -> {
+                    if(!stream.connected) {
+                        finish(stream, new SocketTimeoutException("Could not connect to " + stream.getDestination() +
+                                " within " + CONNECT_TIMEOUT_MILLIS + " ms"));
+                    }
+                });
+            }
+        } catch (IOException e) {
+            finish(stream, e);
+        }
+    }
+
+    private void onConnectable(ExitStream stream) {
+        try {
+            if(stream.channel.finishConnect()) {
+                onConnected(stream);
+            }
+        } catch (IOException e) {
+            finish(stream, e);
+        }
+    }
+
+    private void onConnected(ExitStream stream) {
+        stream.connected = true;
+        stream.getOwner().onConnected(stream);
+        // Data the proxy sent while the stream was connecting
+        flush(stream);
+    }
+
+    /**
+     * Reads what the destination has sent, one cell at a time, while the stream has room in its window
+     */
+    private void onReadable(ExitStream stream) {
+        EndNode owner = stream.getOwner();
+        for (int i = 0; i < READS_PER_WAKEUP && stream.window > 0 && !owner.isBackedUp(); i++) {
+            byte[] cell = pool.acquire();
+            int read;
+            try {
+                // Up to 498 bytes straight into the payload of the cell, the rest is used when sealing
+                read = stream.channel.read(ByteBuffer.wrap(cell, CellView.RELAY_PAYLOAD_OFFSET, CellView.RELAY_DATA_SIZE));
+            } catch (IOException e) {
+                pool.release(cell);
+                finish(stream, e);
+                return;
+            }
+            if(read <= 0) {
+                pool.release(cell);
+                if(read < 0) {
+                    // The destination has sent everything
+                    stream.reachedEnd = true;
+                    finish(stream, null);
+                    return;
+                }
+                break;
+            }
+            stream.window--;
+            // The end node owns the cell from now on
+            owner.sendData(stream, cell, read);
+        }
+        updateInterest(stream);
+    }
+
+    private void flush(ExitStream stream) {
+        try {
+            ByteBuffer data;
+            while ((data = stream.pending.peek()) != null) {
+                stream.channel.write(data);
+                if(data.hasRemaining()) {
+                    // The socket is full, the rest is written once it has room
+                    break;
+                }
+                stream.pending.poll();
+            }
+            updateInterest(stream);
+        } catch (IOException e) {
+            finish(stream, e);
+        }
+    }
+
+    /**
+     * Reads while the stream has room in its window and its end node is not backed up,
+     * and waits for room in the socket while data is pending
+     */
+    private void updateInterest(ExitStream stream) {
+        if(stream.finished || stream.key == null || !stream.key.isValid()) {
+            return;
+        }
+        int ops = 0;
+        if(stream.connected && stream.window > 0 && !stream.getOwner().isBackedUp()) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if(stream.connected && !stream.pending.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if(!stream.connected) {
+            ops = SelectionKey.OP_CONNECT;
+        }
+        stream.key.interestOps(ops);
+    }
+
+    /**
+     * Closes the stream's channel once, and tells the end node
+     *
+     * @param cause is why the stream ended, or null if the destination or the proxy ended it
+     */
+    private void finish(ExitStream stream, Throwable cause) {
+        if(stream.finished) {
+            return;
+        }
+        stream.finished = true;
+        if(cause == null && isReusable(stream)) {
+            ExitConnectionPool connections = stream.getOwner().getConnections();
+            if(connections.offer(stream.getDestination(), stream.channel, stream.key)) {
+                pools.add(connections);
+                stream.getOwner().onEnded(stream, null);
+                return;
+            }
+        }
+        stream.pending.clear();
+        if(stream.key != null) {
+            stream.key.cancel();
+        }
+        if(stream.channel != null) {
+            try {
+                stream.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        stream.getOwner().onEnded(stream, cause);
+    }
+}
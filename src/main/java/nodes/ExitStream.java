@@ -0,0 +1,126 @@
+package nodes;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * One stream of a circuit at the end node: the connection to the destination the proxy asked for in relay begin.
+ * The connection is driven by the ExitEngine. The data cells of the stream are written to the destination,
+ * and what the destination sends back is handed to the EndNode that owns the stream.
+ */
+public class ExitStream {
+    private final int streamId;
+    private final String destination;
+    private final EndNode owner;
+    private final ExitEngine engine;
+    private volatile boolean closed = false;
+
+    // Only used on the engine thread
+    SocketChannel channel;
+    SelectionKey key;
+    boolean connected = false;
+    boolean finished = false;
+    // Set once the destination has closed its side, so the connection can not be reused
+    boolean reachedEnd = false;
+    // How many more data cells may be sent before the proxy acknowledges the ones it has received
+    int window;
+    // Data of the proxy not yet written to the destination, oldest first
+    final Deque<ByteBuffer> pending = new ArrayDeque<>();
+
+    /**
+     * @param streamId is the stream id as an unsigned 16 bit integer
+     * @param destination is the payload of the relay begin cell, "host:port"
+     * @param owner is the end node the stream belongs to
+     * @param engine connects the stream and moves its data
+     * @param window is how many data cells may be sent before the first acknowledgement
+     */
+    public ExitStream(int streamId, String destination, EndNode owner, ExitEngine engine, int window) {
+        this.streamId = streamId;
+        this.destination = destination;
+        this.owner = owner;
+        this.engine = engine;
+        this.window = window;
+    }
+
+    /**
+     * Takes an idle connection to the destination from the end node's pool, or else resolves the destination
+     * and connects to it, without blocking
+     */
+    public void open() {
+        engine.open(this);
+    }
+
+    /**
+     * Writes the data of a relay data cell to the destination, once the stream is connected
+     *
+     * @param data is copied, so the cell it came from can be reused
+     */
+    public void write(byte[] data, int length) {
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        copy.put(data, 0, length).flip();
+        engine.write(this, copy);
+    }
+
+    /**
+     * The proxy has received more of the stream's data cells, so more may be sent
+     *
+     * @param cells is how many cells the proxy acknowledged
+     */
+    public void acknowledged(int cells) {
+        engine.extendWindow(this, cells);
+    }
+
+    /**
+     * Closes the connection to the destination
+     */
+    public void close() {
+        closed = true;
+        engine.close(this);
+    }
+
+    /**
+     * @return true if the stream was closed by this side, so its end is expected
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    EndNode getOwner() {
+        return owner;
+    }
+
+    /**
+     * @param destination is "host:port", the host may be a name or an address
+     * @return the address, not resolved yet, the engine resolves the host through its ResolverCache
+     * @throws IOException if the destination is not "host:port"
+     */
+    static InetSocketAddress toAddress(String destination) throws IOException {
+        int colon = destination.lastIndexOf(':');
+        InetSocketAddress address = null;
+        try {
+            if(colon > 0) {
+                address = InetSocketAddress.createUnresolved(destination.substring(0, colon),
+                        Integer.parseInt(destination.substring(colon + 1)));
+            }
+        } catch (IllegalArgumentException e) {
+            // Thrown for a port that is not a number, or out of range
+        }
+        if(address == null) {
+            throw new IOException("The destination '" + destination + "' is not host:port");
+        }
+        return address;
+    }
+}
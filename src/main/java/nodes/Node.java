@@ -1,22 +1,32 @@
 package nodes;
-import Interface.ICellMethods;
 import Interface.ISupportMethods;
-import cells.ControlCell;
-import circuit.Circuit;
-import security.KeyGeneration;
-import security.KeyInformation;
+import circuit.Readiness;
+import circuit.ReadinessEvent;
+import security.CircuitKeyTable;
+import threads.CellRingBuffer;
+import threads.CellThread;
+import threads.ChannelCellWriter;
+import threads.ChannelRelayThread;
+import threads.ChannelWriterThread;
+import threads.CryptoEngine;
+import threads.EventLoopGroup;
+import threads.Link;
 import threads.NodeReaderThread;
+import threads.WaitStrategy;
 import threads.WriterThread;
 
-import javax.crypto.SecretKey;
+import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.*;
-import java.security.PublicKey;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static Interface.ISupportMethods.setRandomId;
 
@@ -32,8 +42,19 @@ public class Node {
     private SocketAddress previousNode; // previous node's IP-address
     private SocketAddress nextNode; // next node's IP-address
     private Boolean online = false; // Offline/online (in use or not)
-    BlockingQueue<byte[]> queuePrevNode;
-    BlockingQueue<byte[]> queueNextNode;
+    private static final int QUEUE_CAPACITY = 1024;
+    private static TransportMode transportMode = TransportMode.fromSystemProperty();
+    // Each node owns the queues of its two writer threads. Both reader threads send cells towards the previous node,
+    // so that queue has several producers. Only the reader on the previous node's socket sends cells to the next node.
+    BlockingQueue<byte[]> queuePrevNode = new CellRingBuffer(QUEUE_CAPACITY, true, WaitStrategy.fromSystemProperty());
+    BlockingQueue<byte[]> queueNextNode = new CellRingBuffer(QUEUE_CAPACITY);
+    private byte[] circuitId; // the circuit currently being set up through this node
+    // Signalled when the server socket is bound, and when the node's links are connected
+    private final Readiness readiness = new Readiness();
+
+    // Only used with TransportMode.EVENT_LOOP
+    private NodeCellHandler cellHandler;
+    private final Map<SocketAddress, Link> nextLinks = new HashMap<>();
 
 
 
@@ -43,8 +64,12 @@ public class Node {
     DataOutputStream outgoingMessage2;
     DataInputStream receivedMessage2;
     ServerSocket serverSocket;
-    Socket previousNodeSocket;
-    Socket nextNodeSocket;
+    // Set by the thread that accepts the previous node, and closed by close() on another thread
+    volatile Socket previousNodeSocket;
+    volatile Socket nextNodeSocket;
+    // The reader and writer threads of the node, stopped by close()
+    private final List<CellThread> threads = new CopyOnWriteArrayList<>();
+    private volatile boolean closed = false;
     //private static final HashMap<InetAddress, Socket> connectionMap = new HashMap<>();
 
     public Node() {
@@ -58,10 +83,13 @@ public class Node {
      */
     public Node(InetSocketAddress socketAddress, int portNumber) {
         try {
-            serverSocket = new ServerSocket(portNumber);
-            this.portNumber = portNumber;
+            serverSocket = openServerSocket(portNumber);
+            readiness.signal(ReadinessEvent.SERVER_SOCKET_BOUND);
+            // If port 0 was asked for, the node runs on the port the system picked
+            this.portNumber = serverSocket.getLocalPort();
             setRandomId();
-            ipAddress = socketAddress;
+            ipAddress = socketAddress.getPort() == 0
+                    ? new InetSocketAddress(socketAddress.getAddress(), this.portNumber) : socketAddress;
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -70,7 +98,15 @@ public class Node {
     public void createConnection() {
         try {
             if(serverSocket == null) {
-                serverSocket = new ServerSocket(portNumber);
+                serverSocket = openServerSocket(portNumber);
+                readiness.signal(ReadinessEvent.SERVER_SOCKET_BOUND);
+            }
+            if(transportMode == TransportMode.EVENT_LOOP) {
+                openLinks();
+                // The link from the previous node is accepted by the acceptor thread whenever it connects,
+                // and the cells it sends wait in the socket until then
+                readiness.signal(ReadinessEvent.LINK_CONNECTED);
+                return;
             }
             new Thread(new Runnable() {
                 @Override
@@ -87,7 +123,7 @@ public class Node {
                                     previousNodeSocket.getInetAddress() + ":" + previousNodeSocket.getPort());
 
                             // Afterwards, initiating the second socket
-                            nextNodeSocket = new Socket();
+                            nextNodeSocket = transportMode.usesChannels() ? SocketChannel.open().socket() : new Socket();
 
                             System.out.println("next node looks like this: " + nextNode);
 
@@ -106,9 +142,11 @@ public class Node {
                             }
                         }
                         System.out.println("Trying to set the input and output streams");
-                        TimeUnit.SECONDS.sleep(2);
 
-                        if(nextNodeSocket != null && nextNode != null) {
+                        if(transportMode.usesChannels()) {
+                            // No streams are needed, the channels are used directly
+                        }
+                        else if(nextNodeSocket != null && nextNode != null) {
                             // A new DataOutput -and DataInputStream are instantiated for each socket
                             receivedMessage1 = new DataInputStream(previousNodeSocket.getInputStream());
                             outgoingMessage1 = new DataOutputStream(previousNodeSocket.getOutputStream());
@@ -120,76 +158,197 @@ public class Node {
                             outgoingMessage1 = new DataOutputStream(previousNodeSocket.getOutputStream());
                         }
 
-                    } catch (IOException | InterruptedException e) {
+                    } catch (IOException e) {
                         e.printStackTrace();
+                        // The links can not be used, so whoever waits for them is told right away
+                        readiness.fail(ReadinessEvent.LINK_CONNECTED, e);
+                        return;
                     }
                     // Create new threads to run the connection to the previous node
-                    if(nextNode == null) {
-                        new NodeReaderThread(previousNodeSocket, previousNode, null,
-                                null,queuePrevNode,id, ipAddress, false).start();
-                        new WriterThread(previousNodeSocket,queuePrevNode).start();
+                    if(transportMode == TransportMode.DIRECT) {
+                        startChannelRelay();
+                    }
+                    else if(nextNode == null) {
+                        NodeReaderThread reader = new NodeReaderThread(previousNodeSocket, previousNode, null,
+                                null,queuePrevNode,id, ipAddress, false);
+                        // The keys of the circuit are found through the socket to the previous node
+                        reader.setCircuit(previousNodeSocket, circuitIdOrUnknown());
+                        // The layers are added and removed by the shared crypto engine, if it is enabled
+                        reader.setCryptoEngine(CryptoEngine.shared());
+                        // The last node is the exit of the circuit, it connects the streams to their destinations
+                        reader.setExit(new EndNode(queuePrevNode));
+                        start(reader);
+                        start(new WriterThread(previousNodeSocket,queuePrevNode));
                         System.out.println("Created reader and writer thread");
                     }
                     else {
-                        new NodeReaderThread(previousNodeSocket, previousNode, nextNode,
-                                queueNextNode,queuePrevNode,id, ipAddress, false).start();
-                        new WriterThread(previousNodeSocket,queuePrevNode).start();
+                        NodeReaderThread previousReader = new NodeReaderThread(previousNodeSocket, previousNode,
+                                nextNode, queueNextNode,queuePrevNode,id, ipAddress, false);
+                        previousReader.setCircuit(previousNodeSocket, circuitIdOrUnknown());
+                        previousReader.setCryptoEngine(CryptoEngine.shared());
+                        start(previousReader);
+                        start(new WriterThread(previousNodeSocket,queuePrevNode));
 
                         // Create new threads to run the connection to the next node
-                        new NodeReaderThread(nextNodeSocket, previousNode,nextNode,
-                                queueNextNode,queuePrevNode,id,ipAddress, true).start();
-                        new WriterThread(nextNodeSocket,queueNextNode).start();
+                        NodeReaderThread nextReader = new NodeReaderThread(nextNodeSocket, previousNode,nextNode,
+                                queueNextNode,queuePrevNode,id,ipAddress, true);
+                        nextReader.setCircuit(previousNodeSocket, circuitIdOrUnknown());
+                        nextReader.setCryptoEngine(CryptoEngine.shared());
+                        start(nextReader);
+                        start(new WriterThread(nextNodeSocket,queueNextNode));
                         System.out.println("Created reader and writer thread");
                     }
+                    // The threads are running, so the node is ready to move cells
+                    readiness.signal(ReadinessEvent.LINK_CONNECTED);
                 }
             }).start();
         } catch (Exception e) {
             e.printStackTrace();
+            readiness.fail(ReadinessEvent.LINK_CONNECTED, e);
         }
     }
 
-    public void fullCircuitHandshake(Circuit circuit) throws Exception {
-        // Node must pass its own create thread as well
-        ControlCell created = ICellMethods.create(circuit.getId(),nextNodeSocket);
+    /**
+     * Used with TransportMode.DIRECT. One thread per socket moves cells from channel to channel
+     * in direct buffers, so no WriterThreads or queues are involved. Only the last node has a queue,
+     * for the cells its EndNode makes.
+     */
+    private void startChannelRelay() {
+        ChannelCellWriter toPrevious = new ChannelCellWriter(previousNodeSocket.getChannel());
+        if(nextNode == null) {
+            ChannelRelayThread relay = new ChannelRelayThread(previousNodeSocket.getChannel(), null, toPrevious, true,
+                    previousNodeSocket, circuitIdOrUnknown());
+            // The last node is the exit of the circuit. Its cells are made on the heap, and written by a thread of
+            // their own, so the engine driving the streams never waits on the socket
+            relay.setExit(new EndNode(queuePrevNode));
+            start(relay);
+            start(new ChannelWriterThread(toPrevious, queuePrevNode));
+        }
+        else {
+            ChannelCellWriter toNext = new ChannelCellWriter(nextNodeSocket.getChannel());
+            start(new ChannelRelayThread(previousNodeSocket.getChannel(), toNext, toPrevious, true,
+                    previousNodeSocket, circuitIdOrUnknown()));
+            start(new ChannelRelayThread(nextNodeSocket.getChannel(), toPrevious, toNext, false,
+                    previousNodeSocket, circuitIdOrUnknown()));
+        }
+        System.out.println("Created channel relay threads");
+    }
 
-        byte[] payload = ISupportMethods.getPayload(created.getTotalMessage());
+    /**
+     * Used with TransportMode.EVENT_LOOP. The node keeps one link per neighbour, and every circuit through
+     * that neighbour is multiplexed over it, so a new circuit over an existing link needs no new connection.
+     *
+     * The first call starts the thread that accepts links from previous nodes. Every call makes sure there is
+     * a link to the next node, and tells the handler that the circuit being set up continues on that link.
+     */
+    private synchronized void openLinks() throws IOException {
+        EventLoopGroup group = EventLoopGroup.shared();
+        if(cellHandler == null) {
+            cellHandler = new NodeCellHandler(id);
+            Thread acceptor = new Thread(this::acceptLinks, "link-acceptor-" + portNumber);
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+        if(nextNode != null) {
+            Link next = nextLinks.get(nextNode);
+            if(next == null || next.isClosed()) {
+                SocketChannel channel = SocketChannel.open(nextNode);
+                next = group.register(channel, cellHandler);
+                nextLinks.put(nextNode, next);
+                System.out.println("Opened link to " + nextNode);
+            } else {
+                System.out.println("Reusing link to " + nextNode + " (" + next.getCircuits().size() + " circuits)");
+            }
+            if(circuitId != null) {
+                cellHandler.addRoute(ISupportMethods.byteToInt(circuitId), next);
+            }
+        }
+    }
 
-        // The cell is a create cell, meaning this cell must respond with a created cell
-        byte[] u = new byte[4];
+    /**
+     * Every connection from a previous node becomes a link, which may carry any number of circuits
+     */
+    private void acceptLinks() {
+        try {
+            ServerSocketChannel server = serverSocket.getChannel();
+            while (server.isOpen()) {
+                SocketChannel channel = server.accept();
+                EventLoopGroup.shared().register(channel, cellHandler);
+                System.out.println("Accepted link from " + channel.getRemoteAddress());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-        // Reading in the BigInteger u as bytes
-        for (int i = 0; i < 4; i++) {
-            u[i] = payload[i];
+    /**
+     * Starts the thread, and keeps it so close() can stop it. A thread started after close() is stopped right away.
+     */
+    private void start(CellThread thread) {
+        threads.add(thread);
+        thread.start();
+        if(closed) {
+            thread.getRunningThread().interrupt();
         }
+    }
 
-        // Convert the bytes to a public key
-        PublicKey pk = ISupportMethods.convertToPublicKey(u);
+    /**
+     * Tears the node down, ex: when its circuit is retired. The server socket, the sockets (or links) to the
+     * previous and next node are closed, which ends the reader threads, and the writer threads waiting for cells
+     * are interrupted. The keys of the node's circuits are forgotten.
+     */
+    public void close() {
+        closed = true;
+        online = false;
+        closeQuietly(serverSocket);
+        Socket previous = previousNodeSocket;
+        closeQuietly(previous);
+        closeQuietly(nextNodeSocket);
+        if(previous != null) {
+            CircuitKeyTable.shared().removeLink(previous);
+        }
+        synchronized (this) {
+            for (Link link : nextLinks.values()) {
+                link.close();
+            }
+            nextLinks.clear();
+        }
+        for (CellThread thread : threads) {
+            thread.getRunningThread().interrupt();
+        }
+        threads.clear();
+    }
 
-        // Create the symmetric key
-        KeyGeneration keyGeneration = new KeyGeneration();
-        SecretKey symmetricKey = keyGeneration.generateSecretKey(pk, true);
+    private static void closeQuietly(Closeable closeable) {
+        if(closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-        // Add the symmetric key and the IP to the store
-        KeyInformation.addSecretKeyToMap(id, symmetricKey);
+    /**
+     * @return the id of the circuit being set up through this node, or -1 if it is only known once
+     *         the create cell arrives
+     */
+    private int circuitIdOrUnknown() {
+        return circuitId == null ? -1 : ISupportMethods.byteToInt(circuitId);
+    }
 
-        // Create a control cell and send it back where it came from
-        ControlCell createdCell = new ControlCell((byte) 2, circuit.getId());
-        byte[] newPayload = new byte[509];
-        for (int i = 0; i < 4; i++) {
-            newPayload[i] = u[i];
+    /**
+     * When the node uses channels, the server socket is opened through a ServerSocketChannel,
+     * so that the accepted sockets have a channel as well
+     */
+    private static ServerSocket openServerSocket(int portNumber) throws IOException {
+        if(transportMode.usesChannels()) {
+            return ServerSocketChannel.open().bind(new InetSocketAddress(portNumber)).socket();
         }
-        created.setPayload(newPayload);
-        // Have to send it back with the public key or u
-        queuePrevNode.put(created.getTotalMessage());
-        System.out.println("Sending created cell back to server");
-        // Run a worker thread that to pass the create cells
-        // todo this writer thread is not part of the same blockingqueue as the server
-        WriterThread writerThread = new WriterThread(nextNodeSocket, queueNextNode, 1,circuit);
-        // Start the thread
-        writerThread.start();
+        return new ServerSocket(portNumber);
     }
 
-
     // GETTERS
     public Boolean getOnline() {
         return online;
@@ -207,11 +366,37 @@ public class Node {
         return serverSocket;
     }
 
+    /**
+     * @return the readiness of the node's server socket and links
+     */
+    public Readiness getReadiness() {
+        return readiness;
+    }
+
+    public static TransportMode getTransportMode() {
+        return transportMode;
+    }
+
     // SETTERS
+
+    /**
+     * Must be called before the nodes are created, as the mode decides how the server sockets are opened
+     * @param transportMode is the way all nodes in this process move cells
+     */
+    public static void setTransportMode(TransportMode transportMode) {
+        Node.transportMode = transportMode;
+    }
     public void setNextNode(SocketAddress nextNode) {
         this.nextNode = nextNode;
     }
 
+    /**
+     * @param circuitId is the id of the circuit that is set up through this node next
+     */
+    public void setCircuitId(byte[] circuitId) {
+        this.circuitId = circuitId;
+    }
+
     public void setPreviousNode(SocketAddress previousNode) {
         this.previousNode = previousNode;
     }
@@ -221,24 +406,12 @@ public class Node {
         this.id = id;
     }
 
-    /**
-     * This method sets the queue that this node shares with the next node
-     * @param queueNextNode is the queue to be shared
-     */
-    public void setQueueNextNode(BlockingQueue<byte[]> queueNextNode) {
-        this.queueNextNode = queueNextNode;
-    }
-
-    /**
-     * This methods sets the queue that this node shares with the previous node
-     * @param queuePrevNode is the queue to be shared
-     */
-    public void setQueuePrevNode(BlockingQueue<byte[]> queuePrevNode) {
-        this.queuePrevNode = queuePrevNode;
-    }
-
     public BlockingQueue<byte[]> getQueueNextNode() {
         return queueNextNode;
     }
 
+    public BlockingQueue<byte[]> getQueuePrevNode() {
+        return queuePrevNode;
+    }
+
 }
@@ -0,0 +1,294 @@
+package nodes;
+
+import Interface.ICellHandler;
+import Interface.ICellMethods;
+import Interface.ICellQueue;
+import cells.CellBufferPool;
+import cells.CellView;
+import security.CircuitKeyContext;
+import security.CircuitKeyTable;
+import security.Cryptography;
+import threads.CircuitEntry;
+import threads.Link;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The work a node does on a cell when it runs with TransportMode.EVENT_LOOP.
+ * This is the same as ChannelRelayThread, but the handler is called by an event loop for each cell,
+ * instead of owning a thread that blocks on the socket.
+ *
+ * A node has one handler for all of its links, and many circuits share each link.
+ * The circuit a cell belongs to is found in the circuit table of the link it arrived on:
+ *      - a known circuit tells if the cell travels forward or backward, and which link it continues on
+ *      - a create cell for an unknown circuit starts a new circuit at this node. The circuit is bound to the link
+ *        it arrived on, and to the link towards the next node that was set up for it with addRoute()
+ *
+ * Circuit ids only have to be unique per link. A circuit keeps its id on the next link if the id is free there,
+ * and gets a free one if it is not. The id in the header of a cell is then changed as it goes from one link to the
+ * other, which the onion layers allow, as they do not cover the circuit id. The routes are set up under the id the
+ * nodes know the circuit by, so a create cell sent with another id carries that id after u (see ROUTE_MARK).
+ *
+ * The keys of each circuit are kept in the CircuitKeyTable under the link the create cell arrived on,
+ * and the circuit's entries in both links hold them as well, so a cell needs no lookup to find its layer.
+ *
+ * As with the NodeReaderThread, a relay extend cell is sent on as a create cell, and the created cell that comes
+ * back is turned into the relay extended cell. At the last node of a circuit the stream cells are handed to an
+ * EndNode of the circuit's own, which sends its cells on the link the circuit arrived on.
+ *
+ * The links are spread over several event loops, so the handler is called from more than one thread at a time.
+ */
+public class NodeCellHandler implements ICellHandler {
+    private final int nodeId;
+    private final Cryptography cryptography = new Cryptography();
+    // One view per event loop thread
+    private final ThreadLocal<CellView> views = ThreadLocal.withInitial(CellView::new);
+    // The link towards the next node for each circuit that has been set up, but not created yet
+    private final Map<Integer, Link> routes = new ConcurrentHashMap<>();
+    // Put after u in a create cell that carries the id the circuit was set up under, followed by the 2 byte id
+    private static final byte ROUTE_MARK = 1;
+    // The exit of each circuit that ends at this node and has had a stream cell, by its entry
+    private final Map<CircuitEntry, EndNode> exits = new ConcurrentHashMap<>();
+
+    /**
+     * @param nodeId is the id of the node the handler belongs to
+     */
+    public NodeCellHandler(int nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * Tells the handler which link a circuit continues on, before the create cell of the circuit arrives
+     *
+     * @param circuitId is the circuit id as an unsigned 16 bit integer
+     * @param next is the link to the next node in the circuit
+     */
+    public void addRoute(int circuitId, Link next) {
+        routes.put(circuitId, next);
+    }
+
+    @Override
+    public void handleCell(Link link, ByteBuffer cell) {
+        CellView view = views.get().wrap(cell, 0);
+        boolean sent = false;
+        try {
+            int circuitId = view.getCircuitId();
+            CircuitEntry entry = link.getCircuits().get(circuitId);
+
+            if(entry == null) {
+                sent = handleNewCircuit(link, view, cell);
+            } else if(entry.isForward()) {
+                sent = handleForward(link, entry, view, cell);
+            } else {
+                if(view.getCommand() == 2
+                        && view.isZeroFrom(CellView.CONTROL_PAYLOAD_OFFSET + CircuitKeyContext.U_SIZE)) {
+                    // The next node answered the create cell this node sent for a relay extend cell.
+                    // The answer goes back as a relay extended cell, sealed so the proxy knows this hop sent it
+                    ICellMethods.extendedInPlace(view);
+                    cryptography.seal(cell, entry.getKeys().getBackwardCipher());
+                } else {
+                    // The cell gets this node's layer added, and is passed on towards the client
+                    cryptography.encrypt(cell, entry.getKeys().getBackwardCipher());
+                }
+                view.setCircuitId(entry.getOtherCircuitId());
+                entry.getOther().send(cell, link);
+                sent = true;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            view.clear();
+            if(!sent) {
+                CellBufferPool.direct().release(cell);
+            }
+        }
+    }
+
+    /**
+     * Only a create cell can start a circuit. It is not encrypted, and is answered with a created cell.
+     *
+     * @return true if the cell was sent on
+     */
+    private boolean handleNewCircuit(Link from, CellView view, ByteBuffer cell) throws Exception {
+        int circuitId = view.getCircuitId();
+        if(view.getCommand() != 1) {
+            System.out.println("Dropping cell for unknown circuit " + circuitId);
+            return false;
+        }
+        // Read before the cell is turned into the created reply, which clears everything after u
+        int routeId = routeIdOf(view);
+        Link next = routes.remove(routeId);
+        // The keys are created and stored first, and the cell is turned into the created reply
+        CircuitKeyContext keys = ICellMethods.createdInPlace(view, from);
+
+        // The circuit keeps its id on the next link if it is free there, if not it gets the first free one after it
+        int nextId = circuitId;
+        if(next != null) {
+            CircuitEntry onNext = next.getCircuits().addWithFreeId(circuitId,
+                    id -> new CircuitEntry(id, from, circuitId, false, keys, routeId));
+            if(onNext == null) {
+                System.out.println("Refusing create cell for circuit " + circuitId +
+                        ", every id is used on the next link");
+                CircuitKeyTable.shared().remove(from, circuitId);
+                return false;
+            }
+            nextId = onNext.getCircuitId();
+            if(nextId != circuitId) {
+                System.out.println("Circuit " + circuitId + " is circuit " + nextId + " on the next link");
+            }
+        }
+        if(!from.getCircuits().add(new CircuitEntry(circuitId, next, nextId, true, keys, routeId))) {
+            if(next != null) {
+                next.getCircuits().remove(nextId);
+            }
+            CircuitKeyTable.shared().remove(from, circuitId);
+            return false;
+        }
+        from.send(cell);
+        System.out.println("Sending created cell back to server");
+        return true;
+    }
+
+    /**
+     * One layer is removed. If the cell was sealed for this node it is handled here,
+     * if not it is sent on to the next node in the same buffer.
+     *
+     * @return true if the cell was sent on
+     */
+    private boolean handleForward(Link from, CircuitEntry entry, CellView view, ByteBuffer cell) throws Exception {
+        // The command byte can not tell if the cell is meant for this node, as it still looks random while the layers
+        // of the nodes after this one are on the cell. Only the digest of this node's forward cipher can
+        if (cryptography.open(cell, entry.getKeys().getForwardCipher())) {
+            if (view.getCommand() == 0) {
+                return handleRelay(from, entry, view, cell);
+            } else if (view.getCommand() == 3) {
+                // The circuit is torn down, but the links stay open for the other circuits
+                removeCircuit(from, entry);
+            } else {
+                System.out.println("Dropping cell with command " + view.getCommand() + " meant for this node");
+            }
+            return false;
+        }
+        if (entry.getOther() != null) {
+            // The link owns the cell from here, even if it is closed and drops it
+            view.setCircuitId(entry.getOtherCircuitId());
+            entry.getOther().send(cell, from);
+            return true;
+        }
+        System.out.println("Dropping cell that no node of the circuit recognized");
+        return false;
+    }
+
+    /**
+     * Handles a relay cell that was sealed for this node. Only relay extend and, at the last node, the stream cells
+     * are meant for a node, any other relay cell is dropped.
+     *
+     * @return true if the cell was sent on
+     */
+    private boolean handleRelay(Link from, CircuitEntry entry, CellView view, ByteBuffer cell) {
+        byte relayCommand = view.getRelayCommand();
+        if (entry.getOther() == null && (relayCommand == 1 || relayCommand == 4 || relayCommand >= 6)) {
+            // The circuit ends here, so its streams leave the onion network at this node
+            exits.computeIfAbsent(entry, e -> new EndNode(new LinkQueue(from))).handleRelayCell(view, entry.getKeys());
+            return false;
+        }
+        if (relayCommand == 2 && entry.getOther() != null) {
+            // The handshake is sent on as a create cell, and the created cell comes back on the next link
+            ICellMethods.extendInPlace(view);
+            view.setCircuitId(entry.getOtherCircuitId());
+            if(entry.getOtherCircuitId() != entry.getRouteId()) {
+                setRouteId(view, entry.getRouteId());
+            }
+            entry.getOther().send(cell, from);
+            return true;
+        }
+        System.out.println("Dropping relay cell with relayCommand: " + relayCommand +
+                ", this node can not handle it");
+        return false;
+    }
+
+    /**
+     * Removes the circuit from the link, from the link it continues on, and its keys from the key table
+     */
+    private void removeCircuit(Link link, CircuitEntry entry) {
+        // The connections of the circuit's streams are closed along with it
+        EndNode exit = exits.remove(entry);
+        if(exit != null) {
+            exit.closeAll();
+        }
+        link.getCircuits().remove(entry.getCircuitId());
+        if(entry.getOther() != null) {
+            entry.getOther().getCircuits().remove(entry.getOtherCircuitId());
+        }
+        // The keys are stored under the link the create cell arrived on, and the circuit's id on that link
+        Link createdOn = entry.isForward() ? link : entry.getOther();
+        int createdId = entry.isForward() ? entry.getCircuitId() : entry.getOtherCircuitId();
+        if(createdOn != null) {
+            CircuitKeyTable.shared().remove(createdOn, createdId);
+        }
+    }
+
+    /**
+     * @return the id the circuit of a create cell was set up under: the id carried after u, or else the circuit id
+     */
+    private static int routeIdOf(CellView view) {
+        byte[] payload = new byte[CircuitKeyContext.U_SIZE + 3];
+        view.getControlPayload(payload, 0, payload.length);
+        if(payload[CircuitKeyContext.U_SIZE] != ROUTE_MARK) {
+            return view.getCircuitId();
+        }
+        return (payload[CircuitKeyContext.U_SIZE + 1] & 0xFF) << 8 | (payload[CircuitKeyContext.U_SIZE + 2] & 0xFF);
+    }
+
+    /**
+     * Puts the id the circuit was set up under after u in a create cell, for a circuit that has another id on the link
+     */
+    private static void setRouteId(CellView view, int routeId) {
+        byte[] payload = new byte[CircuitKeyContext.U_SIZE + 3];
+        view.getControlPayload(payload, 0, CircuitKeyContext.U_SIZE);
+        payload[CircuitKeyContext.U_SIZE] = ROUTE_MARK;
+        payload[CircuitKeyContext.U_SIZE + 1] = (byte) (routeId >>> 8);
+        payload[CircuitKeyContext.U_SIZE + 2] = (byte) routeId;
+        view.setControlPayload(payload, 0, payload.length);
+    }
+
+    /**
+     * Every circuit that used the closed link is removed from the other side as well
+     */
+    @Override
+    public void linkClosed(Link link) {
+        link.getCircuits().forEach(entry -> removeCircuit(link, entry));
+    }
+
+    /**
+     * Hands the cells of an end node to the link towards the previous node, copied into direct buffers.
+     * The loops never wait, so a link that is backed up refuses the cell, and the end node holds it back until
+     * the link has room again (see EndNode.flushBacklog()).
+     */
+    private static final class LinkQueue implements ICellQueue {
+        private final Link link;
+
+        LinkQueue(Link link) {
+            this.link = link;
+        }
+
+        @Override
+        public boolean offer(byte[] cell) {
+            if(!link.isWritable()) {
+                return false;
+            }
+            put(cell);
+            return true;
+        }
+
+        @Override
+        public void put(byte[] cell) {
+            ByteBuffer buffer = CellBufferPool.direct().acquire();
+            buffer.put(0, cell, 0, CellView.CELL_SIZE);
+            CellBufferPool.heap().release(cell);
+            link.send(buffer);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package nodes;
+
+import Interface.IHostResolver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Caches the addresses of the destinations' host names at the end node, so a stream to a name that was
+ * resolved recently is connected to right away, and only the first stream to a name waits for the lookup.
+ *
+ * - An address is kept for the TTL. The system resolver does not tell the TTL of the records, so the TTL is
+ *   set like the JVM's own networkaddress.cache.ttl.
+ * - A name that does not exist is kept as well, for the shorter negative TTL, so a stream to a mistyped name
+ *   does not cause a lookup every time.
+ * - At most maxEntries names are kept. The one used longest ago is dropped first.
+ * - A name that is used within refreshAhead of its expiry is looked up again in the background, while the cached
+ *   address is still handed out, so a name in steady use never makes a stream wait.
+ * - Streams that ask for the same name while it is being looked up share the lookup.
+ *
+ * The lookups are made by an IHostResolver on the executor, never on the caller's thread. The cache made by
+ * withSystemProperties() is set with onion.exit.dns.maxEntries, onion.exit.dns.ttlMillis,
+ * onion.exit.dns.negativeTtlMillis and onion.exit.dns.refreshAheadMillis.
+ */
+public class ResolverCache {
+    private final IHostResolver resolver;
+    private final Executor executor;
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final long refreshAheadNanos;
+    // Tells the time in nanoseconds, System.nanoTime() unless a test moves it by hand
+    private final LongSupplier ticker;
+
+    // The fields below are only used while holding the cache's lock
+    // In access order, so the eldest entry is the one used longest ago
+    private final Map<String, Entry> entries;
+    // The lookups that are running, by name
+    private final Map<String, CompletableFuture<InetAddress>> lookups = new HashMap<>();
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * The address of a name, or the reason it has none
+     */
+    private static final class Entry {
+        final InetAddress address;
+        final UnknownHostException failure;
+        final long expiresAt;
+        boolean refreshing = false;
+
+        Entry(InetAddress address, UnknownHostException failure, long expiresAt) {
+            this.address = address;
+            this.failure = failure;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * @param resolver makes the lookups
+     * @param executor runs the lookups, as they block
+     * @param maxEntries is how many names are kept at most
+     * @param ttlMillis is how long an address is kept, in milliseconds
+     * @param negativeTtlMillis is how long a name that does not exist is kept, in milliseconds, 0 to not keep it
+     * @param refreshAheadMillis is how long before its expiry a name that is used is looked up again, 0 to never
+     */
+    public ResolverCache(IHostResolver resolver, Executor executor, int maxEntries, long ttlMillis,
+                         long negativeTtlMillis, long refreshAheadMillis) {
+        this(resolver, executor, maxEntries, ttlMillis, negativeTtlMillis, refreshAheadMillis, System::nanoTime);
+    }
+
+    /**
+     * Same as above, with the clock the entries expire by
+     *
+     * @param ticker tells the time in nanoseconds, like System.nanoTime()
+     */
+    public ResolverCache(IHostResolver resolver, Executor executor, int maxEntries, long ttlMillis,
+                         long negativeTtlMillis, long refreshAheadMillis, LongSupplier ticker) {
+        if(maxEntries < 1 || ttlMillis < 1 || negativeTtlMillis < 0 || refreshAheadMillis < 0
+                || refreshAheadMillis >= ttlMillis) {
+            throw new IllegalArgumentException("The cache needs maxEntries >= 1, ttlMillis >= 1, negativeTtlMillis >= 0" +
+                    " and 0 <= refreshAheadMillis < ttlMillis, not " + maxEntries + ", " + ttlMillis + ", " +
+                    negativeTtlMillis + " and " + refreshAheadMillis);
+        }
+        this.resolver = resolver;
+        this.executor = executor;
+        this.maxEntries = maxEntries;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+        this.refreshAheadNanos = TimeUnit.MILLISECONDS.toNanos(refreshAheadMillis);
+        this.ticker = ticker;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > ResolverCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param resolver makes the lookups
+     * @return a cache with the limits set by the system properties: 1024 names, kept for 60 seconds,
+     *         5 seconds for names that do not exist, and looked up again 10 seconds before they expire.
+     *         The lookups run on daemon threads of the cache's own.
+     */
+    public static ResolverCache withSystemProperties(IHostResolver resolver) {
+        Executor lookups = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "exit-resolver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        return new ResolverCache(resolver, lookups, Integer.getInteger("onion.exit.dns.maxEntries", 1024),
+                Long.getLong("onion.exit.dns.ttlMillis", 60_000),
+                Long.getLong("onion.exit.dns.negativeTtlMillis", 5_000),
+                Long.getLong("onion.exit.dns.refreshAheadMillis", 10_000));
+    }
+
+    /**
+     * @param host is the host name of a destination
+     * @return completed right away if the name is cached, if not once it has been looked up.
+     *         Fails with UnknownHostException if the name does not exist.
+     */
+    public CompletableFuture<InetAddress> resolve(String host) {
+        String name = host.toLowerCase(Locale.ROOT);
+        long now = ticker.getAsLong();
+        Entry cached;
+        boolean refresh = false;
+        CompletableFuture<InetAddress> lookup = null;
+        boolean start = false;
+        synchronized (this) {
+            cached = entries.get(name);
+            if(cached != null && now - cached.expiresAt < 0) {
+                hits++;
+                if(cached.failure == null && !cached.refreshing && refreshAheadNanos > 0
+                        && now - (cached.expiresAt - refreshAheadNanos) >= 0) {
+                    cached.refreshing = true;
+                    refresh = true;
+                }
+            } else {
+                cached = null;
+                misses++;
+                lookup = lookups.get(name);
+                if(lookup == null) {
+                    lookup = new CompletableFuture<>();
+                    lookups.put(name, lookup);
+                    start = true;
+                }
+            }
+        }
+
+        if(refresh) {
+            // The name is in use, so it is looked up again before it expires, and the cached address is used meanwhile
+            CompletableFuture<InetAddress> refreshed = new CompletableFuture<>();
+            executor.execute(() -> lookUp(name, refreshed, true));
+        }
+        if(cached != null) {
+            return cached.failure == null ? CompletableFuture.completedFuture(cached.address)
+                    : CompletableFuture.failedFuture(cached.failure);
+        }
+        if(start) {
+            CompletableFuture<InetAddress> started = lookup;
+            executor.execute(() -> lookUp(name, started, false));
+        }
+        return lookup;
+    }
+
+    /**
+     * @return how many names are cached, including the ones that have expired but were not dropped yet
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return how many times a cached address (or failure) was handed out
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return how many times a name had to be looked up, or waited for a lookup
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Runs on the executor. Makes the lookup, caches the answer and completes the future with it.
+     *
+     * @param refresh is true if the name is still cached, in which case a failed lookup keeps the cached address
+     *                until it expires
+     */
+    private void lookUp(String name, CompletableFuture<InetAddress> lookup, boolean refresh) {
+        InetAddress address = null;
+        UnknownHostException unknown = null;
+        RuntimeException failure = null;
+        try {
+            InetAddress[] addresses = resolver.resolve(name);
+            if(addresses == null || addresses.length == 0) {
+                throw new UnknownHostException(name + " has no addresses");
+            }
+            address = addresses[0];
+        } catch (UnknownHostException e) {
+            unknown = e;
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+
+        long now = ticker.getAsLong();
+        synchronized (this) {
+            if(!refresh) {
+                lookups.remove(name);
+            }
+            if(address != null) {
+                entries.put(name, new Entry(address, null, now + ttlNanos));
+            } else if(refresh) {
+                Entry cached = entries.get(name);
+                if(cached != null) {
+                    cached.refreshing = false;
+                }
+            } else if(unknown != null && negativeTtlNanos > 0) {
+                entries.put(name, new Entry(null, unknown, now + negativeTtlNanos));
+            }
+        }
+
+        if(address != null) {
+            lookup.complete(address);
+        } else {
+            lookup.completeExceptionally(unknown != null ? unknown : failure);
+        }
+    }
+}
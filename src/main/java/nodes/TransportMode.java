@@ -0,0 +1,46 @@
+package nodes;
+
+/**
+ * How a node moves cells between its sockets.
+ * The mode is read from the system property onion.transport (ex: -Donion.transport=direct),
+ * and can be changed with Node.setTransportMode() before the nodes are created.
+ */
+public enum TransportMode {
+    /**
+     * One NodeReaderThread and one WriterThread per socket. Cells are read into heap arrays
+     * through a DataInputStream and handed over through a BlockingQueue.
+     */
+    STREAM,
+
+    /**
+     * Cells are read from a SocketChannel into pooled direct ByteBuffers, one layer is
+     * decrypted (or encrypted) in place, and the same buffer is written to the other hop's channel.
+     */
+    DIRECT,
+
+    /**
+     * The channels are non-blocking, and are handled by a small, fixed set of event loops
+     * (threads.EventLoopGroup) shared by every node in the process, instead of one or two threads per socket.
+     */
+    EVENT_LOOP;
+
+    /**
+     * @return true if the node must open its sockets through channels
+     */
+    public boolean usesChannels() {
+        return this != STREAM;
+    }
+
+    /**
+     * @return the mode named in the system property onion.transport, or STREAM if it is not set
+     */
+    public static TransportMode fromSystemProperty() {
+        String mode = System.getProperty("onion.transport", STREAM.name());
+        try {
+            return valueOf(mode.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown transport mode " + mode + ", using " + STREAM);
+            return STREAM;
+        }
+    }
+}
@@ -89,14 +89,17 @@ public class ClientProxy {
      * use the correct method for handling the cell (ex: created() or relayExtended())
      *
      * @param cell is the cell that was received
-     * @param routers are all the routers in the circuit
+     * @param keys is the keystore of the circuit the cell was received on
      *
      * @return the command present in the cell after decryption (must be numbers 0-3)
      */
-    public byte receiveCell(Cell cell, ArrayList<Node> routers) throws Exception {
+    public byte receiveCell(Cell cell, ProxyKeyStore keys) throws Exception {
         // The cell was just received and must be decrypted
         Cryptography cryptography = new Cryptography();
-        byte[] decryptedCell = cryptography.decryptionClientSide(cell, routers);
+        byte[] decryptedCell = cryptography.decryptionClientSide(cell, keys);
+        if (decryptedCell.length == 0) {
+            throw new Exception("The cell was not sent by any of the nodes in the circuit!");
+        }
 
         // After decryption, the cell must be interpreted
         byte command = decryptedCell[2];
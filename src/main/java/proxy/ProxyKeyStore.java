@@ -1,31 +1,159 @@
 package proxy;
 
-import javax.crypto.SecretKey;
-import java.net.InetAddress;
-import java.net.SocketAddress;
-import java.util.HashMap;
+import security.CircuitKeyContext;
+import security.HopCipher;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A keystore is created for each circuit
- * The keyStore contains all the sharedKeys of the client proxy
+ * The keyStore contains the keys the client proxy shares with each node in the circuit, indexed by the position
+ * of the node (hop 0 is the guard node). Since the keys belong to the circuit and not to the node's address,
+ * a client can have several circuits through the same node.
  *
+ * The ciphers of the hops are kept in arrays, so adding or removing the layers of a cell reads them by index
+ * instead of looking up an address per layer. The arrays are replaced (never changed) when a hop is added,
+ * so the threads sending and receiving cells read them without locking while the circuit is being built.
  */
 public class ProxyKeyStore {
-    int circuitId;
-    // Key = shared key; InetAddress = the address of the node the key is shared with
-    static HashMap <InetAddress, SecretKey> sharedKeyMapping = new HashMap<>();
+    // The keystores of all the circuits of this client proxy, by circuit id
+    private static final Map<Integer, ProxyKeyStore> stores = new ConcurrentHashMap<>();
+
+    private final int circuitId;
+    // One entry per hop, starting at the guard node
+    private volatile CircuitKeyContext[] hops = new CircuitKeyContext[0];
+    private volatile HopCipher[] forwardCiphers = new HopCipher[0];
+    private volatile HopCipher[] backwardCiphers = new HopCipher[0];
+    // The handshakes started by create cells that wait for their created cell, oldest first
+    private final Queue<CircuitKeyContext> pendingHandshakes = new ArrayDeque<>();
+
+    /**
+     * @param circuitId is the circuit id as an unsigned 16 bit integer
+     */
+    ProxyKeyStore(int circuitId) {
+        this.circuitId = circuitId;
+    }
 
     /**
-     * Retrieves the InetAddress of the node the proxy shares the specified key with
+     * @param circuitId is the circuit id as an unsigned 16 bit integer
+     * @return the keystore of the circuit, created the first time it is asked for
+     */
+    public static ProxyKeyStore forCircuit(int circuitId) {
+        return stores.computeIfAbsent(circuitId, ProxyKeyStore::new);
+    }
+
+    /**
+     * @param circuitId is the circuit id as 2 bytes
+     * @return the keystore of the circuit, created the first time it is asked for
+     */
+    public static ProxyKeyStore forCircuit(byte[] circuitId) {
+        return forCircuit((Byte.toUnsignedInt(circuitId[0]) << 8) | Byte.toUnsignedInt(circuitId[1]));
+    }
+
+    /**
+     * @return the keystore of the circuit, or null if no handshake has been started for it
+     */
+    public static ProxyKeyStore get(int circuitId) {
+        return stores.get(circuitId);
+    }
+
+    /**
+     * Forgets the keys of a circuit, ex: when it is destroyed
+     */
+    public static void remove(int circuitId) {
+        stores.remove(circuitId);
+    }
+
+    /**
+     * Remembers the keys of a hop a create cell was sent to, until its created cell comes back
      *
-     * @param address is the specified IP-address
-     * @return the key that corresponds to the specific IP-address
+     * @param keys hold the key pair of the ClientProxy's half of the handshake
+     */
+    public synchronized void addPendingHandshake(CircuitKeyContext keys) {
+        pendingHandshakes.add(keys);
+    }
+
+    /**
+     * The nodes answer the create cells of a circuit in the order they were sent,
+     * so a created cell belongs to the oldest handshake that is still waiting
+     *
+     * @return the keys of the handshake, or null if no create cell is waiting
+     */
+    public synchronized CircuitKeyContext takePendingHandshake() {
+        return pendingHandshakes.poll();
+    }
+
+    /**
+     * Adds the next hop of the circuit, once its handshake is complete
+     *
+     * @param keys are the keys agreed on with the node
+     * @return the position of the hop in the circuit (0 is the guard node)
+     */
+    public synchronized int addHop(CircuitKeyContext keys) {
+        int hop = hops.length;
+        CircuitKeyContext[] newHops = Arrays.copyOf(hops, hop + 1);
+        newHops[hop] = keys;
+        HopCipher[] newForward = Arrays.copyOf(forwardCiphers, hop + 1);
+        newForward[hop] = keys.getForwardCipher();
+        HopCipher[] newBackward = Arrays.copyOf(backwardCiphers, hop + 1);
+        newBackward[hop] = keys.getBackwardCipher();
+
+        // The ciphers are published before the hop, so a reader that sees the hop also sees its ciphers
+        forwardCiphers = newForward;
+        backwardCiphers = newBackward;
+        hops = newHops;
+        return hop;
+    }
+
+    /**
+     * @param hop is the position of the node in the circuit (0 is the guard node)
+     */
+    public CircuitKeyContext getHop(int hop) {
+        return hops[hop];
+    }
+
+    /**
+     * @param hop is the position of the node in the circuit (0 is the guard node)
+     * @return the cipher of the node's layer for cells going towards the end node
+     */
+    public HopCipher getForwardCipher(int hop) {
+        return forwardCiphers[hop];
+    }
+
+    /**
+     * @param hop is the position of the node in the circuit (0 is the guard node)
+     * @return the cipher of the node's layer for cells coming back to the proxy
+     */
+    public HopCipher getBackwardCipher(int hop) {
+        return backwardCiphers[hop];
+    }
+
+    /**
+     * @return the forward ciphers of the hops, starting at the guard node. The array must not be changed.
+     */
+    public HopCipher[] forwardCiphers() {
+        return forwardCiphers;
+    }
+
+    /**
+     * @return the backward ciphers of the hops, starting at the guard node. The array must not be changed.
+     */
+    public HopCipher[] backwardCiphers() {
+        return backwardCiphers;
+    }
+
+    /**
+     * @return the number of hops the proxy has agreed on a key with
      */
-    public static SecretKey getKeyFromIpAddress(SocketAddress address) {
-        return sharedKeyMapping.get(address);
+    public int size() {
+        return hops.length;
     }
 
-    public static void addKey(InetAddress address, SecretKey key) {
-        sharedKeyMapping.put(address, key);
+    public int getCircuitId() {
+        return circuitId;
     }
 }
@@ -0,0 +1,227 @@
+package proxy;
+
+import Interface.ICellMethods;
+import Interface.IStreamConsumer;
+import circuit.Readiness;
+import circuit.ReadinessEvent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One stream of the ClientProxy over a circuit, ex: one HTTP fetch.
+ * The ServerReaderThread routes the relay cells of the stream here by their stream id, so the streams that share
+ * a circuit each get their own data, and a slow reader of one stream does not hold the others back.
+ *
+ * The data is delivered cell by cell as it arrives, never held until the stream closes. It is either handed
+ * straight to an IStreamConsumer, or buffered until it is read through read() or getInputStream().
+ *
+ * Every ICellMethods.SENDME_INCREMENT data cells that have been handed to the consumer or read, the end node
+ * is acknowledged with relay sendme. The end node only sends a window of cells ahead, so the buffer of a stream
+ * that is read slowly stays bounded.
+ */
+public class ProxyStream {
+    // Put in the buffer after the last payload, so a reader waiting for data learns that the stream ended
+    private static final byte[] END = new byte[0];
+
+    private final int streamId;
+    // The payloads of the relay data cells received on the stream, in order. Not used if there is a consumer.
+    private final BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+    // Signals STREAM_CONNECTED when the end node answers relay begin with relay connected
+    private final Readiness readiness = new Readiness();
+    private volatile boolean ended = false;
+    private volatile IStreamConsumer consumer;
+    // Sends the relay sendme cell of the stream, set by the one who opened it
+    private volatile Runnable acknowledge;
+    // The data cells handed over so far
+    private final AtomicInteger delivered = new AtomicInteger();
+    private final InputStream inputStream = new PayloadInputStream();
+
+    /**
+     * @param streamId is the stream id as an unsigned 16 bit integer
+     */
+    public ProxyStream(int streamId) {
+        this.streamId = streamId;
+    }
+
+    /**
+     * Hands the data of the stream to the consumer instead of buffering it.
+     * Set before the relay begin cell is sent, so no data has been buffered yet.
+     *
+     * @param consumer gets every payload on the reader thread, or null to buffer the data
+     */
+    public void setConsumer(IStreamConsumer consumer) {
+        this.consumer = consumer;
+    }
+
+    /**
+     * @param acknowledge sends a relay sendme cell for the stream, or null to never acknowledge
+     */
+    public void setAcknowledge(Runnable acknowledge) {
+        this.acknowledge = acknowledge;
+    }
+
+    /**
+     * Called by the reader thread for every relay data cell of the stream
+     *
+     * @param cell is the decrypted cell, which is reused by the reader thread once the method returns
+     * @param offset is where the payload starts in the cell
+     * @param length is the payload length of the cell
+     */
+    public void received(byte[] cell, int offset, int length) {
+        if(ended) {
+            return;
+        }
+        IStreamConsumer current = consumer;
+        if(current != null) {
+            try {
+                current.onData(ByteBuffer.wrap(cell, offset, length).slice().asReadOnlyBuffer());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            delivered();
+        } else {
+            // The payload is the only thing copied out of the cell. An empty one is kept as well, as it counts
+            // towards the acknowledgements when it is read
+            received.add(Arrays.copyOfRange(cell, offset, offset + length));
+        }
+    }
+
+    /**
+     * Called by the reader thread when the relay connected cell of the stream arrives
+     */
+    public void connected() {
+        readiness.signal(ReadinessEvent.STREAM_CONNECTED);
+    }
+
+    /**
+     * Called when the stream closed cell arrives, or the stream is closed by this side.
+     * The data already received can still be read.
+     */
+    public void ended() {
+        if(!ended) {
+            ended = true;
+            received.add(END);
+            readiness.fail(ReadinessEvent.STREAM_CONNECTED, new IllegalStateException("Stream " + streamId + " was closed"));
+            IStreamConsumer current = consumer;
+            if(current != null) {
+                current.onEnd();
+            }
+        }
+    }
+
+    /**
+     * Waits for the next data of the stream
+     *
+     * @return the payload of the next relay data cell, or null once the stream has ended and all data has been read
+     */
+    public byte[] read() throws InterruptedException {
+        byte[] payload = received.take();
+        if(payload == END) {
+            // Left in the buffer, so every later read ends as well
+            received.add(END);
+            return null;
+        }
+        delivered();
+        return payload;
+    }
+
+    /**
+     * Counts a data cell that was handed over, and acknowledges every SENDME_INCREMENT of them
+     */
+    private void delivered() {
+        Runnable current = acknowledge;
+        if(delivered.incrementAndGet() % ICellMethods.SENDME_INCREMENT == 0 && current != null && !ended) {
+            current.run();
+        }
+    }
+
+    /**
+     * @return the data of the stream as an InputStream, which returns each byte as soon as its cell has arrived,
+     *         and ends once the stream has ended. Closing it does not close the stream.
+     */
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * @return the stream id as the 2 bytes of a relay cell
+     */
+    public byte[] getStreamIdBytes() {
+        return new byte[] {(byte) (streamId >>> 8), (byte) streamId};
+    }
+
+    /**
+     * @return the readiness of the stream, STREAM_CONNECTED is the only event used
+     */
+    public Readiness getReadiness() {
+        return readiness;
+    }
+
+    public boolean isEnded() {
+        return ended;
+    }
+
+    /**
+     * Reads the buffered payloads one after the other. A read only waits if none of the current payload is left,
+     * and then returns what the next cell holds, so the reader never waits for more cells than it needs.
+     */
+    private class PayloadInputStream extends InputStream {
+        private byte[] current = new byte[0];
+        private int position = 0;
+
+        /**
+         * @return false once the stream has ended and every payload has been read
+         */
+        private boolean fill() throws IOException {
+            while (position == current.length) {
+                try {
+                    byte[] next = ProxyStream.this.read();
+                    if(next == null) {
+                        return false;
+                    }
+                    current = next;
+                    position = 0;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for stream " + streamId);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            return fill() ? current[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            if(!fill()) {
+                return -1;
+            }
+            int count = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public synchronized int available() {
+            return current.length - position;
+        }
+    }
+}
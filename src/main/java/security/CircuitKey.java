@@ -0,0 +1,55 @@
+package security;
+
+import java.util.Objects;
+
+/**
+ * Names one circuit the way a node sees it: the link the circuit arrived on, and the circuit id on that link.
+ * Circuit ids are only unique per link, so the id alone is not enough once a node is part of many circuits.
+ *
+ * The link is whatever object stands for the connection to the previous hop,
+ * ex: a Link when the node runs an event loop, or the Socket to the previous node when it runs a thread per socket.
+ * Links and sockets are compared by identity, so two connections from the same address are never mixed up.
+ */
+public final class CircuitKey {
+    private final Object link;
+    private final int circuitId;
+
+    /**
+     * @param link is the connection the circuit arrived on
+     * @param circuitId is the circuit id as an unsigned 16 bit integer
+     */
+    public CircuitKey(Object link, int circuitId) {
+        this.link = Objects.requireNonNull(link, "A circuit key needs a link");
+        this.circuitId = circuitId;
+    }
+
+    public Object getLink() {
+        return link;
+    }
+
+    public int getCircuitId() {
+        return circuitId;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if(this == obj) {
+            return true;
+        }
+        if(!(obj instanceof CircuitKey)) {
+            return false;
+        }
+        CircuitKey other = (CircuitKey) obj;
+        return circuitId == other.circuitId && link.equals(other.link);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * link.hashCode() + circuitId;
+    }
+
+    @Override
+    public String toString() {
+        return "circuit " + circuitId + " on " + link;
+    }
+}
@@ -0,0 +1,134 @@
+package security;
+
+import javax.crypto.SecretKey;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.NamedParameterSpec;
+import java.security.spec.XECPublicKeySpec;
+import java.util.Arrays;
+
+/**
+ * Everything one hop of one circuit needs for its onion layer:
+ *      - the handshake material: the key pair taken from the KeyPairPool, and u, which is sent to the other side
+ *      - once the handshake is done: the secret key, and the stream ciphers of both directions,
+ *        which hold the counters and the running digests of the layer
+ *
+ * Each hop owns a context of its own, so handshakes of different circuits can run on different threads
+ * at the same time without sharing any state. A node keeps the contexts of the circuits passing through it
+ * in a CircuitKeyTable, and the proxy keeps one context for each node in its circuits.
+ */
+public class CircuitKeyContext {
+    // u is sent as 32 bytes, big endian, which holds any point on curve 25519
+    public static final int U_SIZE = 32;
+
+    private static final NamedParameterSpec X25519 = new NamedParameterSpec("X25519");
+
+    private final int circuitId;
+    private final KeyGeneration keyGeneration = new KeyGeneration();
+    private volatile boolean complete = false;
+
+    /**
+     * Takes a key pair from the shared pool, starting the handshake of this hop
+     *
+     * @param circuitId is the id of the circuit the hop is part of
+     * @param ipAddress is the address of the side that owns the context
+     */
+    public CircuitKeyContext(byte[] circuitId, InetAddress ipAddress) throws NoSuchAlgorithmException,
+            InvalidAlgorithmParameterException, InvalidKeySpecException {
+        this((Byte.toUnsignedInt(circuitId[0]) << 8) | Byte.toUnsignedInt(circuitId[1]), ipAddress);
+    }
+
+    /**
+     * Takes a key pair from the shared pool, starting the handshake of this hop
+     *
+     * @param circuitId is the id of the circuit as an unsigned 16 bit integer
+     * @param ipAddress is the address of the side that owns the context, or null if it is not known
+     */
+    public CircuitKeyContext(int circuitId, InetAddress ipAddress) throws NoSuchAlgorithmException,
+            InvalidAlgorithmParameterException, InvalidKeySpecException {
+        this.circuitId = circuitId;
+        keyGeneration.generateKeyPair(new byte[] {(byte) (circuitId >>> 8), (byte) circuitId}, ipAddress);
+    }
+
+    /**
+     * Finishes the handshake, by creating the secret key and the stream ciphers from the other side's public key
+     *
+     * @param foreignPublicKey is the public key received in the create or created cell
+     * @return the secret key of this hop
+     */
+    public SecretKey complete(PublicKey foreignPublicKey) throws NoSuchAlgorithmException {
+        SecretKey secretKey = keyGeneration.generateSecretKey(foreignPublicKey, true);
+        complete = secretKey != null;
+        return secretKey;
+    }
+
+    /**
+     * Writes this side's u into a cell, so the other side can finish the handshake
+     *
+     * @param target is the cell
+     * @param offset is where u starts in the cell
+     */
+    public void writeLocalU(byte[] target, int offset) {
+        byte[] u = keyGeneration.getCurrentKey().getU().toByteArray();
+        // toByteArray() gives as few bytes as possible, and a leading 0 if the top bit is set
+        int length = Math.min(u.length, U_SIZE);
+        Arrays.fill(target, offset, offset + U_SIZE - length, (byte) 0);
+        System.arraycopy(u, u.length - length, target, offset + U_SIZE - length, length);
+    }
+
+    /**
+     * Turns the u read from a create or created cell back into a public key
+     *
+     * @param u is the array holding u
+     * @param offset is where u starts in the array (U_SIZE bytes)
+     */
+    public static PublicKey toPublicKey(byte[] u, int offset) throws NoSuchAlgorithmException,
+            InvalidKeySpecException {
+        byte[] bytes = new byte[U_SIZE];
+        System.arraycopy(u, offset, bytes, 0, U_SIZE);
+        KeyFactory kf = KeyFactory.getInstance("XDH");
+        return kf.generatePublic(new XECPublicKeySpec(X25519, new BigInteger(1, bytes)));
+    }
+
+    public int getCircuitId() {
+        return circuitId;
+    }
+
+    /**
+     * @return true once the secret key and the ciphers have been created
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return the key pair, u, and once the handshake is done the secret key and the ciphers
+     */
+    public KeyInformation getKeyInformation() {
+        return keyGeneration.getCurrentKey();
+    }
+
+    public SecretKey getSecretKey() {
+        return keyGeneration.getCurrentKey().getSecretKey();
+    }
+
+    /**
+     * @return the cipher of the layer for cells going from the client towards the end node,
+     *         or null if the handshake is not done
+     */
+    public HopCipher getForwardCipher() {
+        return keyGeneration.getCurrentKey().getForwardCipher();
+    }
+
+    /**
+     * @return the cipher of the layer for cells going back towards the client, or null if the handshake is not done
+     */
+    public HopCipher getBackwardCipher() {
+        return keyGeneration.getCurrentKey().getBackwardCipher();
+    }
+}
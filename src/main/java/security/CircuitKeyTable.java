@@ -0,0 +1,64 @@
+package security;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The key contexts of the circuits that pass through a node, one for each (link, circuit id).
+ *
+ * The reader threads (or event loops) of both directions look the contexts up while cells of other circuits
+ * are being created, so the table is a concurrent map. A context is added once, when the create cell of its
+ * circuit arrives, and removed when the circuit is destroyed or its link closes.
+ */
+public class CircuitKeyTable {
+    private static CircuitKeyTable shared;
+
+    private final Map<CircuitKey, CircuitKeyContext> contexts = new ConcurrentHashMap<>();
+
+    /**
+     * @return the table used by all nodes in this process, created the first time it is asked for.
+     *         The nodes never share a link, so their circuits never share a key.
+     */
+    public static synchronized CircuitKeyTable shared() {
+        if(shared == null) {
+            shared = new CircuitKeyTable();
+        }
+        return shared;
+    }
+
+    /**
+     * @param link is the connection the circuit arrived on
+     * @param circuitId is the circuit id as an unsigned 16 bit integer
+     * @return the context of the circuit, or null if no create cell has been handled for it
+     */
+    public CircuitKeyContext get(Object link, int circuitId) {
+        return contexts.get(new CircuitKey(link, circuitId));
+    }
+
+    /**
+     * Adds the context of a new circuit
+     *
+     * @return false if the circuit already has a context, which is then kept
+     */
+    public boolean add(Object link, int circuitId, CircuitKeyContext context) {
+        return contexts.putIfAbsent(new CircuitKey(link, circuitId), context) == null;
+    }
+
+    /**
+     * @return the context that was removed, or null if the circuit had none
+     */
+    public CircuitKeyContext remove(Object link, int circuitId) {
+        return contexts.remove(new CircuitKey(link, circuitId));
+    }
+
+    /**
+     * Removes the contexts of every circuit on a link, ex: when the link closes
+     */
+    public void removeLink(Object link) {
+        contexts.keySet().removeIf(key -> key.getLink().equals(link));
+    }
+
+    public int size() {
+        return contexts.size();
+    }
+}
@@ -1,16 +1,11 @@
 package security;
 
 
-import Interface.ISupportMethods;
 import cells.Cell;
 import nodes.Node;
 import proxy.ProxyKeyStore;
 
-import javax.crypto.*;
-import javax.crypto.spec.GCMParameterSpec;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 /**
@@ -19,11 +14,11 @@ import java.util.ArrayList;
  * clientProxy.ProxyServer and *.nodes
  */
 public class Cryptography {
-
     /**
      * When creating an onion, this method is called.
+     * The ciphers are read from the keystore of the cell's circuit, by the position of each hop in the circuit.
      *
-     * @param cell is the cell to encrypt
+     * @param cell is the cell to encrypt, its header names the circuit
      * @param routers are all the routers involved in the circuit
      * @param amount is the amount of times the onion is to be encrypted
      * @param ascending true if sending from ClientProxy to nodes, false if sending from a node to ClientProxy
@@ -34,118 +29,179 @@ public class Cryptography {
                 throw new IllegalArgumentException("The amount of encryptions can not be 0 or greater " +
                                                    "than the amount of nodes in the circuit!");
             }
+            ProxyKeyStore keys = ProxyKeyStore.forCircuit(cell.getCircuitId());
             // Sending from the client
             if(ascending) {
-                for (int i = 0; i < amount; i++) {
-                    // Get the secret key that corresponds to the correct router
-                    SecretKey key = ProxyKeyStore.getKeyFromIpAddress(routers.get(i).getIpAddress());
-                    encrypt(cell,key);
-                }
+                // The cell is sealed for the last router it reaches, and all the layers are added in one pass.
+                // Only the routers the cell passes need a key, ex: while the circuit is still being built
+                OnionEncoder.forCircuit(keys, amount).seal(cell, amount);
             }
             // Sending from a node somewhere in the circuit
             if(!ascending) {
+                if(keys.size() < amount) {
+                    throw new IllegalStateException("No key has been agreed on for hop " + keys.size() + " yet!");
+                }
                 // Ex: If we have 5 nodes, and amount = 3, this means we start
                 // at node 3. Then we encrypt node 3, node 2, then node 1
                 for(int i = amount ; i > 0; i--) {
                     // This way (i-1), we will actually get the guard node too!
-                    SecretKey key = ProxyKeyStore.getKeyFromIpAddress(routers.get(i - 1).getIpAddress());
-                    encrypt(cell,key);
+                    encrypt(cell, keys.getBackwardCipher(i - 1));
                 }
             }
-        } catch (NoSuchPaddingException | BadPaddingException | NoSuchAlgorithmException
-                | IllegalBlockSizeException | InvalidKeyException e) {
+        } catch (IllegalArgumentException | IllegalStateException e) {
             e.printStackTrace();
         }
     }
 
     /**
      * This method is only for use in the ClientProxy
-     * Method decrypts until Cell is readable, and because the guard node always
-     * is the last to encrypt, that is the key the client must use to decrypt first and so forth
-     * until the message is readable
+     * Method removes one layer at a time, starting at the guard node (which was the last to encrypt),
+     * until the hop that sent the cell is recognized (see peel())
      *
      * @param cell is the cell that needs to be decrypted an unknown amount of times
-     * @param circuit are all the routers that exist in the current circuit
+     * @param keys is the keystore of the circuit the cell arrived on
      * @return the decrypted cell as a byte-array
      */
-    public byte[] decryptionClientSide(Cell cell, ArrayList<Node> circuit) {
-        try {
-            for (Node node : circuit) {
-                byte commandBit = ISupportMethods.getCommand(cell.getTotalMessage());
-                // If the cell has a readable command bit we return it
-                if(commandBit < 4 && commandBit >= 0) {
-                    return cell.getTotalMessage();
-                }
-                // Get the secret key that matches the current node
-                SecretKey currentKey = ProxyKeyStore.getKeyFromIpAddress(node.getIpAddress());
+    public byte[] decryptionClientSide(Cell cell, ProxyKeyStore keys) {
+        return decryptionClientSide(cell.getTotalMessage(), keys);
+    }
 
-                // Decrypt the current layer --> starting at the guard node
-                decrypt(cell.getTotalMessage(), currentKey);
+    /**
+     * Same as decryptionClientSide(Cell, ProxyKeyStore), but works directly on the received bytes,
+     * so that the reader does not have to copy the cell into a Cell object first
+     *
+     * @param cell is the cell that needs to be decrypted an unknown amount of times
+     * @param keys is the keystore of the circuit the cell arrived on
+     * @return the decrypted cell (the same array as the one given), or an empty array if no hop sent it
+     */
+    public byte[] decryptionClientSide(byte[] cell, ProxyKeyStore keys) {
+        try {
+            if(peel(cell, keys.backwardCiphers()) >= 0) {
+                return cell;
             }
-        } catch (NoSuchPaddingException | IllegalBlockSizeException |
-                NoSuchAlgorithmException | BadPaddingException | InvalidKeyException e) {
+        } catch (IllegalArgumentException | IllegalStateException e) {
             e.printStackTrace();
         }
         return new byte[0];
     }
 
     /**
-     * Method was earlier using IV, which is now commented out.
-     * @param cell
-     * @param secretKey
-     * @throws NoSuchPaddingException
-     * @throws NoSuchAlgorithmException
-     * @throws InvalidKeyException
-     * @throws IllegalBlockSizeException
-     * @throws BadPaddingException
+     * Removes the layers of a cell sent towards the client, in one loop, starting at the guard node.
+     * After each layer the cell is checked against the hop's running digest (HopCipher.open()),
+     * which tells for certain whether that hop sent the cell, instead of guessing from the command byte.
+     *
+     * @param cell is the 512 byte cell, decrypted in place
+     * @param hops are the backward ciphers of the circuit, starting at the guard node (ProxyKeyStore.backwardCiphers())
+     * @return the index of the hop that sent the cell, or -1 if no hop did (the cell can then not be used)
      */
-    public void encrypt(Cell cell, SecretKey secretKey) throws NoSuchPaddingException, NoSuchAlgorithmException,
-            InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+    public int peel(byte[] cell, HopCipher[] hops) {
+        for (int i = 0; i < hops.length; i++) {
+            if(requireCipher(hops[i]).open(cell)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Used by the hop that creates a cell going back towards the client.
+     * The cell is sealed so the client can recognize the hop it came from, and gets the hop's layer.
+     *
+     * @param cell is the cell to seal, its data must fit in the first RELAY_DATA_SIZE bytes of the relay payload
+     * @param hopCipher is the backward cipher of the hop
+     */
+    public void seal(Cell cell, HopCipher hopCipher) {
+        seal(cell.getTotalMessage(), hopCipher);
+    }
+
+    /**
+     * @param cell is the 512 byte cell to seal, in place
+     * @param hopCipher is the backward cipher of the hop
+     */
+    public void seal(byte[] cell, HopCipher hopCipher) {
+        requireCipher(hopCipher).seal(cell);
+    }
 
+    /**
+     * @param cell is the buffer holding the cell to seal, in place
+     * @param hopCipher is the backward cipher of the hop
+     */
+    public void seal(ByteBuffer cell, HopCipher hopCipher) {
+        requireCipher(hopCipher).seal(cell);
+    }
 
-        // Creating the cipher in order to encrypt the cell
-        cipher.init(Cipher.ENCRYPT_MODE, secretKey);
-        // doFinal() encrypts the cell
-        // cipher.doFinal(cell.getTotalMessage());
+    /**
+     * Used by a node on a cell travelling forward. The node's layer is removed, and the cell is checked against
+     * the running digest of the node's forward cipher (HopCipher.open()).
+     *
+     * @param cell is the 512 byte cell, decrypted in place
+     * @param hopCipher is the forward cipher of the node
+     * @return true if the cell is meant for this node, false if it must be passed on to the next node
+     */
+    public boolean open(byte[] cell, HopCipher hopCipher) {
+        return requireCipher(hopCipher).open(cell);
+    }
 
-        cipher.doFinal(cell.getTotalMessage());
-        /**
+    /**
+     * @param cell is the buffer holding the cell, decrypted in place
+     * @param hopCipher is the forward cipher of the node
+     * @return true if the cell is meant for this node, false if it must be passed on to the next node
+     */
+    public boolean open(ByteBuffer cell, HopCipher hopCipher) {
+        return requireCipher(hopCipher).open(cell);
+    }
 
-        byte[] encryptedCell = cipher.doFinal(cell.getTotalMessage());
-        byte[] iv = cipher.getIV();
-        byte[] cellWithIv = new byte[12 + cell.getTotalMessage().length + 16];
-        System.arraycopy(iv, 0, cellWithIv, 0, 12);
-        System.arraycopy(encryptedCell, 0, cellWithIv, 12, encryptedCell.length);
+    /**
+     * Adds a layer using the stream cipher of the hop. The cipher keeps its counter between cells,
+     * so nothing is initialized here, the cell is only XOR-ed with the next 512 bytes of keystream.
+     *
+     * @param cell is the cell to encrypt
+     * @param hopCipher is the cipher of the current layer, in the direction the cell travels
+     */
+    public void encrypt(Cell cell, HopCipher hopCipher) {
+        encrypt(cell.getTotalMessage(), hopCipher);
+    }
 
-        // This enlarges the cell, but is necessary for AES to decrypt
-        //cell = new byte[cellWithIv.length];
-        //cell = Arrays.copyOfRange(cellWithIv,0,cellWithIv.length);
+    /**
+     * @param cell is the 512 byte cell to encrypt, in place
+     * @param hopCipher is the cipher of the current layer, in the direction the cell travels
+     */
+    public void encrypt(byte[] cell, HopCipher hopCipher) {
+        requireCipher(hopCipher).apply(cell);
+    }
 
-        cell.setTotalMessage(cellWithIv); // <--- original text
-         */
+    /**
+     * @param cell is the buffer holding the cell to encrypt, in place
+     * @param hopCipher is the cipher of the current layer, in the direction the cell travels
+     */
+    public void encrypt(ByteBuffer cell, HopCipher hopCipher) {
+        requireCipher(hopCipher).apply(cell);
     }
 
     /**
-     * Decrypts the current cell (onion). Previously used IV, which is now copied out.
+     * Removes a layer using the stream cipher of the hop. In counter mode this is the same operation as encrypt().
      *
-     * @param cell the cell can be any type of cell, and is encrypted an unknown amount of times
-     * @param secretKey the symmetric key that matches the current layer
+     * @param cell is the 512 byte cell to decrypt, in place
+     * @param hopCipher is the cipher of the current layer, in the direction the cell travels
+     * @return the decrypted cell (the same array as the one given)
      */
-    public byte[] decrypt(byte[] cell, SecretKey secretKey) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
-        // Using ECB instead of GCM in order to stop using IV and therefore not have any padding!
-        //Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-        Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
-
-        // GCMParameterSpec params = new GCMParameterSpec(128, cell, 0, 12);
-        //cipher.init(Cipher.DECRYPT_MODE, secretKey, params);
-        cipher.init(Cipher.DECRYPT_MODE, secretKey);
-        cipher.doFinal(cell);
-
-        // Decrypting using the cipher
-        //return cipher.doFinal(cell,12,cell.length - 12);
+    public byte[] decrypt(byte[] cell, HopCipher hopCipher) {
+        requireCipher(hopCipher).apply(cell);
         return cell;
     }
 
+    /**
+     * @param cell is the buffer holding the cell to decrypt, in place
+     * @param hopCipher is the cipher of the current layer, in the direction the cell travels
+     */
+    public void decrypt(ByteBuffer cell, HopCipher hopCipher) {
+        requireCipher(hopCipher).apply(cell);
+    }
 
+    private static HopCipher requireCipher(HopCipher hopCipher) {
+        if(hopCipher == null) {
+            throw new IllegalStateException("No key has been agreed on for this layer yet!");
+        }
+        return hopCipher;
+    }
 }
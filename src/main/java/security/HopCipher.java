@@ -0,0 +1,276 @@
+package security;
+
+import cells.CellView;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The onion layer of one hop in one direction, as a stream cipher (AES in counter mode).
+ *
+ * The cipher is initialized once, when the key is agreed on, and keeps its counter from cell to cell.
+ * A layer is then added or removed by XOR-ing the cell with the next 512 bytes of keystream, with no
+ * per-cell setup. Adding and removing a layer is the same operation, so the client and the hop each hold a
+ * HopCipher for the same key and direction, and both must handle the cells of the circuit in the same order.
+ * Over TCP they always do.
+ *
+ * The two directions use the same key, but start their counters in separate halves of the counter space,
+ * so the keystream is never reused:
+ *      forward     from the client towards the end node
+ *      backward    from the end node towards the client
+ *
+ * Since layers are XOR-ed on, the order layers are added and removed in does not matter.
+ *
+ * The circuit id (the first 2 bytes) is left in the clear, as in Tor: every node reads it to find the circuit
+ * the cell belongs to before it can remove its layer, ex: the NodeCellHandler, whose links carry many circuits.
+ * The layers and the digest cover the rest of the cell.
+ *
+ * Each direction also keeps a running digest (SHA-256) of every cell sealed with it, as in the Tor design.
+ * It is chained: the digest after a cell is the SHA-256 of the digest before it and the cell, so it covers
+ * every cell so far, and moving it on needs no copy of a MessageDigest, only one reused digest and output array.
+ * A cell is sealed with the cipher of the hop it is meant for (forward), or of the hop that created it (backward):
+ * the recognized field is set to 0, and the first bytes of the running digest go in the digest field (see CellView).
+ * Whoever removes the layers can then tell exactly which hop the cell is for or from: the recognized field is 0 and
+ * the digest matches only once that hop's layer is removed. A node therefore never has to guess from the command
+ * byte, which is random looking in a cell that still carries the layers of later hops.
+ */
+public class HopCipher {
+    private static final String TRANSFORMATION = "AES/CTR/NoPadding";
+    private static final int BLOCK_SIZE = 16;
+    // Where the layer starts, everything in front of it is the circuit id
+    private static final int LAYER_OFFSET = CellView.COMMAND_OFFSET;
+    private static final int LAYER_SIZE = CellView.CELL_SIZE - LAYER_OFFSET;
+
+    private final Cipher cipher;
+    private final boolean forward;
+    private static final int CHAIN_SIZE = 32;
+
+    // Computes the digest of each cell, reset by every digest() call
+    private final MessageDigest digest;
+    // The digest of every cell sealed (or recognized) so far in this direction
+    private final byte[] chain = new byte[CHAIN_SIZE];
+    // Where the digest of a cell is written, before it is known to be the next link of the chain
+    private final byte[] candidate = new byte[CHAIN_SIZE];
+    // Where the received digest is kept while the field is cleared to check it
+    private final byte[] receivedDigest = new byte[CellView.DIGEST_SIZE];
+    // A cell of a direct buffer is processed here, only used while holding the lock
+    private final byte[] scratch = new byte[CellView.CELL_SIZE];
+    // Normally only one thread uses a direction, the lock guards against two cells sharing the counter
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * @param secretKey is the AES key agreed on with the hop
+     * @param forward true for cells travelling from the client towards the end node
+     */
+    public HopCipher(SecretKey secretKey, boolean forward) throws NoSuchPaddingException, NoSuchAlgorithmException,
+            InvalidKeyException, InvalidAlgorithmParameterException {
+        this.forward = forward;
+        byte[] initialCounter = new byte[BLOCK_SIZE];
+        if(!forward) {
+            initialCounter[0] = (byte) 0x80;
+        }
+        cipher = Cipher.getInstance(TRANSFORMATION);
+        // Encryption and decryption are the same operation in counter mode
+        cipher.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(initialCounter));
+
+        // Both sides start the digest from the key and the direction, so it can not be guessed by others
+        digest = MessageDigest.getInstance("SHA-256");
+        digest.update(secretKey.getEncoded());
+        digest.update(forward ? (byte) 'f' : (byte) 'b');
+        try {
+            digest.digest(chain, 0, CHAIN_SIZE);
+        } catch (DigestException e) {
+            // SHA-256 is always 32 bytes
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Adds or removes this hop's layer on a 512 byte cell, in place
+     *
+     * @param cell is the cell, and gets the result
+     */
+    public void apply(byte[] cell) {
+        lock.lock();
+        try {
+            cipher.update(cell, LAYER_OFFSET, LAYER_SIZE, cell, LAYER_OFFSET);
+        } catch (ShortBufferException e) {
+            // The output is as long as the input, so the cell is always big enough
+            throw new IllegalStateException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds or removes this hop's layer on the first 512 bytes of a (direct) buffer, in place.
+     * The position and limit of the buffer are left as they were.
+     *
+     * @param cell is the buffer holding the cell
+     */
+    public void apply(ByteBuffer cell) {
+        lock.lock();
+        try {
+            if(cell.hasArray()) {
+                int offset = cell.arrayOffset() + LAYER_OFFSET;
+                cipher.update(cell.array(), offset, LAYER_SIZE, cell.array(), offset);
+                return;
+            }
+            // The cipher does not accept the same buffer object as input and output, and would copy a direct
+            // buffer through a new array anyway, so the cell is copied through the reused scratch array instead.
+            // The absolute get and put leave the position and limit as they were.
+            cell.get(LAYER_OFFSET, scratch, 0, LAYER_SIZE);
+            cipher.update(scratch, 0, LAYER_SIZE, scratch, 0);
+            cell.put(LAYER_OFFSET, scratch, 0, LAYER_SIZE);
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Used by whoever creates a cell: the client for the hop a forward cell is meant for, or the hop that creates a
+     * backward cell. The recognized and digest fields are filled in, then the layer is added.
+     * The data of the cell must fit in the first RELAY_DATA_SIZE bytes of the relay payload.
+     *
+     * @param cell is the 512 byte cell, and gets the result
+     */
+    public void seal(byte[] cell) {
+        lock.lock();
+        try {
+            Arrays.fill(cell, CellView.RECOGNIZED_OFFSET, CellView.CELL_SIZE, (byte) 0);
+            digestOf(cell, chain);
+            System.arraycopy(chain, 0, cell, CellView.DIGEST_OFFSET, CellView.DIGEST_SIZE);
+            cipher.update(cell, LAYER_OFFSET, LAYER_SIZE, cell, LAYER_OFFSET);
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes this hop's layer, and checks if the cell was sealed with this hop's cipher.
+     * The check costs one comparison of the recognized field, and a digest only if that field is 0.
+     * The running digest only moves on if the cell is recognized.
+     *
+     * @param cell is the 512 byte cell, and gets the result
+     * @return true if the cell was sealed with this hop's cipher, so no more layers are left on it
+     */
+    public boolean open(byte[] cell) {
+        lock.lock();
+        try {
+            cipher.update(cell, LAYER_OFFSET, LAYER_SIZE, cell, LAYER_OFFSET);
+            for (int i = CellView.RECOGNIZED_OFFSET; i < CellView.DIGEST_OFFSET; i++) {
+                if(cell[i] != 0) {
+                    return false;
+                }
+            }
+            // The digest was computed with the digest field set to 0
+            System.arraycopy(cell, CellView.DIGEST_OFFSET, receivedDigest, 0, CellView.DIGEST_SIZE);
+            Arrays.fill(cell, CellView.DIGEST_OFFSET, CellView.CELL_SIZE, (byte) 0);
+            digestOf(cell, candidate);
+            System.arraycopy(receivedDigest, 0, cell, CellView.DIGEST_OFFSET, CellView.DIGEST_SIZE);
+
+            for (int i = 0; i < CellView.DIGEST_SIZE; i++) {
+                if(candidate[i] != receivedDigest[i]) {
+                    return false;
+                }
+            }
+            System.arraycopy(candidate, 0, chain, 0, CHAIN_SIZE);
+            return true;
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Same as seal(byte[]), for a cell in the first 512 bytes of a (direct) buffer.
+     * The position and limit of the buffer are left as they were.
+     *
+     * @param cell is the buffer holding the cell
+     */
+    public void seal(ByteBuffer cell) {
+        lock.lock();
+        try {
+            cell.get(0, scratch, 0, CellView.CELL_SIZE);
+            seal(scratch);
+            cell.put(0, scratch, 0, CellView.CELL_SIZE);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Same as open(byte[]), for a cell in the first 512 bytes of a (direct) buffer.
+     * The position and limit of the buffer are left as they were.
+     *
+     * @param cell is the buffer holding the cell
+     * @return true if the cell was sealed with this hop's cipher
+     */
+    public boolean open(ByteBuffer cell) {
+        lock.lock();
+        try {
+            cell.get(0, scratch, 0, CellView.CELL_SIZE);
+            boolean recognized = open(scratch);
+            cell.put(0, scratch, 0, CellView.CELL_SIZE);
+            return recognized;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the digest of the chain so far and the cell into the output, which may be the chain itself.
+     * Only called while holding the lock.
+     *
+     * @param output is an array of 32 bytes
+     */
+    private void digestOf(byte[] cell, byte[] output) {
+        digest.update(chain, 0, CHAIN_SIZE);
+        // The circuit id is not covered, so a node may give the circuit another id on the next link
+        digest.update(cell, LAYER_OFFSET, LAYER_SIZE);
+        try {
+            digest.digest(output, 0, CHAIN_SIZE);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes the keystream for the next cell into the array, and moves the counter on as if a cell had been handled.
+     * XOR-ing the cell with it has the same effect as apply().
+     *
+     * @param keystream is an array of at least 512 bytes
+     */
+    public void nextKeystream(byte[] keystream) {
+        lock.lock();
+        try {
+            // The keystream is what a cell of zeros encrypts to, and is 0 over the circuit id
+            Arrays.fill(keystream, 0, CellView.CELL_SIZE, (byte) 0);
+            cipher.update(keystream, LAYER_OFFSET, LAYER_SIZE, keystream, LAYER_OFFSET);
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isForward() {
+        return forward;
+    }
+}
@@ -1,21 +1,20 @@
 package security;
 
 import javax.crypto.KeyAgreement;
+import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 import javax.security.auth.DestroyFailedException;
 import javax.security.auth.Destroyable;
-import java.math.BigInteger;
 import java.net.InetAddress;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.NamedParameterSpec;
-import java.security.spec.XECPublicKeySpec;
 import java.util.Arrays;
-import java.util.Random;
 
 public class KeyGeneration implements Destroyable {
-    static KeyInformation currentKey;
+    // Each handshake has a generator of its own (see CircuitKeyContext), so handshakes running on
+    // different threads at the same time do not use each other's key pairs
+    private KeyInformation currentKey;
     private static final int AES_KEY_SIZE = 128;
 
 
@@ -35,39 +34,14 @@ public class KeyGeneration implements Destroyable {
      * @throws InvalidKeySpecException if the given key specification is inappropriate for this key factory to produce a public key
      */
     public void generateKeyPair(byte[] circuitId, InetAddress ip) throws NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeySpecException {
-        //  KeyPairGenerator class is used to generate pairs of public and private keys.
-        KeyPairGenerator kpg = KeyPairGenerator.getInstance("XDH");
-        // Setting the key-size
-        // kpg.initialize(255);
-
-        // This class is used to specify any algorithm parameters that are determined by a standard name.
-        NamedParameterSpec paramSpec = new NamedParameterSpec("X25519");
-
-        // Initializes the key pair generator using the specified parameter set (paramSpec) and the SecureRandom
-        // implementation of the highest-priority installed provider as the source of randomness.
-
-        kpg.initialize(paramSpec); // equivalent to kpg.initialize(255)
-        //alternatively: kpg = KeyPairGenerator.getInstance("X25519")
-
-        // Generates a key pair.
-        // If this KeyPairGenerator has not been initialized explicitly, provider-specific
-        // defaults will be used for the size and other (algorithm-specific) values of the generated keys.
-        KeyPair kp = kpg.generateKeyPair();
-
-        // Key factories are used to convert keys (opaque cryptographic keys of type Key)
-        // into key specifications (transparent representations of the underlying key material), and vice versa.
-        KeyFactory kf = KeyFactory.getInstance("XDH");
-
-        // u may hold any value (16 bit in my implementation
-        BigInteger u = generateRandomBigInteger();
-
-        // A class representing elliptic curve public keys as defined in RFC 7748,
-        // including the curve and other algorithm parameters.
-        XECPublicKeySpec pubSpec = new XECPublicKeySpec(paramSpec, u);
-        PublicKey pubKey = kf.generatePublic(pubSpec);
+        // The key pair, u and the public key were generated ahead of time by the pool's background thread.
+        // If the pool is empty (a burst of handshakes), they are generated here instead (see KeyPairPool.generate())
+        KeyInformation keyPair = KeyPairPool.shared().take();
+        keyPair.setCircuitId(circuitId);
+        keyPair.setIpAddress(ip);
 
         // The current key is updated with the information needed to move on in the handshake and future routing
-        currentKey = new KeyInformation(circuitId, ip, kp.getPrivate(),pubKey,u);
+        currentKey = keyPair;
     }
 
     /**
@@ -130,19 +104,18 @@ public class KeyGeneration implements Destroyable {
             // A secret (symmetric) key created using AES algorithm
             SecretKey secretKey = new SecretKeySpec(hashedSecret, "AES");
             currentKey.setSecretKey(secretKey);
+            // The stream ciphers of the two directions are created once here, and keep their counters
+            // for as long as the key is used, so no cell has to initialize a cipher
+            currentKey.setHopCiphers(new HopCipher(secretKey, true), new HopCipher(secretKey, false));
             return secretKey;
 
-        } catch (InvalidKeyException e) {
+        } catch (InvalidKeyException | NoSuchPaddingException | InvalidAlgorithmParameterException e) {
             e.printStackTrace();
         }
 
         return null;
     }
 
-    private static BigInteger generateRandomBigInteger() {
-        return new BigInteger(31,new Random());
-    }
-
     @Override
     public boolean equals(Object obj) {
         return super.equals(obj);
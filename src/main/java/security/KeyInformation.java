@@ -5,7 +5,6 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.security.Key;
 import java.security.PublicKey;
-import java.util.HashMap;
 
 public class KeyInformation {
     private byte[] sharedSecret; // shared  secret
@@ -14,15 +13,15 @@ public class KeyInformation {
     private PublicKey foreignPublicKey;
     private SecretKey secretKey;
     private BigInteger u;
+    // The onion layer of this hop, one stream cipher per direction
+    private HopCipher forwardCipher;
+    private HopCipher backwardCipher;
 
     private byte[] circuitId;
 
     // The ip address of the onion router
     private InetAddress ipAddress;
 
-    // HashMap of nodeId along with the secret key!
-    private static HashMap <Integer, SecretKey> nodeSecretKeyMap = new HashMap<>();
-
     /**
      * Using this object, a Node can store all the information it needs about it neighbors
      * Ex: An intermediary node will have two such objects, one for the previous node, and one for the next node
@@ -40,9 +39,6 @@ public class KeyInformation {
 
 
     // GETTERS
-    public static SecretKey getSecretKeyUsingNodeId(int nodeId) {
-        return nodeSecretKeyMap.get(nodeId);
-    }
     public BigInteger getU() {
         return u;
     }
@@ -67,11 +63,16 @@ public class KeyInformation {
         return secretKey;
     }
 
+    public HopCipher getForwardCipher() {
+        return forwardCipher;
+    }
 
-    // SETTERS
-    public static void addSecretKeyToMap(int nodeId, SecretKey secretKey) {
-        nodeSecretKeyMap.put(nodeId, secretKey);
+    public HopCipher getBackwardCipher() {
+        return backwardCipher;
     }
+
+
+    // SETTERS
     public void setSharedSecret(byte[] sharedSecret) {
         this.sharedSecret = sharedSecret;
     }
@@ -87,4 +88,9 @@ public class KeyInformation {
     public void setSecretKey(SecretKey secretKey) {
         this.secretKey = secretKey;
     }
+
+    public void setHopCiphers(HopCipher forwardCipher, HopCipher backwardCipher) {
+        this.forwardCipher = forwardCipher;
+        this.backwardCipher = backwardCipher;
+    }
 }
@@ -0,0 +1,147 @@
+package security;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.XECPublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.NamedParameterSpec;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded pool of X25519 key pairs that are generated ahead of time by a background thread,
+ * so a handshake (create and created cells) only takes a ready key pair instead of generating one.
+ *
+ * The background thread fills the pool up to the high watermark, then sleeps until the pool has been drained
+ * down to the low watermark, and fills it up again. A burst of handshakes is served from the pool, and only
+ * generates key pairs itself if the pool runs empty, so a handshake never waits for the background thread.
+ *
+ * The watermarks of the shared pool are set with onion.keypool.low and onion.keypool.high.
+ */
+public class KeyPairPool {
+    private static KeyPairPool shared;
+
+    private static final NamedParameterSpec X25519 = new NamedParameterSpec("X25519");
+
+    private final BlockingQueue<KeyInformation> keys;
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final Thread filler;
+    private volatile boolean refillRequested = false;
+    private volatile boolean stopped = false;
+
+    /**
+     * Starts the background thread, which starts filling the pool right away
+     *
+     * @param lowWatermark is how few key pairs the pool may hold before it is filled up again
+     * @param highWatermark is how many key pairs the pool holds at most
+     */
+    public KeyPairPool(int lowWatermark, int highWatermark) {
+        if(lowWatermark < 0 || highWatermark < 1 || lowWatermark >= highWatermark) {
+            throw new IllegalArgumentException("The watermarks must be 0 <= low < high, not low = " + lowWatermark +
+                    " and high = " + highWatermark);
+        }
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.keys = new ArrayBlockingQueue<>(highWatermark);
+
+        filler = new Thread(this::fill, "keypair-pool");
+        filler.setDaemon(true);
+        filler.start();
+    }
+
+    /**
+     * @return the pool used by all handshakes in this process, started the first time it is asked for
+     */
+    public static synchronized KeyPairPool shared() {
+        if(shared == null) {
+            shared = new KeyPairPool(Integer.getInteger("onion.keypool.low", 8),
+                    Integer.getInteger("onion.keypool.high", 64));
+        }
+        return shared;
+    }
+
+    /**
+     * Takes a ready key pair. Never waits for the background thread: if the pool is empty,
+     * the key pair is generated on the calling thread.
+     *
+     * @return key information holding the private key, the public key and u, without circuit id and ip address
+     */
+    public KeyInformation take() throws NoSuchAlgorithmException, InvalidAlgorithmParameterException,
+            InvalidKeySpecException {
+        KeyInformation key = keys.poll();
+        if(keys.size() <= lowWatermark) {
+            requestRefill();
+        }
+        return key != null ? key : generate();
+    }
+
+    /**
+     * @return the number of ready key pairs
+     */
+    public int size() {
+        return keys.size();
+    }
+
+    /**
+     * Stops the background thread. Key pairs are then generated by take().
+     */
+    public void shutdown() {
+        stopped = true;
+        LockSupport.unpark(filler);
+    }
+
+    /**
+     * Generates one key pair, along with u and the public key sent in the create cell.
+     * This is the work that used to be done in KeyGeneration.generateKeyPair().
+     */
+    static KeyInformation generate() throws NoSuchAlgorithmException, InvalidAlgorithmParameterException,
+            InvalidKeySpecException {
+        //  KeyPairGenerator class is used to generate pairs of public and private keys.
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("XDH");
+        kpg.initialize(X25519);
+        KeyPair kp = kpg.generateKeyPair();
+
+        // u is the public key as a point on the curve. It is what the create and created cells carry,
+        // and the other side turns it back into the public key (see CircuitKeyContext.toPublicKey())
+        XECPublicKey pubKey = (XECPublicKey) kp.getPublic();
+        BigInteger u = pubKey.getU();
+
+        // The circuit id and ip address are set when the key pair is taken from the pool
+        return new KeyInformation(null, null, kp.getPrivate(), pubKey, u);
+    }
+
+    private void requestRefill() {
+        refillRequested = true;
+        LockSupport.unpark(filler);
+    }
+
+    /**
+     * Run by the background thread
+     */
+    private void fill() {
+        while (!stopped) {
+            try {
+                while (!stopped && keys.size() < highWatermark) {
+                    if(!keys.offer(generate())) {
+                        break;
+                    }
+                }
+            } catch (GeneralSecurityException e) {
+                // The key pairs are then generated by take(), which reports the error to the handshake
+                e.printStackTrace();
+                return;
+            }
+            refillRequested = false;
+            // Sleeps until the pool is drained down to the low watermark
+            while (!stopped && !refillRequested && keys.size() > lowWatermark) {
+                LockSupport.park(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package security;
+
+import cells.Cell;
+import cells.CellView;
+import proxy.ProxyKeyStore;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.List;
+
+/**
+ * Adds all the onion layers of a cell the client sends, in one pass over the cell.
+ *
+ * Since every layer is a stream cipher (HopCipher), a layer is only the cell XOR-ed with that hop's keystream.
+ * The keystreams of all the hops are therefore produced first, and XOR-ed into one mask of 512 bytes,
+ * which stays in the cache. The cell itself is then read and written once, no matter how many hops there are,
+ * 8 bytes at a time.
+ *
+ * The cells the client sends are sealed (seal()) for the hop they are meant for, so that hop recognizes them and the
+ * hops in front of it pass them on. encode() only adds the layers.
+ *
+ * The ciphers of the hops are read from the circuit's ProxyKeyStore once, when the encoder is created. One encoder
+ * can then be used for every cell of the circuit, ex: destroy() seals one cell for each hop with the same encoder.
+ *
+ * The counters of the hops move on with each cell, so the cells of a circuit must be encoded in the order
+ * they are sent, by one thread at a time.
+ */
+public class OnionEncoder {
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    // The arrays the keystreams are combined in, one pair per thread, so encoders are cheap to create
+    private static final ThreadLocal<byte[][]> SCRATCH =
+            ThreadLocal.withInitial(() -> new byte[][] {new byte[CellView.CELL_SIZE], new byte[CellView.CELL_SIZE]});
+
+    // The forward cipher of each hop, starting at the guard node
+    private final HopCipher[] hops;
+
+    /**
+     * @param hops are the forward ciphers of the hops, starting at the guard node
+     */
+    public OnionEncoder(List<HopCipher> hops) {
+        this(hops.toArray(new HopCipher[0]));
+    }
+
+    /**
+     * @param hops are the forward ciphers of the hops, starting at the guard node. The array is used as it is,
+     *             so it must not be changed afterwards
+     */
+    public OnionEncoder(HopCipher[] hops) {
+        this.hops = hops;
+        for (HopCipher hop : this.hops) {
+            if(hop == null || !hop.isForward()) {
+                throw new IllegalArgumentException("Every hop must have a forward cipher!");
+            }
+        }
+    }
+
+    /**
+     * Creates an encoder for the circuit, using the ciphers the proxy agreed on with each node
+     *
+     * @param keys is the keystore of the circuit
+     * @param amount is the number of hops the cells are encoded for, counting from the guard node
+     * @throws IllegalStateException if a key has not yet been agreed on with one of those hops
+     */
+    public static OnionEncoder forCircuit(ProxyKeyStore keys, int amount) {
+        HopCipher[] hops = keys.forwardCiphers();
+        if(hops.length < amount) {
+            throw new IllegalStateException("Only " + hops.length + " of " + amount + " hops of circuit " +
+                                            keys.getCircuitId() + " have agreed on a key");
+        }
+        return new OnionEncoder(hops);
+    }
+
+    /**
+     * @param cell is the cell to encrypt, in place
+     * @param amount is the number of layers, counting from the guard node, ex: 1 for a cell to the guard node only
+     */
+    public void encode(Cell cell, int amount) {
+        encode(cell.getTotalMessage(), amount);
+    }
+
+    /**
+     * Adds the layers of the first amount hops to a 512 byte cell
+     *
+     * @param cell is the cell to encrypt, in place
+     * @param amount is the number of layers, counting from the guard node, ex: 1 for a cell to the guard node only
+     */
+    public void encode(byte[] cell, int amount) {
+        if(amount < 1 || amount > hops.length) {
+            throw new IllegalArgumentException("The amount of encryptions can not be 0 or greater " +
+                                               "than the amount of nodes in the circuit!");
+        }
+        byte[][] scratch = SCRATCH.get();
+        byte[] mask = scratch[0];
+        byte[] keystream = scratch[1];
+
+        // The first keystream is the mask, the others are XOR-ed into it
+        hops[0].nextKeystream(mask);
+        for (int i = 1; i < amount; i++) {
+            hops[i].nextKeystream(keystream);
+            xor(keystream, mask);
+        }
+        // The only pass over the cell
+        xor(mask, cell);
+    }
+
+    /**
+     * Seals the cell for the hop it is meant for, then adds the layers of the hops before it.
+     * The hop is the last of the first amount hops, and is the only one that recognizes the cell (HopCipher.open()).
+     * The others see a cell they do not recognize, and pass it on.
+     *
+     * @param cell is the cell to seal and encrypt, in place. Its data must fit in the first RELAY_DATA_SIZE bytes
+     *             of the relay payload
+     * @param amount is the position of the hop the cell is meant for, counting from 1 at the guard node
+     */
+    public void seal(Cell cell, int amount) {
+        seal(cell.getTotalMessage(), amount);
+    }
+
+    /**
+     * @param cell is the 512 byte cell to seal and encrypt, in place
+     * @param amount is the position of the hop the cell is meant for, counting from 1 at the guard node
+     */
+    public void seal(byte[] cell, int amount) {
+        if(amount < 1 || amount > hops.length) {
+            throw new IllegalArgumentException("The amount of encryptions can not be 0 or greater " +
+                                               "than the amount of nodes in the circuit!");
+        }
+        // The hop's digest covers the cell before any layer is added, and the hop's own layer is added with it
+        hops[amount - 1].seal(cell);
+        if(amount == 1) {
+            return;
+        }
+        byte[][] scratch = SCRATCH.get();
+        byte[] mask = scratch[0];
+        byte[] keystream = scratch[1];
+
+        // The layers of the hops in front of it, in one pass over the cell
+        hops[0].nextKeystream(mask);
+        for (int i = 1; i < amount - 1; i++) {
+            hops[i].nextKeystream(keystream);
+            xor(keystream, mask);
+        }
+        xor(mask, cell);
+    }
+
+    /**
+     * @return the number of hops in the circuit
+     */
+    public int length() {
+        return hops.length;
+    }
+
+    /**
+     * XOR-s the first 512 bytes of source into target, 8 bytes at a time
+     */
+    private static void xor(byte[] source, byte[] target) {
+        for (int i = 0; i < CellView.CELL_SIZE; i += Long.BYTES) {
+            LONGS.set(target, i, (long) LONGS.get(target, i) ^ (long) LONGS.get(source, i));
+        }
+    }
+}
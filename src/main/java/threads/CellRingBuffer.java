@@ -0,0 +1,269 @@
+package threads;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The queue a reader thread hands cells to a writer thread through, without locks.
+ *
+ * The cells go in a fixed array of slots, allocated once, and two counters tell where the consumer takes
+ * the next cell (head) and where the next cell is put (tail). Only the consumer writes head, and only the producer
+ * writes tail, so neither side ever takes a lock. The counters are padded (PaddedSequence), so the two threads
+ * do not slow each other down by writing to the same cache line. The cells themselves are not copied,
+ * as they are pooled buffers (CellBufferPool) that the writer releases after writing them.
+ *
+ * There must be exactly one consumer. By default there must also be exactly one producer.
+ * In multi-producer mode, producers claim a slot with a compare-and-set on tail instead,
+ * ex: for the queue towards the previous node, which both of a node's reader threads put cells in.
+ *
+ * A thread that has to wait (empty queue in take(), full queue in put()) waits as the WaitStrategy says.
+ * A parked thread is woken by the other side, or checks again after at most 1 ms.
+ */
+public class CellRingBuffer extends AbstractQueue<byte[]> implements BlockingQueue<byte[]> {
+    private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(byte[][].class);
+
+    private final byte[][] slots;
+    private final int mask;
+    private final boolean multiProducer;
+    private final WaitStrategy waitStrategy;
+
+    private final PaddedSequence head = new PaddedSequence(0);
+    private final PaddedSequence tail = new PaddedSequence(0);
+    // Last head the (single) producer saw, so it only reads the consumer's counter when the queue looks full
+    private long cachedHead = 0;
+
+    // The threads that are parked, waiting for the other side
+    private volatile Thread waitingConsumer;
+    private volatile Thread waitingProducer;
+
+    /**
+     * A queue with one producer, waiting as set by onion.ring.wait
+     *
+     * @param capacity is rounded up to the nearest power of two
+     */
+    public CellRingBuffer(int capacity) {
+        this(capacity, false, WaitStrategy.fromSystemProperty());
+    }
+
+    /**
+     * @param capacity is rounded up to the nearest power of two
+     * @param multiProducer true if more than one thread puts cells in the queue
+     * @param waitStrategy is how threads wait for cells or room
+     */
+    public CellRingBuffer(int capacity, boolean multiProducer, WaitStrategy waitStrategy) {
+        if(capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("The capacity must be between 1 and 2^30, not " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new byte[size][];
+        this.mask = size - 1;
+        this.multiProducer = multiProducer;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Puts the cell in the queue, unless it is full. Never blocks.
+     */
+    @Override
+    public boolean offer(byte[] cell) {
+        Objects.requireNonNull(cell);
+        long t;
+        if(multiProducer) {
+            do {
+                t = tail.get();
+                if(t - head.get() >= slots.length) {
+                    return false;
+                }
+            } while (!tail.compareAndSet(t, t + 1));
+            SLOT.setRelease(slots, (int) t & mask, cell);
+        }
+        else {
+            t = tail.getPlain();
+            if(t - cachedHead >= slots.length) {
+                cachedHead = head.get();
+                if(t - cachedHead >= slots.length) {
+                    return false;
+                }
+            }
+            SLOT.setRelease(slots, (int) t & mask, cell);
+            tail.set(t + 1);
+        }
+        Thread consumer = waitingConsumer;
+        if(consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * Takes the next cell, if there is one. Only the consumer thread may call this.
+     */
+    @Override
+    public byte[] poll() {
+        long h = head.getPlain();
+        int index = (int) h & mask;
+        // In multi-producer mode a slot can be claimed, but not yet filled. It is then treated as empty.
+        byte[] cell = (byte[]) SLOT.getAcquire(slots, index);
+        if(cell == null) {
+            return null;
+        }
+        slots[index] = null;
+        head.set(h + 1);
+        wakeProducer();
+        return cell;
+    }
+
+    @Override
+    public byte[] peek() {
+        return (byte[]) SLOT.getAcquire(slots, (int) head.getPlain() & mask);
+    }
+
+    @Override
+    public void put(byte[] cell) throws InterruptedException {
+        offer(cell, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public boolean offer(byte[] cell, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        long start = System.nanoTime();
+        int attempt = 0;
+        while (!offer(cell)) {
+            long left = nanos - (System.nanoTime() - start);
+            if(left <= 0) {
+                return false;
+            }
+            if(Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if(waitStrategy.idle(attempt++)) {
+                waitingProducer = Thread.currentThread();
+                // Checking again after registering, so a consumer that took a cell in between is not missed
+                if(tail.get() - head.get() < slots.length) {
+                    waitingProducer = null;
+                    continue;
+                }
+                WaitStrategy.park(this, left);
+                waitingProducer = null;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public byte[] take() throws InterruptedException {
+        return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public byte[] poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        long start = System.nanoTime();
+        int attempt = 0;
+        byte[] cell;
+        while ((cell = poll()) == null) {
+            long left = nanos - (System.nanoTime() - start);
+            if(left <= 0) {
+                return null;
+            }
+            if(Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if(waitStrategy.idle(attempt++)) {
+                waitingConsumer = Thread.currentThread();
+                // Checking again after registering, so a producer that put a cell in between is not missed
+                if(tail.get() != head.getPlain()) {
+                    waitingConsumer = null;
+                    continue;
+                }
+                WaitStrategy.park(this, left);
+                waitingConsumer = null;
+            }
+        }
+        return cell;
+    }
+
+    @Override
+    public int drainTo(Collection<? super byte[]> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Takes up to maxElements cells at once. The head is only moved once, after all of them.
+     * Only the consumer thread may call this.
+     */
+    @Override
+    public int drainTo(Collection<? super byte[]> c, int maxElements) {
+        long h = head.getPlain();
+        int drained = 0;
+        while (drained < maxElements) {
+            int index = (int) h & mask;
+            byte[] cell = (byte[]) SLOT.getAcquire(slots, index);
+            if(cell == null) {
+                break;
+            }
+            slots[index] = null;
+            c.add(cell);
+            h++;
+            drained++;
+        }
+        if(drained > 0) {
+            head.set(h);
+            wakeProducer();
+        }
+        return drained;
+    }
+
+    private void wakeProducer() {
+        Thread producer = waitingProducer;
+        if(producer != null) {
+            LockSupport.unpark(producer);
+        }
+    }
+
+    /**
+     * @return the number of cells in the queue. Only exact when neither side is working on it.
+     */
+    @Override
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, slots.length));
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return slots.length - size();
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * A copy of the cells in the queue at one point in time. Only meant for debugging.
+     */
+    @Override
+    public Iterator<byte[]> iterator() {
+        List<byte[]> cells = new ArrayList<>();
+        long t = tail.get();
+        for (long i = head.get(); i < t; i++) {
+            byte[] cell = (byte[]) SLOT.getAcquire(slots, (int) i & mask);
+            if(cell != null) {
+                cells.add(cell);
+            }
+        }
+        return cells.iterator();
+    }
+}
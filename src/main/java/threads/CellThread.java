@@ -0,0 +1,33 @@
+package threads;
+
+/**
+ * Base class of the threads that read and write cells (NodeReaderThread, WriterThread,
+ * ServerReaderThread and ChannelRelayThread).
+ *
+ * start() runs the thread's work on a virtual thread when VirtualThreads.isEnabled(), and as a normal
+ * thread otherwise, so the code creating the threads does not need to know which mode is used.
+ * In virtual mode this object is only the task: it is never started itself, and Thread.currentThread()
+ * inside run() is the virtual thread.
+ */
+public abstract class CellThread extends Thread {
+    private Thread virtualThread;
+
+    @Override
+    public synchronized void start() {
+        if(virtualThread != null) {
+            throw new IllegalThreadStateException(getName() + " is already started");
+        }
+        if(VirtualThreads.isEnabled()) {
+            virtualThread = VirtualThreads.start(getName(), this);
+        } else {
+            super.start();
+        }
+    }
+
+    /**
+     * @return the thread that actually runs this task, which is this object unless virtual threads are used
+     */
+    public Thread getRunningThread() {
+        return virtualThread != null ? virtualThread : this;
+    }
+}
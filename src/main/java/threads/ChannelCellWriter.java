@@ -0,0 +1,48 @@
+package threads;
+
+import cells.CellView;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes whole cells to a SocketChannel.
+ * More than one thread may write to the same hop (ex: a created cell and a relayed cell both going to
+ * the previous node), so writes are done under a lock. This way two cells are never interleaved on the socket.
+ */
+public class ChannelCellWriter {
+    private final SocketChannel channel;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * @param channel is the (blocking) channel to the next or previous hop
+     */
+    public ChannelCellWriter(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Writes the first 512 bytes of the buffer. The same buffer that was read from the other hop can be given,
+     * so the cell never leaves off-heap memory.
+     *
+     * @param cell is the buffer holding the cell
+     * @throws IOException if the channel is closed or the write fails
+     */
+    public void write(ByteBuffer cell) throws IOException {
+        cell.clear().limit(CellView.CELL_SIZE);
+        lock.lock();
+        try {
+            while (cell.hasRemaining()) {
+                channel.write(cell);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+}
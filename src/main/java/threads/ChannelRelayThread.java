@@ -0,0 +1,205 @@
+package threads;
+
+import Interface.ICellMethods;
+import cells.CellBufferPool;
+import cells.CellView;
+import nodes.EndNode;
+import security.CircuitKeyContext;
+import security.CircuitKeyTable;
+import security.Cryptography;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Reader thread used when the node runs with TransportMode.DIRECT.
+ * Each cell is read from a SocketChannel into a pooled direct ByteBuffer. One layer is removed
+ * (forward direction) or added (backward direction) in place, and the same buffer is written
+ * to the other hop's channel. The cell is never copied into a heap array.
+ *
+ * A node has one such thread per socket:
+ *      forward = true      reads from the previous node, writes to the next node (replies go to the previous node)
+ *      forward = false     reads from the next node, writes to the previous node
+ *
+ * As with the NodeReaderThread, a relay extend cell is sent on as a create cell, and the created cell that comes
+ * back is turned into the relay extended cell. At the last node the stream cells are handed to the EndNode.
+ */
+public class ChannelRelayThread extends CellThread {
+    private final SocketChannel in;
+    private final ChannelCellWriter onward; // the hop cells are relayed to, null at the end node
+    private final ChannelCellWriter back; // the hop replies (ex: created cells) are sent to
+    private final boolean forward;
+    // The circuit is named by the socket to the previous node and the circuit id, the same for both threads of a node
+    private final Socket link;
+    private volatile int circuitId;
+    private CircuitKeyContext keys;
+    // Only set in the forward thread of the circuit's last node, which hands the stream cells to it
+    private EndNode exit;
+
+    // Reused for every cell this thread handles
+    private final CellView view = new CellView();
+    private final Cryptography cryptography = new Cryptography();
+    private final CellBufferPool<ByteBuffer> pool = CellBufferPool.direct();
+
+    /**
+     * @param in is the channel this thread reads cells from
+     * @param onward is the writer for the hop the cells are relayed to (null if there is no such hop)
+     * @param back is the writer for the hop the cells came from
+     * @param forward true if the cells travel from the client towards the end node
+     * @param link is the socket to the previous node, used along with the circuit id to find the keys of the circuit
+     * @param circuitId is the circuit id as an unsigned 16 bit integer, or -1 if it is only known
+     *                  once the create cell arrives
+     */
+    public ChannelRelayThread(SocketChannel in, ChannelCellWriter onward, ChannelCellWriter back,
+                              boolean forward, Socket link, int circuitId) {
+        this.in = in;
+        this.onward = onward;
+        this.back = back;
+        this.forward = forward;
+        this.link = link;
+        this.circuitId = circuitId;
+    }
+
+    /**
+     * Makes this thread the exit of the circuit: relay begin, relay data, stream closed and relay sendme cells are
+     * handed to the end node
+     *
+     * @param exit is the end node of the circuit, owned by the last node
+     */
+    public void setExit(EndNode exit) {
+        this.exit = exit;
+    }
+
+    /**
+     * Reads cells until the channel is closed or a destroy cell is received
+     */
+    public void run() {
+        boolean end = false;
+        while (!end) {
+            ByteBuffer cell = pool.acquire();
+            try {
+                // Read exactly one cell, or stop if the other side closed the connection
+                if (!readCell(cell)) {
+                    end = true;
+                    continue;
+                }
+                view.wrap(cell, 0);
+                CircuitKeyContext circuitKeys = keys();
+
+                // Cells going back towards the client get this node's layer added, and are passed on
+                if (!forward) {
+                    if (circuitKeys != null && view.getCommand() == 2
+                            && view.isZeroFrom(CellView.CONTROL_PAYLOAD_OFFSET + CircuitKeyContext.U_SIZE)) {
+                        // The next node answered the create cell this node sent for a relay extend cell.
+                        // The answer goes back as a relay extended cell, sealed so the proxy knows this hop sent it
+                        ICellMethods.extendedInPlace(view);
+                        cryptography.seal(cell, circuitKeys.getBackwardCipher());
+                    } else {
+                        cryptography.encrypt(cell, circuitKeys == null ? null : circuitKeys.getBackwardCipher());
+                    }
+                    onward.write(cell);
+                }
+                // If the node receives a create-cell, the cell will not be encrypted!
+                else if (circuitKeys == null) {
+                    if (view.getCommand() == 1) {
+                        handleCreate(cell);
+                    } else {
+                        System.out.println("Dropping cell received before the create cell of the circuit");
+                    }
+                }
+                // The cell is only meant for this node if it was sealed for it
+                else if (cryptography.open(cell, circuitKeys.getForwardCipher())) {
+                    if (view.getCommand() == 0) {
+                        handleRelay(cell, circuitKeys);
+                    } else if (view.getCommand() == 3) {
+                        // The circuit is torn down
+                        CircuitKeyTable.shared().remove(link, circuitId);
+                        end = true;
+                    } else {
+                        System.out.println("Dropping cell with command " + view.getCommand() + " meant for this node");
+                    }
+                }
+                // If not, the cell is sent to the next node, still in the same buffer
+                else if (onward != null) {
+                    onward.write(cell);
+                } else {
+                    System.out.println("Dropping cell that no node of the circuit recognized");
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                end = true;
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                view.clear();
+                pool.release(cell);
+            }
+        }
+        // The connections of the circuit's streams are closed along with it
+        if (exit != null) {
+            exit.closeAll();
+        }
+        try {
+            in.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Handles a relay cell that was sealed for this node. Only relay extend and, at the last node, the stream cells
+     * are meant for a node, any other relay cell is dropped.
+     */
+    private void handleRelay(ByteBuffer cell, CircuitKeyContext circuitKeys) throws IOException {
+        byte relayCommand = view.getRelayCommand();
+        // At the end node, the stream cells are handled by the exit
+        if (exit != null && (relayCommand == 1 || relayCommand == 4 || relayCommand >= 6)) {
+            exit.handleRelayCell(view, circuitKeys);
+        } else if (relayCommand == 2 && onward != null) {
+            // The handshake is sent on as a create cell, and the created cell comes back on the other relay thread
+            ICellMethods.extendInPlace(view);
+            onward.write(cell);
+        } else {
+            System.out.println("Dropping relay cell with relayCommand: " + relayCommand +
+                    ", this node can not handle it");
+        }
+    }
+
+    /**
+     * @return the keys of the circuit, or null if its create cell has not been handled yet
+     */
+    private CircuitKeyContext keys() {
+        if (keys == null && circuitId >= 0) {
+            // The create cell is handled by the thread reading from the previous node
+            keys = CircuitKeyTable.shared().get(link, circuitId);
+        }
+        return keys;
+    }
+
+    /**
+     * Fills the buffer with one whole cell
+     *
+     * @return false if the channel reached end of stream
+     */
+    private boolean readCell(ByteBuffer cell) throws IOException {
+        cell.clear().limit(CellView.CELL_SIZE);
+        while (cell.hasRemaining()) {
+            if (in.read(cell) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The create cell is turned into a created cell in the same buffer, and sent back where it came from
+     */
+    private void handleCreate(ByteBuffer cell) throws Exception {
+        keys = ICellMethods.createdInPlace(view, link);
+        circuitId = keys.getCircuitId();
+        back.write(cell);
+        System.out.println("Sending created cell back to server");
+    }
+}
@@ -0,0 +1,45 @@
+package threads;
+
+import cells.CellBufferPool;
+import cells.CellView;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes the cells of a queue to a hop with a ChannelCellWriter, used when the node runs with TransportMode.DIRECT.
+ * The cells in the queue are heap arrays made by the node itself (ex: the relay cells of the EndNode), so each is
+ * copied into one reused direct buffer. The writer is shared with the relay threads, so the cells are never
+ * interleaved with the cells they write to the same hop.
+ */
+public class ChannelWriterThread extends CellThread {
+    private final ChannelCellWriter writer;
+    private final BlockingQueue<byte[]> queue;
+    private final CellBufferPool<byte[]> pool = CellBufferPool.heap();
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(CellView.CELL_SIZE);
+
+    /**
+     * @param writer is the writer of the hop the cells go to
+     * @param queue is where the cells are put, the thread gives them back to the pool once they are written
+     */
+    public ChannelWriterThread(ChannelCellWriter writer, BlockingQueue<byte[]> queue) {
+        this.writer = writer;
+        this.queue = queue;
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                byte[] cell = queue.take();
+                buffer.put(0, cell, 0, CellView.CELL_SIZE);
+                pool.release(cell);
+                writer.write(buffer);
+            }
+        } catch (InterruptedException e) {
+            // The node was closed, ex: its circuit was retired
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
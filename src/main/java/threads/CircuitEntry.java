@@ -0,0 +1,77 @@
+package threads;
+
+import security.CircuitKeyContext;
+
+/**
+ * One row of a link's circuit table: what a node does with cells of one circuit that arrive on that link
+ */
+public class CircuitEntry {
+    private final int circuitId;
+    private final Link other; // the link the circuit continues on, null if the circuit ends at this node
+    private final boolean forward; // true if cells on this link travel from the client towards the end node
+    private final CircuitKeyContext keys; // the keys of this node's layer, shared by the entries of both links
+    private final int otherCircuitId; // the id of the circuit on the other link, which may not be the same
+    private final int routeId; // the id the nodes set the circuit up under, which stays the same on every link
+
+    /**
+     * @param circuitId is the circuit id as an unsigned 16 bit integer
+     * @param other is the link the circuit continues on, or null at the end node
+     * @param forward true if cells arriving on this link come from the client side
+     */
+    public CircuitEntry(int circuitId, Link other, boolean forward) {
+        this(circuitId, other, forward, null);
+    }
+
+    /**
+     * @param circuitId is the circuit id as an unsigned 16 bit integer
+     * @param other is the link the circuit continues on, or null at the end node
+     * @param forward true if cells arriving on this link come from the client side
+     * @param keys are the keys of the circuit at this node, so the cells need no lookup in the CircuitKeyTable
+     */
+    public CircuitEntry(int circuitId, Link other, boolean forward, CircuitKeyContext keys) {
+        this(circuitId, other, circuitId, forward, keys, circuitId);
+    }
+
+    /**
+     * @param circuitId is the circuit id on this link, as an unsigned 16 bit integer
+     * @param other is the link the circuit continues on, or null at the end node
+     * @param otherCircuitId is the circuit id on the other link. The id in the header of a cell is changed to it
+     *                       when the cell is passed on
+     * @param forward true if cells arriving on this link come from the client side
+     * @param keys are the keys of the circuit at this node, so the cells need no lookup in the CircuitKeyTable
+     * @param routeId is the id the circuit was set up under (see NodeCellHandler.addRoute())
+     */
+    public CircuitEntry(int circuitId, Link other, int otherCircuitId, boolean forward, CircuitKeyContext keys,
+                        int routeId) {
+        this.circuitId = circuitId;
+        this.other = other;
+        this.otherCircuitId = otherCircuitId;
+        this.forward = forward;
+        this.keys = keys;
+        this.routeId = routeId;
+    }
+
+    public int getCircuitId() {
+        return circuitId;
+    }
+
+    public Link getOther() {
+        return other;
+    }
+
+    public int getOtherCircuitId() {
+        return otherCircuitId;
+    }
+
+    public int getRouteId() {
+        return routeId;
+    }
+
+    public boolean isForward() {
+        return forward;
+    }
+
+    public CircuitKeyContext getKeys() {
+        return keys;
+    }
+}
@@ -0,0 +1,100 @@
+package threads;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * The circuits that are multiplexed over one link, indexed by the 2 byte circuit id every cell starts with.
+ *
+ * Circuit ids are 16 bit, so the table is a plain array with one slot per possible id.
+ * Looking up the circuit of a cell is then one array read, with no hashing and no boxing of the id.
+ * Slots are written when a circuit is created or destroyed, and read for every cell, possibly from
+ * other event loops, so the array is atomic.
+ */
+public class CircuitTable {
+    private static final int SIZE = 1 << 16;
+
+    private final AtomicReferenceArray<CircuitEntry> entries = new AtomicReferenceArray<>(SIZE);
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * @param circuitId is the circuit id read from a cell
+     * @return the entry of the circuit, or null if the circuit is not known on this link
+     */
+    public CircuitEntry get(int circuitId) {
+        return entries.get(circuitId);
+    }
+
+    /**
+     * Adds the circuit, unless the id is already used on this link
+     *
+     * @param entry is the circuit to add
+     * @return true if the circuit was added
+     */
+    public boolean add(CircuitEntry entry) {
+        if(entries.compareAndSet(entry.getCircuitId(), null, entry)) {
+            count.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds the circuit under the first id that is free on this link, starting at the preferred one.
+     * Used when a circuit continues on a link where its id may already be used by another circuit.
+     *
+     * @param preferred is the id to try first, ex: the id the circuit has on the link it arrived on
+     * @param entryFor makes the entry for the id that was found
+     * @return the entry that was added, or null if every id is used
+     */
+    public CircuitEntry addWithFreeId(int preferred, IntFunction<CircuitEntry> entryFor) {
+        for (int i = 0; i < SIZE; i++) {
+            int circuitId = (preferred + i) & (SIZE - 1);
+            if(entries.get(circuitId) != null) {
+                continue;
+            }
+            CircuitEntry entry = entryFor.apply(circuitId);
+            // Another loop may have taken the id since it was read
+            if(add(entry)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param circuitId is the circuit to remove
+     * @return the entry that was removed, or null if there was none
+     */
+    public CircuitEntry remove(int circuitId) {
+        CircuitEntry removed = entries.getAndSet(circuitId, null);
+        if(removed != null) {
+            count.decrementAndGet();
+        }
+        return removed;
+    }
+
+    /**
+     * Runs the action for every circuit on the link, ex: to tear them down when the link is closed
+     */
+    public void forEach(Consumer<CircuitEntry> action) {
+        if(count.get() == 0) {
+            return;
+        }
+        for (int i = 0; i < SIZE; i++) {
+            CircuitEntry entry = entries.get(i);
+            if(entry != null) {
+                action.accept(entry);
+            }
+        }
+    }
+
+    /**
+     * @return how many circuits use the link
+     */
+    public int size() {
+        return count.get();
+    }
+}
@@ -0,0 +1,183 @@
+package threads;
+
+import Interface.ICryptoTask;
+import cells.CellBufferPool;
+import cells.CellView;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of worker threads that add and remove onion layers, so the crypto work of a node is spread over
+ * all the cores instead of running on the thread that read the cell from the socket.
+ * It sits between a reader thread and the queue of a WriterThread: the reader submits the cell with a task,
+ * and the task does the crypto and puts the cell in the writer's queue.
+ *
+ * The layers are stream ciphers (HopCipher), so the cells that share a cipher must be handled in the order they
+ * were read. Each worker (lane) therefore has a queue of its own, and every cell is given an order key, ex: the
+ * circuit id. Cells with the same order key always go to the same lane, and a lane handles its cells one at a time,
+ * in order. Cells with different keys are handled in parallel. A reader whose cells all share the ciphers of one
+ * circuit and direction takes a key of its own with nextOrderKey(), which spreads the readers over the lanes.
+ *
+ * A lane takes all the cells waiting in its queue at once (up to MAX_BATCH), so a burst of cells from many circuits
+ * is handled in batches. A full lane makes the reader wait, so a slow lane slows the readers down instead of
+ * filling up memory.
+ *
+ * The number of lanes is set by onion.crypto.threads. The engine is off when it is 0 (the default),
+ * and the crypto then runs on the reader thread as before.
+ */
+public class CryptoEngine {
+    private static CryptoEngine shared;
+
+    private static final int LANE_CAPACITY = 1024;
+    private static final int MAX_BATCH = 64;
+
+    private final Lane[] lanes;
+    // The next key handed out by nextOrderKey()
+    private final AtomicInteger orderKeys = new AtomicInteger();
+
+    /**
+     * @param laneCount is the number of worker threads to start
+     */
+    public CryptoEngine(int laneCount) {
+        if(laneCount < 1) {
+            throw new IllegalArgumentException("The crypto engine needs at least one lane, not " + laneCount);
+        }
+        lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane();
+            lanes[i].setName("crypto-lane-" + i);
+            lanes[i].setDaemon(true);
+            lanes[i].start();
+        }
+    }
+
+    /**
+     * @return true if onion.crypto.threads asks for at least one worker thread
+     */
+    public static boolean isEnabled() {
+        return Integer.getInteger("onion.crypto.threads", 0) > 0;
+    }
+
+    /**
+     * @return the engine used by all nodes in this process, started the first time it is asked for,
+     *         or null if the engine is not enabled
+     */
+    public static synchronized CryptoEngine shared() {
+        if(shared == null && isEnabled()) {
+            shared = new CryptoEngine(Integer.getInteger("onion.crypto.threads", 0));
+        }
+        return shared;
+    }
+
+    /**
+     * Hands one cell to the lane of its order key. Waits if that lane is full.
+     *
+     * @param orderKey decides the lane. Cells with the same key are handled in the order they are submitted
+     * @param cell is the cell, owned by the task from now on
+     * @param task is run on the cell by the lane
+     */
+    public void submit(int orderKey, byte[] cell, ICryptoTask task) throws InterruptedException {
+        laneFor(orderKey).jobs.put(new Job(cell, task));
+    }
+
+    /**
+     * Hands a batch of cells with the same order key to its lane, keeping their order
+     *
+     * @param orderKey decides the lane. Cells with the same key are handled in the order they are submitted
+     * @param cells are the cells, owned by the task from now on
+     * @param task is run on every cell by the lane
+     */
+    public void submit(int orderKey, List<byte[]> cells, ICryptoTask task) throws InterruptedException {
+        Lane lane = laneFor(orderKey);
+        for (byte[] cell : cells) {
+            lane.jobs.put(new Job(cell, task));
+        }
+    }
+
+    /**
+     * @return an order key no other caller has been given (until the keys wrap around). Successive keys go to
+     *         successive lanes, so readers that each take one are spread evenly over the lanes
+     */
+    public int nextOrderKey() {
+        return orderKeys.getAndIncrement();
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * Stops every lane. Cells still waiting in the lanes are given back to the pool.
+     */
+    public void shutdown() {
+        for (Lane lane : lanes) {
+            lane.getRunningThread().interrupt();
+        }
+    }
+
+    private Lane laneFor(int orderKey) {
+        return lanes[Math.floorMod(orderKey, lanes.length)];
+    }
+
+    /**
+     * A cell and what to do with it
+     */
+    private static final class Job {
+        final byte[] cell;
+        final ICryptoTask task;
+
+        Job(byte[] cell, ICryptoTask task) {
+            this.cell = cell;
+            this.task = task;
+        }
+    }
+
+    /**
+     * One worker thread, with the queue of the cells it handles
+     */
+    private static final class Lane extends CellThread {
+        final BlockingQueue<Job> jobs = new ArrayBlockingQueue<>(LANE_CAPACITY);
+        // Reused for every cell the lane handles
+        private final CellView view = new CellView();
+        private final List<Job> batch = new ArrayList<>(MAX_BATCH);
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    // Waits for the first cell, then takes the ones that are already waiting along with it
+                    batch.add(jobs.take());
+                    jobs.drainTo(batch, MAX_BATCH - 1);
+                    for (Job job : batch) {
+                        process(job);
+                    }
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                // The engine is shut down
+                Job job;
+                while ((job = jobs.poll()) != null) {
+                    CellBufferPool.heap().release(job.cell);
+                }
+            }
+        }
+
+        private void process(Job job) {
+            try {
+                job.task.process(job.cell, view);
+            } catch (InterruptedException e) {
+                // The lane stops the next time it waits for a cell
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                // One bad cell does not stop the lane, as it handles the cells of many circuits
+                e.printStackTrace();
+            } finally {
+                view.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package threads;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One thread with one Selector, that handles readiness for every link registered with it.
+ * A link stays on the loop it was registered with for its whole life, so all reads, writes and
+ * handler calls for that link happen on the same thread, and need no locking.
+ *
+ * Other threads talk to the loop through execute(), which runs the task on the loop thread.
+ */
+public class EventLoop extends Thread {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    /**
+     * @param name is the name of the thread
+     * @throws IOException if the selector could not be opened
+     */
+    public EventLoop(String name) throws IOException {
+        super(name);
+        setDaemon(true);
+        selector = Selector.open();
+    }
+
+    /**
+     * Runs the task on the loop thread. If called from another thread, the loop is woken up.
+     *
+     * @param task is the work to run on the loop
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if(!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * @return true if the calling thread is this loop
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == this;
+    }
+
+    /**
+     * Registers the link's channel for reading. Must be called after the channel is set to non-blocking.
+     *
+     * @param link is the link that this loop now handles
+     */
+    void register(Link link) {
+        execute(() -> {
+            try {
+                link.setKey(link.getChannel().register(selector, SelectionKey.OP_READ, link));
+            } catch (IOException e) {
+                e.printStackTrace();
+                link.close();
+            }
+        });
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                // Tasks added by the loop itself (ex: a flush scheduled by a handler) must not wait for the next event
+                if(tasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Link link = (Link) key.attachment();
+
+                    if(key.isValid() && key.isReadable()) {
+                        link.onReadable();
+                    }
+                    if(key.isValid() && key.isWritable()) {
+                        link.onWritable();
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                running = false;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stops the loop and closes the selector. Links still registered are not closed.
+     */
+    public void shutdown() {
+        running = false;
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
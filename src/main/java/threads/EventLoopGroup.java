@@ -0,0 +1,81 @@
+package threads;
+
+import Interface.ICellHandler;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of event loops that share all links of the nodes in this process (TransportMode.EVENT_LOOP).
+ * The number of threads is set by the number of loops, and does not grow with the number of circuits.
+ *
+ * The number of loops is read from the system property onion.eventloop.threads, and defaults
+ * to the number of available cores. Java can not pin a thread to a core, but every link is pinned to
+ * one loop for its whole life, so with one loop per core each core keeps working on the same links.
+ */
+public class EventLoopGroup {
+    private static EventLoopGroup shared;
+
+    private final EventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param loopCount is the number of event loop threads to start
+     * @throws IOException if a selector could not be opened
+     */
+    public EventLoopGroup(int loopCount) throws IOException {
+        if(loopCount < 1) {
+            throw new IllegalArgumentException("At least one event loop is required, not " + loopCount);
+        }
+        loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop("event-loop-" + i);
+            loops[i].start();
+        }
+    }
+
+    /**
+     * @return the group used by all nodes in this process, started the first time it is asked for
+     */
+    public static synchronized EventLoopGroup shared() throws IOException {
+        if(shared == null) {
+            shared = new EventLoopGroup(Integer.getInteger("onion.eventloop.threads",
+                    Runtime.getRuntime().availableProcessors()));
+        }
+        return shared;
+    }
+
+    /**
+     * Hands a connected channel over to one of the loops. The channel is made non-blocking.
+     *
+     * @param channel is the connected channel to the other hop
+     * @param handler is called for every cell read from the channel
+     * @return the link that cells to the other hop are sent through
+     * @throws IOException if the channel could not be configured
+     */
+    public Link register(SocketChannel channel, ICellHandler handler) throws IOException {
+        channel.configureBlocking(false);
+        // Cells are small, so they should not wait for more data before being sent
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+        EventLoop loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+        Link link = new Link(channel, loop, handler);
+        loop.register(link);
+        return link;
+    }
+
+    public int getLoopCount() {
+        return loops.length;
+    }
+
+    /**
+     * Stops every loop in the group
+     */
+    public void shutdown() {
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+}
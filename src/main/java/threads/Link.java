@@ -0,0 +1,344 @@
+package threads;
+
+import Interface.ICellHandler;
+import cells.CellBufferPool;
+import cells.CellView;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A connection to a neighbouring hop, handled by one event loop (TransportMode.EVENT_LOOP).
+ *
+ * Reading: cells are read straight into pooled direct buffers with one scattering read,
+ * so a burst of cells is read with one system call, and every complete cell is handed to the handler.
+ *
+ * Writing: every circuit that sends to this hop puts its cells in the same outbound queue.
+ * The queue is drained by the loop, and a cell buffer goes back to the pool once it is written.
+ *
+ * Backpressure: the loops must never block, so a full queue can not make the sender wait. Instead, when a cell
+ * read from another link is queued here while more than HIGH_WATER cells are waiting, that link stops reading
+ * until this queue is drained below LOW_WATER. A slow hop then fills the socket buffers of the hop that sends to it,
+ * instead of the memory of this node. Cells sent after the link is closed are given back to the pool.
+ *
+ * A node keeps one link per neighbour, and every circuit through that neighbour shares it.
+ * The circuit table of the link tells which circuit a cell belongs to, from its circuit id.
+ */
+public class Link {
+    // How many cells one read can fill at most
+    private static final int READ_BATCH = 16;
+    // Above this many queued cells, the links that send here stop reading
+    static final int HIGH_WATER = 256;
+    // The links that stopped reading start again once the queue is this short
+    static final int LOW_WATER = HIGH_WATER / 2;
+
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private final ICellHandler handler;
+    private final CellBufferPool<ByteBuffer> pool = CellBufferPool.direct();
+    private SelectionKey key;
+    private final CircuitTable circuits = new CircuitTable();
+
+    // Only used on the loop thread
+    private final ByteBuffer[] readSlots = new ByteBuffer[READ_BATCH];
+
+    // Shared by every circuit sending to this hop, from any thread
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private final ReentrantLock outboundLock = new ReentrantLock();
+    private volatile int queued; // outbound.size(), written under the lock
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // The links that stopped reading because this queue was full
+    private final Set<Link> waiting = ConcurrentHashMap.newKeySet();
+
+    // Only used on the loop thread
+    private boolean readPaused;
+    private boolean writePending;
+
+    /**
+     * Links are created through EventLoopGroup.register()
+     */
+    Link(SocketChannel channel, EventLoop loop, ICellHandler handler) {
+        this.channel = channel;
+        this.loop = loop;
+        this.handler = handler;
+        for (int i = 0; i < READ_BATCH; i++) {
+            readSlots[i] = pool.acquire();
+        }
+    }
+
+    /**
+     * Queues a cell for this hop. Can be called from any thread, and never blocks.
+     * The link now owns the buffer, and releases it after it is written, or right away if the link is closed.
+     *
+     * @param cell is a buffer holding one cell
+     * @return false if the link is closed, and the cell was dropped
+     */
+    public boolean send(ByteBuffer cell) {
+        cell.clear().limit(CellView.CELL_SIZE);
+        outboundLock.lock();
+        try {
+            // Checked under the lock, so a cell is either queued before close() empties the queue, or not at all
+            if(closed.get()) {
+                pool.release(cell);
+                return false;
+            }
+            outbound.addLast(cell);
+            queued = outbound.size();
+        } finally {
+            outboundLock.unlock();
+        }
+        // Only one flush has to be waiting on the loop at a time
+        if(flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+        return true;
+    }
+
+    /**
+     * Queues a cell that was read from another link. If this queue is full, the other link stops reading
+     * until the queue has been drained, so a fast sender can not fill up the node's memory.
+     *
+     * @param cell is a buffer holding one cell
+     * @param from is the link the cell was read from
+     * @return false if the link is closed, and the cell was dropped
+     */
+    public boolean send(ByteBuffer cell, Link from) {
+        if(!send(cell)) {
+            return false;
+        }
+        if(queued > HIGH_WATER) {
+            from.pauseReading();
+            waiting.add(from);
+            // The queue may have been drained before the link was added, in which case nobody else resumes it
+            if(queued <= LOW_WATER || closed.get()) {
+                resumeWaiting();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the queue is so long that the links sending here are asked to stop reading
+     */
+    public boolean isWritable() {
+        return queued <= HIGH_WATER;
+    }
+
+    /**
+     * Stops reading from the socket until resumeReading() is called. Can be called from any thread.
+     */
+    void pauseReading() {
+        onLoop(() -> {
+            readPaused = true;
+            updateInterest();
+        });
+    }
+
+    /**
+     * Starts reading from the socket again. Can be called from any thread.
+     */
+    void resumeReading() {
+        onLoop(() -> {
+            readPaused = false;
+            updateInterest();
+        });
+    }
+
+    private void resumeWaiting() {
+        for (Link link : waiting) {
+            waiting.remove(link);
+            link.resumeReading();
+        }
+    }
+
+    /**
+     * Runs the task right away on the loop thread, or hands it to the loop from any other thread.
+     * The tasks of one link therefore run in the order they were asked for.
+     */
+    private void onLoop(Runnable task) {
+        if(loop.inEventLoop()) {
+            task.run();
+        } else {
+            loop.execute(task);
+        }
+    }
+
+    /**
+     * Reads as many cells as the socket has ready. Runs on the loop thread.
+     */
+    void onReadable() {
+        try {
+            long read;
+            do {
+                read = channel.read(readSlots);
+                if(read < 0) {
+                    close();
+                    return;
+                }
+                deliverCompleteCells();
+            // If every slot was filled, there may be more cells waiting in the socket,
+            // unless a handler found the link they go to full
+            } while (read == (long) READ_BATCH * CellView.CELL_SIZE && !readPaused);
+        } catch (IOException e) {
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    /**
+     * Every full slot is handed to the handler and replaced with a new buffer.
+     * A cell that was only partly read is moved to the first slot, so the next read continues it.
+     */
+    private void deliverCompleteCells() {
+        int complete = 0;
+        while (complete < READ_BATCH && !readSlots[complete].hasRemaining()) {
+            ByteBuffer cell = readSlots[complete];
+            cell.flip();
+            readSlots[complete] = null;
+            try {
+                handler.handleCell(this, cell);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            complete++;
+        }
+        if(complete == 0) {
+            return;
+        }
+        for (int i = complete; i < READ_BATCH; i++) {
+            readSlots[i - complete] = readSlots[i];
+        }
+        for (int i = READ_BATCH - complete; i < READ_BATCH; i++) {
+            readSlots[i] = pool.acquire();
+        }
+    }
+
+    void onWritable() {
+        flush();
+    }
+
+    /**
+     * Writes queued cells until the queue is empty or the socket can not take more.
+     * In the latter case the loop is asked to call again when the socket is writable. Runs on the loop thread.
+     */
+    private void flush() {
+        flushScheduled.set(false);
+        try {
+            while (true) {
+                ByteBuffer cell;
+                outboundLock.lock();
+                try {
+                    cell = outbound.peekFirst();
+                } finally {
+                    outboundLock.unlock();
+                }
+                if(cell == null) {
+                    setWriteInterest(false);
+                    return;
+                }
+                channel.write(cell);
+                if(cell.hasRemaining()) {
+                    setWriteInterest(true);
+                    return;
+                }
+                outboundLock.lock();
+                try {
+                    outbound.pollFirst();
+                    queued = outbound.size();
+                } finally {
+                    outboundLock.unlock();
+                }
+                pool.release(cell);
+                if(queued <= LOW_WATER && !waiting.isEmpty()) {
+                    resumeWaiting();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    private void setWriteInterest(boolean write) {
+        writePending = write;
+        updateInterest();
+    }
+
+    private void updateInterest() {
+        if(key != null && key.isValid()) {
+            key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (writePending ? SelectionKey.OP_WRITE : 0));
+        }
+    }
+
+    /**
+     * Closes the channel and gives every buffer the link holds back to the pool
+     */
+    public void close() {
+        if(!closed.compareAndSet(false, true)) {
+            return;
+        }
+        loop.execute(() -> {
+            if(key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            for (int i = 0; i < READ_BATCH; i++) {
+                pool.release(readSlots[i]);
+                readSlots[i] = null;
+            }
+            outboundLock.lock();
+            try {
+                ByteBuffer cell;
+                while ((cell = outbound.pollFirst()) != null) {
+                    pool.release(cell);
+                }
+                queued = 0;
+            } finally {
+                outboundLock.unlock();
+            }
+            // The links that waited for this queue would otherwise never read again
+            resumeWaiting();
+            handler.linkClosed(this);
+        });
+    }
+
+    /**
+     * @return the circuits multiplexed over this link
+     */
+    public CircuitTable getCircuits() {
+        return circuits;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+        // The link may have been paused before it was registered
+        updateInterest();
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return how many cells are waiting to be written
+     */
+    int getQueued() {
+        return queued;
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+}
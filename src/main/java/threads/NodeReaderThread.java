@@ -1,32 +1,26 @@
 package threads;
 
-import Interface.ISupportMethods;
-import cells.Cell;
-import cells.ControlCell;
+import Interface.ICellMethods;
+import Interface.ICryptoTask;
+import cells.CellBufferPool;
+import cells.CellFramer;
+import cells.CellView;
+import nodes.EndNode;
+import security.CircuitKeyContext;
+import security.CircuitKeyTable;
 import security.Cryptography;
-import security.KeyGeneration;
-import security.KeyInformation;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SecretKey;
 import java.io.DataInputStream;
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.security.PublicKey;
-import java.security.spec.InvalidKeySpecException;
 import java.util.concurrent.BlockingQueue;
 
 
 /**
  * In order to run multiple clients (connections), threads are needed for each Node-object
  */
-public class NodeReaderThread extends Thread {
+public class NodeReaderThread extends CellThread {
     DataInputStream receivedMessage;
     private final SocketAddress previousNode; // previous node's IP-address
     private final SocketAddress nextNode; // next node's IP-address
@@ -37,6 +31,27 @@ public class NodeReaderThread extends Thread {
     protected BlockingQueue<byte[]> queuePrevNode;
     boolean socketIsNext;
 
+    // Reused for every cell this thread handles, so that no objects are created per cell
+    private final CellView view = new CellView();
+    private final Cryptography cryptography = new Cryptography();
+    private final CellBufferPool<byte[]> pool = CellBufferPool.heap();
+
+    // Set when a destroy cell is received or the socket closes, possibly by a CryptoEngine lane
+    private volatile boolean stopped = false;
+    // Null unless the crypto work is done by the CryptoEngine
+    private CryptoEngine cryptoEngine;
+    // The lane key of this reader's cells, taken from the engine
+    private int orderKey;
+    private final ICryptoTask cellTask = this::handleCell;
+
+    // The circuit this node is part of, named by the socket to the previous node and the circuit id.
+    // Both reader threads of the node find the keys of the circuit in the CircuitKeyTable through it.
+    private Socket link;
+    private volatile int circuitId = -1;
+    private volatile CircuitKeyContext keys;
+    // Only set in the reader of the circuit's last node, which hands the stream cells to it
+    private EndNode exit;
+
     /**
      * Each time a NodeThread is instantiated, a new socket is created (socket)
      * Contains two thread queues, because one is for the writer/reader pair on one socket,
@@ -58,165 +73,250 @@ public class NodeReaderThread extends Thread {
         this.socketIsNext = socketIsNext;
     }
 
+    /**
+     * Sends the crypto work of this thread's cells to the engine's worker threads instead of doing it here
+     *
+     * @param cryptoEngine is the engine, or null to do the crypto on this thread
+     */
+    public void setCryptoEngine(CryptoEngine cryptoEngine) {
+        this.cryptoEngine = cryptoEngine;
+        if(cryptoEngine != null) {
+            orderKey = cryptoEngine.nextOrderKey();
+        }
+    }
+
+    /**
+     * Tells the thread which circuit its cells belong to, so it can find the keys of the circuit
+     *
+     * @param link is the socket to the previous node, the same for both reader threads of the node
+     * @param circuitId is the circuit id as an unsigned 16 bit integer, or -1 if it is only known
+     *                  once the create cell arrives
+     */
+    public void setCircuit(Socket link, int circuitId) {
+        this.link = link;
+        this.circuitId = circuitId;
+    }
+
+    /**
+     * Makes this thread the exit of the circuit: relay begin, relay data and stream closed cells are handed to
+     * the end node instead of being refused
+     *
+     * @param exit is the end node of the circuit, owned by the last node
+     */
+    public void setExit(EndNode exit) {
+        this.exit = exit;
+    }
+
     /**
      * Method runs upon NodeThread.start()
-     * Interprets the cell received by decoding it, and checking if it is readable
-     * The cell is readable if it has a length of 512 bytes after decoding
-     * If readable, the method will handle the cell depending on the command it holds
-     * If not readable, the method will check the IP-address of the node who sent the
-     * message, and forward it to the other node it holds a connection with
+     * Reads one cell at a time, and hands it to handleCell(), either right here or through the CryptoEngine
      */
     public void run() {
         // Entire cell-handling implementation follows here, inside thread's run() method
-        boolean end = false;
-
         try {
             // outgoingMessage = new DataOutputStream(socket.getOutputStream());
             if(socket.isConnected()) {
                 System.out.println("Socket connected");
                 receivedMessage = new DataInputStream(socket.getInputStream());
-                while (end == false) { // <-- true until destroy command is received
-
+                CellFramer framer = new CellFramer(receivedMessage);
+                while (!stopped) { // <-- true until destroy command is received
+                    // The cell is owned by this thread until it is handed to handleCell()
+                    byte[] cell = null;
                     try {
-                        // Gets the remote IP-address
-                        InetSocketAddress cellSender = new InetSocketAddress(socket.getInetAddress(), socket.getPort());
-                        // Determine how big the array needed to hold the stream must be
-                        int cellSize = receivedMessage.available();
-                        // If cellSize is 0, the stream is actually empty!
-                        if (cellSize != 0) {
-                            // Create the byte array
-                            byte[] cell = new byte[512];
-
-                            // Read the bytes into the array
-                            int bytesLeft = receivedMessage.read(cell, 0, 512);
-
-                            // BytesLeft should be -1 (returned when stream is empty)
-                            if (bytesLeft != -1) {
-                                System.out.println("The bytes left were " + bytesLeft);
-                            }
-
-                            // If the sender was the next node, the cell should be encrypted and passed on to the previous
-                            if (nextNode != null) {
-                                // If the cell was received from the next node, the cell should be sent along to the server
-                                if (socketIsNext) {
-                                    Cryptography cryptography = new Cryptography();
-
-                                    // In order to encrypt, the cell must be transformed from byte array to Cell object!
-                                    cryptography.encrypt(Cell.bytesToCellObject(cell), KeyInformation.getSecretKeyUsingNodeId(nodeId));
-
-                                    queuePrevNode.put(cell);
-                                    return;
-                                }
-                            }
-                            // If the node receives a create-cell, the cell will not be encrypted!
-                            if (ISupportMethods.getCommand(cell) == 1) {
-                                // If the node has a symmetric key, then this packet is meant for the next node!
-                                if (KeyInformation.getSecretKeyUsingNodeId(nodeId) == null) {
-                                    // Read the necessary parameters
-                                    byte[] circuitID = ISupportMethods.getCircuitId(cell);
-                                    byte[] payload = ISupportMethods.getPayload(cell);
-
-                                    // The cell is a create cell, meaning this cell must respond with a created cell
-                                    byte[] u = new byte[4];
-
-                                    // Reading in the BigInteger u as bytes
-                                    for (int i = 0; i < 4; i++) {
-                                        u[i] = payload[i];
-                                    }
-
-                                    // Convert the bytes to a public key
-                                    PublicKey pk = ISupportMethods.convertToPublicKey(u);
-
-                                    // Create the symmetric key
-                                    KeyGeneration keyGeneration = new KeyGeneration();
-                                    SecretKey symmetricKey = keyGeneration.generateSecretKey(pk, true);
-
-                                    // Add the symmetric key and the IP to the store
-                                    KeyInformation.addSecretKeyToMap(nodeId, symmetricKey);
-
-                                    // Create a control cell and send it back where it came from
-                                    ControlCell created = new ControlCell((byte) 2, circuitID);
-                                    byte[] newPayload = new byte[509];
-                                    for (int i = 0; i < 4; i++) {
-                                        newPayload[i] = u[i];
-                                    }
-                                    created.setPayload(newPayload);
-                                    // Have to send it back with the public key or u
-                                    queuePrevNode.put(created.getTotalMessage());
-
-                                    System.out.println("Sending created cell back to server");
-                                }
-                            }
-                            // If the cell was not a create cell
-                            else {
-                                Cryptography cryptography = new Cryptography();
-                                cryptography.decrypt(cell, KeyInformation.getSecretKeyUsingNodeId(nodeId));
-                                byte command = ISupportMethods.getCommand(cell);
-                                // If the command bit is readable now, the cell is fully decrypted
-                                if (command >= 0 && command < 4) {
-                                    // Read the command to figure out if relay cell or control cell
-                                    if (command == 0) {
-                                        // Relay cell
-                                        byte relayCommand = ISupportMethods.getRelayCommand(cell);
-
-                                        // relayBegin
-                                        if (relayCommand == 1) {
-                                            // throw error, because this should only be read at the end node!
-                                            throw new Exception("Relay cell with relayCommand: 1, received at regular node. " +
-                                                    "This command should only be interpreted at end node!");
-                                        } else if (relayCommand == 2) {
-                                            // This command is not yet implemented, and involves adding a new node to the relay
-                                            throw new Exception("Relay cell with relayCommand: 2, not yet supported.");
-                                        } else if (relayCommand == 3) {
-                                            // should not happen here!
-                                            throw new Exception("Relay cell with relayCommand: 3, received at regular node. " +
-                                                    "This command should only be interpreted at Client proxy " +
-                                                    "(and is not yet implemented in program)!\");");
-                                        } else if (relayCommand == 4) {
-                                            // should not happen here!
-                                            throw new Exception("Relay cell with relayCommand: 4, received at regular node. " +
-                                                    "This command should only be interpreted at end node ");
-                                        } else if (relayCommand == 5) {
-                                            // should not happen here!
-                                            throw new Exception("Relay cell with relayCommand: 5, received at regular node. " +
-                                                    "This command should only be interpreted at Client proxy ");
-                                        }
-                                    }
-                                    // If control cell not of type "create"
-                                    else if (command == 2) {
-                                        // Send to server
-                                        queuePrevNode.put(cell);
-
-                                    } else if (command == 3) {
-                                        // The socket must close all the sockets that belong to the circuitID of the package
-                                        end = true;
-                                    }
-                                }
-                                // If neither, send the cell to the next node
-                                else {
-                                    queueNextNode.put(cell);
-                                }
-                            }
+                        // Take a recycled cell from the pool instead of allocating a new one
+                        cell = pool.acquire();
+
+                        // Blocks until a whole cell has arrived, so an idle socket uses no CPU.
+                        // After a burst, the following cells are already buffered in the framer.
+                        if (!framer.readCell(cell)) {
+                            // The other side closed the connection
+                            stopped = true;
+                            continue;
                         }
-                    }catch (NoSuchPaddingException | IllegalBlockSizeException | IOException | NoSuchAlgorithmException |
-                            BadPaddingException | InvalidKeySpecException | InvalidKeyException | InterruptedException ex) {
-                        ex.printStackTrace();
+
+                        if (cryptoEngine != null) {
+                            // Every cell this thread reads shares the circuit's cipher for one direction, so they all
+                            // get this reader's order key, and are handled in the order they were read. The other
+                            // readers have keys of their own, so they are spread over the other lanes.
+                            byte[] submitted = cell;
+                            cell = null;
+                            cryptoEngine.submit(orderKey, submitted, cellTask);
+                        } else {
+                            byte[] handled = cell;
+                            cell = null;
+                            handleCell(handled, view);
+                        }
+                    } catch (IOException ex) {
+                        // A broken socket can not be read again, so the thread stops instead of failing in a loop
+                        if (!stopped) {
+                            ex.printStackTrace();
+                        }
+                        stopped = true;
                     } catch (Exception ex) {
                         ex.printStackTrace();
+                    } finally {
+                        // A cell that was not handed over (ex: at the end of the stream) goes back to the pool
+                        pool.release(cell);
                     }
                 }
                 // Upon end = true, we break out of the while-loop, and it is time to close the socket
+                // The connections of the circuit's streams are closed along with it
+                if (exit != null) {
+                    exit.closeAll();
+                }
                 try {
                     socket.close();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
-                try {
-                    currentThread().join();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                // The thread ends here, instead of waiting on itself forever
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Interprets the cell received by decoding it, and checking if it was sealed for this node (HopCipher.open())
+     * If so, the method will handle the cell depending on the command it holds
+     * If not, the cell is forwarded to the other node this node holds a connection with
+     *
+     * Runs on this thread, or on a CryptoEngine lane. The cell is owned by this method: it is either put in a queue,
+     * where the writer owns it, or given back to the pool.
+     *
+     * @param cell is the cell that was read
+     * @param view is a view owned by the thread running the method
+     */
+    private void handleCell(byte[] cell, CellView view) throws Exception {
+        try {
+            // Point the view at the new cell, the header is read straight from the array
+            view.wrap(cell);
+
+            // If the sender was the next node, the cell should be encrypted and passed on to the previous
+            if (nextNode != null) {
+                // If the cell was received from the next node, the cell should be sent along to the server
+                if (socketIsNext) {
+                    CircuitKeyContext circuitKeys = keys();
+                    if (circuitKeys != null && view.getCommand() == 2
+                            && view.isZeroFrom(CellView.CONTROL_PAYLOAD_OFFSET + CircuitKeyContext.U_SIZE)) {
+                        // The next node answered the create cell this node sent for a relay extend cell.
+                        // The answer goes back as a relay extended cell, sealed so the proxy knows this hop sent it
+                        ICellMethods.extendedInPlace(view);
+                        cryptography.seal(cell, circuitKeys.getBackwardCipher());
+                    } else {
+                        // The cell is encrypted in the array it was read into
+                        cryptography.encrypt(cell, circuitKeys == null ? null : circuitKeys.getBackwardCipher());
+                    }
+
+                    queuePrevNode.put(cell);
+                    cell = null;
+                    return;
+                }
+            }
+            CircuitKeyContext circuitKeys = keys();
+            // If the node receives a create-cell, the cell will not be encrypted!
+            if (circuitKeys == null) {
+                if (view.getCommand() == 1) {
+                    // The keys are stored in the table, and the cell is turned into the created reply
+                    keys = ICellMethods.createdInPlace(view, link);
+                    circuitId = keys.getCircuitId();
+
+                    // Have to send it back with the public key or u
+                    queuePrevNode.put(cell);
+                    cell = null;
+
+                    System.out.println("Sending created cell back to server");
+                } else {
+                    System.out.println("Dropping cell received before the create cell of the circuit");
                 }
             }
+            // The cell is only meant for this node if it was sealed for it. The command byte can not tell,
+            // as it still looks random while the layers of the nodes after this one are on the cell
+            else if (cryptography.open(cell, circuitKeys.getForwardCipher())) {
+                byte command = view.getCommand();
+                // Read the command to figure out if relay cell or control cell
+                if (command == 0) {
+                    // Relay cell
+                    byte relayCommand = view.getRelayCommand();
+
+                    // At the end node, the stream cells are handled by the exit
+                    if (exit != null && (relayCommand == 1 || relayCommand == 4 || relayCommand >= 6)) {
+                        exit.handleRelayCell(view, circuitKeys);
+                    }
+                    // relayBegin
+                    else if (relayCommand == 1) {
+                        // throw error, because this should only be read at the end node!
+                        throw new Exception("Relay cell with relayCommand: 1, received at regular node. " +
+                                "This command should only be interpreted at end node!");
+                    } else if (relayCommand == 2) {
+                        // The proxy extends the circuit to the node this node is connected to next
+                        if (nextNode == null) {
+                            throw new Exception("Relay cell with relayCommand: 2, received at the end node. " +
+                                    "There is no next node to extend the circuit to!");
+                        }
+                        // The handshake is sent on as a create cell, and the created cell comes back
+                        // on the other reader thread
+                        ICellMethods.extendInPlace(view);
+                        queueNextNode.put(cell);
+                        cell = null;
+                    } else if (relayCommand == 3) {
+                        // should not happen here!
+                        throw new Exception("Relay cell with relayCommand: 3, received at regular node. " +
+                                "This command should only be interpreted at Client proxy!");
+                    } else if (relayCommand == 4) {
+                        // should not happen here!
+                        throw new Exception("Relay cell with relayCommand: 4, received at regular node. " +
+                                "This command should only be interpreted at end node ");
+                    } else if (relayCommand == 5) {
+                        // should not happen here!
+                        throw new Exception("Relay cell with relayCommand: 5, received at regular node. " +
+                                "This command should only be interpreted at Client proxy ");
+                    }
+                }
+                // If control cell of type "destroy"
+                else if (command == 3) {
+                    // The socket must close all the sockets that belong to the circuitID of the package
+                    CircuitKeyTable.shared().remove(link, circuitId);
+                    stopReading();
+                } else {
+                    System.out.println("Dropping cell with command " + command + ", the proxy does not send it");
+                }
+            }
+            // If not meant for this node, send the cell to the next node
+            else if (nextNode != null) {
+                queueNextNode.put(cell);
+                cell = null;
+            } else {
+                System.out.println("Dropping cell that no node of the circuit recognized");
+            }
+        } finally {
+            // Cells that were not handed over to a writer (ex: destroy cells or errors) go back to the pool
+            view.clear();
+            pool.release(cell);
+        }
+    }
+
+    /**
+     * @return the keys of the circuit, or null if its create cell has not been handled yet
+     */
+    private CircuitKeyContext keys() {
+        CircuitKeyContext current = keys;
+        if (current == null && link != null && circuitId >= 0) {
+            // The create cell may have been handled by the node's other reader thread
+            current = CircuitKeyTable.shared().get(link, circuitId);
+            keys = current;
+        }
+        return current;
+    }
+
+    /**
+     * Stops reading. Closing the socket wakes the thread if it is waiting for a cell,
+     * ex: when a CryptoEngine lane handles the destroy cell.
+     */
+    private void stopReading() {
+        stopped = true;
+        try {
+            socket.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,68 @@
+package threads;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * A long counter that has a cache line of its own.
+ *
+ * The head of CellRingBuffer is written by the consumer and the tail by the producer. If the two counters
+ * shared a cache line, every write by one thread would evict the line from the other thread's core
+ * (false sharing), even though they never touch the same counter. 56 bytes of padding on each side keep the
+ * value alone on its 64 byte line. The padding is put in super- and subclasses, as the JVM may reorder the
+ * fields of one class, but always lays out the fields of a superclass first.
+ */
+final class PaddedSequence extends SequenceValue {
+    // Padding after the value
+    long p11, p12, p13, p14, p15, p16, p17;
+
+    private static final VarHandle VALUE;
+
+    static {
+        try {
+            VALUE = MethodHandles.lookup().findVarHandle(SequenceValue.class, "value", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    PaddedSequence(long initial) {
+        value = initial;
+    }
+
+    /**
+     * A volatile read. Together with set(), no thread can miss both the counter and a flag the other side wrote.
+     */
+    long get() {
+        return value;
+    }
+
+    /**
+     * A volatile write
+     */
+    void set(long newValue) {
+        value = newValue;
+    }
+
+    boolean compareAndSet(long expected, long newValue) {
+        return VALUE.compareAndSet(this, expected, newValue);
+    }
+
+    /**
+     * A plain read, only for the thread that owns the counter
+     */
+    long getPlain() {
+        return (long) VALUE.get(this);
+    }
+}
+
+/**
+ * Padding before the value
+ */
+abstract class SequencePadding {
+    long p01, p02, p03, p04, p05, p06, p07;
+}
+
+abstract class SequenceValue extends SequencePadding {
+    volatile long value;
+}
@@ -1,47 +1,47 @@
 package threads;
 
-import Interface.ICellMethods;
-import Interface.ISupportMethods;
-import cells.Cell;
-import nodes.DirectoryNode;
-import nodes.Node;
+import cells.CellFramer;
+import cells.CellView;
+import circuit.Circuit;
+import circuit.CircuitBuilder;
+import circuit.ReadinessEvent;
+import proxy.ProxyKeyStore;
+import proxy.ProxyStream;
+import security.CircuitKeyContext;
 import security.Cryptography;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.concurrent.BlockingQueue;
 
 /**
  * This thread class does all the heavy handling of reading and handling incoming cells
- * All cells that are to be sent from the client to the endNode or other nodes are
- * put into the blockingQueue. The writer thread does the sending-part.
+ * The cells of the circuit's streams are handed to the ProxyStream named by their stream id,
+ * so many streams can share the circuit. Sending is done by the writer thread.
  */
-public class ServerReaderThread extends Thread {
+public class ServerReaderThread extends CellThread {
     int connectionNumber;
     Socket socket;
     Socket browserSocket;
     DataInputStream inStream;
     DataOutputStream outStream;
     DataOutputStream outStreamBrowser;
-    int maxCellSize;
-    ArrayList<Node> circuit;
+    // The circuit this socket serves, its streams get the relay cells
+    private final Circuit circuit;
+
+    // Reused for every cell this thread handles, so that no objects are created per cell
+    private final CellView view = new CellView();
+    private final Cryptography cryptography = new Cryptography();
+    // The keys of the circuit this socket serves, known once the first created cell names the circuit
+    private ProxyKeyStore keys;
 
-    protected BlockingQueue<byte[]> blockingQueue = null; // todo perhaps not correct with byte[]?
     /**
      * @param socket is the socket created upon connection to the guard node
-     * @param circuit is needed in order to calculate the size of incoming cells (each node = 12+16  bytes extra) ,
-     *                and in order to decrypt/encrypt
+     * @param circuit is the circuit built over the socket, the data cells go to its streams
      */
-    public ServerReaderThread(Socket socket, ArrayList<Node> circuit, BlockingQueue<byte[]> blockingQueue) {
+    public ServerReaderThread(Socket socket, Circuit circuit) {
         this.socket = socket;
-        this.connectionNumber = connectionNumber;
         this.circuit = circuit;
-        this.blockingQueue = blockingQueue;
-
-        // No cells are allowed to be bigger than this
-        maxCellSize = 512 + (circuit.size() * 28);
     }
 
     /**
@@ -52,74 +52,56 @@ public class ServerReaderThread extends Thread {
             // Creating the streams that are used to talk through the socket(s)
             inStream = new DataInputStream(socket.getInputStream());
 
-            byte[] incomingCell;
+            CellFramer framer = new CellFramer(inStream);
 
-            int read = 0;
-            while(true) {
-                // How many bytes are there available to read in the stream
-                int bytesToRead = inStream.available();
+            // Every cell is read into the same array, as only the payload of a data cell is kept
+            byte[] incomingCell = new byte[CellView.CELL_SIZE];
 
-                // If the bytes available contain just one cell
-                if(bytesToRead <= maxCellSize) {
+            // Blocks until a whole cell has arrived. A burst of cells is handled one cell at a time from the framer.
+            while(framer.readCell(incomingCell)) {
+                view.wrap(incomingCell);
 
-                    //Allocate that number of bytes for the cell
-                    incomingCell = new byte[bytesToRead];
+                // Check to see the command of the cell in order to know if it is encrypted (created cells are not)
+                // Only created cells are allowed to be received like this, and they are all zeros after u
+                if (view.getCommand() == 2 && view.isZeroFrom(CellView.CONTROL_PAYLOAD_OFFSET + CircuitKeyContext.U_SIZE)) {
+                    // The guard node answered the create cell of a circuit being built
+                    if (!CircuitBuilder.shared().onCreated(incomingCell)) {
+                        System.out.println("Dropping a created cell for a circuit that is not being built");
+                        continue;
+                    }
+                    keys = ProxyKeyStore.get(view.getCircuitId());
+                    System.out.println("Created cell received in server reader thread");
                 }
-                // If the bytes available contain more than one cell
                 else {
-                    throw new Exception("There is not sufficient handling for sending more than one cell at a time! ");
-                }
-
-                // We read the bytes into the new cell
-                read = inStream.read(incomingCell,0, bytesToRead);
-                blockingQueue.put(incomingCell);
-
-                if(incomingCell.length != 0) {
-
-                    // Check to see the command of the cell in order to know if it is encrypted (created cells are not)
-                    // Only created cells are allowed to be received like this
-                    if (ISupportMethods.getCommand(incomingCell) == 2) {
-                        ICellMethods.created(incomingCell, socket.getInetAddress());
-                        System.out.println("Created cell received in server reader thread");
+                    // Decrypt the cell where it lies, until the hop that sent it is recognized
+                    // The ciphers are read from the keystore's array by hop, so a circuit that grows is seen right away
+                    int hop = keys == null ? -1 : cryptography.peel(incomingCell, keys.backwardCiphers());
+                    if (hop < 0) {
+                        System.out.println("Dropping a cell that no hop in the circuit sent");
+                        continue;
                     }
-                    else {
-                        // Decrypt the cell
-                        Cryptography cryptography = new Cryptography();
-                        cryptography.decryptionClientSide(Cell.bytesToCellObject(incomingCell), circuit);
-
 
-                        // The cell is now decrypted, and the next step is to figure out what type of cell it is
-                        byte[] circuitID = ISupportMethods.getCircuitId(incomingCell);
-                        byte command = ISupportMethods.getCommand(incomingCell);
+                    // The cell is now decrypted, and the next step is to figure out what type of cell it is
+                    byte command = view.getCommand();
 
-                        // The server should not receive encrypted control cells
-                        if (command > 0 && command < 4) {
-                            throw new Exception("The server received a command cell with command: " + command + ".");
+                    // The server should not receive encrypted control cells
+                    if (command > 0 && command < 4) {
+                        throw new Exception("The server received a command cell with command: " + command + ".");
+                    }
+                    // If relay cell
+                    if (command == 0) {
+                        // Get the relay command
+                        byte relayCommand = view.getRelayCommand();
+
+                        // The server may handle relay commands 3, 4, 5 and 6
+                        // If relay extended cell, the hop that sent it has added the next node to the circuit
+                        if (relayCommand == 3) {
+                            CircuitBuilder.shared().onExtended(incomingCell, hop);
                         }
-                        // If relay cell
-                        if (command == 0) {
-                            // Get the relay command
-                            byte relayCommand = ISupportMethods.getRelayCommand(incomingCell);
-
-                            // The server may handle relay commands 4, 5 and 6
-                            // If relay data cell
-                            if (relayCommand == 4) {
-                                // All these data cells must be placed in a buffer until we receive a stream closing cell
-                                byte[] cellPayload = ISupportMethods.getPayload(incomingCell);
-                                blockingQueue.put(cellPayload);
-                            }
-
-                            // If relay connected cell
-                            else if (relayCommand == 5) {
-                                // Set the circuit in a connected state
-                                DirectoryNode.getCircuitWithId(circuitID).setRelayingMessage(true);
-                                // The server can now send out relay data cells!
-                            }
-
-                            // If stream closing cell
-                            else if (relayCommand == 6) {
-                                // We have received all the information that was requested by the client!
-                            }
+
+                        // The other relay cells belong to one of the circuit's streams
+                        else if (relayCommand >= 4 && relayCommand <= 6) {
+                            handleStreamCell(incomingCell, relayCommand);
                         }
                     }
                 }
@@ -128,6 +110,48 @@ public class ServerReaderThread extends Thread {
         } catch (Exception e) {
             e.printStackTrace();
         }
+        // No more cells can arrive for the streams, so readers waiting for data are woken
+        circuit.getStreams().forEach(ProxyStream::ended);
+    }
+
+    /**
+     * Hands a relay data, relay connected or stream closed cell to the stream named by its stream id
+     *
+     * @param cell is the decrypted cell the view is on, reused for the next cell once the method returns
+     * @param relayCommand is the relay command of the cell
+     */
+    private void handleStreamCell(byte[] cell, byte relayCommand) {
+        int streamId = view.getStreamId();
+        ProxyStream stream = circuit.getStreams().get(streamId);
+        if (stream == null) {
+            // The stream was closed by this side, while the end node was still sending
+            System.out.println("Dropping a relay cell for stream " + streamId + ", which is not open");
+            return;
+        }
+
+        // If relay data cell
+        if (relayCommand == 4) {
+            // Delivered right away, trimmed to the payload length, so the padding of the cell is never seen
+            int length = Math.min(view.getPayloadLength(), CellView.RELAY_DATA_SIZE);
+            stream.received(cell, CellView.RELAY_PAYLOAD_OFFSET, length);
+
+            // Counted so the circuit can be retired after a number of bytes
+            circuit.addBytesRelayed(length);
+        }
+
+        // If relay connected cell, the end node is connected to the destination of the stream
+        else if (relayCommand == 5) {
+            circuit.setRelayingMessage(true);
+            circuit.getReadiness().signal(ReadinessEvent.STREAM_CONNECTED);
+            // The one waiting in openStream() can now send out relay data cells!
+            stream.connected();
+        }
+
+        // If stream closing cell, the destination has sent everything, or could not be reached
+        else {
+            circuit.getStreams().remove(streamId);
+            stream.ended();
+        }
     }
 
 }
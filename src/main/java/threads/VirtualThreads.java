@@ -0,0 +1,82 @@
+package threads;
+
+import java.lang.reflect.Method;
+
+/**
+ * Starts the cell threads as virtual threads, when the JVM has them (Java 21 and newer)
+ * and the system property onion.threads=virtual is set.
+ *
+ * The project is compiled for Java 17, where virtual threads do not exist, so Thread.ofVirtual()
+ * is looked up through reflection. On an older JVM, or without the property, nothing changes
+ * and the threads are started as normal platform threads.
+ *
+ * Virtual threads are cheap enough to have two per socket for tens of thousands of circuits,
+ * but only if they never spin: a virtual thread that busy waits keeps its carrier thread.
+ * The queues between the threads are lock-free CellRingBuffers. A put() or take() that has to wait parks through
+ * LockSupport (with WaitStrategy.PARK, the default), which unmounts a virtual thread from its carrier,
+ * so only onion.ring.wait=spin must be avoided with virtual threads.
+ */
+public final class VirtualThreads {
+    private static final boolean REQUESTED = "virtual".equalsIgnoreCase(System.getProperty("onion.threads", "platform"));
+
+    // Thread.ofVirtual() and Thread.Builder.name(String)/start(Runnable), null if the JVM has no virtual threads
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method START;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method start = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class);
+            start = builder.getMethod("start", Runnable.class);
+        } catch (ReflectiveOperationException e) {
+            if(REQUESTED) {
+                System.out.println("Virtual threads are not supported by Java " + Runtime.version().feature()
+                        + ", using platform threads");
+            }
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        START = start;
+    }
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if the JVM has virtual threads
+     */
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @return true if the cell threads should be started as virtual threads
+     */
+    public static boolean isEnabled() {
+        return REQUESTED && isSupported();
+    }
+
+    /**
+     * Starts the task on a new virtual thread
+     *
+     * @param name is the name of the new thread
+     * @param task is the work the thread does
+     * @return the started virtual thread
+     */
+    public static Thread start(String name, Runnable task) {
+        if(!isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads are not supported by this JVM");
+        }
+        try {
+            Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+            return (Thread) START.invoke(builder, task);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not start virtual thread " + name, e);
+        }
+    }
+}
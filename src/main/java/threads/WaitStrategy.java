@@ -0,0 +1,72 @@
+package threads;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * What a thread does while it waits for a CellRingBuffer to get a cell (or room for one).
+ * The strategy is a trade between how fast a waiting thread notices a new cell, and how much CPU it uses while idle.
+ *
+ * The default is read from the system property onion.ring.wait (spin, yield or park), and is PARK if it is not set.
+ */
+public enum WaitStrategy {
+    /**
+     * Busy waits. The lowest latency, but the thread uses a whole core while it waits.
+     * Only useful when there are more cores than waiting threads, and never with virtual threads.
+     */
+    SPIN,
+
+    /**
+     * Spins for a short while, then gives the core to other threads between checks.
+     * Lower latency than PARK, while still letting other threads run.
+     */
+    YIELD,
+
+    /**
+     * Spins for a short while, then parks the thread until it is woken by the other side.
+     * Uses no CPU while idle.
+     */
+    PARK;
+
+    // How many times a thread checks before it yields or parks
+    private static final int SPIN_TRIES = 100;
+    // A parked thread checks again after this long, in case it was not woken
+    private static final long MAX_PARK_NANOS = 1_000_000;
+
+    /**
+     * Called once for every failed check
+     *
+     * @param attempt is how many times the thread has checked so far
+     * @return true if the thread should park. It must then register as waiting and check once more before it parks.
+     */
+    boolean idle(int attempt) {
+        if(this == SPIN || attempt < SPIN_TRIES) {
+            Thread.onSpinWait();
+            return false;
+        }
+        if(this == YIELD) {
+            Thread.yield();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parks the thread, after it has registered as waiting and checked once more
+     */
+    static void park(Object blocker, long maxNanos) {
+        LockSupport.parkNanos(blocker, Math.min(maxNanos, MAX_PARK_NANOS));
+    }
+
+    /**
+     * @return the strategy named in onion.ring.wait, or PARK
+     */
+    public static WaitStrategy fromSystemProperty() {
+        String strategy = System.getProperty("onion.ring.wait", PARK.name());
+        try {
+            return valueOf(strategy.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown wait strategy " + strategy + ", using " + PARK);
+            return PARK;
+        }
+    }
+}
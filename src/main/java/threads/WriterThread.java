@@ -1,27 +1,32 @@
 package threads;
 
-import Interface.ICellMethods;
-import Interface.ISupportMethods;
-import cells.ControlCell;
-import cells.RelayCell;
-import circuit.Circuit;
+import cells.CellBufferPool;
+import cells.CellView;
 
 import java.io.DataOutputStream;
+import java.io.IOException;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Generic writer thread -> can be used in any class!
  */
-public class WriterThread extends Thread {
+public class WriterThread extends CellThread {
     Socket socket;
     DataOutputStream outStream;
-    Circuit circuit;
     protected BlockingQueue<byte[]> blockingQueue = null;
-    int code = 0;
-    byte[] streamId;
-    String request = ""; // The webpage the client requests to use
+    private final CellBufferPool<byte[]> pool = CellBufferPool.heap();
+
+    // Cells sent with one write. The size and how long to wait for more cells can be tuned with
+    // onion.writer.batchBytes and onion.writer.batchDelayMicros
+    private static final int BATCH_BYTES = Math.max(CellView.CELL_SIZE,
+            Integer.getInteger("onion.writer.batchBytes", 32 * CellView.CELL_SIZE));
+    private static final long MAX_BATCH_DELAY_NANOS = TimeUnit.MICROSECONDS.toNanos(
+            Long.getLong("onion.writer.batchDelayMicros", 0));
+    private final byte[] batch = new byte[BATCH_BYTES - BATCH_BYTES % CellView.CELL_SIZE];
+    private final ArrayList<byte[]> pending = new ArrayList<>();
 
     /**
      * The writer thread writes cells received in the read thread to the socket it is connected to
@@ -35,43 +40,49 @@ public class WriterThread extends Thread {
     }
 
     /**
-     * Writer threads also need to start communication at some times. This constructor is for use
-     * in those cases.
-     * @param socket the socket the writer thread writes to
-     * @param blockingQueue the blocking queue the thread is part of
-     * @param code can be:
-     *             1 = send create messages to all the nodes
-     *             2 = send relay begin cell
+     * Cells that are ready at the same time are sent with one write and one flush, instead of one each.
+     * After the first cell, the writer takes every cell already in the queue, and if there is room left,
+     * waits up to MAX_BATCH_DELAY_NANOS for more. The delay is 0 by default, so a lone interactive cell is
+     * never held back, while a bulk download fills whole batches by itself.
+     *
+     * @param first is the cell taken from the queue
      */
-    public WriterThread(Socket socket, BlockingQueue<byte[]> blockingQueue, int code, Circuit circuit) {
-        this.socket = socket;
-        this.blockingQueue = blockingQueue;
-        this.code = code;
-        this.circuit = circuit;
+    private void writeBatch(byte[] first) throws IOException, InterruptedException {
+        int length = addToBatch(first, 0);
+        long deadline = System.nanoTime() + MAX_BATCH_DELAY_NANOS;
+
+        while (length + CellView.CELL_SIZE <= batch.length) {
+            // Everything already in the queue is taken at once
+            blockingQueue.drainTo(pending, (batch.length - length) / CellView.CELL_SIZE);
+            if(pending.isEmpty()) {
+                long wait = deadline - System.nanoTime();
+                byte[] next = wait > 0 ? blockingQueue.poll(wait, TimeUnit.NANOSECONDS) : null;
+                if(next == null) {
+                    break;
+                }
+                pending.add(next);
+            }
+            for (byte[] cell : pending) {
+                length = addToBatch(cell, length);
+            }
+            pending.clear();
+        }
+        outStream.write(batch, 0, length);
+        outStream.flush();
     }
 
     /**
-     * Writer threads also need to start communication at some times. This constructor is for use
-     * in those cases.
-     * @param socket the socket the writer thread writes to
-     * @param blockingQueue the blocking queue the thread is part of
-     * @param code can be:
-     *             1 = send create messages to all the nodes
-     *             2 = send relay begin cell
-     *             3 = relay data when prompted to by the client
+     * Copies the cell to the end of the batch, and gives it back to the pool, as the writer is the last one to use it
+     *
+     * @return the length of the batch after the cell
      */
-    public WriterThread(Socket socket, BlockingQueue<byte[]> blockingQueue, int code, Circuit circuit,
-                        String request, byte[] streamId) {
-        this.socket = socket;
-        this.blockingQueue = blockingQueue;
-        this.code = code;
-        this.circuit = circuit;
-        this.request = request;
-        this.streamId = streamId;
-    }
-
-    public byte[] getStreamId() {
-        return streamId;
+    private int addToBatch(byte[] cell, int length) {
+        if(cell.length == CellView.CELL_SIZE) {
+            System.arraycopy(cell, 0, batch, length, CellView.CELL_SIZE);
+            length += CellView.CELL_SIZE;
+        }
+        pool.release(cell);
+        return length;
     }
 
     /**
@@ -83,57 +94,13 @@ public class WriterThread extends Thread {
             if(socket.isConnected()) {
                 outStream = new DataOutputStream(socket.getOutputStream());
 
-                // If create
-                if(code == 1) {
-                    // Send circuit.size() -1 amounts of create cells
-                    for (int i = 1; i < circuit.getNodes().size(); i++) {
-                        // Create the cell
-                        ControlCell createCell = ICellMethods.create(circuit.getId(),socket);
-                        // Get the blocking queue of the first node
-                        blockingQueue.put(createCell.getTotalMessage());
-                        byte[] cell = blockingQueue.take();
-                        outStream.write(cell);
-                        outStream.flush();
-                    }
-                }
-                // if relayBegin
-                if(code == 2) {
-                    // Create relay begin cell
-                    RelayCell relayBegin = ICellMethods.relayBegin(circuit.getId(),circuit.getNodes());
-                    streamId = ISupportMethods.getStreamID(relayBegin.getTotalMessage());
-                    // Add the cell to the queue
-                    blockingQueue.put(relayBegin.getTotalMessage());
-                    byte[] cell = blockingQueue.take();
-                    outStream.write(cell);
-                    outStream.flush();
-                }
-
-                if(code == 3) {
-                    // Validate that the request is not empty!
-                    if(request.length() < 1 || streamId == null) {
-                        throw new Exception("There must be a request present in order to create a relay data cell!");
-                    }
-                    else{
-                        // Create the relayData cell
-                        RelayCell relayData = ICellMethods.relayData(request.getBytes(StandardCharsets.UTF_8),
-                                streamId, circuit.getId(), circuit.getNodes());
-
-                        // Add the cell to the queue
-                        blockingQueue.put(relayData.getTotalMessage());
-                        byte[] cell = blockingQueue.take();
-                        outStream.write(cell);
-                        outStream.flush();
-                    }
-                }
-
                 while(true) {
-                    byte[] cell = blockingQueue.take();
-                    if(cell.length == 512) {
-                        outStream.write(cell);
-                        outStream.flush();
-                    }
+                    // Blocks until there is at least one cell, then sends it along with every cell queued behind it
+                    writeBatch(blockingQueue.take());
                 }
             }
+        } catch (InterruptedException e) {
+            // The node was closed, ex: its circuit was retired
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -0,0 +1,74 @@
+package cells;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CellBufferPoolTest {
+
+    /**
+     * A pool of its own is used in each test, so that the tests do not depend on the shared heap pool
+     */
+    CellBufferPool<byte[]> createPool(boolean leakDetection) {
+        return new CellBufferPool<>("test", () -> new byte[CellView.CELL_SIZE],
+                buffer -> buffer.length == CellView.CELL_SIZE, buffer -> { }, leakDetection);
+    }
+
+    @Test
+    public void releasedBufferIsReused() {
+        CellBufferPool<byte[]> pool = createPool(false);
+        byte[] first = pool.acquire();
+        pool.release(first);
+
+        assertSame(first, pool.acquire());
+        assertEquals(1, pool.getAllocatedCount());
+    }
+
+    @Test
+    public void bufferReleasedOnOtherThreadIsReused() throws InterruptedException {
+        CellBufferPool<byte[]> pool = createPool(false);
+        byte[] cell = pool.acquire();
+
+        // Simulating the writer thread releasing a cell the reader thread acquired
+        Thread writer = new Thread(() -> {
+            // Filling the writer's own cache first, so that the cell ends up in the shared overflow
+            for (int i = 0; i < 64; i++) {
+                pool.release(new byte[CellView.CELL_SIZE]);
+            }
+            pool.release(cell);
+        });
+        writer.start();
+        writer.join();
+
+        assertSame(cell, pool.acquire());
+    }
+
+    @Test
+    public void buffersOfWrongSizeAreIgnored() {
+        CellBufferPool<byte[]> pool = createPool(false);
+        pool.release(new byte[504]);
+
+        assertEquals(CellView.CELL_SIZE, pool.acquire().length);
+    }
+
+    @Test
+    public void leakIsReported() {
+        CellBufferPool<byte[]> pool = createPool(true);
+        byte[] released = pool.acquire();
+        pool.acquire();
+        pool.release(released);
+
+        assertEquals(1, pool.reportLeaks());
+    }
+
+    @Test
+    public void doubleReleaseDoesNotPoolBufferTwice() {
+        CellBufferPool<byte[]> pool = createPool(true);
+        byte[] cell = pool.acquire();
+        pool.release(cell);
+        pool.release(cell);
+
+        byte[] first = pool.acquire();
+        assertNotSame(first, pool.acquire());
+    }
+}
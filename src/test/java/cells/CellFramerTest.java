@@ -0,0 +1,82 @@
+package cells;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CellFramerTest {
+    byte[] cell = new byte[CellView.CELL_SIZE];
+
+    /**
+     * Creates a stream of cells where the first byte of each cell is its number
+     */
+    public byte[] createCells(int count) {
+        byte[] bytes = new byte[count * CellView.CELL_SIZE];
+        for (int i = 0; i < count; i++) {
+            bytes[i * CellView.CELL_SIZE] = (byte) i;
+        }
+        return bytes;
+    }
+
+    /**
+     * A stream that hands out at most a few bytes per read, like a slow socket
+     */
+    static class TrickleInputStream extends ByteArrayInputStream {
+        private final int chunk;
+
+        TrickleInputStream(byte[] bytes, int chunk) {
+            super(bytes);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, chunk));
+        }
+    }
+
+    @Test
+    public void burstOfCellsIsReadWithOneRead() throws IOException {
+        int[] reads = {0};
+        InputStream in = new ByteArrayInputStream(createCells(3)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                reads[0]++;
+                return super.read(b, off, len);
+            }
+        };
+        CellFramer framer = new CellFramer(in);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(framer.readCell(cell));
+            assertEquals(i, cell[0]);
+        }
+        assertEquals(1, reads[0]);
+        assertEquals(0, framer.bufferedCells());
+    }
+
+    @Test
+    public void cellsSplitOverManyReadsAreJoined() throws IOException {
+        CellFramer framer = new CellFramer(new TrickleInputStream(createCells(2), 100));
+
+        assertTrue(framer.readCell(cell));
+        assertEquals(0, cell[0]);
+        assertTrue(framer.readCell(cell));
+        assertEquals(1, cell[0]);
+        assertFalse(framer.readCell(cell));
+    }
+
+    @Test
+    public void closingInTheMiddleOfACellFails() throws IOException {
+        byte[] bytes = createCells(2);
+        CellFramer framer = new CellFramer(new ByteArrayInputStream(bytes, 0, bytes.length - 10));
+
+        assertTrue(framer.readCell(cell));
+        assertThrows(EOFException.class, () -> framer.readCell(cell));
+    }
+}
@@ -0,0 +1,105 @@
+package cells;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CellViewTest {
+    byte relayCommand = 4;
+    byte[] streamID = {0x12, 0x34};
+    byte[] payloadLength = {0x01, (byte) 0xF8}; // 504
+    byte[] circuitID = {(byte) 0xAB, (byte) 0xCD};
+    byte[] payload = createRandomBytes(504);
+
+    CellView view = new CellView();
+
+    /**
+     * Method needed in order to effectively conduct tests where byte arrays of a certain size are needed
+     *
+     * @param size is a measure of how many bytes to be returned
+     * @return a byte array containing the specified amount of random bytes
+     */
+    public byte[] createRandomBytes(int size) {
+        Random randomizer = new Random();
+        byte[] bytes = new byte[size];
+        randomizer.nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void readsHeaderOfRelayCell() {
+        RelayCell cell = new RelayCell(relayCommand, streamID, payloadLength, circuitID);
+        view.wrap(cell.getTotalMessage());
+
+        assertEquals(0xABCD, view.getCircuitId());
+        assertEquals(0, view.getCommand());
+        assertTrue(view.isRelayCell());
+        assertEquals(0x1234, view.getStreamId());
+        assertEquals(504, view.getPayloadLength());
+        assertEquals(relayCommand, view.getRelayCommand());
+    }
+
+    @Test
+    public void readsPayloadOfRelayCell() {
+        RelayCell cell = new RelayCell(relayCommand, streamID, payloadLength, circuitID);
+        cell.setPayload(payload);
+
+        byte[] copied = new byte[CellView.RELAY_PAYLOAD_SIZE];
+        view.wrap(cell.getTotalMessage()).getRelayPayload(copied, 0, copied.length);
+
+        assertEquals(Arrays.toString(payload), Arrays.toString(copied));
+        // The payload must not overwrite the relay command
+        assertEquals(relayCommand, view.getRelayCommand());
+    }
+
+    @Test
+    public void writesCellAtOffsetInDirectBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(3 * CellView.CELL_SIZE);
+        int offset = CellView.CELL_SIZE * 2;
+
+        view.wrap(buffer, offset)
+                .setCircuitId(0xFFFF)
+                .setCommand((byte) 0)
+                .setStreamId(7)
+                .setPayloadLength(3)
+                .setRelayCommand((byte) 6)
+                .setRelayPayload(new byte[] {1, 2, 3}, 0, 3);
+
+        // The buffer's position must not move when the view is used
+        assertEquals(0, buffer.position());
+        assertEquals((byte) 0xFF, buffer.get(offset));
+        assertEquals(6, buffer.get(offset + CellView.RELAY_COMMAND_OFFSET));
+        assertEquals(3, buffer.get(offset + CellView.RELAY_PAYLOAD_OFFSET + 2));
+
+        // Re-pointing the view at another cell in the same buffer
+        view.wrap(buffer, 0);
+        assertEquals(0, view.getCircuitId());
+    }
+
+    @Test
+    public void readsControlPayloadWrittenByControlCell() {
+        ControlCell cell = new ControlCell((byte) 1, circuitID);
+        cell.setPayload(new byte[] {9, 8, 7, 6});
+
+        byte[] u = new byte[4];
+        view.wrap(cell.getTotalMessage()).getControlPayload(u, 0, 4);
+
+        assertEquals(1, view.getCommand());
+        assertEquals(Arrays.toString(new byte[] {9, 8, 7, 6}), Arrays.toString(u));
+    }
+
+    @Test
+    public void tooSmallArrayFails() {
+        assertThrows(IllegalArgumentException.class, () -> view.wrap(new byte[100]));
+    }
+
+    @Test
+    public void valueLargerThanTwoBytesFails() {
+        view.wrap(new byte[CellView.CELL_SIZE]);
+        assertThrows(IllegalArgumentException.class, () -> view.setStreamId(0x10000));
+    }
+}
@@ -0,0 +1,118 @@
+package circuit;
+
+import Interface.ICellMethods;
+import cells.CellView;
+import nodes.DirectoryNode;
+import nodes.Node;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import proxy.ProxyKeyStore;
+import security.CircuitKeyContext;
+import security.CircuitKeyTable;
+import security.Cryptography;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CircuitBuilderTest {
+    private final ArrayList<Node> routers = new ArrayList<>();
+    private Circuit circuit;
+    private int circuitId;
+
+    @BeforeEach
+    public void createCircuit() {
+        for (int i = 0; i < 3; i++) {
+            routers.add(new Node(new InetSocketAddress("localhost", 0), 0));
+        }
+        circuit = new Circuit(routers);
+        circuitId = (Byte.toUnsignedInt(circuit.getId()[0]) << 8) | Byte.toUnsignedInt(circuit.getId()[1]);
+    }
+
+    @AfterEach
+    public void closeNodes() throws Exception {
+        DirectoryNode.removeCircuit(circuit);
+        ProxyKeyStore.remove(circuitId);
+        for (Node node : routers) {
+            node.getServerSocket().close();
+        }
+    }
+
+    @Test
+    public void everyNodeIsAddedWithCreateThenExtendCells() throws Exception {
+        CircuitBuilder builder = new CircuitBuilder(5_000);
+        BlockingQueue<byte[]> toGuard = new LinkedBlockingQueue<>();
+        CompletableFuture<Circuit> built = builder.build(circuit, toGuard::put, InetAddress.getLoopbackAddress());
+
+        // The nodes' halves of the handshakes, by position, and the links the create cells arrive on
+        CircuitKeyContext[] nodes = new CircuitKeyContext[3];
+        Object[] links = {new Object(), new Object(), new Object()};
+        Cryptography cryptography = new Cryptography();
+        CellView view = new CellView();
+        try {
+            // The guard node answers the create cell
+            byte[] cell = toGuard.poll(5, TimeUnit.SECONDS);
+            assertEquals(1, cell[CellView.COMMAND_OFFSET]);
+            nodes[0] = ICellMethods.createdInPlace(view.wrap(cell), links[0]);
+            assertTrue(builder.onCreated(cell));
+
+            // Each following node is reached through the hops that are built, as the nodes would do it
+            for (int next = 1; next < 3; next++) {
+                cell = toGuard.poll(5, TimeUnit.SECONDS);
+                int last = next - 1;
+                for (int hop = 0; hop <= last; hop++) {
+                    nodes[hop].getForwardCipher().apply(cell);
+                }
+                view.wrap(cell);
+                assertEquals(0, view.getCommand());
+                assertEquals(2, view.getRelayCommand());
+
+                // The last hop sends the create cell on, and turns the created cell into relay extended
+                ICellMethods.extendInPlace(view);
+                nodes[next] = ICellMethods.createdInPlace(view, links[next]);
+                ICellMethods.extendedInPlace(view);
+                cryptography.seal(cell, nodes[last].getBackwardCipher());
+                for (int hop = last - 1; hop >= 0; hop--) {
+                    nodes[hop].getBackwardCipher().apply(cell);
+                }
+
+                int from = cryptography.peel(cell, ProxyKeyStore.get(circuitId).backwardCiphers());
+                assertEquals(last, from);
+                assertTrue(builder.onExtended(cell, from));
+            }
+
+            assertSame(circuit, built.get(5, TimeUnit.SECONDS));
+            assertEquals(0, builder.activeBuilds());
+            ProxyKeyStore keys = ProxyKeyStore.get(circuitId);
+            assertEquals(3, keys.size());
+            for (int hop = 0; hop < 3; hop++) {
+                assertArrayEquals(nodes[hop].getSecretKey().getEncoded(), keys.getHop(hop).getSecretKey().getEncoded());
+            }
+        } finally {
+            for (Object link : links) {
+                CircuitKeyTable.shared().removeLink(link);
+            }
+        }
+    }
+
+    @Test
+    public void hopThatDoesNotAnswerFailsTheBuild() {
+        CircuitBuilder builder = new CircuitBuilder(50);
+        // The cells are lost on the way
+        CompletableFuture<Circuit> built = builder.build(circuit, cell -> { }, InetAddress.getLoopbackAddress());
+
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> built.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(TimeoutException.class, failure.getCause());
+        assertEquals(0, builder.activeBuilds());
+        assertNull(ProxyKeyStore.get(circuitId));
+    }
+}
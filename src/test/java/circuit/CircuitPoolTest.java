@@ -0,0 +1,178 @@
+package circuit;
+
+import Interface.ICircuitFactory;
+import nodes.DirectoryNode;
+import nodes.Node;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CircuitPoolTest {
+    private final ArrayList<Node> routers = new ArrayList<>();
+    private final AtomicInteger built = new AtomicInteger();
+    private final List<Circuit> retired = new CopyOnWriteArrayList<>();
+
+    // Builds circuits over the same nodes, without connecting them
+    private final ICircuitFactory factory = new ICircuitFactory() {
+        @Override
+        public Circuit buildCircuit() {
+            built.incrementAndGet();
+            return new Circuit(routers);
+        }
+
+        @Override
+        public void retireCircuit(Circuit circuit) {
+            retired.add(circuit);
+            DirectoryNode.removeCircuit(circuit);
+        }
+    };
+
+    @BeforeEach
+    public void createNodes() {
+        for (int i = 0; i < 3; i++) {
+            routers.add(new Node(new InetSocketAddress("localhost", 0), 0));
+        }
+    }
+
+    @AfterEach
+    public void closeNodes() throws Exception {
+        for (Node node : routers) {
+            node.getServerSocket().close();
+        }
+    }
+
+    /**
+     * Waits until the pool holds the number of warm circuits
+     */
+    private static void awaitWarm(CircuitPool pool, int circuits) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (pool.warmCircuits() != circuits && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(circuits, pool.warmCircuits());
+    }
+
+    @Test
+    public void warmCircuitIsHandedOutAndReplaced() throws Exception {
+        CircuitPool pool = new CircuitPool(factory, 2, 0, 0);
+        try {
+            pool.start();
+            awaitWarm(pool, 2);
+
+            CompletableFuture<Circuit> taken = pool.take();
+            assertTrue(taken.isDone());
+            assertNotNull(taken.get());
+
+            // Another circuit is built to take its place
+            awaitWarm(pool, 2);
+            assertEquals(3, built.get());
+        } finally {
+            pool.close();
+        }
+        assertEquals(2, retired.size());
+    }
+
+    @Test
+    public void wornOutCircuitsAreRetired() throws Exception {
+        CircuitPool pool = new CircuitPool(factory, 1, 0, 1000);
+        try {
+            pool.start();
+            Circuit circuit = pool.take().get(5, TimeUnit.SECONDS);
+            circuit.addBytesRelayed(400);
+            assertFalse(pool.isWornOut(circuit));
+
+            circuit.addBytesRelayed(600);
+            assertTrue(pool.isWornOut(circuit));
+            pool.giveBack(circuit);
+            assertEquals(List.of(circuit), retired);
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void oldCircuitsAreRetiredInTheBackground() throws Exception {
+        CircuitPool pool = new CircuitPool(factory, 1, 50, 0);
+        try {
+            pool.start();
+            awaitWarm(pool, 1);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (retired.isEmpty() && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            assertFalse(retired.isEmpty());
+            assertTrue(built.get() >= 2);
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void circuitOfACallerThatGaveUpIsNotLeaked() throws Exception {
+        CountDownLatch reachable = new CountDownLatch(1);
+        // The builds wait until the test lets them finish
+        ICircuitFactory slow = new ICircuitFactory() {
+            @Override
+            public Circuit buildCircuit() throws Exception {
+                assertTrue(reachable.await(5, TimeUnit.SECONDS));
+                return factory.buildCircuit();
+            }
+
+            @Override
+            public void retireCircuit(Circuit circuit) {
+                factory.retireCircuit(circuit);
+            }
+        };
+        CircuitPool pool = new CircuitPool(slow, 1, 0, 0);
+        try {
+            pool.start();
+            CompletableFuture<Circuit> taken = pool.take();
+            // The caller stops waiting before its circuit is built
+            taken.cancel(false);
+            reachable.countDown();
+
+            // One circuit is kept warm, and the one built for the caller is retired instead of lost
+            awaitWarm(pool, 1);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (retired.isEmpty() && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(2, built.get());
+            assertEquals(1, retired.size());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void failedBuildIsRetriedWithoutACaller() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        // The first two builds fail, as if the nodes could not be reached yet
+        ICircuitFactory flaky = () -> {
+            if(attempts.incrementAndGet() <= 2) {
+                throw new IllegalStateException("Build " + attempts.get() + " failed");
+            }
+            return factory.buildCircuit();
+        };
+        CircuitPool pool = new CircuitPool(flaky, 1, 0, 0, 10);
+        try {
+            pool.start();
+            // Nobody takes a circuit, yet the pool fills up once the builds succeed
+            awaitWarm(pool, 1);
+            assertEquals(3, attempts.get());
+        } finally {
+            pool.close();
+        }
+    }
+}
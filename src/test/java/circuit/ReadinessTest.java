@@ -0,0 +1,47 @@
+package circuit;
+
+import nodes.Node;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReadinessTest {
+
+    @Test
+    public void signalWakesTheWaiter() throws Exception {
+        Readiness readiness = new Readiness();
+        Thread signaller = new Thread(() -> readiness.signal(ReadinessEvent.HANDSHAKE_COMPLETE));
+        signaller.start();
+
+        readiness.await(ReadinessEvent.HANDSHAKE_COMPLETE, 5_000);
+        assertTrue(readiness.isReady(ReadinessEvent.HANDSHAKE_COMPLETE));
+        assertFalse(readiness.isReady(ReadinessEvent.STREAM_CONNECTED));
+        signaller.join();
+    }
+
+    @Test
+    public void failedEventThrowsItsCause() {
+        Readiness readiness = new Readiness();
+        readiness.fail(ReadinessEvent.LINK_CONNECTED, new IOException("refused"));
+
+        IOException cause = assertThrows(IOException.class, () -> readiness.await(ReadinessEvent.LINK_CONNECTED, 5_000));
+        assertEquals("refused", cause.getMessage());
+        assertFalse(readiness.isReady(ReadinessEvent.LINK_CONNECTED));
+        assertThrows(TimeoutException.class, () -> readiness.await(ReadinessEvent.STREAM_CONNECTED, 10));
+    }
+
+    @Test
+    public void nodeIsBoundOnceCreated() throws Exception {
+        Node node = new Node(new InetSocketAddress("localhost", 0), 0);
+        try {
+            assertTrue(node.getReadiness().isReady(ReadinessEvent.SERVER_SOCKET_BOUND));
+            assertFalse(node.getReadiness().isReady(ReadinessEvent.LINK_CONNECTED));
+        } finally {
+            node.getServerSocket().close();
+        }
+    }
+}
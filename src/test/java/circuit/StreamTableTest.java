@@ -0,0 +1,38 @@
+package circuit;
+
+import org.junit.jupiter.api.Test;
+import proxy.ProxyStream;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StreamTableTest {
+
+    @Test
+    public void openedStreamsGetTheirOwnIds() {
+        StreamTable<ProxyStream> streams = new StreamTable<>();
+        Set<Integer> ids = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            ProxyStream stream = streams.open(ProxyStream::new);
+            assertTrue(stream.getStreamId() > 0 && stream.getStreamId() <= 0xFFFF);
+            assertTrue(ids.add(stream.getStreamId()));
+            assertSame(stream, streams.get(stream.getStreamId()));
+        }
+        assertEquals(100, streams.size());
+    }
+
+    @Test
+    public void addRejectsReservedAndUsedIds() {
+        StreamTable<String> streams = new StreamTable<>();
+        assertFalse(streams.add(0, "circuit"));
+        assertTrue(streams.add(7, "first"));
+        assertFalse(streams.add(7, "second"));
+        assertEquals("first", streams.get(7));
+
+        assertEquals("first", streams.remove(7));
+        assertNull(streams.get(7));
+        assertEquals(0, streams.size());
+    }
+}
@@ -0,0 +1,33 @@
+package mainServer;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GuardConnectionTest {
+
+    @Test
+    public void closeStopsTheWriterThread() throws Exception {
+        try (ServerSocket guard = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            Socket socket = new Socket(guard.getInetAddress(), guard.getLocalPort());
+            Socket accepted = guard.accept();
+            GuardConnection connection = new GuardConnection(socket);
+            connection.start();
+
+            // The writer sends what is queued, then waits for more
+            connection.getQueue().put(new byte[512]);
+            assertEquals(512, accepted.getInputStream().readNBytes(512).length);
+
+            connection.close();
+            Thread writer = connection.getWriter().getRunningThread();
+            writer.join(5_000);
+            assertFalse(writer.isAlive());
+            assertTrue(socket.isClosed());
+            accepted.close();
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package nodes;
+
+import Interface.ICellMethods;
+import Interface.IHostResolver;
+import cells.CellView;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import security.CircuitKeyContext;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EndNodeTest {
+    private static final int CIRCUIT_ID = 77;
+
+    private final BlockingQueue<byte[]> toPrevious = new LinkedBlockingQueue<>();
+    private final EndNode exit = new EndNode(toPrevious, ICellMethods.SENDME_INCREMENT,
+            new ExitConnectionPool(4, 1, 30_000));
+    private final CellView view = new CellView();
+    private CircuitKeyContext proxyKeys;
+    private CircuitKeyContext nodeKeys;
+    private ServerSocket destination;
+
+    @BeforeEach
+    public void handshake() throws Exception {
+        CircuitKeyContext[] keys = handshake(CIRCUIT_ID);
+        proxyKeys = keys[0];
+        nodeKeys = keys[1];
+
+        destination = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * @return the keys of the proxy and of the node, after a handshake for the circuit
+     */
+    private static CircuitKeyContext[] handshake(int circuitId) throws Exception {
+        CircuitKeyContext proxy = new CircuitKeyContext(circuitId, null);
+        CircuitKeyContext node = new CircuitKeyContext(circuitId, null);
+        byte[] proxyU = new byte[CircuitKeyContext.U_SIZE];
+        byte[] nodeU = new byte[CircuitKeyContext.U_SIZE];
+        proxy.writeLocalU(proxyU, 0);
+        node.writeLocalU(nodeU, 0);
+        node.complete(CircuitKeyContext.toPublicKey(proxyU, 0));
+        proxy.complete(CircuitKeyContext.toPublicKey(nodeU, 0));
+        return new CircuitKeyContext[] {proxy, node};
+    }
+
+    @AfterEach
+    public void close() throws Exception {
+        exit.closeAll();
+        destination.close();
+    }
+
+    /**
+     * Hands the end node a decrypted relay cell, the way the last node's reader thread does
+     */
+    private void receive(int streamId, byte relayCommand, byte[] payload) {
+        receive(exit, streamId, relayCommand, payload);
+    }
+
+    private void receive(EndNode node, int streamId, byte relayCommand, byte[] payload) {
+        receive(node, nodeKeys, streamId, relayCommand, payload);
+    }
+
+    /**
+     * @param keys are the node's keys of the circuit, which tell the circuit id
+     */
+    private void receive(EndNode node, CircuitKeyContext keys, int streamId, byte relayCommand, byte[] payload) {
+        byte[] cell = new byte[CellView.CELL_SIZE];
+        view.wrap(cell)
+                .setCircuitId(keys.getCircuitId())
+                .setCommand((byte) 0)
+                .setStreamId(streamId)
+                .setPayloadLength(payload.length)
+                .setRelayCommand(relayCommand)
+                .setRelayPayload(payload, 0, payload.length);
+        node.handleRelayCell(view, keys);
+    }
+
+    /**
+     * Takes the next cell the end node sent back, and removes its layer the way the proxy does
+     */
+    private byte[] sentBack() throws InterruptedException {
+        return sentBack(toPrevious, proxyKeys);
+    }
+
+    /**
+     * @param queue is where the end node puts the cells for the previous node
+     * @param keys are the proxy's keys of the circuit
+     */
+    private byte[] sentBack(BlockingQueue<byte[]> queue, CircuitKeyContext keys) throws InterruptedException {
+        byte[] cell = queue.poll(5, TimeUnit.SECONDS);
+        assertNotNull(cell);
+        assertTrue(keys.getBackwardCipher().open(cell));
+        view.wrap(cell);
+        assertEquals(keys.getCircuitId(), view.getCircuitId());
+        return cell;
+    }
+
+    @Test
+    public void streamIsConnectedRelayedAndClosed() throws Exception {
+        String address = "127.0.0.1:" + destination.getLocalPort();
+        receive(5, (byte) 1, address.getBytes(StandardCharsets.UTF_8));
+
+        try (Socket accepted = destination.accept()) {
+            sentBack();
+            assertEquals(5, view.getRelayCommand());
+            assertEquals(5, view.getStreamId());
+
+            // The data of the proxy reaches the destination
+            receive(5, (byte) 4, "GET /".getBytes(StandardCharsets.UTF_8));
+            InputStream in = accepted.getInputStream();
+            assertArrayEquals("GET /".getBytes(StandardCharsets.UTF_8), in.readNBytes(5));
+
+            // The answer of the destination comes back in relay data cells
+            OutputStream out = accepted.getOutputStream();
+            out.write("200 OK".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            sentBack();
+            assertEquals(4, view.getRelayCommand());
+            byte[] payload = new byte[view.getPayloadLength()];
+            view.getRelayPayload(payload, 0, payload.length);
+            assertEquals("200 OK", new String(payload, StandardCharsets.UTF_8));
+        }
+
+        // The destination closed the connection, so the stream is closed
+        sentBack();
+        assertEquals(6, view.getRelayCommand());
+        assertEquals(5, view.getStreamId());
+        assertEquals(0, exit.openStreams());
+    }
+
+    @Test
+    public void streamsOfOneCircuitAreKeptApart() throws Exception {
+        // No connection is kept when a stream is closed, so closing the stream closes its connection
+        EndNode unpooled = new EndNode(toPrevious, ICellMethods.SENDME_INCREMENT, new ExitConnectionPool(0, 1, 30_000));
+        try {
+            String address = "127.0.0.1:" + destination.getLocalPort();
+            receive(unpooled, 1, (byte) 1, address.getBytes(StandardCharsets.UTF_8));
+            Socket first = destination.accept();
+            sentBack();
+            receive(unpooled, 2, (byte) 1, address.getBytes(StandardCharsets.UTF_8));
+            Socket second = destination.accept();
+            sentBack();
+            assertEquals(2, unpooled.openStreams());
+
+            // Closing one stream leaves the other open
+            receive(unpooled, 1, (byte) 6, new byte[0]);
+            assertEquals(-1, first.getInputStream().read());
+            assertEquals(1, unpooled.openStreams());
+
+            receive(unpooled, 2, (byte) 4, new byte[] {42});
+            assertEquals(42, second.getInputStream().read());
+            first.close();
+            second.close();
+        } finally {
+            unpooled.closeAll();
+        }
+    }
+
+    @Test
+    public void unreachableDestinationClosesTheStream() throws Exception {
+        receive(9, (byte) 1, "no port".getBytes(StandardCharsets.UTF_8));
+        sentBack();
+        assertEquals(6, view.getRelayCommand());
+        assertEquals(9, view.getStreamId());
+    }
+
+    @Test
+    public void streamWaitsForSendmeOnceItsWindowIsUsed() throws Exception {
+        String address = "127.0.0.1:" + destination.getLocalPort();
+        receive(3, (byte) 1, address.getBytes(StandardCharsets.UTF_8));
+        try (Socket accepted = destination.accept()) {
+            sentBack();
+
+            // More than a window of data is waiting at the destination, written on another thread,
+            // as the socket buffers may not hold all of it while the end node is not reading
+            int total = 3 * ICellMethods.SENDME_INCREMENT * CellView.RELAY_DATA_SIZE;
+            Thread writer = new Thread(() -> {
+                try {
+                    OutputStream out = accepted.getOutputStream();
+                    out.write(new byte[total]);
+                    out.flush();
+                } catch (Exception e) {
+                    // The socket is closed when the test ends
+                }
+            });
+            writer.setDaemon(true);
+            writer.start();
+
+            int cells = 0;
+            int bytes = 0;
+            while (cells < ICellMethods.SENDME_INCREMENT) {
+                sentBack();
+                assertEquals(4, view.getRelayCommand());
+                bytes += view.getPayloadLength();
+                cells++;
+            }
+            // The window is used up, so nothing more is sent until the proxy acknowledges
+            assertNull(toPrevious.poll(300, TimeUnit.MILLISECONDS));
+
+            receive(3, (byte) 7, new byte[0]);
+            sentBack();
+            assertEquals(4, view.getRelayCommand());
+            bytes += view.getPayloadLength();
+            assertTrue(bytes < total);
+        }
+    }
+
+    @Test
+    public void connectionOfAClosedStreamIsReused() throws Exception {
+        String address = "127.0.0.1:" + destination.getLocalPort();
+        receive(1, (byte) 1, address.getBytes(StandardCharsets.UTF_8));
+        try (Socket accepted = destination.accept()) {
+            sentBack();
+            receive(1, (byte) 4, new byte[] {1});
+            assertEquals(1, accepted.getInputStream().read());
+
+            // The proxy closes the stream while the destination keeps the connection open, as with keep-alive
+            receive(1, (byte) 6, new byte[0]);
+            receive(2, (byte) 1, address.getBytes(StandardCharsets.UTF_8));
+            sentBack();
+            assertEquals(5, view.getRelayCommand());
+            assertEquals(2, view.getStreamId());
+
+            // No new connection was made, the new stream's data arrives on the kept one
+            destination.setSoTimeout(300);
+            assertThrows(SocketTimeoutException.class, destination::accept);
+            receive(2, (byte) 4, new byte[] {2});
+            assertEquals(2, accepted.getInputStream().read());
+        }
+    }
+
+    @Test
+    public void fullQueueOfOneCircuitDoesNotStopTheOthers() throws Exception {
+        // Another circuit, whose writer has room for only one cell and does not take any for now
+        BlockingQueue<byte[]> full = new ArrayBlockingQueue<>(1);
+        EndNode slow = new EndNode(full, ICellMethods.SENDME_INCREMENT, new ExitConnectionPool(0, 1, 30_000));
+        CircuitKeyContext[] slowKeys = handshake(CIRCUIT_ID + 1);
+
+        String address = "127.0.0.1:" + destination.getLocalPort();
+        byte[] begin = address.getBytes(StandardCharsets.UTF_8);
+        receive(slow, slowKeys[1], 1, (byte) 1, begin);
+        Socket slowDestination = destination.accept();
+        Socket accepted = null;
+        try {
+            // The connected cell fills the queue, once it is taken the data cells fill it again
+            sentBack(full, slowKeys[0]);
+            assertEquals(5, view.getRelayCommand());
+            int total = 3 * ICellMethods.SENDME_INCREMENT * CellView.RELAY_DATA_SIZE;
+            Thread writer = new Thread(() -> {
+                try {
+                    slowDestination.getOutputStream().write(new byte[total]);
+                } catch (Exception e) {
+                    // The socket is closed when the test ends
+                }
+            });
+            writer.setDaemon(true);
+            writer.start();
+
+            // Waits until the queue is full and the end node holds the other cells back
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!slow.isBackedUp()) {
+                assertTrue(System.nanoTime() - deadline < 0, "The queue of the slow circuit never filled up");
+                Thread.sleep(1);
+            }
+
+            // The engine is not stuck on the full queue, the streams of this circuit are still served
+            receive(5, (byte) 1, begin);
+            accepted = destination.accept();
+            sentBack();
+            assertEquals(5, view.getRelayCommand());
+            assertEquals(5, view.getStreamId());
+            receive(5, (byte) 4, new byte[] {42});
+            assertEquals(42, accepted.getInputStream().read());
+
+            // Once the writer takes cells, the held ones follow in order, up to the stream's window
+            for (int cells = 0; cells < ICellMethods.SENDME_INCREMENT; cells++) {
+                sentBack(full, slowKeys[0]);
+                assertEquals(4, view.getRelayCommand());
+            }
+        } finally {
+            slow.closeAll();
+            slowDestination.close();
+            if(accepted != null) {
+                accepted.close();
+            }
+        }
+    }
+
+    @Test
+    public void namesAreResolvedThroughTheCache() throws Exception {
+        AtomicInteger lookups = new AtomicInteger();
+        IHostResolver local = host -> {
+            lookups.incrementAndGet();
+            if(!host.equals("destination.test")) {
+                throw new UnknownHostException(host);
+            }
+            return new InetAddress[] {InetAddress.getLoopbackAddress()};
+        };
+        ExitEngine engine = new ExitEngine("test-exit-engine",
+                new ResolverCache(local, Runnable::run, 16, 30_000, 30_000, 0));
+        engine.start();
+        EndNode named = new EndNode(toPrevious, ICellMethods.SENDME_INCREMENT,
+                new ExitConnectionPool(0, 1, 30_000), engine);
+        try {
+            String address = "destination.test:" + destination.getLocalPort();
+            named.handleRelayCell(relayBegin(1, address), nodeKeys);
+            Socket first = destination.accept();
+            sentBack();
+            assertEquals(5, view.getRelayCommand());
+            named.handleRelayCell(relayBegin(2, address), nodeKeys);
+            Socket second = destination.accept();
+            sentBack();
+            assertEquals(5, view.getRelayCommand());
+            // The second stream used the cached address
+            assertEquals(1, lookups.get());
+
+            // A name that does not exist closes the stream
+            named.handleRelayCell(relayBegin(3, "missing.test:80"), nodeKeys);
+            sentBack();
+            assertEquals(6, view.getRelayCommand());
+            assertEquals(3, view.getStreamId());
+            first.close();
+            second.close();
+        } finally {
+            named.closeAll();
+            engine.shutdown();
+        }
+    }
+
+    private CellView relayBegin(int streamId, String address) {
+        byte[] payload = address.getBytes(StandardCharsets.UTF_8);
+        return view.wrap(new byte[CellView.CELL_SIZE])
+                .setCircuitId(CIRCUIT_ID)
+                .setCommand((byte) 0)
+                .setStreamId(streamId)
+                .setPayloadLength(payload.length)
+                .setRelayCommand((byte) 1)
+                .setRelayPayload(payload, 0, payload.length);
+    }
+}
@@ -0,0 +1,100 @@
+package nodes;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExitConnectionPoolTest {
+    private Selector selector;
+    // The pool's clock, in nanoseconds, moved by hand
+    private final AtomicLong now = new AtomicLong();
+
+    @BeforeEach
+    public void openSelector() throws Exception {
+        selector = Selector.open();
+    }
+
+    @AfterEach
+    public void closeSelector() throws Exception {
+        selector.close();
+    }
+
+    /**
+     * @return the key of a new channel, registered the way the engine registers the channels of its streams
+     */
+    private SelectionKey register() throws Exception {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        return channel.register(selector, 0);
+    }
+
+    private void advanceMillis(long millis) {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    private static boolean offer(ExitConnectionPool pool, String destination, SelectionKey key) {
+        return pool.offer(destination, (SocketChannel) key.channel(), key);
+    }
+
+    @Test
+    public void connectionIsTakenBackByItsDestination() throws Exception {
+        ExitConnectionPool pool = new ExitConnectionPool(4, 2, 30_000);
+        SelectionKey key = register();
+        assertTrue(offer(pool, "Example.com:80", key));
+        assertNull(pool.take("example.com:443"));
+
+        ExitConnectionPool.Idle idle = pool.take("example.com:80");
+        assertNotNull(idle);
+        assertSame(key, idle.key);
+        assertTrue(idle.channel.isOpen());
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void limitsPerHostAndInTotalAreKept() throws Exception {
+        ExitConnectionPool pool = new ExitConnectionPool(2, 1, 30_000);
+        SelectionKey first = register();
+        assertTrue(offer(pool, "a:80", first));
+        assertFalse(offer(pool, "a:80", register()));
+
+        assertTrue(offer(pool, "b:80", register()));
+        assertTrue(offer(pool, "c:80", register()));
+        // The oldest connection was closed to make room
+        assertEquals(2, pool.size());
+        assertEquals(0, pool.size("a:80"));
+        assertFalse(first.channel().isOpen());
+    }
+
+    @Test
+    public void expiredConnectionsAreClosed() throws Exception {
+        ExitConnectionPool pool = new ExitConnectionPool(4, 4, 20, now::get);
+        SelectionKey key = register();
+        assertTrue(offer(pool, "a:80", key));
+        assertEquals(20, pool.millisUntilNextExpiry());
+
+        advanceMillis(19);
+        assertEquals(1, pool.millisUntilNextExpiry());
+        pool.evictExpired();
+        assertTrue(key.channel().isOpen());
+
+        advanceMillis(1);
+        assertNull(pool.take("a:80"));
+        assertFalse(key.channel().isOpen());
+        assertEquals(0, pool.millisUntilNextExpiry());
+    }
+
+    @Test
+    public void poolCanBeTurnedOff() throws Exception {
+        ExitConnectionPool pool = new ExitConnectionPool(0, 1, 30_000);
+        assertFalse(offer(pool, "a:80", register()));
+        assertEquals(0, pool.size());
+    }
+}
@@ -0,0 +1,128 @@
+package nodes;
+
+import Interface.ICellMethods;
+import cells.CellView;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import proxy.ProxyKeyStore;
+import security.Cryptography;
+import threads.CircuitEntry;
+import threads.EventLoopGroup;
+import threads.Link;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NodeCellHandlerTest {
+    private static final int CIRCUIT_ID = 0x0A0B;
+    private static final byte[] CIRCUIT_ID_BYTES = {0x0A, 0x0B};
+
+    private EventLoopGroup group;
+    private ServerSocketChannel guardServer;
+    private ServerSocketChannel endServer;
+    private Socket proxy;
+    private ServerSocket destination;
+    // The guard's link to the end node, and the end node's link from the guard
+    private Link toEnd;
+    private Link fromGuard;
+
+    /**
+     * Two nodes on event loops, the guard with a route to the end node for the circuit
+     */
+    @BeforeEach
+    public void connectNodes() throws Exception {
+        group = new EventLoopGroup(2);
+        NodeCellHandler guard = new NodeCellHandler(1);
+        NodeCellHandler end = new NodeCellHandler(2);
+        guardServer = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+        endServer = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+        proxy = new Socket("localhost", guardServer.socket().getLocalPort());
+        proxy.setSoTimeout(5000);
+        destination = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+
+        group.register(guardServer.accept(), guard);
+        toEnd = group.register(SocketChannel.open(endServer.getLocalAddress()), guard);
+        fromGuard = group.register(endServer.accept(), end);
+        guard.addRoute(CIRCUIT_ID, toEnd);
+    }
+
+    @AfterEach
+    public void stopLoops() throws Exception {
+        proxy.close();
+        destination.close();
+        guardServer.close();
+        endServer.close();
+        group.shutdown();
+        ProxyKeyStore.remove(CIRCUIT_ID);
+    }
+
+    /**
+     * The guard extends the circuit to the end node, and the end node opens a stream
+     */
+    @Test
+    public void circuitIsExtendedAndCarriesAStream() throws Exception {
+        buildAndOpenStream();
+        assertNotNull(fromGuard.getCircuits().get(CIRCUIT_ID));
+    }
+
+    /**
+     * The circuit's id is already used on the link to the end node, so the circuit gets another one there
+     */
+    @Test
+    public void circuitGetsAFreeIdOnTheNextLink() throws Exception {
+        assertTrue(toEnd.getCircuits().add(new CircuitEntry(CIRCUIT_ID, null, false)));
+        buildAndOpenStream();
+
+        assertNull(fromGuard.getCircuits().get(CIRCUIT_ID));
+        assertEquals(1, fromGuard.getCircuits().size());
+        assertEquals(2, toEnd.getCircuits().size());
+    }
+
+    /**
+     * Builds the circuit through both nodes the way the proxy does, and opens a stream to the destination
+     */
+    private void buildAndOpenStream() throws Exception {
+        OutputStream out = proxy.getOutputStream();
+        DataInputStream in = new DataInputStream(proxy.getInputStream());
+        ProxyKeyStore keys = ProxyKeyStore.forCircuit(CIRCUIT_ID);
+        Cryptography cryptography = new Cryptography();
+        byte[] cell = new byte[CellView.CELL_SIZE];
+
+        // The guard answers the create cell itself
+        out.write(ICellMethods.create(CIRCUIT_ID_BYTES, InetAddress.getLoopbackAddress()).getTotalMessage());
+        in.readFully(cell);
+        assertEquals(0, ICellMethods.created(cell));
+
+        // The guard sends the handshake on to the end node, and answers with a relay extended cell
+        out.write(ICellMethods.relayExtend(CIRCUIT_ID_BYTES, 1, InetAddress.getLoopbackAddress()).getTotalMessage());
+        in.readFully(cell);
+        assertEquals(0, cryptography.peel(cell, keys.backwardCiphers()));
+        assertEquals(3, new CellView().wrap(cell).getRelayCommand());
+        assertEquals(1, ICellMethods.relayExtended(cell));
+
+        // The stream is opened by the end node, which says so with a relay connected cell
+        ArrayList<Node> circuit = new ArrayList<>(Arrays.asList(new Node(), new Node()));
+        out.write(ICellMethods.relayBegin(CIRCUIT_ID_BYTES, new byte[] {0, 5},
+                "localhost:" + destination.getLocalPort(), circuit).getTotalMessage());
+        try (Socket accepted = destination.accept()) {
+            in.readFully(cell);
+            assertEquals(1, cryptography.peel(cell, keys.backwardCiphers()));
+            CellView view = new CellView().wrap(cell);
+            assertEquals(CIRCUIT_ID, view.getCircuitId());
+            assertEquals(5, view.getRelayCommand());
+            assertEquals(5, view.getStreamId());
+            assertTrue(accepted.isConnected());
+        }
+    }
+}
@@ -3,18 +3,19 @@ package nodes;
 import cells.Cell;
 import cells.ControlCell;
 import cells.RelayCell;
+import circuit.ReadinessEvent;
 import org.junit.jupiter.api.Test;
 import security.Cryptography;
+import security.HopCipher;
 import security.KeyGeneration;
 import security.KeyInformation;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.UnknownHostException;
 import java.security.*;
@@ -23,6 +24,7 @@ import java.security.spec.NamedParameterSpec;
 import java.security.spec.XECPublicKeySpec;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -197,21 +199,18 @@ class NodeTest {
         } catch (InvalidAlgorithmParameterException | UnknownHostException | NoSuchAlgorithmException | InvalidKeySpecException e) {
             e.printStackTrace();
         }
-        // The symmetric keys are already created
-        SecretKey key1 = keyGeneration1.getCurrentKey().getSecretKey();
-        SecretKey key2 = keyGeneration2.getCurrentKey().getSecretKey();
+        // The symmetric keys are already created, along with the layer ciphers of both sides. Both sides hold
+        // the same key, so a layer added with one side's cipher is removed by the other side's cipher
+        HopCipher layer1 = keyGeneration1.getCurrentKey().getForwardCipher();
+        HopCipher layer2 = keyGeneration2.getCurrentKey().getBackwardCipher();
 
         // Encrypting the cell
         cell.setPayload(payload);
         Cell originalCell = cell;
-        try {
-            cryptography.encrypt(cell, key1);
-            cryptography.encrypt(cell,key2);
-            assertEquals(Arrays.toString(originalCell.getTotalMessage()), Arrays.toString(cell.getTotalMessage()));
-            assertEquals(512, cell.getTotalMessage().length);
-        } catch (NoSuchPaddingException | IllegalBlockSizeException | NoSuchAlgorithmException | BadPaddingException | InvalidKeyException e) {
-            e.printStackTrace();
-        }
+        cryptography.encrypt(cell, layer1);
+        cryptography.encrypt(cell, layer2);
+        assertEquals(Arrays.toString(originalCell.getTotalMessage()), Arrays.toString(cell.getTotalMessage()));
+        assertEquals(512, cell.getTotalMessage().length);
     }
 
     @Test
@@ -248,28 +247,16 @@ class NodeTest {
         } catch (InvalidAlgorithmParameterException | UnknownHostException | NoSuchAlgorithmException | InvalidKeySpecException e) {
             e.printStackTrace();
         }
-        // The symmetric keys are already created
-        SecretKey key1 = keyGeneration1.getCurrentKey().getSecretKey();
-        SecretKey key2 = keyGeneration2.getCurrentKey().getSecretKey();
-
-        try {
-            // Encrypting the cell
-            cryptography.encrypt(cell, key1);
-            cryptography.encrypt(cell, key2);
+        // The symmetric keys are already created, along with the layer ciphers of both sides. Both sides hold
+        // the same key, so a layer added with one side's cipher is removed by the other side's cipher
+        HopCipher layer1 = keyGeneration1.getCurrentKey().getForwardCipher();
+        HopCipher layer2 = keyGeneration2.getCurrentKey().getBackwardCipher();
 
-            assertNotEquals(originalCell.getTotalMessage().toString(), Arrays.toString(cell.getTotalMessage()));
+        // Encrypting the cell
+        cryptography.encrypt(cell, layer1);
+        cryptography.encrypt(cell, layer2);
 
-        } catch (NoSuchPaddingException e) {
-            e.printStackTrace();
-        } catch (IllegalBlockSizeException e) {
-            e.printStackTrace();
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } catch (BadPaddingException e) {
-            e.printStackTrace();
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
-        }
+        assertNotEquals(originalCell.getTotalMessage().toString(), Arrays.toString(cell.getTotalMessage()));
     }
         @Test
     public void decodingWorks() {
@@ -305,24 +292,21 @@ class NodeTest {
         } catch (InvalidAlgorithmParameterException | UnknownHostException | NoSuchAlgorithmException | InvalidKeySpecException e) {
             e.printStackTrace();
         }
-        // The symmetric keys are already created
-        SecretKey key1 = keyGeneration1.getCurrentKey().getSecretKey();
-        SecretKey key2 = keyGeneration2.getCurrentKey().getSecretKey();
+        // The symmetric keys are already created, along with the layer ciphers of both sides. Both sides hold
+        // the same key, so a layer added with one side's cipher is removed by the other side's cipher
+        HopCipher layer1 = keyGeneration1.getCurrentKey().getForwardCipher();
+        HopCipher layer2 = keyGeneration2.getCurrentKey().getBackwardCipher();
 
-        try {
-            // Encrypting the cell
-            cryptography.encrypt(cell, key1);
-            cryptography.encrypt(cell,key2);
+        // Encrypting the cell
+        cryptography.encrypt(cell, layer1);
+        cryptography.encrypt(cell, layer2);
 
-            // Decrypting the cell
-            cryptography.decrypt(cell.getTotalMessage(),key2);
-            cryptography.decrypt(cell.getTotalMessage(), key1);
+        // Decrypting the cell, with the other side's ciphers
+        cryptography.decrypt(cell.getTotalMessage(), keyGeneration1.getCurrentKey().getBackwardCipher());
+        cryptography.decrypt(cell.getTotalMessage(), keyGeneration2.getCurrentKey().getForwardCipher());
 
-            // originalCell and cell (decryptedTwice) should be equal
-            assertEquals(Arrays.toString(cell.getTotalMessage()), Arrays.toString(originalCell.getTotalMessage()));
-        } catch (NoSuchPaddingException | IllegalBlockSizeException | NoSuchAlgorithmException | BadPaddingException | InvalidKeyException e) {
-            e.printStackTrace();
-        }
+        // originalCell and cell (decryptedTwice) should be equal
+        assertEquals(Arrays.toString(cell.getTotalMessage()), Arrays.toString(originalCell.getTotalMessage()));
     }
 
     @Test
@@ -364,19 +348,10 @@ class NodeTest {
             BigInteger u = information3.getU();
             byte[] uToByteArray = u.toByteArray();
 
-            // Getting the public key
-            byte[] publicKey = information3.getLocalPublicKey().getEncoded();
-
-            // Setting the first 4 bytes of the payload
-            byte[] payload2 = new byte[20];
-            for (int i = 0; i < 4; i++) { //
-                payload2[i] = uToByteArray[i];
-            }
-
-            // Setting the next 16 bytes of the payload
-            for (int i = 4; i < 20; i++) {
-                payload2[i] = publicKey[i-3];
-            }
+            // u is sent as 32 bytes, big endian (toByteArray() may give fewer, or a leading 0 byte)
+            byte[] payload2 = new byte[32];
+            int length = Math.min(uToByteArray.length, 32);
+            System.arraycopy(uToByteArray, uToByteArray.length - length, payload2, 32 - length, length);
 
             // Setting the payload of the cell
             newCell.setPayload(payload2);
@@ -384,22 +359,22 @@ class NodeTest {
             // Now that we have the cell, we test if it is possible to revert the public key
             byte[] trying = newCell.getTotalMessage();
 
-            // Get u from the payload (resides in the first 4 bytes)
-            byte[] uByte = new byte[4];
+            // Get u from the payload (resides in the first 32 bytes)
+            byte[] uByte = new byte[32];
 
-            for (int i = 3; i < 7 ; i++) {
+            for (int i = 3; i < 35 ; i++) {
                 uByte[i-3] = trying[i];
             }
 
             // Convert u back to BigInteger
-            BigInteger u2 = new BigInteger(uByte);
+            BigInteger u2 = new BigInteger(1, uByte);
 
             // Convert the bytes to a PublicKey object
             NamedParameterSpec paramSpec = new NamedParameterSpec("X25519");
             KeyFactory kf = KeyFactory.getInstance("XDH");
             PublicKey regeneratedPublicKey = kf.generatePublic(new XECPublicKeySpec(paramSpec, u2 ));
 
-            assertEquals(Arrays.toString(uByte), Arrays.toString(uToByteArray));
+            assertEquals(Arrays.toString(uByte), Arrays.toString(payload2));
             // Check if BigIntegers are equal
             assertEquals(u2, u);
 
@@ -410,4 +385,23 @@ class NodeTest {
             e.printStackTrace();
         }
     }
+
+    @Test
+    public void closeStopsTheNodeAndItsThreads() throws Exception {
+        Node node = new Node(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        DirectoryNode.allNodes.add(node);
+        node.setNextNode(null);
+        node.createConnection();
+        try (Socket previous = new Socket(InetAddress.getLoopbackAddress(), node.getServerSocket().getLocalPort())) {
+            node.getReadiness().await(ReadinessEvent.LINK_CONNECTED, 5_000);
+
+            node.close();
+            DirectoryNode.removeNodes(List.of(node));
+            assertTrue(node.getServerSocket().isClosed());
+            assertFalse(DirectoryNode.allNodes.contains(node));
+            // The node's socket to the previous node is closed, so the previous node sees the end of the stream
+            previous.setSoTimeout(5_000);
+            assertEquals(-1, previous.getInputStream().read());
+        }
+    }
 }
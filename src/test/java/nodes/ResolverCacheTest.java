@@ -0,0 +1,141 @@
+package nodes;
+
+import Interface.IHostResolver;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResolverCacheTest {
+    private final AtomicInteger lookups = new AtomicInteger();
+    // The cache's clock, in nanoseconds, moved by hand
+    private final AtomicLong now = new AtomicLong();
+
+    /**
+     * Stands in for the system resolver: every name ending in .test has an address, counting up with each lookup,
+     * so a refreshed address can be told apart from the cached one
+     */
+    private final IHostResolver local = host -> {
+        int lookup = lookups.incrementAndGet();
+        if(!host.endsWith(".test")) {
+            throw new UnknownHostException(host);
+        }
+        return new InetAddress[] {InetAddress.getByAddress(host, new byte[] {10, 0, 0, (byte) lookup})};
+    };
+
+    private void advanceMillis(long millis) {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    private static int lastByte(InetAddress address) {
+        return address.getAddress()[3];
+    }
+
+    @Test
+    public void addressIsCachedForItsTtl() throws Exception {
+        ResolverCache cache = new ResolverCache(local, Runnable::run, 16, 50, 50, 0, now::get);
+        assertEquals(1, lastByte(cache.resolve("a.test").get()));
+        // Names are not case sensitive
+        assertEquals(1, lastByte(cache.resolve("A.Test").get()));
+        advanceMillis(49);
+        assertEquals(1, lastByte(cache.resolve("a.test").get()));
+        assertEquals(1, lookups.get());
+        assertEquals(2, cache.getHits());
+
+        advanceMillis(1);
+        assertEquals(2, lastByte(cache.resolve("a.test").get()));
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public void missingNameIsCachedToo() {
+        ResolverCache cache = new ResolverCache(local, Runnable::run, 16, 30_000, 30_000, 0);
+        for (int i = 0; i < 3; i++) {
+            ExecutionException failure = assertThrows(ExecutionException.class, () -> cache.resolve("missing").get());
+            assertInstanceOf(UnknownHostException.class, failure.getCause());
+        }
+        assertEquals(1, lookups.get());
+
+        ResolverCache uncached = new ResolverCache(local, Runnable::run, 16, 30_000, 0, 0);
+        assertThrows(ExecutionException.class, () -> uncached.resolve("missing").get());
+        assertThrows(ExecutionException.class, () -> uncached.resolve("missing").get());
+        assertEquals(3, lookups.get());
+    }
+
+    @Test
+    public void leastRecentlyUsedNameIsDropped() throws Exception {
+        ResolverCache cache = new ResolverCache(local, Runnable::run, 2, 30_000, 30_000, 0);
+        cache.resolve("a.test").get();
+        cache.resolve("b.test").get();
+        cache.resolve("a.test").get();
+        cache.resolve("c.test").get();
+        assertEquals(2, cache.size());
+        assertEquals(3, lookups.get());
+
+        // b was used longest ago, so it is the one looked up again
+        cache.resolve("a.test").get();
+        assertEquals(3, lookups.get());
+        cache.resolve("b.test").get();
+        assertEquals(4, lookups.get());
+    }
+
+    @Test
+    public void nameInUseIsRefreshedBeforeItExpires() throws Exception {
+        ResolverCache cache = new ResolverCache(local, Runnable::run, 16, 1_000, 1_000, 400, now::get);
+        assertEquals(1, lastByte(cache.resolve("a.test").get()));
+
+        // Not yet within the refresh ahead time, so nothing is looked up
+        advanceMillis(599);
+        assertEquals(1, lastByte(cache.resolve("a.test").getNow(null)));
+        assertEquals(1, lookups.get());
+
+        advanceMillis(101);
+        // Within the refresh ahead time, the cached address is still handed out while it is looked up again
+        CompletableFuture<InetAddress> hit = cache.resolve("a.test");
+        assertEquals(1, lastByte(hit.getNow(null)));
+        assertEquals(2, lookups.get());
+
+        // The first address would have expired by now, the refreshed one is used without waiting
+        advanceMillis(400);
+        assertEquals(2, lastByte(cache.resolve("a.test").getNow(null)));
+        assertEquals(2, lookups.get());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void concurrentMissesShareOneLookup() throws Exception {
+        CountDownLatch answer = new CountDownLatch(1);
+        IHostResolver slow = host -> {
+            try {
+                answer.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new UnknownHostException(host);
+            }
+            return local.resolve(host);
+        };
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            ResolverCache cache = new ResolverCache(slow, executor, 16, 30_000, 30_000, 0);
+            CompletableFuture<InetAddress> first = cache.resolve("a.test");
+            CompletableFuture<InetAddress> second = cache.resolve("a.test");
+            assertFalse(first.isDone());
+            assertSame(first, second);
+
+            answer.countDown();
+            assertEquals(1, lastByte(second.get(5, TimeUnit.SECONDS)));
+            assertEquals(1, lookups.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package proxy;
+
+import cells.CellView;
+import cells.RelayCell;
+import nodes.Node;
+import org.junit.jupiter.api.Test;
+import security.CircuitKeyContext;
+import security.Cryptography;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProxyKeyStoreTest {
+
+    /**
+     * Runs the handshake of one hop, and returns the node's half
+     */
+    private static CircuitKeyContext addHop(ProxyKeyStore store) throws Exception {
+        CircuitKeyContext proxy = new CircuitKeyContext(store.getCircuitId(), null);
+        CircuitKeyContext node = new CircuitKeyContext(store.getCircuitId(), null);
+        byte[] u = new byte[CircuitKeyContext.U_SIZE];
+        proxy.writeLocalU(u, 0);
+        node.complete(CircuitKeyContext.toPublicKey(u, 0));
+        node.writeLocalU(u, 0);
+        proxy.complete(CircuitKeyContext.toPublicKey(u, 0));
+
+        store.addPendingHandshake(proxy);
+        store.addHop(store.takePendingHandshake());
+        return node;
+    }
+
+    @Test
+    public void hopsAreIndexedByPosition() throws Exception {
+        ProxyKeyStore store = new ProxyKeyStore(1);
+        CircuitKeyContext guard = addHop(store);
+        CircuitKeyContext middle = addHop(store);
+
+        assertEquals(2, store.size());
+        assertEquals(2, store.forwardCiphers().length);
+        assertArrayEquals(guard.getSecretKey().getEncoded(), store.getHop(0).getSecretKey().getEncoded());
+        assertArrayEquals(middle.getSecretKey().getEncoded(), store.getHop(1).getSecretKey().getEncoded());
+        assertSame(store.getBackwardCipher(1), store.backwardCiphers()[1]);
+    }
+
+    @Test
+    public void circuitsThroughTheSameNodeHaveTheirOwnKeys() throws Exception {
+        ProxyKeyStore first = ProxyKeyStore.forCircuit(0x0101);
+        ProxyKeyStore second = ProxyKeyStore.forCircuit(new byte[] {2, 2});
+        try {
+            addHop(first);
+            addHop(second);
+            assertSame(first, ProxyKeyStore.get(0x0101));
+            assertSame(second, ProxyKeyStore.get(0x0202));
+            assertFalse(Arrays.equals(first.getHop(0).getSecretKey().getEncoded(),
+                    second.getHop(0).getSecretKey().getEncoded()));
+        } finally {
+            ProxyKeyStore.remove(0x0101);
+            ProxyKeyStore.remove(0x0202);
+        }
+        assertNull(ProxyKeyStore.get(0x0101));
+    }
+
+    @Test
+    public void encryptedCellIsRecognizedByTheLastNodeOnly() throws Exception {
+        ProxyKeyStore store = ProxyKeyStore.forCircuit(0x0303);
+        try {
+            CircuitKeyContext[] nodes = {addHop(store), addHop(store), addHop(store)};
+            ArrayList<Node> routers = new ArrayList<>(Arrays.asList(new Node(), new Node(), new Node()));
+
+            byte[] payload = new byte[CellView.RELAY_DATA_SIZE];
+            new Random(3).nextBytes(payload);
+            RelayCell cell = new RelayCell((byte) 4, new byte[] {0, 1}, new byte[] {0, 10}, new byte[] {3, 3});
+            cell.setPayload(payload);
+            byte[] original = cell.getTotalMessage().clone();
+
+            new Cryptography().encryptSpecifiedNumberOfTimes(cell, routers, 3, true);
+            assertFalse(Arrays.equals(original, cell.getTotalMessage()));
+
+            // Each node removes its own layer, and only the end node recognizes the cell as its own
+            assertFalse(nodes[0].getForwardCipher().open(cell.getTotalMessage()));
+            assertFalse(nodes[1].getForwardCipher().open(cell.getTotalMessage()));
+            assertTrue(nodes[2].getForwardCipher().open(cell.getTotalMessage()));
+            assertArrayEquals(Arrays.copyOf(original, CellView.RECOGNIZED_OFFSET),
+                    Arrays.copyOf(cell.getTotalMessage(), CellView.RECOGNIZED_OFFSET));
+        } finally {
+            ProxyKeyStore.remove(0x0303);
+        }
+    }
+}
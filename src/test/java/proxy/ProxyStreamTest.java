@@ -0,0 +1,119 @@
+package proxy;
+
+import Interface.ICellMethods;
+import Interface.IStreamConsumer;
+import cells.CellView;
+import circuit.ReadinessEvent;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProxyStreamTest {
+
+    /**
+     * @return a cell with the bytes as its relay payload, and padding behind them
+     */
+    private static byte[] dataCell(int... data) {
+        byte[] cell = new byte[CellView.CELL_SIZE];
+        Arrays.fill(cell, (byte) 0x7F);
+        for (int i = 0; i < data.length; i++) {
+            cell[CellView.RELAY_PAYLOAD_OFFSET + i] = (byte) data[i];
+        }
+        return cell;
+    }
+
+    @Test
+    public void endedStreamKeepsItsDataAndThenEnds() throws Exception {
+        ProxyStream stream = new ProxyStream(0x1234);
+        assertArrayEquals(new byte[] {0x12, 0x34}, stream.getStreamIdBytes());
+
+        stream.received(dataCell(1, 2), CellView.RELAY_PAYLOAD_OFFSET, 2);
+        stream.received(dataCell(3), CellView.RELAY_PAYLOAD_OFFSET, 1);
+        stream.ended();
+        // Data that arrives after the end is dropped
+        stream.received(dataCell(4), CellView.RELAY_PAYLOAD_OFFSET, 1);
+
+        assertArrayEquals(new byte[] {1, 2}, stream.read());
+        assertArrayEquals(new byte[] {3}, stream.read());
+        assertNull(stream.read());
+        assertNull(stream.read());
+        assertFalse(stream.getReadiness().isReady(ReadinessEvent.STREAM_CONNECTED));
+    }
+
+    @Test
+    public void inputStreamReturnsEachCellAsItArrives() throws Exception {
+        ProxyStream stream = new ProxyStream(1);
+        InputStream in = stream.getInputStream();
+
+        // The first cell can be read before the stream has ended
+        stream.received(dataCell(1, 2, 3), CellView.RELAY_PAYLOAD_OFFSET, 3);
+        byte[] buffer = new byte[100];
+        assertEquals(3, in.read(buffer));
+        assertArrayEquals(new byte[] {1, 2, 3}, Arrays.copyOf(buffer, 3));
+
+        stream.received(dataCell(4, 5), CellView.RELAY_PAYLOAD_OFFSET, 2);
+        assertEquals(4, in.read());
+        stream.ended();
+
+        ByteArrayOutputStream rest = new ByteArrayOutputStream();
+        in.transferTo(rest);
+        assertArrayEquals(new byte[] {5}, rest.toByteArray());
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void consumerGetsTheTrimmedPayloadWithoutBuffering() throws Exception {
+        ByteArrayOutputStream delivered = new ByteArrayOutputStream();
+        boolean[] endSeen = {false};
+        ProxyStream stream = new ProxyStream(2);
+        stream.setConsumer(new IStreamConsumer() {
+            @Override
+            public void onData(ByteBuffer data) {
+                assertTrue(data.isReadOnly());
+                byte[] copy = new byte[data.remaining()];
+                data.get(copy);
+                delivered.writeBytes(copy);
+            }
+
+            @Override
+            public void onEnd() {
+                endSeen[0] = true;
+            }
+        });
+
+        stream.received(dataCell(9, 8, 7), CellView.RELAY_PAYLOAD_OFFSET, 3);
+        assertArrayEquals(new byte[] {9, 8, 7}, delivered.toByteArray());
+
+        stream.ended();
+        assertTrue(endSeen[0]);
+        // Nothing was buffered, so a reader only sees the end
+        assertNull(stream.read());
+    }
+
+    @Test
+    public void everyIncrementOfReadCellsIsAcknowledged() throws Exception {
+        ProxyStream stream = new ProxyStream(3);
+        int[] acknowledged = {0};
+        stream.setAcknowledge(() -> acknowledged[0]++);
+
+        for (int i = 0; i < 2 * ICellMethods.SENDME_INCREMENT; i++) {
+            stream.received(dataCell(i), CellView.RELAY_PAYLOAD_OFFSET, 1);
+        }
+        // Cells that are only buffered are not acknowledged, so the end node can not send more than a window ahead
+        assertEquals(0, acknowledged[0]);
+
+        for (int i = 0; i < ICellMethods.SENDME_INCREMENT; i++) {
+            stream.read();
+        }
+        assertEquals(1, acknowledged[0]);
+        for (int i = 0; i < ICellMethods.SENDME_INCREMENT; i++) {
+            stream.read();
+        }
+        assertEquals(2, acknowledged[0]);
+    }
+}
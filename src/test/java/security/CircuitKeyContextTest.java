@@ -0,0 +1,129 @@
+package security;
+
+import Interface.ICellMethods;
+import cells.CellView;
+import cells.ControlCell;
+import org.junit.jupiter.api.Test;
+import proxy.ProxyKeyStore;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CircuitKeyContextTest {
+
+    /**
+     * Runs the handshake between two contexts, the way the create and created cells carry u
+     */
+    private static void handshake(CircuitKeyContext proxy, CircuitKeyContext node) throws Exception {
+        byte[] proxyU = new byte[CircuitKeyContext.U_SIZE];
+        byte[] nodeU = new byte[CircuitKeyContext.U_SIZE];
+        proxy.writeLocalU(proxyU, 0);
+        node.writeLocalU(nodeU, 0);
+        node.complete(CircuitKeyContext.toPublicKey(proxyU, 0));
+        proxy.complete(CircuitKeyContext.toPublicKey(nodeU, 0));
+    }
+
+    @Test
+    public void bothSidesAgreeOnTheKey() throws Exception {
+        CircuitKeyContext proxy = new CircuitKeyContext(42, null);
+        CircuitKeyContext node = new CircuitKeyContext(42, null);
+        assertFalse(proxy.isComplete());
+
+        handshake(proxy, node);
+
+        assertTrue(proxy.isComplete());
+        assertTrue(node.isComplete());
+        assertArrayEquals(proxy.getSecretKey().getEncoded(), node.getSecretKey().getEncoded());
+
+        // A layer added by the proxy is removed by the node
+        byte[] original = new byte[CellView.CELL_SIZE];
+        new Random(1).nextBytes(original);
+        byte[] cell = original.clone();
+        proxy.getForwardCipher().apply(cell);
+        node.getForwardCipher().apply(cell);
+        assertArrayEquals(original, cell);
+    }
+
+    @Test
+    public void handshakesOnManyThreadsDoNotMix() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Callable<Boolean>> handshakes = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                int circuitId = i;
+                handshakes.add(() -> {
+                    CircuitKeyContext proxy = new CircuitKeyContext(circuitId, null);
+                    CircuitKeyContext node = new CircuitKeyContext(circuitId, null);
+                    handshake(proxy, node);
+                    return Arrays.equals(proxy.getSecretKey().getEncoded(), node.getSecretKey().getEncoded());
+                });
+            }
+            for (Future<Boolean> agreed : executor.invokeAll(handshakes)) {
+                assertTrue(agreed.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void tableKeepsCircuitsOfDifferentLinksApart() throws Exception {
+        CircuitKeyTable table = new CircuitKeyTable();
+        Object linkA = new Object();
+        Object linkB = new Object();
+        CircuitKeyContext a = new CircuitKeyContext(7, null);
+        CircuitKeyContext b = new CircuitKeyContext(7, null);
+
+        assertTrue(table.add(linkA, 7, a));
+        assertTrue(table.add(linkB, 7, b));
+        assertFalse(table.add(linkA, 7, b));
+        assertSame(a, table.get(linkA, 7));
+        assertSame(b, table.get(linkB, 7));
+        assertNull(table.get(linkA, 8));
+
+        table.removeLink(linkA);
+        assertNull(table.get(linkA, 7));
+        assertSame(b, table.remove(linkB, 7));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void createAndCreatedCellsGiveTheSameLayer() throws Exception {
+        InetAddress guard = InetAddress.getLoopbackAddress();
+        byte[] circuitId = {(byte) 0xBE, (byte) 0xEF};
+        Object link = new Object();
+
+        // The proxy sends the create cell, and the node turns it into the created cell
+        ControlCell create = ICellMethods.create(circuitId, guard);
+        byte[] cell = create.getTotalMessage();
+        CircuitKeyContext node = ICellMethods.createdInPlace(new CellView().wrap(cell), link);
+        assertSame(node, CircuitKeyTable.shared().get(link, 0xBEEF));
+        assertEquals(2, cell[2]);
+        assertTrue(new CellView().wrap(cell).isZeroFrom(CellView.CONTROL_PAYLOAD_OFFSET + CircuitKeyContext.U_SIZE));
+
+        // The proxy finishes its half when the created cell comes back, and the node becomes the first hop
+        assertEquals(0, ICellMethods.created(cell));
+        HopCipher proxyForward = ProxyKeyStore.get(0xBEEF).getForwardCipher(0);
+        assertNotNull(proxyForward);
+        assertNull(ProxyKeyStore.get(0xBEEF).takePendingHandshake());
+
+        byte[] original = new byte[CellView.CELL_SIZE];
+        new Random(2).nextBytes(original);
+        byte[] relay = original.clone();
+        proxyForward.apply(relay);
+        node.getForwardCipher().apply(relay);
+        assertArrayEquals(original, relay);
+
+        CircuitKeyTable.shared().remove(link, 0xBEEF);
+        ProxyKeyStore.remove(0xBEEF);
+    }
+}
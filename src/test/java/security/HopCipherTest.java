@@ -0,0 +1,163 @@
+package security;
+
+import cells.CellView;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HopCipherTest {
+
+    public SecretKey key(int seed) {
+        byte[] bytes = new byte[16];
+        new Random(seed).nextBytes(bytes);
+        return new SecretKeySpec(bytes, "AES");
+    }
+
+    public byte[] cell(int seed) {
+        byte[] cell = new byte[CellView.CELL_SIZE];
+        new Random(seed).nextBytes(cell);
+        return cell;
+    }
+
+    @Test
+    public void layerAddedByOneSideIsRemovedByTheOther() throws Exception {
+        HopCipher client = new HopCipher(key(1), true);
+        HopCipher node = new HopCipher(key(1), true);
+        for (int i = 0; i < 10; i++) {
+            byte[] original = cell(i);
+            byte[] cell = original.clone();
+            client.apply(cell);
+            assertFalse(Arrays.equals(original, cell));
+            node.apply(cell);
+            assertArrayEquals(original, cell);
+        }
+    }
+
+    @Test
+    public void counterRunsOnBetweenCells() throws Exception {
+        HopCipher cipher = new HopCipher(key(1), true);
+        byte[] first = cell(7);
+        byte[] second = cell(7);
+        cipher.apply(first);
+        cipher.apply(second);
+        // The same cell must not give the same result twice
+        assertFalse(Arrays.equals(first, second));
+    }
+
+    @Test
+    public void directionsUseDifferentKeystreams() throws Exception {
+        byte[] forward = new byte[CellView.CELL_SIZE];
+        byte[] backward = new byte[CellView.CELL_SIZE];
+        new HopCipher(key(1), true).nextKeystream(forward);
+        new HopCipher(key(1), false).nextKeystream(backward);
+        assertFalse(Arrays.equals(forward, backward));
+    }
+
+    @Test
+    public void layersCanBeRemovedInAnyOrder() throws Exception {
+        byte[] original = cell(3);
+        byte[] cell = original.clone();
+        new HopCipher(key(1), true).apply(cell);
+        new HopCipher(key(2), true).apply(cell);
+        new HopCipher(key(3), true).apply(cell);
+
+        new HopCipher(key(1), true).apply(cell);
+        new HopCipher(key(3), true).apply(cell);
+        new HopCipher(key(2), true).apply(cell);
+        assertArrayEquals(original, cell);
+    }
+
+    @Test
+    public void bufferAndArrayGiveTheSameResult() throws Exception {
+        HopCipher arrayCipher = new HopCipher(key(1), false);
+        HopCipher bufferCipher = new HopCipher(key(1), false);
+        for (int i = 0; i < 3; i++) {
+            byte[] cell = cell(i);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(CellView.CELL_SIZE);
+            buffer.put(cell).position(5);
+
+            arrayCipher.apply(cell);
+            bufferCipher.apply(buffer);
+
+            assertEquals(5, buffer.position());
+            byte[] fromBuffer = new byte[CellView.CELL_SIZE];
+            buffer.get(0, fromBuffer);
+            assertArrayEquals(cell, fromBuffer);
+        }
+    }
+
+    @Test
+    public void keystreamMatchesApply() throws Exception {
+        HopCipher applied = new HopCipher(key(1), true);
+        HopCipher streamed = new HopCipher(key(1), true);
+        byte[] cell = cell(4);
+        byte[] expected = cell.clone();
+        applied.apply(expected);
+
+        byte[] keystream = new byte[CellView.CELL_SIZE];
+        streamed.nextKeystream(keystream);
+        for (int i = 0; i < cell.length; i++) {
+            cell[i] ^= keystream[i];
+        }
+        assertArrayEquals(expected, cell);
+    }
+
+    @Test
+    public void sealedCellIsRecognizedOnlyByItsHop() throws Exception {
+        // Three hops, the cell is sealed by the last one and passes the two others on its way back
+        HopCipher[] nodes = {new HopCipher(key(1), false), new HopCipher(key(2), false), new HopCipher(key(3), false)};
+        HopCipher[] client = {new HopCipher(key(1), false), new HopCipher(key(2), false), new HopCipher(key(3), false)};
+
+        for (int c = 0; c < 20; c++) {
+            byte[] original = cell(c);
+            byte[] cell = original.clone();
+            nodes[2].seal(cell);
+            nodes[1].apply(cell);
+            nodes[0].apply(cell);
+
+            assertFalse(client[0].open(cell));
+            assertFalse(client[1].open(cell));
+            assertTrue(client[2].open(cell));
+            // Everything in front of the recognized and digest fields is the original cell
+            assertArrayEquals(Arrays.copyOf(original, CellView.RECOGNIZED_OFFSET),
+                    Arrays.copyOf(cell, CellView.RECOGNIZED_OFFSET));
+        }
+    }
+
+    @Test
+    public void replayedCellIsNotRecognized() throws Exception {
+        HopCipher node = new HopCipher(key(1), false);
+        HopCipher client = new HopCipher(key(1), false);
+        byte[] first = cell(1);
+        node.seal(first);
+        assertTrue(client.open(first.clone()));
+
+        // The keystream has moved on, so the same bytes do not decrypt to a recognized cell again
+        assertFalse(client.open(first));
+    }
+
+    @Test
+    public void cellInDirectBufferIsSealedAndOpened() throws Exception {
+        HopCipher node = new HopCipher(key(1), true);
+        HopCipher client = new HopCipher(key(1), true);
+        for (int c = 0; c < 5; c++) {
+            byte[] original = cell(c);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(CellView.CELL_SIZE);
+            buffer.put(0, original);
+
+            client.seal(buffer);
+            assertTrue(node.open(buffer));
+            byte[] opened = new byte[CellView.CELL_SIZE];
+            buffer.get(0, opened);
+            assertArrayEquals(Arrays.copyOf(original, CellView.RECOGNIZED_OFFSET),
+                    Arrays.copyOf(opened, CellView.RECOGNIZED_OFFSET));
+            assertEquals(0, buffer.position());
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package security;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeyPairPoolTest {
+
+    /**
+     * Waits until the pool holds the given number of key pairs
+     */
+    public void awaitSize(KeyPairPool pool, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (pool.size() != size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(size, pool.size());
+    }
+
+    @Test
+    public void poolIsFilledUpToTheHighWatermark() throws Exception {
+        KeyPairPool pool = new KeyPairPool(2, 6);
+        try {
+            awaitSize(pool, 6);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void poolIsRefilledOnceDrainedToTheLowWatermark() throws Exception {
+        KeyPairPool pool = new KeyPairPool(2, 6);
+        try {
+            awaitSize(pool, 6);
+            // Above the low watermark, nothing is generated
+            pool.take();
+            pool.take();
+            pool.take();
+            Thread.sleep(50);
+            assertEquals(3, pool.size());
+
+            // Reaching the low watermark wakes the background thread
+            pool.take();
+            awaitSize(pool, 6);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void emptyPoolStillGivesKeyPairs() throws Exception {
+        KeyPairPool pool = new KeyPairPool(0, 1);
+        pool.shutdown();
+        Set<Object> privateKeys = new HashSet<>();
+        for (int i = 0; i < 5; i++) {
+            KeyInformation key = pool.take();
+            assertNotNull(key.getLocalPublicKey());
+            assertNotNull(key.getU());
+            privateKeys.add(key.getPrivateKey());
+        }
+        // Every handshake gets a key pair of its own
+        assertEquals(5, privateKeys.size());
+    }
+}
@@ -0,0 +1,109 @@
+package security;
+
+import cells.CellView;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OnionEncoderTest {
+
+    public SecretKey key(int seed) {
+        byte[] bytes = new byte[16];
+        new Random(seed).nextBytes(bytes);
+        return new SecretKeySpec(bytes, "AES");
+    }
+
+    public List<HopCipher> forwardCiphers(int hops) throws Exception {
+        List<HopCipher> ciphers = new ArrayList<>();
+        for (int i = 0; i < hops; i++) {
+            ciphers.add(new HopCipher(key(i), true));
+        }
+        return ciphers;
+    }
+
+    /**
+     * The nodes each remove their own layer, one cipher at a time, and must end up with the original cell
+     */
+    @Test
+    public void everyNodeRemovesItsOwnLayer() throws Exception {
+        int hops = 6;
+        OnionEncoder onion = new OnionEncoder(forwardCiphers(hops));
+        List<HopCipher> nodes = forwardCiphers(hops);
+
+        for (int c = 0; c < 5; c++) {
+            byte[] original = new byte[CellView.CELL_SIZE];
+            new Random(c).nextBytes(original);
+            byte[] cell = original.clone();
+
+            onion.encode(cell, hops);
+            for (HopCipher node : nodes) {
+                node.apply(cell);
+            }
+            assertArrayEquals(original, cell);
+        }
+    }
+
+    /**
+     * Ex: destroy() sends one cell to each hop, and only the hops a cell passes may move their counters on
+     */
+    @Test
+    public void fewerLayersOnlyUseTheFirstHops() throws Exception {
+        int hops = 4;
+        OnionEncoder onion = new OnionEncoder(forwardCiphers(hops));
+        List<HopCipher> nodes = forwardCiphers(hops);
+
+        for (int amount = hops; amount > 0; amount--) {
+            byte[] original = new byte[CellView.CELL_SIZE];
+            new Random(amount).nextBytes(original);
+            byte[] cell = original.clone();
+
+            onion.encode(cell, amount);
+            for (int i = 0; i < amount; i++) {
+                nodes.get(i).apply(cell);
+            }
+            assertArrayEquals(original, cell);
+        }
+    }
+
+    @Test
+    public void amountOutsideTheCircuitIsRefused() throws Exception {
+        OnionEncoder onion = new OnionEncoder(forwardCiphers(3));
+        byte[] cell = new byte[CellView.CELL_SIZE];
+        assertThrows(IllegalArgumentException.class, () -> onion.encode(cell, 0));
+        assertThrows(IllegalArgumentException.class, () -> onion.encode(cell, 4));
+    }
+
+    /**
+     * Cells for every hop of the circuit are mixed, as relay extend, stream and destroy cells are. Each cell must be
+     * recognized by the hop it was sealed for, and passed on by the hops in front of it, whatever its command byte
+     */
+    @Test
+    public void sealedCellIsRecognizedOnlyByItsHop() throws Exception {
+        int hops = 3;
+        OnionEncoder onion = new OnionEncoder(forwardCiphers(hops));
+        List<HopCipher> nodes = forwardCiphers(hops);
+        Random random = new Random(7);
+
+        for (int c = 0; c < 500; c++) {
+            int target = 1 + random.nextInt(hops);
+            byte[] original = new byte[CellView.CELL_SIZE];
+            random.nextBytes(original);
+            byte[] cell = original.clone();
+
+            onion.seal(cell, target);
+            for (int i = 0; i < target - 1; i++) {
+                assertFalse(nodes.get(i).open(cell));
+            }
+            assertTrue(nodes.get(target - 1).open(cell));
+            assertArrayEquals(Arrays.copyOf(original, CellView.RECOGNIZED_OFFSET),
+                    Arrays.copyOf(cell, CellView.RECOGNIZED_OFFSET));
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package threads;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CellRingBufferTest {
+
+    /**
+     * @return a small "cell" holding its number in the first four bytes
+     */
+    public byte[] numbered(int number) {
+        return new byte[] {(byte) (number >>> 24), (byte) (number >>> 16), (byte) (number >>> 8), (byte) number};
+    }
+
+    public int number(byte[] cell) {
+        return (cell[0] & 0xFF) << 24 | (cell[1] & 0xFF) << 16 | (cell[2] & 0xFF) << 8 | (cell[3] & 0xFF);
+    }
+
+    @Test
+    public void capacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(1024, new CellRingBuffer(1000).capacity());
+        assertEquals(1, new CellRingBuffer(1).capacity());
+    }
+
+    @Test
+    public void fullQueueRefusesCellsUntilOneIsTaken() {
+        CellRingBuffer queue = new CellRingBuffer(2, false, WaitStrategy.PARK);
+        assertTrue(queue.offer(numbered(1)));
+        assertTrue(queue.offer(numbered(2)));
+        assertFalse(queue.offer(numbered(3)));
+        assertEquals(2, queue.size());
+
+        assertEquals(1, number(queue.poll()));
+        assertTrue(queue.offer(numbered(3)));
+        assertEquals(2, number(queue.poll()));
+        assertEquals(3, number(queue.poll()));
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void drainToTakesCellsInOrder() {
+        CellRingBuffer queue = new CellRingBuffer(8, false, WaitStrategy.PARK);
+        for (int i = 0; i < 6; i++) {
+            queue.offer(numbered(i));
+        }
+        List<byte[]> drained = new ArrayList<>();
+        assertEquals(4, queue.drainTo(drained, 4));
+        assertEquals(2, queue.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, number(drained.get(i)));
+        }
+    }
+
+    @Test
+    public void timedPollOnEmptyQueueGivesUp() throws InterruptedException {
+        CellRingBuffer queue = new CellRingBuffer(4, false, WaitStrategy.PARK);
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * The queue is much smaller than the number of cells, so both threads have to wait for each other many times
+     */
+    @Test
+    public void singleProducerHandsOverEveryCellInOrder() throws InterruptedException {
+        for (WaitStrategy strategy : WaitStrategy.values()) {
+            CellRingBuffer queue = new CellRingBuffer(16, false, strategy);
+            // A spinning thread keeps its core until it is preempted, which is slow on a machine with few cores
+            int cells = strategy == WaitStrategy.SPIN ? 1_000 : 100_000;
+            Thread producer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < cells; i++) {
+                        queue.put(numbered(i));
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            producer.start();
+            for (int i = 0; i < cells; i++) {
+                assertEquals(i, number(queue.take()), strategy.name());
+            }
+            producer.join();
+        }
+    }
+
+    @Test
+    public void multipleProducersLoseNoCells() throws InterruptedException {
+        CellRingBuffer queue = new CellRingBuffer(16, true, WaitStrategy.PARK);
+        int producers = 4;
+        int cellsEach = 20_000;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int first = p * cellsEach;
+            Thread producer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < cellsEach; i++) {
+                        queue.put(numbered(first + i));
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            threads.add(producer);
+            producer.start();
+        }
+
+        // Cells from one producer must still arrive in the order that producer put them
+        int[] lastSeen = new int[producers];
+        Arrays.fill(lastSeen, -1);
+        for (int i = 0; i < producers * cellsEach; i++) {
+            int number = number(queue.take());
+            int producer = number / cellsEach;
+            assertTrue(number > lastSeen[producer]);
+            lastSeen[producer] = number;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, queue.size());
+    }
+}
@@ -0,0 +1,109 @@
+package threads;
+
+import Interface.ICellMethods;
+import cells.CellView;
+import nodes.EndNode;
+import nodes.Node;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import proxy.ProxyKeyStore;
+import security.Cryptography;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChannelRelayThreadTest {
+    private static final int CIRCUIT_ID = 0x0C0D;
+    private static final byte[] CIRCUIT_ID_BYTES = {0x0C, 0x0D};
+
+    private final ArrayList<CellThread> threads = new ArrayList<>();
+
+    @AfterEach
+    public void stopThreads() {
+        for (CellThread thread : threads) {
+            thread.getRunningThread().interrupt();
+        }
+        ProxyKeyStore.remove(CIRCUIT_ID);
+    }
+
+    private void start(CellThread thread) {
+        threads.add(thread);
+        thread.start();
+    }
+
+    /**
+     * Two nodes with relay threads: the guard extends the circuit to the end node, and the end node opens a stream
+     */
+    @Test
+    public void circuitIsExtendedAndCarriesAStream() throws Exception {
+        try (ServerSocketChannel guardServer = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+             ServerSocketChannel endServer = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+             Socket proxy = new Socket("localhost", guardServer.socket().getLocalPort());
+             SocketChannel guardPrevious = guardServer.accept();
+             SocketChannel guardNext = SocketChannel.open(endServer.getLocalAddress());
+             SocketChannel endPrevious = endServer.accept();
+             ServerSocket destination = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+
+            // The guard node relays both ways
+            ChannelCellWriter guardToPrevious = new ChannelCellWriter(guardPrevious);
+            ChannelCellWriter guardToNext = new ChannelCellWriter(guardNext);
+            start(new ChannelRelayThread(guardPrevious, guardToNext, guardToPrevious, true,
+                    guardPrevious.socket(), CIRCUIT_ID));
+            start(new ChannelRelayThread(guardNext, guardToPrevious, guardToNext, false,
+                    guardPrevious.socket(), CIRCUIT_ID));
+
+            // The end node is the exit, its cells are written by a thread of their own
+            ChannelCellWriter endToPrevious = new ChannelCellWriter(endPrevious);
+            BlockingQueue<byte[]> exitCells = new LinkedBlockingQueue<>();
+            ChannelRelayThread endRelay = new ChannelRelayThread(endPrevious, null, endToPrevious, true,
+                    endPrevious.socket(), CIRCUIT_ID);
+            endRelay.setExit(new EndNode(exitCells));
+            start(endRelay);
+            start(new ChannelWriterThread(endToPrevious, exitCells));
+
+            proxy.setSoTimeout(5000);
+            OutputStream out = proxy.getOutputStream();
+            DataInputStream in = new DataInputStream(proxy.getInputStream());
+            ProxyKeyStore keys = ProxyKeyStore.forCircuit(CIRCUIT_ID);
+            Cryptography cryptography = new Cryptography();
+            byte[] cell = new byte[CellView.CELL_SIZE];
+
+            // The guard answers the create cell itself
+            out.write(ICellMethods.create(CIRCUIT_ID_BYTES, InetAddress.getLoopbackAddress()).getTotalMessage());
+            in.readFully(cell);
+            assertEquals(0, ICellMethods.created(cell));
+
+            // The guard sends the handshake on to the end node, and answers with a relay extended cell
+            out.write(ICellMethods.relayExtend(CIRCUIT_ID_BYTES, 1, InetAddress.getLoopbackAddress()).getTotalMessage());
+            in.readFully(cell);
+            assertEquals(0, cryptography.peel(cell, keys.backwardCiphers()));
+            assertEquals(3, new CellView().wrap(cell).getRelayCommand());
+            assertEquals(1, ICellMethods.relayExtended(cell));
+
+            // The stream is opened by the end node, which says so with a relay connected cell
+            ArrayList<Node> circuit = new ArrayList<>(Arrays.asList(new Node(), new Node()));
+            out.write(ICellMethods.relayBegin(CIRCUIT_ID_BYTES, new byte[] {0, 5},
+                    "localhost:" + destination.getLocalPort(), circuit).getTotalMessage());
+            try (Socket accepted = destination.accept()) {
+                in.readFully(cell);
+                assertEquals(1, cryptography.peel(cell, keys.backwardCiphers()));
+                CellView view = new CellView().wrap(cell);
+                assertEquals(5, view.getRelayCommand());
+                assertEquals(5, view.getStreamId());
+                assertTrue(accepted.isConnected());
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package threads;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CircuitTableTest {
+    CircuitTable table = new CircuitTable();
+
+    @Test
+    public void circuitsAreFoundByTheirId() {
+        CircuitEntry low = new CircuitEntry(0, null, true);
+        CircuitEntry high = new CircuitEntry(0xFFFF, null, false);
+        table.add(low);
+        table.add(high);
+
+        assertSame(low, table.get(0));
+        assertSame(high, table.get(0xFFFF));
+        assertNull(table.get(1));
+        assertEquals(2, table.size());
+    }
+
+    @Test
+    public void idCanOnlyBeUsedOnce() {
+        assertTrue(table.add(new CircuitEntry(42, null, true)));
+        assertFalse(table.add(new CircuitEntry(42, null, false)));
+        assertTrue(table.get(42).isForward());
+    }
+
+    @Test
+    public void removedCircuitIsGone() {
+        table.add(new CircuitEntry(7, null, true));
+        table.add(new CircuitEntry(8, null, true));
+        assertNotNull(table.remove(7));
+        assertNull(table.remove(7));
+
+        List<Integer> left = new ArrayList<>();
+        table.forEach(entry -> left.add(entry.getCircuitId()));
+        assertEquals(List.of(8), left);
+    }
+
+    @Test
+    public void busyIdIsReplacedWithTheNextFreeOne() {
+        table.add(new CircuitEntry(0xFFFF, null, true));
+        table.add(new CircuitEntry(0, null, true));
+
+        CircuitEntry kept = table.addWithFreeId(5, id -> new CircuitEntry(id, null, false));
+        assertEquals(5, kept.getCircuitId());
+        // The ids wrap around at the end of the table
+        CircuitEntry moved = table.addWithFreeId(0xFFFF, id -> new CircuitEntry(id, null, false));
+        assertEquals(1, moved.getCircuitId());
+        assertSame(moved, table.get(1));
+        assertEquals(4, table.size());
+    }
+}
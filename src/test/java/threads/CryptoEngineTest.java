@@ -0,0 +1,113 @@
+package threads;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CryptoEngineTest {
+
+    /**
+     * @return a small "cell" holding its circuit and number
+     */
+    public byte[] numbered(int circuit, int number) {
+        return new byte[] {(byte) circuit, (byte) (number >>> 8), (byte) number};
+    }
+
+    @Test
+    public void cellsOfOneCircuitKeepTheirOrder() throws InterruptedException {
+        CryptoEngine engine = new CryptoEngine(4);
+        int circuits = 8;
+        int cellsEach = 2_000;
+        Map<Integer, List<Integer>> seen = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(circuits * cellsEach);
+
+        try {
+            for (int i = 0; i < cellsEach; i++) {
+                for (int circuit = 0; circuit < circuits; circuit++) {
+                    engine.submit(circuit, numbered(circuit, i), (cell, view) -> {
+                        // Only the lane of the circuit adds to its list, so no lock is needed
+                        seen.computeIfAbsent((int) cell[0], c -> new ArrayList<>())
+                                .add((cell[1] & 0xFF) << 8 | (cell[2] & 0xFF));
+                        done.countDown();
+                    });
+                }
+            }
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            for (int circuit = 0; circuit < circuits; circuit++) {
+                List<Integer> numbers = seen.get(circuit);
+                assertEquals(cellsEach, numbers.size());
+                for (int i = 0; i < cellsEach; i++) {
+                    assertEquals(i, numbers.get(i));
+                }
+            }
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void readersAreSpreadOverTheLanes() throws InterruptedException {
+        CryptoEngine engine = new CryptoEngine(4);
+        Set<String> lanes = ConcurrentHashMap.newKeySet();
+        CountDownLatch done = new CountDownLatch(8);
+        try {
+            // Eight readers, each with a key of its own, as the reader threads of four nodes take them
+            for (int reader = 0; reader < 8; reader++) {
+                engine.submit(engine.nextOrderKey(), numbered(reader, 0), (cell, view) -> {
+                    lanes.add(Thread.currentThread().getName());
+                    done.countDown();
+                });
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(4, lanes.size());
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void failingCellDoesNotStopTheLane() throws InterruptedException {
+        CryptoEngine engine = new CryptoEngine(1);
+        CountDownLatch done = new CountDownLatch(1);
+        try {
+            engine.submit(0, numbered(0, 0), (cell, view) -> {
+                throw new IllegalStateException("Broken cell");
+            });
+            engine.submit(0, numbered(0, 1), (cell, view) -> done.countDown());
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void batchIsHandledInOrder() throws InterruptedException {
+        CryptoEngine engine = new CryptoEngine(2);
+        List<Integer> seen = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(100);
+        List<byte[]> batch = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            batch.add(numbered(3, i));
+        }
+        try {
+            engine.submit(3, batch, (cell, view) -> {
+                seen.add(cell[2] & 0xFF);
+                done.countDown();
+            });
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i, seen.get(i));
+            }
+        } finally {
+            engine.shutdown();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package threads;
+
+import cells.CellBufferPool;
+import cells.CellView;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LinkTest {
+    EventLoopGroup group;
+
+    @AfterEach
+    public void stopLoops() {
+        if(group != null) {
+            group.shutdown();
+        }
+    }
+
+    /**
+     * Cells written in one burst must be delivered one by one, even when a read ends in the middle of a cell
+     */
+    @Test
+    public void cellsAreEchoedBackInOrder() throws Exception {
+        group = new EventLoopGroup(1);
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+             Socket client = new Socket("localhost", server.socket().getLocalPort())) {
+
+            SocketChannel accepted = server.accept();
+            // Every cell is sent straight back on the link it came from
+            group.register(accepted, Link::send);
+
+            int cells = 40;
+            byte[] burst = new byte[cells * CellView.CELL_SIZE];
+            for (int i = 0; i < cells; i++) {
+                burst[i * CellView.CELL_SIZE] = (byte) i;
+            }
+            OutputStream out = client.getOutputStream();
+            // The last cell is split in two writes
+            out.write(burst, 0, burst.length - 100);
+            out.flush();
+            Thread.sleep(50);
+            out.write(burst, burst.length - 100, 100);
+            out.flush();
+
+            byte[] echoed = new byte[burst.length];
+            client.setSoTimeout(5000);
+            new DataInputStream(client.getInputStream()).readFully(echoed);
+            assertArrayEquals(burst, echoed);
+        }
+    }
+
+    @Test
+    public void sendAfterCloseIsRefused() throws Exception {
+        group = new EventLoopGroup(1);
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+             Socket client = new Socket("localhost", server.socket().getLocalPort())) {
+
+            Link link = group.register(server.accept(), (from, cell) -> CellBufferPool.direct().release(cell));
+            link.close();
+            assertFalse(link.send(CellBufferPool.direct().acquire()));
+            assertEquals(0, link.getQueued());
+            // The other side sees the link close, and no cell before it
+            client.setSoTimeout(5000);
+            assertEquals(-1, client.getInputStream().read());
+        }
+    }
+
+    /**
+     * A hop that does not read must make the link sending to it stop reading, instead of filling its queue
+     */
+    @Test
+    public void fullLinkStopsTheLinkSendingToIt() throws Exception {
+        group = new EventLoopGroup(2);
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+             Socket sender = new Socket("localhost", server.socket().getLocalPort());
+             Socket receiver = new Socket("localhost", server.socket().getLocalPort())) {
+
+            SocketChannel fromSender = server.accept();
+            SocketChannel toReceiver = server.accept();
+            // Small buffers, so the link's queue fills up long before the sender is done
+            toReceiver.setOption(StandardSocketOptions.SO_SNDBUF, 8192);
+            receiver.setReceiveBufferSize(8192);
+            Link target = group.register(toReceiver, (from, cell) -> CellBufferPool.direct().release(cell));
+            // Every cell from the sender is passed on to the receiver
+            group.register(fromSender, (from, cell) -> target.send(cell, from));
+
+            int cells = 50_000;
+            Thread writer = new Thread(() -> {
+                try {
+                    OutputStream out = sender.getOutputStream();
+                    byte[] cell = new byte[CellView.CELL_SIZE];
+                    for (int i = 0; i < cells; i++) {
+                        out.write(cell);
+                    }
+                    out.flush();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            writer.start();
+
+            // The receiver reads nothing, so the queue fills up, and the sender ends up waiting on full socket buffers
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (target.getQueued() < Link.HIGH_WATER && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            writer.join(500);
+            assertTrue(writer.isAlive());
+            // Each read that was already under way may add one batch on top of the high water mark
+            assertTrue(target.getQueued() <= Link.HIGH_WATER + 16, "Queued: " + target.getQueued());
+
+            // Once the receiver reads, the sender is read from again, and every cell arrives
+            receiver.setSoTimeout(10_000);
+            byte[] received = new byte[CellView.CELL_SIZE];
+            DataInputStream in = new DataInputStream(receiver.getInputStream());
+            for (int i = 0; i < cells; i++) {
+                in.readFully(received);
+            }
+            writer.join(10_000);
+            assertFalse(writer.isAlive());
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package threads;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VirtualThreadsTest {
+
+    /**
+     * Support depends on the JVM running the tests: Java 17 has no virtual threads, Java 21 does
+     */
+    @Test
+    public void supportMatchesJavaVersion() {
+        assertEquals(Runtime.version().feature() >= 21, VirtualThreads.isSupported());
+    }
+
+    @Test
+    public void cellThreadRunsItsWorkOnce() throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(1);
+        CellThread thread = new CellThread() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        };
+        thread.start();
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertEquals(VirtualThreads.isEnabled(), thread.getRunningThread() != thread);
+    }
+
+    @Test
+    public void startingWithoutSupportFails() {
+        if(VirtualThreads.isSupported()) {
+            return;
+        }
+        assertThrows(UnsupportedOperationException.class, () -> VirtualThreads.start("test", () -> { }));
+    }
+}
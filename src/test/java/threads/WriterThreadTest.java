@@ -0,0 +1,48 @@
+package threads;
+
+import cells.CellView;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WriterThreadTest {
+
+    /**
+     * More cells than fit in one batch are queued before the writer starts, so they are sent in several batches
+     */
+    @Test
+    public void batchedCellsArriveInOrder() throws Exception {
+        int cells = 100;
+        BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(cells);
+        for (int i = 0; i < cells; i++) {
+            byte[] cell = new byte[CellView.CELL_SIZE];
+            cell[0] = (byte) i;
+            cell[CellView.CELL_SIZE - 1] = (byte) i;
+            queue.put(cell);
+        }
+
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket sending = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+             Socket receiving = server.accept()) {
+            WriterThread writer = new WriterThread(sending, queue);
+            writer.setDaemon(true);
+            writer.start();
+
+            receiving.setSoTimeout(5000);
+            DataInputStream in = new DataInputStream(receiving.getInputStream());
+            byte[] cell = new byte[CellView.CELL_SIZE];
+            for (int i = 0; i < cells; i++) {
+                in.readFully(cell);
+                assertEquals((byte) i, cell[0]);
+                assertEquals((byte) i, cell[CellView.CELL_SIZE - 1]);
+            }
+        }
+    }
+}